@@ -25,6 +25,7 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
@@ -34,6 +35,8 @@ import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.chombo.util.TextTuple;
 import org.chombo.util.Utility;
+import org.sifarish.feature.SimilarityEdge;
+import org.sifarish.feature.SimilarityEdgeInputFormat;
 
 /**
  * Converts a correlation in exploded form to a sparse matrix form which is item ID followed by 
@@ -54,6 +57,9 @@ public class CorrelationMatrixBuilder extends Configured implements Tool {
         FileInputFormat.addInputPath(job, new Path(args[0]));
         FileOutputFormat.setOutputPath(job, new Path(args[1]));
 
+        //text or binary edge input
+        job.setInputFormatClass(SimilarityEdgeInputFormat.class);
+
         Utility.setConfiguration(job.getConfiguration());
         job.setMapperClass(CorrelationMatrixBuilder.MatrixBuilderMapper.class);
         job.setReducerClass(CorrelationMatrixBuilder.MatrixBuilderReducer.class);
@@ -77,7 +83,7 @@ public class CorrelationMatrixBuilder extends Configured implements Tool {
      * @author pranab
      *
      */
-    public static class MatrixBuilderMapper extends Mapper<LongWritable, Text, Text, TextTuple> {
+    public static class MatrixBuilderMapper extends Mapper<LongWritable, Writable, Text, TextTuple> {
         private String fieldDelimRegex;
         private String subFieldDelim;
         private Text outKey = new Text();
@@ -96,19 +102,37 @@ public class CorrelationMatrixBuilder extends Configured implements Tool {
 	    /* (non-Javadoc)
 	     * @see org.apache.hadoop.mapreduce.Mapper#map(KEYIN, VALUEIN, org.apache.hadoop.mapreduce.Mapper.Context)
 	     */
-	    protected void map(LongWritable key, Text value, Context context)
+	    protected void map(LongWritable key, Writable value, Context context)
+	        throws IOException, InterruptedException {
+	    	if (value instanceof SimilarityEdge) {
+	    		//binary edge, no parsing
+	    		SimilarityEdge edge = (SimilarityEdge)value;
+	    		emit(edge.getFirstId(), edge.getSecondId(), String.valueOf(edge.getValue(0)), context);
+	    	} else {
+	    		String[] items  =  value.toString().split(fieldDelimRegex);
+	    		emit(items[0], items[1], items[2], context);
+	    	}
+	    }    
+
+	    /**
+	     * Emits for both items
+	     * @param firstItemID
+	     * @param secondItemID
+	     * @param correlation
+	     * @param context
+	     * @throws IOException
+	     * @throws InterruptedException
+	     */
+	    private void emit(String firstItemID, String secondItemID, String correlation, Context context)
 	        throws IOException, InterruptedException {
-        	String[] items  =  value.toString().split(fieldDelimRegex);
-        	
-        	//emit for both items
-        	outKey.set(items[0]);
-        	outVal.add(items[1], items[2]);
+        	outKey.set(firstItemID);
+        	outVal.add(secondItemID, correlation);
 	   		context.write(outKey, outVal);
        	
-        	outKey.set(items[1]);
-        	outVal.add(items[0], items[2]);
+        	outKey.set(secondItemID);
+        	outVal.add(firstItemID, correlation);
 	   		context.write(outKey, outVal);
-	    }    
+	    }
 
     }
 
@@ -30,11 +30,8 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.WritableComparable;
-import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
@@ -43,9 +40,12 @@ import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.chombo.util.IntPair;
-import org.chombo.util.Tuple;
 import org.chombo.util.Utility;
+import org.sifarish.feature.BlockPairKey;
+import org.sifarish.feature.SimilarityEdgeOutputFormat;
 import org.sifarish.feature.DynamicAttrSimilarityStrategy;
+import org.sifarish.feature.ParallelPairEvaluator;
+import org.sifarish.feature.TopMatchCollector;
 
 /**
  * Mapreduce for finding similarities between items with dynamic set of attributes. For example,  products 
@@ -70,17 +70,22 @@ public class ItemDynamicAttributeSimilarity  extends Configured implements Tool{
         job.setMapperClass(ItemDynamicAttributeSimilarity.SimilarityMapper.class);
         job.setReducerClass(ItemDynamicAttributeSimilarity.SimilarityReducer.class);
         
-        job.setMapOutputKeyClass(Tuple.class);
+        job.setMapOutputKeyClass(BlockPairKey.class);
         job.setMapOutputValueClass(Text.class);
 
         job.setOutputKeyClass(NullWritable.class);
         job.setOutputValueClass(Text.class);
  
-        job.setGroupingComparatorClass(IdPairGroupComprator.class);
-        job.setPartitionerClass(IdPairPartitioner.class);
+        job.setGroupingComparatorClass(BlockPairKey.GroupComparator.class);
+        job.setPartitionerClass(BlockPairKey.BlockPairPartitioner.class);
 
         Utility.setConfiguration(job.getConfiguration());
 
+        //compact binary edge output
+        if (job.getConfiguration().getBoolean("idas.binary.edge.output", false)) {
+        	job.setOutputFormatClass(SimilarityEdgeOutputFormat.class);
+        }
+
         int numReducer = job.getConfiguration().getInt("idas.num.reducer", -1);
         numReducer = -1 == numReducer ? job.getConfiguration().getInt("num.reducer", 1) : numReducer;
         job.setNumReduceTasks(numReducer);
@@ -93,18 +98,13 @@ public class ItemDynamicAttributeSimilarity  extends Configured implements Tool{
      * @author pranab
      *
      */
-    public static class SimilarityMapper extends Mapper<LongWritable, Text, Tuple, Text> {
+    public static class SimilarityMapper extends Mapper<LongWritable, Text, BlockPairKey, Text> {
         private int bucketCount;
-        private int hash;
+        private int block;
         private String fieldDelimRegex;
-        private Integer hashPair;
-        private Integer one = 1;
-        private Integer zero = 0;
         private String itemID;
-        private Tuple keyHolder = new Tuple();
+        private BlockPairKey keyHolder = new BlockPairKey();
         private Text valueHolder = new Text();
-        private int hashPairMult;
-        private int hashCode;
         private int partitonFieldOrdinal;
         private static final Logger LOG = Logger.getLogger(ItemDynamicAttributeSimilarity.SimilarityMapper.class);
     	
@@ -119,7 +119,6 @@ public class ItemDynamicAttributeSimilarity  extends Configured implements Tool{
             }
         	bucketCount = conf.getInt("idas.bucket.count", 10);
         	fieldDelimRegex = conf.get("field.delim.regex", "\\[\\]");
-        	hashPairMult = conf.getInt("idas.hash.pair.multiplier", 1000);
         	partitonFieldOrdinal = conf.getInt("idas.paritioning.field.ordinal", -1);
         }    
         
@@ -132,25 +131,15 @@ public class ItemDynamicAttributeSimilarity  extends Configured implements Tool{
         	//first token is entity ID and the rest list attributes
         	String[] items  =  value.toString().split(fieldDelimRegex);
         	itemID  =  items[0];
-        	hashCode = itemID.hashCode();
-        	if (hashCode < 0) {
-        		hashCode = - hashCode;
-        	}
-    		hash = (hashCode %  bucketCount) / 2 ;
+    		block = BlockPairKey.getBlock(itemID, bucketCount);
     		String partition = partitonFieldOrdinal >= 0 ? items[partitonFieldOrdinal] :  "none";
     		
+    		//triangular layout of block pairs, value tagged with set
+    		String zeroValue = "0" + value.toString();
+    		String oneValue = "1" + value.toString();
     		for (int i = 0; i < bucketCount;  ++i) {
-    			keyHolder.initialize();
-    			if (i < hash){
-       				hashPair = hash * hashPairMult +  i;
-       				keyHolder.add(partition, hashPair, zero);
-       				valueHolder.set("0" + value.toString());
-       	   		 } else {
-    				hashPair =  i * hashPairMult  +  hash;
-       				keyHolder.add(partition, hashPair, one);
-       				valueHolder.set("1" + value.toString());
-    			} 
-    			//System.out.println("mapper hashPair: " + hashPair);
+    			keyHolder.setTriangular(partition, block, i);
+    			valueHolder.set(keyHolder.getSet() == 0 ? zeroValue : oneValue);
    	   			context.write(keyHolder, valueHolder);
     		}
         }
@@ -161,22 +150,24 @@ public class ItemDynamicAttributeSimilarity  extends Configured implements Tool{
      * @author pranab
      *
      */
-    public static class SimilarityReducer extends Reducer<Tuple, Text, NullWritable, Text> {
+    public static class SimilarityReducer extends Reducer<BlockPairKey, Text, NullWritable, Text> 
+    	implements ParallelPairEvaluator.ScorerFactory<String[]> {
         private Text valueHolder = new Text();
+        private Configuration conf;
         private String fieldDelim;
     	private String fieldDelimRegex;
         private int delimLength;
-        private int hashPairMult;
         private List<String[]> valueList = new ArrayList<String[]>();
-        private DynamicAttrSimilarityStrategy simStrategy;
+        private List<String[]> secondValueList = new ArrayList<String[]>();
         private int scale;
         private boolean outputCorrelation;
         private int partitonFieldOrdinal;
-        private int intLength;
         private int minIntLength;
         private boolean addMatchingContext;
-        private int semanticScale;
-       	private StringBuilder stBld = new StringBuilder();
+        private PairScorer serialScorer;
+        private ParallelPairEvaluator<String[]> parallelEvaluator;
+        private long minParallelPairs;
+        private TopMatchCollector topMatchCollector;
         private static final Logger LOG = Logger.getLogger(ItemDynamicAttributeSimilarity.SimilarityReducer.class);
                
         
@@ -184,7 +175,7 @@ public class ItemDynamicAttributeSimilarity  extends Configured implements Tool{
          * @see org.apache.hadoop.mapreduce.Reducer#setup(org.apache.hadoop.mapreduce.Reducer.Context)
          */
         protected void setup(Context context) throws IOException, InterruptedException {
-        	Configuration conf = context.getConfiguration();
+        	conf = context.getConfiguration();
             if (conf.getBoolean("debug.on", false)) {
              	LOG.setLevel(Level.DEBUG);
              	System.out.println("in debug mode");
@@ -193,7 +184,41 @@ public class ItemDynamicAttributeSimilarity  extends Configured implements Tool{
         	fieldDelim = conf.get("field.delim", "[]");
         	fieldDelimRegex = conf.get("field.delim.regex", "\\[\\]");
         	delimLength =  fieldDelim.length();
-        	hashPairMult = conf.getInt("idas.hash.pair.multiplier", 1000);
+        	addMatchingContext = conf.getBoolean("idas.add.semantic.matching.context", false);
+        	
+           	scale = conf.getInt("idas.distance.scale", 1000);
+           	outputCorrelation = conf.getBoolean("idas.output.correlation", false);
+           	partitonFieldOrdinal = conf.getInt("idas.paritioning.field.ordinal", -1);
+           	minIntLength =  conf.getInt("idas.min.intersection.length", 2);
+           	LOG.debug("outputCorrelation:" + outputCorrelation + " partitonFieldOrdinal:" + partitonFieldOrdinal +
+           			" minIntLength:" + minIntLength);
+           	
+           	//top matches per entity in reducer, by distance only
+           	if (conf.getBoolean("idas.top.match.in.reducer", false)) {
+           		if (outputCorrelation) {
+           			throw new IllegalArgumentException("top matches in reducer is not supported with correlation output");
+           		}
+        		topMatchCollector = new TopMatchCollector(conf.getInt("idas.top.match.count", 10), 
+            		conf.getInt("idas.top.match.max.entity.count", 100000), fieldDelim);
+           	}
+           	
+        	//pair evaluation in multiple threads, each thread with it's own similarity strategy
+           	serialScorer = createScorer();
+        	int numThreads = conf.getInt("idas.parallel.thread.count", 1);
+        	if (numThreads > 1) {
+        		parallelEvaluator = new ParallelPairEvaluator<String[]>(numThreads, 
+        			conf.getInt("idas.parallel.tile.size", 64), conf.getInt("idas.parallel.queue.size", 10000), this);
+        		minParallelPairs = conf.getLong("idas.parallel.min.pair.count", 10000);
+        		parallelEvaluator.setOutputSink(topMatchCollector);
+        	}
+          }    
+        
+        /**
+         * Similarity strategy has state, one for each scorer
+         * @return
+         * @throws IOException
+         */
+        private DynamicAttrSimilarityStrategy createSimilarityStrategy() throws IOException {
         	String simAlgorithm = conf.get("idas.similarity.algorithm", "cosine");
         	
         	//semantic matching
@@ -209,13 +234,12 @@ public class ItemDynamicAttributeSimilarity  extends Configured implements Tool{
         	//similarity matching algorithm
         	params.put("srcNonMatchingTermWeight", conf.get("idas.jaccard.srcNonMatchingTermWeight"));
         	params.put("trgNonMatchingTermWeight", conf.get("idas.jaccard.trgNonMatchingTermWeight"));
-        	simStrategy = DynamicAttrSimilarityStrategy.createSimilarityStrategy(simAlgorithm, params);
+        	DynamicAttrSimilarityStrategy simStrategy = DynamicAttrSimilarityStrategy.createSimilarityStrategy(simAlgorithm, params);
         	
         	simStrategy.setFieldDelimRegex(fieldDelimRegex);
         	boolean booleanVec = conf.getBoolean("idas.vec.type.boolean", true);
         	boolean semanticVec = conf.getBoolean("idas.vec.type.semantic", false);
         	LOG.debug("booleanVec:" + booleanVec + " semanticVec:" + semanticVec);
-        	addMatchingContext = conf.getBoolean("idas.add.semantic.matching.context", false);
         	
         	//vector type
         	if (booleanVec){
@@ -228,14 +252,29 @@ public class ItemDynamicAttributeSimilarity  extends Configured implements Tool{
             	boolean countIncluded = conf.getBoolean("idas.vec.count.included", true);
         		simStrategy.setCountIncluded(countIncluded);
         	}
-        	
-           	scale = conf.getInt("idas.distance.scale", 1000);
-           	outputCorrelation = conf.getBoolean("idas.output.correlation", false);
-           	partitonFieldOrdinal = conf.getInt("idas.paritioning.field.ordinal", -1);
-           	minIntLength =  conf.getInt("idas.min.intersection.length", 2);
-           	LOG.debug("outputCorrelation:" + outputCorrelation + " partitonFieldOrdinal:" + partitonFieldOrdinal +
-           			" minIntLength:" + minIntLength);
-          }    
+        	return simStrategy;
+        }
+        
+    	/* (non-Javadoc)
+    	 * @see org.sifarish.feature.ParallelPairEvaluator.ScorerFactory#createScorer()
+    	 */
+    	public PairScorer createScorer() throws IOException {
+    		return new PairScorer(createSimilarityStrategy());
+    	}
+    	
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Reducer#cleanup(org.apache.hadoop.mapreduce.Reducer.Context)
+         */
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+        	if (null != topMatchCollector) {
+        		topMatchCollector.flush(context);
+        	}
+        	serialScorer.flushCounters(context);
+        	if (null != parallelEvaluator) {
+        		parallelEvaluator.flushCounters(context);
+        		parallelEvaluator.shutdown();
+        	}
+        }
         
         /**
          * @param conf
@@ -255,16 +294,12 @@ public class ItemDynamicAttributeSimilarity  extends Configured implements Tool{
         /* (non-Javadoc)
          * @see org.apache.hadoop.mapreduce.Reducer#reduce(KEYIN, java.lang.Iterable, org.apache.hadoop.mapreduce.Reducer.Context)
          */
-        protected void reduce(Tuple  key, Iterable<Text> values, Context context)
+        protected void reduce(BlockPairKey  key, Iterable<Text> values, Context context)
         throws IOException, InterruptedException {
-        	double dist = 0;
-        	intLength = -1;
-        	
         	valueList.clear();
-        	int firstPart = key.getInt(1);
-        	//System.out.println("hashPair: " + firstPart);
-        	if (firstPart / hashPairMult == firstPart % hashPairMult){
-        		//same hash bucket
+        	secondValueList.clear();
+        	if (key.isDiagonal()){
+        		//same block
     			context.getCounter("Reducer", "Same  Bucket Count").increment(1);
     			//System.out.println("**same bucket");
     			
@@ -274,43 +309,20 @@ public class ItemDynamicAttributeSimilarity  extends Configured implements Tool{
         			valueList.add(parts);
 	        	}   
 	        	
-	        	for (int i = 0;  i < valueList.size();  ++i){
-	        		String[] firstParts = valueList.get(i);
-	        		for (int j = i+1;  j < valueList.size();  ++j) {
-		        		String[] secondParts = valueList.get(j);
-		        		//process 2 user vectors
-	        			dist = ( 1.0 - simStrategy.findDistance(firstParts[1], secondParts[1]))  * scale;
-	        			dist = dist < 0.0 ? 0.0 : dist;
-		        		
-    					intLength = simStrategy.getIntersectionLength();
-    					if( intLength >= minIntLength || simStrategy.isSemanticVec()) {
-	        				if (outputCorrelation) {
-	        					dist = scale - dist;
-	            				//2 items IDs followed by distance and intersection length
-	        					stBld.append(firstParts[0]).append(fieldDelim).append(secondParts[0]).append(fieldDelim).
-	        						append( (int)dist).append(fieldDelim).append(intLength);
-	        				} else {
-	            				//2 items IDs followed by distance
-	    	   					stBld.append(firstParts[0]).append(fieldDelim).append(secondParts[0]).append(fieldDelim).
-	    	   						append( (int)dist);
-	        				}
-	        				
-	        				//if there any matching context data
-	        				if(addMatchingContext) {
-	        					appendMatchingContexts(stBld);
-	        				}
-	
-	        				valueHolder.set(stBld.toString());
-		   	    			context.getCounter("Reducer", "Emit").increment(1);
-		   					context.write(NullWritable.get(), valueHolder);
-		        			stBld.delete(0, stBld.length());
-	    				} else {
-		   	    			context.getCounter("Correlation Intersection", "Below threshold").increment(1);
-	    				} //if int length
-	        		}//for
-	        	}//for
+	        	long numPairs = (long)valueList.size() * (valueList.size() - 1) / 2;
+	        	if (null != parallelEvaluator && numPairs >= minParallelPairs) {
+	        		parallelEvaluator.evaluate(valueList, valueList, true, context);
+	        	} else {
+		        	for (int i = 0;  i < valueList.size();  ++i){
+		        		String[] firstParts = valueList.get(i);
+		        		for (int j = i+1;  j < valueList.size();  ++j) {
+			        		//process 2 user vectors
+		        			emit(firstParts, valueList.get(j), i, j, context);
+		        		}//for
+		        	}//for
+	        	}
         	} else {
-        		//different hash bucket
+        		//different blocks
     			context.getCounter("Reducer", "Diff Bucket Count").increment(1);
     			//System.out.println("**diff  bucket");
 	        	for (Text value : values){
@@ -320,50 +332,165 @@ public class ItemDynamicAttributeSimilarity  extends Configured implements Tool{
 	        			valueList.add(parts);
 	        		} else {
 	        			String[] parts = splitKey(valSt.substring(1));
-	        			
-	        			//match with all items of first set
-	        			for (String[] firstParts : valueList) {
-	        				//process 2 entity vectors
-	        				dist = (1.0 - simStrategy.findDistance(firstParts[1], parts[1])) * scale;
-	        				dist = dist < 0.0 ? 0.0 : dist;
-	        				LOG.debug("dist:" + dist);
-	        				
-        					intLength = simStrategy.getIntersectionLength();
-        					if( intLength >= minIntLength || simStrategy.isSemanticVec()) {
-		        				if (outputCorrelation) {
-		        					dist = scale - dist;
-		            				//2 items IDs followed by distance and intersection l;ength
-		           					stBld.append(firstParts[0]).append(fieldDelim).append(parts[0]).append(fieldDelim).
-		           						append( (int)dist).append(fieldDelim).append(intLength);
-	 	        				} else {
-		            				//2 items IDs followed by distance
-		    	   					stBld.append(firstParts[0]).append(fieldDelim).append(parts[0]).append(fieldDelim).
-	    	   						append( (int)dist);
-		        				}
-	
-		        				//if there any matching context data
-		        				if(addMatchingContext) {
-		        					appendMatchingContexts(stBld);
-		        				}
-	
-		        				valueHolder.set(stBld.toString());
-			   	    			context.getCounter("Reducer", "Emit").increment(1);
-			   					context.write(NullWritable.get(), valueHolder);
-			        			stBld.delete(0, stBld.length());
-		        			} else {
-			   	    			context.getCounter("Correlation Intersection", "Below threshold").increment(1);
-		        			}//if int length
-	        			}//for
+	        			if (null != parallelEvaluator) {
+	        				//materialize second set for parallel evaluation
+	        				secondValueList.add(parts);
+	        			} else {
+		        			//match with all items of first set
+		        			for (int i = 0;  i < valueList.size();  ++i){
+		        				//process 2 entity vectors
+		        				emit(valueList.get(i), parts, i, 0, context);
+		        			}//for
+	        			}
 	        		}//if
 	        	}//for
+	        	
+	        	if (!secondValueList.isEmpty()) {
+		        	long numPairs = (long)valueList.size() * secondValueList.size();
+		        	if (numPairs >= minParallelPairs) {
+		        		parallelEvaluator.evaluate(valueList, secondValueList, false, context);
+		        	} else {
+			        	for (int i = 0;  i < valueList.size();  ++i){
+			        		String[] firstParts = valueList.get(i);
+			        		for (int j = 0;  j < secondValueList.size();  ++j) {
+			        			emit(firstParts, secondValueList.get(j), i, j, context);
+			        		}
+			        	}
+		        	}
+	        	}
         	}//if
-       	
+        	
+        	if (null != topMatchCollector && topMatchCollector.isFull()) {
+        		topMatchCollector.flush(context);
+        	}
         }
         
         /**
+         * Scores a pair in the reducer thread. Pair is formatted only when it's written and not when
+         * it goes to top match collector
+         * @param firstParts
+         * @param secondParts
+         * @param firstIndex
+         * @param secondIndex
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        private void emit(String[] firstParts, String[] secondParts, int firstIndex, int secondIndex, Context context) 
+        	throws IOException, InterruptedException {
+        	int dist = serialScorer.score(firstParts, secondParts, firstIndex, secondIndex);
+        	if (dist != ParallelPairEvaluator.NOT_SCORED) {
+        		if (null != topMatchCollector) {
+        			topMatchCollector.collect(firstParts[0], secondParts[0], dist);
+        		} else {
+        			valueHolder.set(serialScorer.format(firstParts, secondParts, dist));
+        			context.write(NullWritable.get(), valueHolder);
+        		}
+        	}
+        }
+        
+        /**
+         * Counters of pair scorers
+         * @author pranab
+         *
+         */
+        private static enum ScorerCounter implements ParallelPairEvaluator.PairCounter {
+        	EMIT("Reducer", "Emit"),
+        	BELOW_THRESHOLD("Correlation Intersection", "Below threshold");
+        	
+        	private String group;
+        	private String name;
+        	
+        	private ScorerCounter(String group, String name) {
+        		this.group = group;
+        		this.name = name;
+        	}
+        	
+        	public String getGroup() {
+        		return group;
+        	}
+        	
+        	public String getName() {
+        		return name;
+        	}
+        }
+        
+        /**
+         * Scores item pairs. One instance per thread
+         * @author pranab
+         *
+         */
+        private class PairScorer extends ParallelPairEvaluator.PairScorer<String[]> {
+            private DynamicAttrSimilarityStrategy simStrategy;
+           	private StringBuilder stBld = new StringBuilder();
+           	private double dist;
+           	private int intLength;
+           	
+           	/**
+           	 * @param simStrategy
+           	 */
+           	public PairScorer(DynamicAttrSimilarityStrategy simStrategy) {
+           		super(ScorerCounter.values());
+           		this.simStrategy = simStrategy;
+           	}
+           	
+        	/* (non-Javadoc)
+        	 * @see org.sifarish.feature.ParallelPairEvaluator.PairScorer#score(java.lang.Object, java.lang.Object, int, int)
+        	 */
+        	public int score(String[] firstParts, String[] secondParts, int firstIndex, int secondIndex) 
+        		throws IOException {
+        		int output = ParallelPairEvaluator.NOT_SCORED;
+				dist = (1.0 - simStrategy.findDistance(firstParts[1], secondParts[1])) * scale;
+				dist = dist < 0.0 ? 0.0 : dist;
+				LOG.debug("dist:" + dist);
+				
+				intLength = simStrategy.getIntersectionLength();
+				if( intLength >= minIntLength || simStrategy.isSemanticVec()) {
+					output = (int)dist;
+    				increment(ScorerCounter.EMIT);
+				} else {
+					increment(ScorerCounter.BELOW_THRESHOLD);
+				} //if int length
+        		return output;
+        	}
+        	
+        	/* (non-Javadoc)
+        	 * @see org.sifarish.feature.ParallelPairEvaluator.PairScorer#format(java.lang.Object, java.lang.Object, int)
+        	 */
+        	public String format(String[] firstParts, String[] secondParts, int distance) {
+				if (outputCorrelation) {
+    				//2 items IDs followed by correlation and intersection length
+					stBld.append(firstParts[0]).append(fieldDelim).append(secondParts[0]).append(fieldDelim).
+						append( (int)(scale - dist)).append(fieldDelim).append(intLength);
+				} else {
+    				//2 items IDs followed by distance
+   					stBld.append(firstParts[0]).append(fieldDelim).append(secondParts[0]).append(fieldDelim).
+   						append(distance);
+				}
+				
+				//if there any matching context data
+				if(addMatchingContext) {
+					appendMatchingContexts(simStrategy, stBld);
+				}
+
+				String output = stBld.toString();
+    			stBld.delete(0, stBld.length());
+    			return output;
+        	}
+        	
+        	/* (non-Javadoc)
+        	 * @see org.sifarish.feature.ParallelPairEvaluator.PairScorer#getId(java.lang.Object)
+        	 */
+        	public String getId(String[] parts) {
+        		return parts[0];
+        	}
+        }
+        
+        /**
+         * @param simStrategy
          * @param stBld
          */
-        private void appendMatchingContexts(StringBuilder stBld) {
+        private void appendMatchingContexts(DynamicAttrSimilarityStrategy simStrategy, StringBuilder stBld) {
 			String[]   matchingContexts = simStrategy.getMatchingContexts();
 			if (null  !=  matchingContexts) {
 				for (String matchingContext :  matchingContexts) {
@@ -399,40 +526,6 @@ public class ItemDynamicAttributeSimilarity  extends Configured implements Tool{
         
     }
     
-    /**
-     * @author pranab
-     *
-     */
-    public static class IdPairPartitioner extends Partitioner<Tuple, Text> {
-	     @Override
-	     public int getPartition(Tuple key, Text value, int numPartitions) {
-	    	 //consider only base part of  key
-		     return key.hashCodeBase() % numPartitions;
-	     }
-  
-  }
-
-    
-    /**
-     * @author pranab
-     *
-     */
-    public static class IdPairGroupComprator extends WritableComparator {
-    	protected IdPairGroupComprator() {
-    		super(Tuple.class, true);
-    	}
-
-    	@Override
-    	public int compare(WritableComparable w1, WritableComparable w2) {
-    		//consider only the base part of the key
-    		Tuple t1 = (Tuple)w1;
-    		Tuple t2 = (Tuple)w2;
-    		
-    		int comp =t1.compareToBase(t2);
-    		return comp;
-    	}
-     }
-  
     /**
      * @param args
      * @throws Exception
@@ -27,6 +27,7 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.io.WritableComparator;
 import  org.apache.hadoop.mapreduce.lib.input.FileSplit;
@@ -43,6 +44,8 @@ import org.apache.log4j.Logger;
 import org.chombo.util.TextInt;
 import org.chombo.util.Tuple;
 import org.chombo.util.Utility;
+import org.sifarish.feature.SimilarityEdge;
+import org.sifarish.feature.SimilarityEdgeInputFormat;
 
 /**
  * Predicts rating for an user and item. based on another item the user has rated and the 
@@ -62,6 +65,9 @@ public class UtilityPredictor extends Configured implements Tool{
         FileInputFormat.addInputPaths(job, args[0]);
         FileOutputFormat.setOutputPath(job, new Path(args[1]));
 
+        //correlation may be text or binary edge
+        job.setInputFormatClass(SimilarityEdgeInputFormat.class);
+
         job.setMapperClass(UtilityPredictor.PredictionMapper.class);
         job.setReducerClass(UtilityPredictor.PredictorReducer.class);
         
@@ -87,7 +93,7 @@ public class UtilityPredictor extends Configured implements Tool{
      * @author pranab
      *
      */
-    public static class PredictionMapper extends Mapper<LongWritable, Text, TextInt, Tuple> {
+    public static class PredictionMapper extends Mapper<LongWritable, Writable, TextInt, Tuple> {
     	private String fieldDelim;
     	private String subFieldDelim;
     	private boolean isRatingFileSplit;
@@ -104,8 +110,6 @@ public class UtilityPredictor extends Configured implements Tool{
     	private int minInputRating;
     	private  int inputRating;
     	private int minCorrelation;
-    	private int correlation;
-    	private int  correlationLength;
     	private boolean userRatingWithContext;
     	private String ratingContext;
     	private static final int STD_DEV_ORD = 3;
@@ -144,8 +148,16 @@ public class UtilityPredictor extends Configured implements Tool{
          * @see org.apache.hadoop.mapreduce.Mapper#map(KEYIN, VALUEIN, org.apache.hadoop.mapreduce.Mapper.Context)
          */
         @Override
-        protected void map(LongWritable key, Text value, Context context)
+        protected void map(LongWritable key, Writable value, Context context)
             throws IOException, InterruptedException {
+        	if (value instanceof SimilarityEdge) {
+        		//binary correlation edge, no parsing
+        		SimilarityEdge edge = (SimilarityEdge)value;
+				context.getCounter("Record type count", "Correlation").increment(1);
+        		emitCorrelation(edge.getFirstId(), edge.getSecondId(), edge.getValue(0), edge.getValue(1), context);
+        		return;
+        	}
+        	
         	String[] items = value.toString().split(fieldDelim);
     		String itemID = items[0];
         	if (isRatingFileSplit) {
@@ -198,37 +210,48 @@ public class UtilityPredictor extends Configured implements Tool{
         	} else {
         		//item correlation
 				context.getCounter("Record type count", "Correlation").increment(1);
-        		correlation =  Integer.parseInt( items[2]);
-        		correlationLength =  Integer.parseInt(items[3]);
-
-        		//if correlation is above min threshold
-        		if (correlation > minCorrelation) {
-	        		//correlation of 1st item
-	        		keyOut.set(items[0], zero);
-	        		valOut.initialize();
-	   	   			if (linearCorrelation) {
-	   	   				//other itemID, correlation, intersection length (weight)
-	   	   				valOut.add(items[1], correlation, correlationLength, zero);
-	   	   			} else {
-	   	   				//other itemID, correlation, intersection length (weight)
-	   	   				valOut.add(items[1], -correlation, correlationLength, zero);
-	   	   			}
-	   	   			context.write(keyOut, valOut);
-	
-	   	   			//correlation of second item
-	   	   			keyOut.set(items[1], zero);
-	        		valOut.initialize();
-	   	   			if (linearCorrelation) {
-	   	   				//other itemID, correlation, intersection length (weight)
-	   	   				valOut.add(items[0], correlation, correlationLength, zero);
-	   	   			} else {
-	   	   				//other itemID, correlation, intersection length (weight)
-	   	   				valOut.add(items[0], -correlation, correlationLength, zero);
-	   	   			}
-	   	   			context.write(keyOut, valOut);
-        		}
+        		emitCorrelation(items[0], items[1], Integer.parseInt(items[2]), Integer.parseInt(items[3]), context);
         	}
         }
+        
+        /**
+         * Emits correlation for both items, if above min threshold
+         * @param firstItemID
+         * @param secondItemID
+         * @param correlation
+         * @param correlationLength
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        private void emitCorrelation(String firstItemID, String secondItemID, int correlation, int correlationLength,
+        	Context context) throws IOException, InterruptedException {
+    		if (correlation > minCorrelation) {
+        		//correlation of 1st item
+        		keyOut.set(firstItemID, zero);
+        		valOut.initialize();
+   	   			if (linearCorrelation) {
+   	   				//other itemID, correlation, intersection length (weight)
+   	   				valOut.add(secondItemID, correlation, correlationLength, zero);
+   	   			} else {
+   	   				//other itemID, correlation, intersection length (weight)
+   	   				valOut.add(secondItemID, -correlation, correlationLength, zero);
+   	   			}
+   	   			context.write(keyOut, valOut);
+
+   	   			//correlation of second item
+   	   			keyOut.set(secondItemID, zero);
+        		valOut.initialize();
+   	   			if (linearCorrelation) {
+   	   				//other itemID, correlation, intersection length (weight)
+   	   				valOut.add(firstItemID, correlation, correlationLength, zero);
+   	   			} else {
+   	   				//other itemID, correlation, intersection length (weight)
+   	   				valOut.add(firstItemID, -correlation, correlationLength, zero);
+   	   			}
+   	   			context.write(keyOut, valOut);
+    		}
+        }
     }    
 
     /**
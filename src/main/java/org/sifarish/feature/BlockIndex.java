@@ -0,0 +1,185 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In memory index of records by blocking key, for online look up of records similar to a record. Only
+ * records sharing a blocking key with the query, e.g. an LSH table key, are candidates and those are
+ * ranked by record distance. Same keys as with blocking in SameTypeSimilarity, so that online and batch
+ * results agree. Records are inserted from a single thread. Any number of threads can query, each through
+ * its own searcher, while no insert is in progress
+ * @author pranab
+ *
+ */
+public class BlockIndex {
+	private RecordComparator recordComparator;
+	private int scale;
+	private BlockingKeyGenerator keyGenerator;
+	private CanopyCenters canopies;
+	private DistanceContext distContext;
+	private List<TypedRecord> records = new ArrayList<TypedRecord>();
+	private Map<String, List<Integer>> blocks = new HashMap<String, List<Integer>>();
+
+	/**
+	 * @param recordComparator
+	 * @param scale
+	 */
+	public BlockIndex(RecordComparator recordComparator, int scale) {
+		this.recordComparator = recordComparator;
+		this.scale = scale;
+		keyGenerator = new BlockingKeyGenerator(recordComparator.getSchema());
+		distContext = recordComparator.createContext(scale);
+	}
+
+	/**
+	 * Canopy centers, when schema has canopy fields. Should be set before any insert
+	 * @param canopies
+	 */
+	public void setCanopies(CanopyCenters canopies) {
+		this.canopies = canopies;
+		keyGenerator.setCanopies(canopies);
+	}
+
+	/**
+	 * @param record
+	 * @return number of blocks the record is in
+	 */
+	public int insert(TypedRecord record) {
+		recordComparator.prepare(record, distContext);
+		int index = records.size();
+		records.add(record);
+		List<String> keys = keyGenerator.generateKeys(record.getItems());
+		for (String key : keys) {
+			List<Integer> block = blocks.get(key);
+			if (null == block) {
+				block = new ArrayList<Integer>();
+				blocks.put(key, block);
+			}
+			block.add(index);
+		}
+		return keys.size();
+	}
+
+	/**
+	 * @return number of records
+	 */
+	public int size() {
+		return records.size();
+	}
+
+	/**
+	 * @return number of distinct blocking keys
+	 */
+	public int getBlockCount() {
+		return blocks.size();
+	}
+
+	/**
+	 * @return searcher for the calling thread
+	 */
+	public Searcher createSearcher() {
+		return new Searcher();
+	}
+
+	/**
+	 * Search state of a thread
+	 * @author pranab
+	 *
+	 */
+	public class Searcher {
+		private BlockingKeyGenerator searchKeyGenerator;
+		private DistanceContext searchContext;
+		private boolean[] seen = new boolean[0];
+		private int[] candidates = new int[0];
+		private int numCandidates;
+
+		private Searcher() {
+			searchKeyGenerator = new BlockingKeyGenerator(recordComparator.getSchema());
+			if (null != canopies) {
+				searchKeyGenerator.setCanopies(canopies);
+			}
+			searchContext = recordComparator.createContext(scale);
+		}
+
+		/**
+		 * Distinct records sharing at least one blocking key with query
+		 * @param query
+		 * @return number of candidates
+		 */
+		public int findCandidates(TypedRecord query) {
+			if (seen.length < records.size()) {
+				seen = new boolean[records.size()];
+				candidates = new int[records.size()];
+			}
+			numCandidates = 0;
+			for (String key : searchKeyGenerator.generateKeys(query.getItems())) {
+				List<Integer> block = blocks.get(key);
+				if (null != block) {
+					for (int index : block) {
+						if (!seen[index]) {
+							seen[index] = true;
+							candidates[numCandidates++] = index;
+						}
+					}
+				}
+			}
+			for (int i = 0; i < numCandidates; ++i) {
+				seen[candidates[i]] = false;
+			}
+			return numCandidates;
+		}
+
+		/**
+		 * K nearest candidates of a record within distance threshold of the comparator
+		 * @param query
+		 * @param k
+		 * @return neighbors in order of distance, excluding any record with same ID as query
+		 * @throws IOException
+		 */
+		public List<HnswIndex.Neighbor> search(TypedRecord query, int k) throws IOException {
+			recordComparator.prepare(query, searchContext);
+			findCandidates(query);
+			List<HnswIndex.Neighbor> neighbors = new ArrayList<HnswIndex.Neighbor>();
+			String id = query.getId();
+			for (int i = 0; i < numCandidates; ++i) {
+				TypedRecord record = records.get(candidates[i]);
+				if (!record.getId().equals(id)) {
+					int dist = recordComparator.findDistance(query, record, searchContext);
+					if (dist <= recordComparator.getDistThreshold()) {
+						neighbors.add(new HnswIndex.Neighbor(record.getId(), dist));
+					}
+				}
+			}
+			Collections.sort(neighbors, new Comparator<HnswIndex.Neighbor>() {
+				@Override
+				public int compare(HnswIndex.Neighbor thisNeighbor, HnswIndex.Neighbor thatNeighbor) {
+					return thisNeighbor.getDistance() - thatNeighbor.getDistance();
+				}
+			});
+			return neighbors.size() > k ? new ArrayList<HnswIndex.Neighbor>(neighbors.subList(0, k)) : neighbors;
+		}
+	}
+}
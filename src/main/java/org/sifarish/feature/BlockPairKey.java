@@ -0,0 +1,258 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+/**
+ * Key for self join by blocks, shared by the pair wise similarity jobs. Records are hashed into blocks and
+ * a record in block k is sent to the group of each block pair (min(k, j), max(k, j)). With b blocks there
+ * are b x (b + 1) / 2 groups and each pair of records meets in exactly one group. Records of the lower
+ * block of a group have set 0 and those of the upper block set 1. In a diagonal group all records are
+ * in set 0 and are paired with each other. Any block count can be used. For P reducer groups, a record
+ * is replicated about sqrt(2P) times. Key has group part and set, the set being the secondary sort.
+ * Raw comparators work on serialized bytes.
+ * @author pranab
+ *
+ */
+public class BlockPairKey implements WritableComparable<BlockPairKey> {
+	private Text partition = new Text();
+	private int firstBlock;
+	private int secondBlock;
+	private int set;
+
+	static {
+		WritableComparator.define(BlockPairKey.class, new Comparator());
+	}
+
+	/**
+	 * @param partition
+	 * @param firstBlock
+	 * @param secondBlock
+	 * @param set
+	 */
+	public void set(String partition, int firstBlock, int secondBlock, int set) {
+		this.partition.set(partition);
+		this.firstBlock = firstBlock;
+		this.secondBlock = secondBlock;
+		this.set = set;
+	}
+
+	/**
+	 * Key of j th group for record in block
+	 * @param partition
+	 * @param block
+	 * @param j
+	 */
+	public void setTriangular(String partition, int block, int j) {
+		if (j < block) {
+			set(partition, j, block, 1);
+		} else {
+			set(partition, block, j, 0);
+		}
+	}
+
+	/**
+	 * @param id
+	 * @param blockCount
+	 * @return block for entity ID
+	 */
+	public static int getBlock(String id, int blockCount) {
+		return (id.hashCode() & Integer.MAX_VALUE) % blockCount;
+	}
+
+	public Text getPartition() {
+		return partition;
+	}
+
+	public int getFirstBlock() {
+		return firstBlock;
+	}
+
+	public int getSecondBlock() {
+		return secondBlock;
+	}
+
+	public int getSet() {
+		return set;
+	}
+
+	/**
+	 * @return true if records of the group are paired with each other
+	 */
+	public boolean isDiagonal() {
+		return firstBlock == secondBlock;
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		partition.readFields(in);
+		firstBlock = in.readInt();
+		secondBlock = in.readInt();
+		set = in.readInt();
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		partition.write(out);
+		out.writeInt(firstBlock);
+		out.writeInt(secondBlock);
+		out.writeInt(set);
+	}
+
+	@Override
+	public int compareTo(BlockPairKey other) {
+		int cmp = compareToBase(other);
+		if (0 == cmp) {
+			cmp = compareInt(set, other.set);
+		}
+		return cmp;
+	}
+
+	/**
+	 * @param other
+	 * @return comparison of group part
+	 */
+	public int compareToBase(BlockPairKey other) {
+		int cmp = partition.compareTo(other.partition);
+		if (0 == cmp) {
+			cmp = compareInt(firstBlock, other.firstBlock);
+		}
+		if (0 == cmp) {
+			cmp = compareInt(secondBlock, other.secondBlock);
+		}
+		return cmp;
+	}
+
+	private static int compareInt(int i, int j) {
+		return i < j ? -1 : (i == j ? 0 : 1);
+	}
+
+	public int hashCode() {
+		return hashCodeBase() * 31 + set;
+	}
+
+	public int hashCodeBase() {
+		return (partition.hashCode() * 83 + firstBlock) * 17 + secondBlock;
+	}
+
+	public boolean equals(Object obj) {
+		boolean isEqual =  false;
+		if (obj instanceof BlockPairKey) {
+			BlockPairKey other = (BlockPairKey)obj;
+			isEqual = 0 == compareTo(other);
+		}
+		return isEqual;
+	}
+
+	/**
+	 * Compares serialized keys, with or without set
+	 * @param b1
+	 * @param s1
+	 * @param b2
+	 * @param s2
+	 * @param withSet
+	 * @return
+	 */
+	private static int compareSerialized(byte[] b1, int s1, byte[] b2, int s2, boolean withSet) {
+		try {
+			int vintSize1 = WritableUtils.decodeVIntSize(b1[s1]);
+			int vintSize2 = WritableUtils.decodeVIntSize(b2[s2]);
+			int len1 = WritableComparator.readVInt(b1, s1);
+			int len2 = WritableComparator.readVInt(b2, s2);
+			int cmp = WritableComparator.compareBytes(b1, s1 + vintSize1, len1, b2, s2 + vintSize2, len2);
+			int offset1 = s1 + vintSize1 + len1;
+			int offset2 = s2 + vintSize2 + len2;
+			int numInts = withSet ? 3 : 2;
+			for (int i = 0; 0 == cmp && i < numInts; ++i) {
+				cmp = compareInt(WritableComparator.readInt(b1, offset1), WritableComparator.readInt(b2, offset2));
+				offset1 += 4;
+				offset2 += 4;
+			}
+			return cmp;
+		} catch (IOException ex) {
+			throw new IllegalArgumentException(ex);
+		}
+	}
+
+	/**
+	 * Sort comparator on serialized key
+	 * @author pranab
+	 *
+	 */
+	public static class Comparator extends WritableComparator {
+		public Comparator() {
+			super(BlockPairKey.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			return compareSerialized(b1, s1, b2, s2, true);
+		}
+	}
+
+	/**
+	 * Groups on partition and block pair, on serialized key
+	 * @author pranab
+	 *
+	 */
+	public static class GroupComparator extends WritableComparator {
+		public GroupComparator() {
+			super(BlockPairKey.class, true);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			return compareSerialized(b1, s1, b2, s2, false);
+		}
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		public int compare(WritableComparable w1, WritableComparable w2) {
+			return ((BlockPairKey)w1).compareToBase((BlockPairKey)w2);
+		}
+	}
+
+	/**
+	 * Groups of a partition are dealt out to reducers in order of their index in the triangular, or for
+	 * inter set matching square, layout of block pairs. Every reducer gets an equal number of groups,
+	 * to within one, from each partition
+	 * @author pranab
+	 *
+	 */
+	public static class BlockPairPartitioner extends Partitioner<BlockPairKey, Object> {
+		@Override
+		public int getPartition(BlockPairKey key, Object value, int numPartitions) {
+			long first = key.firstBlock;
+			long second = key.secondBlock;
+
+			//upper triangle with diagonal numbered up from 0 and lower triangle numbered down from -1
+			long index = first <= second ? second * (second + 1) / 2 + first : -(first * (first - 1) / 2 + second) - 1;
+			long partitionIndex = (key.partition.hashCode() & Integer.MAX_VALUE) + index;
+			return (int)(((partitionIndex % numPartitions) + numPartitions) % numPartitions);
+		}
+	}
+}
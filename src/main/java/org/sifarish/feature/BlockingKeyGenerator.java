@@ -0,0 +1,334 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.sifarish.util.Field;
+
+/**
+ * Generates blocking keys for a record based on schema. Exact keys are generated from fields
+ * marked as blocking key, optionally truncated to a prefix. Text and categorical fields marked for
+ * min hash blocking are tokenized and LSH band keys are generated from the min hash signature.
+ * Numeric fields marked for projection blocking make up a vector of range normalized values. For
+ * each table, a key is generated from the buckets of a few random projections of the vector 
+ * (p stable LSH), so that records close in euclidean distance tend to share a key.
+ * With canopy fields, there is a key for each canopy of the record, from canopy centers set separately. 
+ * Two records become candidate pair only if they share at least one key. Keys are always generated
+ * in the same order, so the first common key of a pair is well defined and can be used to compare
+ * each pair only once.
+ * @author pranab
+ *
+ */
+public class BlockingKeyGenerator {
+	private List<Field> keyFields = new ArrayList<Field>();
+	private List<Field> minHashFields = new ArrayList<Field>();
+	private int minHashCount;
+	private int bandCount;
+	private int rowsPerBand;
+	private long[] hashCoeffA;
+	private long[] hashCoeffB;
+	private int[] signature;
+	private Set<String> tokens = new HashSet<String>();
+	private List<Field> projectionFields = new ArrayList<Field>();
+	private int tableCount;
+	private int projectionHashCount;
+	private double bucketWidth;
+	private double[][] projections;
+	private double[] projectionOffsets;
+	private double[] vector;
+	private StringBuilder keyBuilder = new StringBuilder();
+	private boolean canopyBlocking;
+	private CanopyCenters canopies;
+	private DistanceContext canopyContext;
+	private TypedRecord canopyRecord = new TypedRecord();
+	private List<Integer> recordCanopies = new ArrayList<Integer>();
+	private static final long PRIME = 2147483647L;
+	private static final long SEED = 1000003L;
+	private static final String GROUP_KEY_SEP = "\u0001";
+
+	/**
+	 * @param schema
+	 */
+	public BlockingKeyGenerator(SingleTypeSchema schema) {
+		for (Field field :  schema.getEntity().getFields()) {
+			if (field.isBlockingKey()) {
+				keyFields.add(field);
+			}
+			if (field.isMinHashBlocking()) {
+				if (!field.getDataType().equals(Field.DATA_TYPE_TEXT) &&
+						!field.getDataType().equals(Field.DATA_TYPE_CATEGORICAL)) {
+					throw new IllegalArgumentException("min hash blocking is only for text and categorical fields, field:" +
+						field.getName());
+				}
+				minHashFields.add(field);
+			}
+			if (field.isProjectionBlocking()) {
+				if (!field.getDataType().equals(Field.DATA_TYPE_INT) &&
+						!field.getDataType().equals(Field.DATA_TYPE_DOUBLE) || field.getMax() <= field.getMin()) {
+					throw new IllegalArgumentException("projection blocking is only for numeric fields with range, field:" +
+						field.getName());
+				}
+				projectionFields.add(field);
+			}
+		}
+
+		if (!minHashFields.isEmpty()) {
+			minHashCount = schema.getMinHashCount();
+			bandCount = schema.getMinHashBandCount();
+			if (bandCount <= 0 || minHashCount % bandCount != 0) {
+				throw new IllegalArgumentException("min hash count should be multiple of band count");
+			}
+			rowsPerBand = minHashCount / bandCount;
+
+			//same seed, so that mapper and reducer generate identical signatures
+			hashCoeffA = new long[minHashCount];
+			hashCoeffB = new long[minHashCount];
+			Random random = new Random(SEED);
+			for (int i = 0; i < minHashCount; ++i) {
+				hashCoeffA[i] = 1 + random.nextInt(Integer.MAX_VALUE - 1);
+				hashCoeffB[i] = random.nextInt(Integer.MAX_VALUE);
+			}
+			signature = new int[minHashCount];
+		}
+
+		if (!projectionFields.isEmpty()) {
+			if (!schema.getDistAlgorithm().equals("euclidean")) {
+				throw new IllegalArgumentException("projection blocking is only for euclidean distance");
+			}
+			tableCount = schema.getProjectionTableCount();
+			projectionHashCount = schema.getProjectionHashCount();
+			bucketWidth = schema.getProjectionBucketWidth();
+			if (tableCount <= 0 || projectionHashCount <= 0 || bucketWidth <= 0) {
+				throw new IllegalArgumentException("projection table count, hash count and bucket width should be positive");
+			}
+			
+			//gaussian projections, which are 2 stable, with same seed in mapper and reducer
+			int numProjections = tableCount * projectionHashCount;
+			int dimension = projectionFields.size();
+			projections = new double[numProjections][dimension];
+			projectionOffsets = new double[numProjections];
+			Random random = new Random(SEED);
+			for (int i = 0; i < numProjections; ++i) {
+				for (int j = 0; j < dimension; ++j) {
+					projections[i][j] = random.nextGaussian();
+				}
+				projectionOffsets[i] = random.nextDouble() * bucketWidth;
+			}
+			vector = new double[dimension];
+		}
+
+		canopyBlocking = null != CanopyCenters.getCanopyFields(schema);
+
+		if (keyFields.isEmpty() && minHashFields.isEmpty() && projectionFields.isEmpty() && !canopyBlocking) {
+			throw new IllegalArgumentException("blocking requires at least one blocking key, min hash, projection or canopy field in schema");
+		}
+	}
+
+	/**
+	 * @return true if schema has canopy fields, for which canopy centers should be set
+	 */
+	public boolean isCanopyBlocking() {
+		return canopyBlocking;
+	}
+
+	/**
+	 * @param canopies canopy centers found by CanopyFinder
+	 */
+	public void setCanopies(CanopyCenters canopies) {
+		this.canopies = canopies;
+		canopyContext = canopies.createContext();
+	}
+
+	/**
+	 * Generates all blocking keys for a record
+	 * @param items
+	 * @return
+	 */
+	public List<String> generateKeys(String[] items) {
+		List<String> keys = new ArrayList<String>();
+
+		//exact keys
+		for (Field field : keyFields) {
+			String value = normalize(items[field.getOrdinal()]);
+			if (!value.isEmpty()) {
+				int prefixLen = field.getBlockingKeyPrefixLength();
+				if (prefixLen > 0 && value.length() > prefixLen) {
+					value = value.substring(0, prefixLen);
+				}
+				keys.add("k" + field.getOrdinal() + ":" + value);
+			}
+		}
+
+		//LSH band keys
+		if (!minHashFields.isEmpty() && createSignature(items)) {
+			for (int b = 0, r = 0; b < bandCount; ++b) {
+				int bandHash = b;
+				for (int i = 0; i < rowsPerBand; ++i, ++r) {
+					bandHash = 31 * bandHash + signature[r];
+				}
+				keys.add("b" + b + ":" + Integer.toHexString(bandHash));
+			}
+		}
+		
+		//random projection table keys
+		if (!projectionFields.isEmpty() && createVector(items)) {
+			for (int t = 0, p = 0; t < tableCount; ++t) {
+				keyBuilder.setLength(0);
+				keyBuilder.append("p").append(t).append(":");
+				for (int h = 0; h < projectionHashCount; ++h, ++p) {
+					double dot = projectionOffsets[p];
+					for (int j = 0; j < vector.length; ++j) {
+						dot += projections[p][j] * vector[j];
+					}
+					if (h > 0) {
+						keyBuilder.append(",");
+					}
+					keyBuilder.append((long)Math.floor(dot / bucketWidth));
+				}
+				keys.add(keyBuilder.toString());
+			}
+		}
+		
+		//canopy keys
+		if (null != canopies) {
+			try {
+				canopies.initializeRecord(canopyRecord, items);
+				canopies.findCanopies(canopyRecord, canopyContext, recordCanopies);
+			} catch (IOException e) {
+				throw new IllegalStateException("failed to find canopies", e);
+			}
+			for (int canopy : recordCanopies) {
+				keys.add("c" + canopy);
+			}
+		}
+		return keys;
+	}
+	
+	/**
+	 * Vector of range normalized values of projection fields
+	 * @param items
+	 * @return false if any value is missing or not numeric
+	 */
+	private boolean createVector(String[] items) {
+		boolean created = true;
+		for (int j = 0; created && j < vector.length; ++j) {
+			Field field = projectionFields.get(j);
+			String value = items[field.getOrdinal()].trim();
+			if (value.isEmpty()) {
+				created = false;
+			} else {
+				try {
+					vector[j] = Double.parseDouble(value) / (field.getMax() - field.getMin());
+				} catch (NumberFormatException e) {
+					created = false;
+				}
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * Min hash signature over the tokens of all min hash fields
+	 * @param items
+	 * @return false if there are no tokens
+	 */
+	private boolean createSignature(String[] items) {
+		tokens.clear();
+		for (Field field : minHashFields) {
+			String value = normalize(items[field.getOrdinal()]);
+			if (!value.isEmpty()) {
+				if (field.getDataType().equals(Field.DATA_TYPE_TEXT)) {
+					for (String token : value.split("\\s+")) {
+						if (!token.isEmpty()) {
+							tokens.add(field.getOrdinal() + ":" + token);
+						}
+					}
+				} else {
+					tokens.add(field.getOrdinal() + ":" + value);
+				}
+			}
+		}
+
+		boolean created = !tokens.isEmpty();
+		if (created) {
+			for (int i = 0; i < minHashCount; ++i) {
+				signature[i] = Integer.MAX_VALUE;
+			}
+			for (String token : tokens) {
+				long tokenHash = token.hashCode() & 0x7fffffffL;
+				for (int i = 0; i < minHashCount; ++i) {
+					int hash = (int)((hashCoeffA[i] * tokenHash + hashCoeffB[i]) % PRIME);
+					if (hash < signature[i]) {
+						signature[i] = hash;
+					}
+				}
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * @param value
+	 * @return
+	 */
+	private String normalize(String value) {
+		return value.trim().toLowerCase();
+	}
+
+	/**
+	 * Checks if the block key is the first key shared by two records, so that a pair
+	 * sharing multiple blocks is compared only once
+	 * @param firstKeys
+	 * @param secondKeys
+	 * @param blockKey
+	 * @return
+	 */
+	public static boolean isFirstCommonKey(List<String> firstKeys, List<String> secondKeys, String blockKey) {
+		boolean isFirst = false;
+		for (String key : firstKeys) {
+			if (secondKeys.contains(key)) {
+				isFirst = key.equals(blockKey);
+				break;
+			}
+		}
+		return isFirst;
+	}
+
+	/**
+	 * @param partition
+	 * @param blockKey
+	 * @return
+	 */
+	public static String createGroupKey(String partition, String blockKey) {
+		return partition + GROUP_KEY_SEP + blockKey;
+	}
+
+	/**
+	 * @param groupKey
+	 * @return
+	 */
+	public static String extractBlockKey(String groupKey) {
+		return groupKey.substring(groupKey.indexOf(GROUP_KEY_SEP) + 1);
+	}
+}
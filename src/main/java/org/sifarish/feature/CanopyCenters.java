@@ -0,0 +1,172 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.sifarish.util.Field;
+
+/**
+ * Canopy centers, with a cheap distance over the fields marked as canopy fields in the schema. A record
+ * farther than the tight threshold from all centers becomes a new center. A record belongs to the canopy
+ * of every center within the loose threshold, so that canopies overlap. Thresholds are distances over
+ * canopy fields between 0 and 1. Centers are only read after they have been found, and the mutable state
+ * of distance is in the context passed in
+ * @author pranab
+ *
+ */
+public class CanopyCenters {
+	private SingleTypeSchema schema;
+	private RecordComparator cheapComparator;
+	private int looseThreshold;
+	private int tightThreshold;
+	private String subFieldDelim;
+	private List<TypedRecord> centers = new ArrayList<TypedRecord>();
+	private static final int SCALE = 1000;
+
+	/**
+	 * @param schema
+	 * @param subFieldDelim
+	 */
+	public CanopyCenters(SingleTypeSchema schema, String subFieldDelim) {
+		int[] canopyFields = getCanopyFields(schema);
+		if (null == canopyFields) {
+			throw new IllegalArgumentException("canopy requires at least one canopy field in schema");
+		}
+		if (schema.getCanopyLooseThreshold() < schema.getCanopyTightThreshold()) {
+			throw new IllegalArgumentException("canopy loose threshold should not be less than tight threshold");
+		}
+		this.schema = schema;
+		this.subFieldDelim = subFieldDelim;
+		cheapComparator = new RecordComparator(schema, canopyFields, subFieldDelim, SCALE);
+		looseThreshold = (int)(schema.getCanopyLooseThreshold() * SCALE);
+		tightThreshold = (int)(schema.getCanopyTightThreshold() * SCALE);
+	}
+
+	/**
+	 * @param schema
+	 * @return ordinals of canopy fields, null if none
+	 */
+	public static int[] getCanopyFields(SingleTypeSchema schema) {
+		List<Integer> ordinals = new ArrayList<Integer>();
+		for (Field field : schema.getEntity().getFields()) {
+			if (field.isCanopyField()) {
+				ordinals.add(field.getOrdinal());
+			}
+		}
+		int[] canopyFields = null;
+		if (!ordinals.isEmpty()) {
+			canopyFields = new int[ordinals.size()];
+			for (int i = 0; i < canopyFields.length; ++i) {
+				canopyFields[i] = ordinals.get(i);
+			}
+		}
+		return canopyFields;
+	}
+
+	/**
+	 * @return per thread state for distance
+	 */
+	public DistanceContext createContext() {
+		return cheapComparator.createContext(SCALE);
+	}
+
+	/**
+	 * @param items
+	 * @return record parsed for cheap distance
+	 * @throws IOException
+	 */
+	public TypedRecord createRecord(String[] items) throws IOException {
+		TypedRecord record = new TypedRecord();
+		initializeRecord(record, items);
+		return record;
+	}
+
+	/**
+	 * @param record
+	 * @param items
+	 * @throws IOException
+	 */
+	public void initializeRecord(TypedRecord record, String[] items) throws IOException {
+		record.initialize(items, 0, schema.getEntity().getIdField().getOrdinal(), schema.getEntity().getFields(),
+			subFieldDelim);
+	}
+
+	/**
+	 * Adds record as center if it's not within tight threshold of any center
+	 * @param record not modified afterwards by caller
+	 * @param context
+	 * @return true if added as center
+	 * @throws IOException
+	 */
+	public boolean offer(TypedRecord record, DistanceContext context) throws IOException {
+		boolean isCenter = true;
+		for (int i = 0; isCenter && i < centers.size(); ++i) {
+			isCenter = cheapComparator.findDistance(record, centers.get(i), context) > tightThreshold;
+		}
+		if (isCenter) {
+			centers.add(record);
+		}
+		return isCenter;
+	}
+
+	/**
+	 * Adds center found earlier
+	 * @param center
+	 */
+	public void add(TypedRecord center) {
+		centers.add(center);
+	}
+
+	/**
+	 * Canopies of a record. If there is no center within loose threshold, which is possible when
+	 * centers found separately are merged, it's the canopy of the closest center
+	 * @param record
+	 * @param context
+	 * @param canopies list for indexes of centers
+	 * @throws IOException
+	 */
+	public void findCanopies(TypedRecord record, DistanceContext context, List<Integer> canopies)
+		throws IOException {
+		canopies.clear();
+		int closest = -1;
+		int minDist = Integer.MAX_VALUE;
+		for (int i = 0; i < centers.size(); ++i) {
+			int dist = cheapComparator.findDistance(record, centers.get(i), context);
+			if (dist <= looseThreshold) {
+				canopies.add(i);
+			}
+			if (dist < minDist) {
+				minDist = dist;
+				closest = i;
+			}
+		}
+		if (canopies.isEmpty() && closest >= 0) {
+			canopies.add(closest);
+		}
+	}
+
+	/**
+	 * @return
+	 */
+	public List<TypedRecord> getCenters() {
+		return centers;
+	}
+}
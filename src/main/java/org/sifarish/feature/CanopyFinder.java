@@ -0,0 +1,205 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.sifarish.util.Utility;
+
+/**
+ * Canopy pre clustering with a cheap distance over canopy fields of the schema. Each mapper finds canopy
+ * centers among its records and a single reducer merges them, keeping a center only if it's not within
+ * the tight threshold of a center kept already. Output is the center records, which are used for canopy
+ * keys when SameTypeSimilarity runs with blocking, so that the full distance is found only for pairs
+ * within a canopy
+ * @author pranab
+ *
+ */
+public class CanopyFinder extends Configured implements Tool {
+
+    @Override
+    public int run(String[] args) throws Exception {
+        Job job = new Job(getConf());
+        String jobName = "Canopy finder MR";
+        job.setJobName(jobName);
+
+        job.setJarByClass(CanopyFinder.class);
+
+        FileInputFormat.addInputPath(job, new Path(args[0]));
+        FileOutputFormat.setOutputPath(job, new Path(args[1]));
+
+        job.setMapperClass(CanopyFinder.CenterMapper.class);
+        job.setReducerClass(CanopyFinder.CenterReducer.class);
+
+        job.setMapOutputKeyClass(NullWritable.class);
+        job.setMapOutputValueClass(Text.class);
+
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(Text.class);
+
+        Utility.setConfiguration(job.getConfiguration());
+
+        //all centers should meet in one reducer
+        job.setNumReduceTasks(1);
+
+        return job.waitForCompletion(true) ? 0 : 1;
+    }
+
+    /**
+     * @param conf
+     * @return
+     * @throws IOException
+     */
+    private static CanopyCenters createCanopyCenters(Configuration conf) throws IOException {
+		InputStream fs = org.chombo.util.Utility.getFileStream(conf, "cnf.same.schema.file.path");
+        ObjectMapper mapper = new ObjectMapper();
+        SingleTypeSchema schema = mapper.readValue(fs, SingleTypeSchema.class);
+        schema.processStructuredFields();
+        schema.setConf(conf);
+        return new CanopyCenters(schema, conf.get("cnf.sub.field.delim.regex", "::"));
+    }
+
+    /**
+     * Finds centers among the records of the split and emits them at the end
+     * @author pranab
+     *
+     */
+    public static class CenterMapper extends Mapper<LongWritable, Text, NullWritable, Text> {
+    	private Text outVal = new Text();
+    	private CanopyCenters canopies;
+    	private DistanceContext distContext;
+        private String fieldDelimRegex;
+        private String fieldDelim;
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#setup(org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        protected void setup(Context context) throws IOException, InterruptedException {
+        	Configuration conf = context.getConfiguration();
+        	fieldDelimRegex = conf.get("field.delim.regex", ",");
+        	fieldDelim = conf.get("field.delim", ",");
+        	canopies = createCanopyCenters(conf);
+        	distContext = canopies.createContext();
+        }
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#map(KEYIN, VALUEIN, org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        @Override
+        protected void map(LongWritable key, Text value, Context context)
+            throws IOException, InterruptedException {
+        	canopies.offer(canopies.createRecord(value.toString().split(fieldDelimRegex)), distContext);
+        }
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#cleanup(org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+        	for (TypedRecord center : canopies.getCenters()) {
+        		outVal.set(center.toString(fieldDelim));
+        		context.write(NullWritable.get(), outVal);
+        	}
+        	context.getCounter("Canopy", "Mapper centers").increment(canopies.getCenters().size());
+        	distContext.flushCounters(context);
+        }
+    }
+
+    /**
+     * Merges centers found by mappers
+     * @author pranab
+     *
+     */
+    public static class CenterReducer extends Reducer<NullWritable, Text, NullWritable, Text> {
+    	private CanopyCenters canopies;
+    	private DistanceContext distContext;
+        private String fieldDelimRegex;
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Reducer#setup(org.apache.hadoop.mapreduce.Reducer.Context)
+         */
+        protected void setup(Context context) throws IOException, InterruptedException {
+        	Configuration conf = context.getConfiguration();
+        	fieldDelimRegex = conf.get("field.delim.regex", ",");
+        	canopies = createCanopyCenters(conf);
+        	distContext = canopies.createContext();
+        }
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Reducer#reduce(KEYIN, java.lang.Iterable, org.apache.hadoop.mapreduce.Reducer.Context)
+         */
+        protected void reduce(NullWritable key, Iterable<Text> values, Context context)
+        	throws IOException, InterruptedException {
+        	for (Text value : values) {
+        		String line = value.toString();
+        		if (canopies.offer(canopies.createRecord(line.split(fieldDelimRegex)), distContext)) {
+        			context.write(NullWritable.get(), value);
+        		}
+        	}
+        	context.getCounter("Canopy", "Centers").increment(canopies.getCenters().size());
+        	distContext.flushCounters(context);
+        }
+    }
+
+    /**
+     * Canopy centers from output of this job, for canopy keys in blocking
+     * @param schema
+     * @param conf
+     * @param pathParam config param for center file path
+     * @param fieldDelimRegex
+     * @param subFieldDelim
+     * @return
+     * @throws IOException
+     */
+    public static CanopyCenters loadCanopyCenters(SingleTypeSchema schema, Configuration conf, String pathParam,
+    	String fieldDelimRegex, String subFieldDelim) throws IOException {
+    	if (null == conf.get(pathParam)) {
+    		throw new IllegalArgumentException("schema has canopy fields but canopy center file is not set in " + pathParam);
+    	}
+    	CanopyCenters canopies = new CanopyCenters(schema, subFieldDelim);
+    	for (String line : org.chombo.util.Utility.getFileLines(conf, pathParam)) {
+    		if (!line.isEmpty()) {
+    			canopies.add(canopies.createRecord(line.split(fieldDelimRegex)));
+    		}
+    	}
+    	return canopies;
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int exitCode = ToolRunner.run(new CanopyFinder(), args);
+        System.exit(exitCode);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.sifarish.util.Utility;
+
+/**
+ * Merges output of SameTypeSimilarity in delta mode with the output of the previous run. Pairs
+ * of the previous run involving any changed or deleted entity are stale and dropped. Pairs of
+ * the delta run are passed through, since they cover all pairs involving changed entities. Result
+ * is same as full recompute, except for the order of the IDs in a pair
+ * @author pranab
+ *
+ */
+public class DeltaSimilarityMerger extends Configured implements Tool {
+
+    @Override
+    public int run(String[] args) throws Exception {
+        Job job = new Job(getConf());
+        String jobName = "Delta similarity merger MR";
+        job.setJobName(jobName);
+
+        job.setJarByClass(DeltaSimilarityMerger.class);
+
+        //previous output and delta output
+        FileInputFormat.addInputPath(job, new Path(args[0]));
+        FileInputFormat.addInputPath(job, new Path(args[1]));
+        FileOutputFormat.setOutputPath(job, new Path(args[2]));
+        job.getConfiguration().set("sts.delta.previous.output.path", args[0]);
+
+        job.setMapperClass(DeltaSimilarityMerger.MergeMapper.class);
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(Text.class);
+
+        Utility.setConfiguration(job.getConfiguration());
+
+        //map only
+        job.setNumReduceTasks(0);
+
+        int status =  job.waitForCompletion(true) ? 0 : 1;
+        return status;
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int exitCode = ToolRunner.run(new DeltaSimilarityMerger(), args);
+        System.exit(exitCode);
+    }
+
+    /**
+     * Drops stale pairs from previous output
+     * @author pranab
+     *
+     */
+    public static class MergeMapper extends Mapper<LongWritable, Text, NullWritable, Text> {
+    	private String fieldDelimRegex;
+    	private boolean isPreviousSplit;
+    	private Set<String> changedIds = new HashSet<String>();
+    	private int[] idOrdinals;
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#setup(org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        protected void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+        	fieldDelimRegex = conf.get("field.delim.regex", "\\[\\]");
+
+        	//previous output or delta output
+        	FileSystem fs = FileSystem.get(conf);
+        	Path previousPath = fs.makeQualified(new Path(conf.get("sts.delta.previous.output.path")));
+        	Path splitPath = ((FileSplit)context.getInputSplit()).getPath();
+        	isPreviousSplit = previousPath.equals(splitPath.getParent()) || previousPath.equals(splitPath);
+
+        	if (isPreviousSplit) {
+        		//ID fields in pair output
+        		idOrdinals = org.chombo.util.Utility.intArrayFromString(conf.get("sts.delta.id.field.ordinals", "0,1"));
+        		loadChangedIds(conf, fs);
+        		context.getCounter("Delta", "Changed entities").increment(changedIds.size());
+        	}
+        }
+
+        /**
+         * IDs from changed records and optionally from a deleted ID list
+         * @param conf
+         * @param fs
+         * @throws IOException
+         */
+        private void loadChangedIds(Configuration conf, FileSystem fs) throws IOException {
+    		InputStream schemaStream = org.chombo.util.Utility.getFileStream(conf, "sts.same.schema.file.path");
+            ObjectMapper mapper = new ObjectMapper();
+            SingleTypeSchema schema = mapper.readValue(schemaStream, SingleTypeSchema.class);
+            int idOrdinal = schema.getEntity().getIdField().getOrdinal();
+
+            //changed records, file or directory
+            Path changedPath = new Path(conf.get("sts.delta.changed.data.path"));
+            FileStatus[] statusList = fs.isFile(changedPath) ? new FileStatus[]{fs.getFileStatus(changedPath)} :
+            	fs.listStatus(changedPath);
+            for (FileStatus status : statusList) {
+            	String name = status.getPath().getName();
+            	if (status.isDir() || name.startsWith("_") || name.startsWith(".")) {
+            		continue;
+            	}
+            	BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(status.getPath())));
+            	try {
+            		String line = null;
+            		while((line = reader.readLine()) != null) {
+            			if (!line.isEmpty()) {
+            				changedIds.add(line.split(fieldDelimRegex)[idOrdinal]);
+            			}
+            		}
+            	} finally {
+            		reader.close();
+            	}
+            }
+
+            //deleted entities
+            if (null != conf.get("sts.delta.deleted.id.file.path")) {
+            	List<String> lines = org.chombo.util.Utility.getFileLines(conf, "sts.delta.deleted.id.file.path");
+            	for (String line : lines) {
+            		changedIds.add(line.trim());
+            	}
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#map(KEYIN, VALUEIN, org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        @Override
+        protected void map(LongWritable key, Text value, Context context)
+            throws IOException, InterruptedException {
+        	boolean stale = false;
+        	if (isPreviousSplit) {
+        		String[] items  =  value.toString().split(fieldDelimRegex);
+        		for (int i = 0; !stale && i < idOrdinals.length; ++i) {
+        			stale = changedIds.contains(items[idOrdinals[i]]);
+        		}
+        	}
+
+        	if (stale) {
+        		context.getCounter("Delta", "Stale pairs dropped").increment(1);
+        	} else {
+        		context.getCounter("Delta", isPreviousSplit ? "Previous pairs kept" : "Delta pairs").increment(1);
+        		context.write(NullWritable.get(), value);
+        	}
+        }
+    }
+}
@@ -17,6 +17,7 @@
 
 package org.sifarish.feature;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -70,7 +71,7 @@ public class DiffTypeSimilarity  extends Configured implements Tool {
         job.setReducerClass(DiffTypeSimilarity.SimilarityReducer.class);
         
         job.setMapOutputKeyClass(LongWritable.class);
-        job.setMapOutputValueClass(Text.class);
+        job.setMapOutputValueClass(TypedRecord.class);
 
         job.setOutputKeyClass(NullWritable.class);
         job.setOutputValueClass(Text.class);
@@ -103,9 +104,9 @@ public class DiffTypeSimilarity  extends Configured implements Tool {
      * @author pranab
      *
      */
-    public static class SimilarityMapper extends Mapper<LongWritable, Text, LongWritable, Text> {
+    public static class SimilarityMapper extends Mapper<LongWritable, Text, LongWritable, TypedRecord> {
         private LongWritable keyHolder = new LongWritable();
-        private Text valueHolder = new Text();
+        private TypedRecord valueHolder = new TypedRecord();
         private MixedTypeSchema schema;
         private int bucketCount;
         private long hash;
@@ -114,6 +115,8 @@ public class DiffTypeSimilarity  extends Configured implements Tool {
         private boolean identifyWithFilePrefix;
         private Entity entity;
         private int filePrefixLength;
+        private String subFieldDelim;
+        private boolean outputVerbose;
        
         /* (non-Javadoc)
          * @see org.apache.hadoop.mapreduce.Mapper#setup(org.apache.hadoop.mapreduce.Mapper.Context)
@@ -125,6 +128,8 @@ public class DiffTypeSimilarity  extends Configured implements Tool {
         	if (identifyWithFilePrefix) {
         		filePrefixLength = Integer.parseInt(context.getConfiguration().get("dts.file.prefix.length"));
         	}
+        	subFieldDelim = context.getConfiguration().get("dts.sub.field.delim.regex", "::");
+        	outputVerbose = context.getConfiguration().getBoolean("dts.sim.output.verbose", true);
         	
 			Configuration conf = context.getConfiguration();
             String filePath = conf.get("dts.schema.file.path");
@@ -163,22 +168,19 @@ public class DiffTypeSimilarity  extends Configured implements Tool {
             if (null != entity){
         		hash = items[idOrdinal].hashCode() %  bucketCount;
         		hash = hash < 0 ?  -hash : hash;
+        		
+        		//parsed once, entity type as the set indicator
+        		valueHolder.initialize(items, entity.getType(), idOrdinal, entity.getFields(), subFieldDelim);
+        		if (outputVerbose && entity.getType() != 0) {
+        			//second type record goes out as is
+        			valueHolder.setLine(value.toString());
+        		}
             	if (entity.getType() == 0){
-            		if (identifyWithFilePrefix) {
-            			valueHolder.set ( "0," + value.toString());
-            		} else {
-            			valueHolder.set(value);
-            		}
             		for (int i = 0; i < bucketCount; ++i) {
             			keyHolder.set((hash * bucketCount + i) * 10);
             			context.write(keyHolder, valueHolder);
             		}
             	} else {
-            		if (identifyWithFilePrefix) {
-            			valueHolder.set ( "1," + value.toString());
-            		} else {
-            			valueHolder.set(value);
-            		}
             		for (int i = 0; i < bucketCount; ++i) {
             			keyHolder.set(((i * bucketCount + hash ) * 10) + 1);
             			context.write(keyHolder, valueHolder);
@@ -194,11 +196,11 @@ public class DiffTypeSimilarity  extends Configured implements Tool {
      * @author pranab
      *
      */
-    public static class SimilarityReducer extends Reducer<LongWritable, Text, NullWritable, Text> {
+    public static class SimilarityReducer extends Reducer<LongWritable, TypedRecord, NullWritable, Text> {
         private Text valueHolder = new Text();
         private MixedTypeSchema schema;
         private int firstTypeSize;
-        private List<String> firstTypeValues = new ArrayList<String>();
+        private List<TypedRecord> firstTypeValues = new ArrayList<TypedRecord>();
         private int firstIdOrdinal;
         private int secondIdOrdinal;
         private String firstId;
@@ -224,9 +226,8 @@ public class DiffTypeSimilarity  extends Configured implements Tool {
         private DynamicAttrSimilarityStrategy textSimStrategy;
         private boolean outputVerbose;
         private boolean identifyWithFilePrefix;
-        private boolean firstType;
-        private String valueSt;
-        private String[] items;
+        private SpillableRecordList spillList;
+        private List<TypedRecord> secondTypeValues = new ArrayList<TypedRecord>();
  
         /* (non-Javadoc)
          * @see org.apache.hadoop.mapreduce.Reducer#setup(org.apache.hadoop.mapreduce.Reducer.Context)
@@ -259,6 +260,14 @@ public class DiffTypeSimilarity  extends Configured implements Tool {
         	textSimStrategy = schema.createTextSimilarityStrategy();
         	outputVerbose = context.getConfiguration().getBoolean("dts.sim.output.verbose", true);
            	identifyWithFilePrefix = context.getConfiguration().getBoolean("dts.identify.with.file.prefix", false);
+           	
+           	//bounded memory for first type records, spilled groups are joined as block nested loop
+           	int spillMemoryBudget = conf.getInt("dts.spill.memory.budget.mb", 0);
+           	if (spillMemoryBudget > 0) {
+           		String spillDir = conf.get("dts.spill.dir");
+           		spillList = new SpillableRecordList(spillMemoryBudget * 1024L * 1024L, 
+           			null != spillDir ? new File(spillDir) : null);
+           	}
                     	
         	System.out.println("firstTypeSize: " + firstTypeSize + " firstIdOrdinal:" +firstIdOrdinal + 
         			" secondIdOrdinal:" + secondIdOrdinal + " Source field count:" + fields.size() + 
@@ -268,66 +277,50 @@ public class DiffTypeSimilarity  extends Configured implements Tool {
         /* (non-Javadoc)
          * @see org.apache.hadoop.mapreduce.Reducer#reduce(KEYIN, java.lang.Iterable, org.apache.hadoop.mapreduce.Reducer.Context)
          */
-        protected void reduce(LongWritable key, Iterable<Text> values, Context context)
+        protected void reduce(LongWritable key, Iterable<TypedRecord> values, Context context)
         throws IOException, InterruptedException {
         	firstTypeValues.clear();
+        	secondTypeValues.clear();
+        	if (null != spillList) {
+        		spillList.clear();
+        	}
         	srcCount = 0;
         	targetCount = 0;
         	simCount = 0;
         	StringBuilder stBld = new  StringBuilder();
         	
-        	for (Text value : values){
-        		String[] items = value.toString().split(fieldDelimRegex);
-        		
-        		if ( identifyWithFilePrefix) {
-        			firstType = value.toString().startsWith("0");
-        			valueSt = value.toString().substring(2, value.toString().length());
-        		} else {
-        			firstType = items.length == firstTypeSize;
-        			valueSt = value.toString();
-        		}
-        		
-        		if (firstType){
-        			firstTypeValues.add(valueSt);
+        	for (TypedRecord value : values){
+        		if (value.getSetIndicator() == 0){
+        			if (null != spillList) {
+        				spillList.add(value);
+        			} else {
+        				//hadoop reuses the value object
+        				firstTypeValues.add(value.createClone());
+        			}
         			++srcCount;
+        		} else if (null != spillList && spillList.isSpilled()) {
+        			//block of second type against all blocks of first type
+        			secondTypeValues.add(value.createClone());
+        			if (secondTypeValues.size() >= spillList.getMemoryRecords().size()) {
+        				joinSpilled(stBld, context);
+        			}
+        			++targetCount;
         		} else {
-    				String second = valueSt;
-    				items = second.split(fieldDelimRegex);
-    				secondId = items[secondIdOrdinal];
-    				if (secondClassAttrOrdinal >= 0) {
-    					secondClassAttr = items[secondClassAttrOrdinal];
-    				}
-        			for (String first : firstTypeValues){
-        				//prntDetail =  ++simResultCnt % 10000 == 0;
-        				sim = findSimilarity(first, second, context);
-        				items = first.split(fieldDelimRegex);
-        				firstId = items[firstIdOrdinal];
-           				if (firstClassAttrOrdinal >= 0) {
-           					firstClassAttr = items[firstClassAttrOrdinal];
-        				}
-            				
-        				if (outputVerbose) {
-        					if (firstClassAttrOrdinal > 0) {
-        						stBld.append(firstId).append(fieldDelim).append(firstClassAttr).append(fieldDelim).append(secondClassAttr).
-        							append(second).append(fieldDelim).append(sim);
-        					} else {
-        						stBld.append(firstId).append(fieldDelim).append(second).append(fieldDelim).append(sim);
-        					}
-        					valueHolder.set(stBld.toString());
-        				} else {
-        					if (firstClassAttrOrdinal > 0) {
-        						stBld.append(firstId).append(fieldDelim).append(secondId).append(fieldDelim).append(firstClassAttr).
-        							append(fieldDelim).append(secondClassAttr).append(sim);
-        					} else {
-        						stBld.append(firstId).append(fieldDelim).append(secondId).append(fieldDelim).append(sim);
-        					}
-        					valueHolder.set(stBld.toString());
-        				}
-        				context.write(NullWritable.get(), valueHolder);
-        				++simCount;
+        			if (null != spillList && firstTypeValues.isEmpty()) {
+        				firstTypeValues.addAll(spillList.getMemoryRecords());
+        			}
+        			String second = outputVerbose ? value.getLine() : null;
+        			for (TypedRecord first : firstTypeValues){
+        				emitSimilarity(first, value, second, stBld, context);
         			}
         			++targetCount;
         		}
+        	}
+        	if (!secondTypeValues.isEmpty()) {
+        		joinSpilled(stBld, context);
+        	}
+        	if (null != spillList && spillList.isSpilled()) {
+				context.getCounter("Spill", "Bytes spilled").increment(spillList.getSpillBytes());
         	}
 			context.getCounter("Data", "Source Count").increment(srcCount);
 			context.getCounter("Data", "Target Count").increment(targetCount);
@@ -335,6 +328,71 @@ public class DiffTypeSimilarity  extends Configured implements Tool {
         	
         }
         
+        /**
+         * Block of second type records against each block of first type records
+         * @param stBld
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        private void joinSpilled(StringBuilder stBld, Context context) throws IOException, InterruptedException {
+        	for (int b = 0; b < spillList.getBlockCount(); ++b) {
+        		List<TypedRecord> firstBlock = spillList.readBlock(b);
+        		for (TypedRecord secondRec : secondTypeValues) {
+        			String second = outputVerbose ? secondRec.getLine() : null;
+        			for (TypedRecord first : firstBlock){
+        				emitSimilarity(first, secondRec, second, stBld, context);
+        			}
+        		}
+        		context.getCounter("Spill", "Blocks read").increment(1);
+        	}
+        	secondTypeValues.clear();
+        }
+        
+        /**
+         * Finds similarity and writes output
+         * @param first
+         * @param secondRec
+         * @param second raw line of second record for verbose output
+         * @param stBld
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        private void emitSimilarity(TypedRecord first, TypedRecord secondRec, String second, StringBuilder stBld, 
+        	Context context) throws IOException, InterruptedException {
+			secondId = secondRec.getItem(secondIdOrdinal);
+			if (secondClassAttrOrdinal >= 0) {
+				secondClassAttr = secondRec.getItem(secondClassAttrOrdinal);
+			}
+			sim = findSimilarity(first, secondRec, context);
+			firstId = first.getItem(firstIdOrdinal);
+			if (firstClassAttrOrdinal >= 0) {
+				firstClassAttr = first.getItem(firstClassAttrOrdinal);
+			}
+				
+			stBld.setLength(0);
+			if (outputVerbose) {
+				if (firstClassAttrOrdinal > 0) {
+					stBld.append(firstId).append(fieldDelim).append(firstClassAttr).append(fieldDelim).append(secondClassAttr).
+						append(second).append(fieldDelim).append(sim);
+				} else {
+					stBld.append(firstId).append(fieldDelim).append(second).append(fieldDelim).append(sim);
+				}
+				valueHolder.set(stBld.toString());
+			} else {
+				if (firstClassAttrOrdinal > 0) {
+					stBld.append(firstId).append(fieldDelim).append(secondId).append(fieldDelim).append(firstClassAttr).
+						append(fieldDelim).append(secondClassAttr).append(sim);
+				} else {
+					stBld.append(firstId).append(fieldDelim).append(secondId).append(fieldDelim).append(sim);
+				}
+				valueHolder.set(stBld.toString());
+			}
+			context.write(NullWritable.get(), valueHolder);
+			++simCount;
+        }
+        
     	/**
     	 * Gets distance between two entities
     	 * @param source
@@ -343,10 +401,10 @@ public class DiffTypeSimilarity  extends Configured implements Tool {
     	 * @return
     	 * @throws IOException 
     	 */
-    	private int findSimilarity(String source, String target, Context context) throws IOException {
+    	private int findSimilarity(TypedRecord source, TypedRecord target, Context context) throws IOException {
     		int sim = 0;
     		mapFields(source, context);
-    		String[] trgItems = target.split(fieldDelimRegex);
+    		String[] trgItems = target.getItems();
     		
     		double dist = 0;
 			context.getCounter("Data", "Target Field Count").increment(targetFields.size());
@@ -400,7 +458,7 @@ public class DiffTypeSimilarity  extends Configured implements Tool {
     					}
     				} else if (field.getDataType().equals("int")) {
     					if (!mappedValues.isEmpty()) {
-	    					int trgItemInt = Integer.parseInt(trgItem);
+	    					int trgItemInt = getIntValue(target, ordinal);
     						int srcItemInt = getAverageMappedValue(mappedValues);
     						dist = getDistForNumeric(srcField, srcItemInt, field, trgItemInt);
     					} else {
@@ -576,9 +634,9 @@ public class DiffTypeSimilarity  extends Configured implements Tool {
     	 * @param source
     	 * @param context
     	 */
-    	private void mapFields(String source, Context context){
+    	private void mapFields(TypedRecord source, Context context){
 	    	mappedFields.clear();
-			String[] srcItems = source.split(fieldDelimRegex);
+			String[] srcItems = source.getItems();
 			
 			if (prntDetail){
 				System.out.println("src record: " + srcItems[0]);
@@ -620,7 +678,7 @@ public class DiffTypeSimilarity  extends Configured implements Tool {
 										break;
 									}
 								} else if (field.getDataType().equals("int")) {
-									int valueInt = Integer.parseInt(value);
+									int valueInt = getIntValue(source, field.getOrdinal());
 									int[] range = valMapping.getThisValueRange();
 									if (null != range) {
 										if (valueInt >= range[0] && valueInt <= range[1]) {
@@ -643,6 +701,16 @@ public class DiffTypeSimilarity  extends Configured implements Tool {
 			}
 	    }
     	
+        /**
+         * Pre parsed int value, parses raw value if not parsed
+         * @param record
+         * @param ordinal
+         * @return
+         */
+        private int getIntValue(TypedRecord record, int ordinal) {
+        	return record.isValid(ordinal) ? (int)record.getValue(ordinal) : Integer.parseInt(record.getItem(ordinal));
+        }
+        
         /**
          * @param mappedValues
          * @return
@@ -663,9 +731,9 @@ public class DiffTypeSimilarity  extends Configured implements Tool {
      * @author pranab
      *
      */
-    public static class IdPairPartitioner extends Partitioner<LongWritable, Text> {
+    public static class IdPairPartitioner extends Partitioner<LongWritable, TypedRecord> {
 	     @Override
-	     public int getPartition(LongWritable key, Text value, int numPartitions) {
+	     public int getPartition(LongWritable key, TypedRecord value, int numPartitions) {
 	    	 //consider only base part of  key
 		     int keyVal = (int)(key.get() / 10);
 		     return keyVal % numPartitions;
@@ -674,6 +742,7 @@ public class DiffTypeSimilarity  extends Configured implements Tool {
     }
 
     /**
+     * Groups on base part of the key, on serialized key without deserializing
      * @author pranab
      *
      */
@@ -683,6 +752,13 @@ public class DiffTypeSimilarity  extends Configured implements Tool {
     		super(LongWritable.class, true);
     	}
 
+    	@Override
+    	public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+    		long t1 = readLong(b1, s1) / KEY_EXTENSION_SCALE;
+    		long t2 = readLong(b2, s2) / KEY_EXTENSION_SCALE;
+    		return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+    	}
+
     	@Override
     	public int compare(WritableComparable w1, WritableComparable w2) {
     		//consider only the base part of the key
@@ -0,0 +1,171 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Memo of attribute distances for one field, for fields with few distinct values and an expensive 
+ * distance e.g. text or categorical with concept hierarchy. Values are mapped to int IDs through a 
+ * dictionary and distance is cached by the ordered ID pair in a direct mapped table of primitives. 
+ * A colliding pair evicts the cached one. When the dictionary is full, it's cleared along with the 
+ * table, so that values seen later get cached, however rare the earlier values were. One cache per 
+ * thread
+ * @author pranab
+ *
+ */
+public class DistanceCache {
+	private Map<String, Integer> valueIds = new HashMap<String, Integer>();
+	private int maxValues;
+	private long[] keys;
+	private double[] distances;
+	private int mask;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+	private long resetCount;
+	
+	private static final long EMPTY = -1L;
+	
+	/**
+	 * @param size max number of cached pairs, rounded up to power of 2
+	 */
+	public DistanceCache(int size) {
+		int capacity = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		distances = new double[capacity];
+		mask = capacity - 1;
+		maxValues = capacity;
+	}
+	
+	/**
+	 * @param firstValue
+	 * @param secondValue
+	 * @return key for value pair
+	 */
+	public long findKey(String firstValue, String secondValue) {
+		long resets = resetCount;
+		int firstId = findValueId(firstValue);
+		int secondId = findValueId(secondValue);
+		if (resetCount != resets) {
+			//ID of first value is stale if dictionary was cleared for the second value
+			firstId = findValueId(firstValue);
+		}
+		return ((long)firstId << 32) | secondId;
+	}
+	
+	/**
+	 * @param value
+	 * @return
+	 */
+	private int findValueId(String value) {
+		Integer id = valueIds.get(value);
+		if (null == id) {
+			if (valueIds.size() == maxValues) {
+				reset();
+			}
+			id = valueIds.size();
+			valueIds.put(value, id);
+		}
+		return id;
+	}
+	
+	/**
+	 * Clears dictionary and cached distances, which are counted as evicted
+	 */
+	private void reset() {
+		for (int i = 0; i < keys.length; ++i) {
+			if (keys[i] != EMPTY) {
+				++evictionCount;
+			}
+		}
+		Arrays.fill(keys, EMPTY);
+		valueIds.clear();
+		++resetCount;
+	}
+	
+	/**
+	 * @param key
+	 * @return cached distance or NaN if not cached
+	 */
+	public double get(long key) {
+		double dist = Double.NaN;
+		int slot = findSlot(key);
+		if (keys[slot] == key) {
+			dist = distances[slot];
+			++hitCount;
+		} else {
+			++missCount;
+		}
+		return dist;
+	}
+	
+	/**
+	 * @param key
+	 * @param dist
+	 */
+	public void put(long key, double dist) {
+		int slot = findSlot(key);
+		if (keys[slot] != EMPTY && keys[slot] != key) {
+			++evictionCount;
+		}
+		keys[slot] = key;
+		distances[slot] = dist;
+	}
+	
+	/**
+	 * @param key
+	 * @return
+	 */
+	private int findSlot(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int)(hash >>> 32) & mask;
+	}
+
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	public long getMissCount() {
+		return missCount;
+	}
+
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * @return number of times dictionary was full and cleared
+	 */
+	public long getResetCount() {
+		return resetCount;
+	}
+	
+	/**
+	 * Resets counts, cached distances are retained
+	 */
+	public void resetCounts() {
+		hitCount = 0;
+		missCount = 0;
+		evictionCount = 0;
+		resetCount = 0;
+	}
+}
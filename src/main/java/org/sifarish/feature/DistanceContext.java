@@ -0,0 +1,152 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * Mutable state for evaluating record pairs through a compiled RecordComparator. Holds the distance
+ * and text similarity strategies and data quality counts per compiled field. Counts are accumulated 
+ * in arrays and flushed to hadoop counters in bulk, instead of a counter lookup per pair. Optionally
+ * holds distance caches for fields with expensive distance. One context per thread
+ * @author pranab
+ *
+ */
+public class DistanceContext {
+	private DistanceStrategy distStrategy;
+	private DynamicAttrSimilarityStrategy textSimStrategy;
+	private int[] ordinals;
+	private long[] missingCounts;
+	private long[] invalidCounts;
+	private long missingDefaultCount;
+	private long missingSkipCount;
+	private long thresholdFilterCount;
+	private long earlyAbandonCount;
+	private DistanceCache[] caches;
+	
+	/**
+	 * @param distStrategy
+	 * @param textSimStrategy
+	 * @param ordinals field ordinals of the compiled fields
+	 */
+	public DistanceContext(DistanceStrategy distStrategy, DynamicAttrSimilarityStrategy textSimStrategy, 
+			int[] ordinals) {
+		this.distStrategy = distStrategy;
+		this.textSimStrategy = textSimStrategy;
+		this.ordinals = ordinals;
+		missingCounts = new long[ordinals.length];
+		invalidCounts = new long[ordinals.length];
+		caches = new DistanceCache[ordinals.length];
+	}
+
+	public DistanceStrategy getDistStrategy() {
+		return distStrategy;
+	}
+
+	public DynamicAttrSimilarityStrategy getTextSimStrategy() {
+		return textSimStrategy;
+	}
+
+	/**
+	 * @param index compiled field index
+	 * @return distance cache for field, null if distance is not cached
+	 */
+	public DistanceCache getCache(int index) {
+		return caches[index];
+	}
+
+	/**
+	 * @param index compiled field index
+	 * @param cache
+	 */
+	public void setCache(int index, DistanceCache cache) {
+		caches[index] = cache;
+	}
+
+	/**
+	 * @param index compiled field index
+	 */
+	public void missingData(int index) {
+		++missingCounts[index];
+	}
+	
+	/**
+	 * @param index compiled field index
+	 */
+	public void invalidData(int index) {
+		++invalidCounts[index];
+	}
+
+	public void missingDefault() {
+		++missingDefaultCount;
+	}
+
+	public void missingSkip() {
+		++missingSkipCount;
+	}
+
+	public void thresholdFiltered() {
+		++thresholdFilterCount;
+	}
+	
+	public void earlyAbandoned() {
+		++earlyAbandonCount;
+	}
+	
+	/**
+	 * Adds accumulated counts to hadoop counters and resets them
+	 * @param context
+	 */
+	public void flushCounters(TaskInputOutputContext<?, ?, ?, ?> context) {
+		for (int i = 0; i < ordinals.length; ++i) {
+			if (missingCounts[i] > 0) {
+				context.getCounter("Missing Data", "Field:" + ordinals[i]).increment(missingCounts[i]);
+				missingCounts[i] = 0;
+			}
+			if (invalidCounts[i] > 0) {
+				context.getCounter("Invalid Data Format", "Field:" + ordinals[i]).increment(invalidCounts[i]);
+				invalidCounts[i] = 0;
+			}
+			DistanceCache cache = caches[i];
+			if (null != cache) {
+				String field = "Field:" + ordinals[i];
+				context.getCounter("Distance Cache", field + " hit").increment(cache.getHitCount());
+				context.getCounter("Distance Cache", field + " miss").increment(cache.getMissCount());
+				context.getCounter("Distance Cache", field + " eviction").increment(cache.getEvictionCount());
+				context.getCounter("Distance Cache", field + " reset").increment(cache.getResetCount());
+				cache.resetCounts();
+			}
+		}
+		if (missingDefaultCount > 0) {
+			context.getCounter("Missing Data", "Distance Set at Max").increment(missingDefaultCount);
+			missingDefaultCount = 0;
+		}
+		if (missingSkipCount > 0) {
+			context.getCounter("Missing Data", "FieldSkipped").increment(missingSkipCount);
+			missingSkipCount = 0;
+		}
+		if (thresholdFilterCount > 0) {
+			context.getCounter("Distance Data", "Attribute distance threshold filter").increment(thresholdFilterCount);
+			thresholdFilterCount = 0;
+		}
+		if (earlyAbandonCount > 0) {
+			context.getCounter("Distance Data", "Early abandon").increment(earlyAbandonCount);
+			earlyAbandonCount = 0;
+		}
+	}
+}
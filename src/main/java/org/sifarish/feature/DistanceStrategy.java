@@ -17,8 +17,7 @@
 
 package org.sifarish.feature;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 import org.sifarish.util.Field;
 import org.sifarish.util.IDistanceStrategy;
@@ -41,7 +40,14 @@ public abstract class DistanceStrategy  implements  IDistanceStrategy {
 	    DistanceUntouched 
 	}
 	
-	private Map<Integer, DistanceStatus> attributeDistanceStatus = new HashMap<Integer, DistanceStatus>();
+	//implosion or explosion status by field ordinal and the ordinals set, reset for each pair without allocation
+	private byte[] attributeDistanceStatus = new byte[16];
+	private int[] statusOrdinals = new int[16];
+	private int statusCount;
+	
+	private static final byte STATUS_UNTOUCHED = 0;
+	private static final byte STATUS_IMPLODED = 1;
+	private static final byte STATUS_EXPLODED = 2;
 	
 	/**
 	 * @param scale
@@ -57,7 +63,10 @@ public abstract class DistanceStrategy  implements  IDistanceStrategy {
 		sumWt = 0.0;
 		totalWt = 0.0;
 		count = 0;
-		attributeDistanceStatus.clear();
+		for (int i = 0; i < statusCount; ++i) {
+			attributeDistanceStatus[statusOrdinals[i]] = STATUS_UNTOUCHED;
+		}
+		statusCount = 0;
 	}
 
 	/**
@@ -100,14 +109,31 @@ public abstract class DistanceStrategy  implements  IDistanceStrategy {
 		
 		//check for distance implosion and explosion
 		if (effectDist < field.getImplodeThreshold()) {
-			attributeDistanceStatus.put(field.getOrdinal(), DistanceStatus.DistanceImploded);
+			setDistanceStatus(field.getOrdinal(), STATUS_IMPLODED);
 		} else if (effectDist > field.getExplodeThreshold()) {
-			attributeDistanceStatus.put(field.getOrdinal(), DistanceStatus.DistanceExploded);
+			setDistanceStatus(field.getOrdinal(), STATUS_EXPLODED);
 		}
 		
 		return effectDist;
 	}
 	
+	/**
+	 * @param ordinal
+	 * @param status
+	 */
+	private void setDistanceStatus(int ordinal, byte status) {
+		if (ordinal >= attributeDistanceStatus.length) {
+			attributeDistanceStatus = Arrays.copyOf(attributeDistanceStatus, 2 * ordinal);
+		}
+		if (attributeDistanceStatus[ordinal] == STATUS_UNTOUCHED) {
+			if (statusCount == statusOrdinals.length) {
+				statusOrdinals = Arrays.copyOf(statusOrdinals, 2 * statusCount);
+			}
+			statusOrdinals[statusCount++] = ordinal;
+		}
+		attributeDistanceStatus[ordinal] = status;
+	}
+	
 	/**
 	 * @return
 	 */
@@ -116,8 +142,8 @@ public abstract class DistanceStrategy  implements  IDistanceStrategy {
 		int explodedCount = 0;
 		int implodedCount = 0;
 		
-		for (int fieldOrd : attributeDistanceStatus.keySet()) {
-			if (attributeDistanceStatus.get(fieldOrd) == DistanceStatus.DistanceExploded) {
+		for (int i = 0; i < statusCount; ++i) {
+			if (attributeDistanceStatus[statusOrdinals[i]] == STATUS_EXPLODED) {
 				++explodedCount;
 			} else {
 				++implodedCount;
@@ -133,6 +159,25 @@ public abstract class DistanceStrategy  implements  IDistanceStrategy {
 		return status;
 	}
 	
+	/**
+	 * Bounded evaluation. Checks if distance of the pair is certain to exceed the threshold, whatever the 
+	 * distances of the fields not accumulated yet. Accumulated sum never decreases and count grows up to 
+	 * max count, so that distance with max count is a lower bound. Since an exploded distance is set at 
+	 * scale, it applies only for threshold below scale. Attribute distance implosion should not be possible
+	 * @param threshold scaled distance threshold
+	 * @param maxCount max number of fields accumulated for the pair
+	 * @return true if the pair can not be within threshold
+	 */
+	public boolean isThresholdExceeded(int threshold, int maxCount) {
+		return threshold < scale && getLowerBound(maxCount) >= threshold + 1;
+	}
+	
+	/**
+	 * @param maxCount
+	 * @return lower bound of scaled distance, before truncation
+	 */
+	protected abstract double getLowerBound(int maxCount);
+	
 	/**
 	 * @return
 	 */
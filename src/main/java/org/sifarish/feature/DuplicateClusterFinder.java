@@ -0,0 +1,566 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+import org.sifarish.util.Utility;
+
+/**
+ * Clusters duplicates by finding connected components of the graph of matching pairs, as output by
+ * SameTypeSimilarity or SortedNeighborhoodSimilarity. Output has entity ID and cluster ID, which is
+ * the smallest entity ID in the cluster. When the input is small enough, components are found in
+ * memory with union find. Otherwise the smallest ID is propagated between neighbors with iterative
+ * map reduce, until no label changes. Number of iterations is bounded by the diameter of the largest
+ * component.
+ * @author pranab
+ *
+ */
+public class DuplicateClusterFinder extends Configured implements Tool {
+	private static final String NODE_TAG = "N";
+	private static final String LABEL_TAG = "L";
+	private static final Logger LOG = Logger.getLogger(DuplicateClusterFinder.class);
+
+    @Override
+    public int run(String[] args) throws Exception {
+    	Configuration conf = getConf();
+        Utility.setConfiguration(conf);
+        FileSystem fs = FileSystem.get(conf);
+        Path inputPath = new Path(args[0]);
+
+        //in memory when the edge list is small enough
+        long maxInMemoryBytes = conf.getLong("dcf.in.memory.max.bytes", 256L * 1024 * 1024);
+        long inputBytes = fs.getContentSummary(inputPath).getLength();
+        if (inputBytes <= maxInMemoryBytes) {
+        	LOG.info("finding components in memory, input bytes:" + inputBytes);
+        	return findInMemory(conf, fs, inputPath, new Path(args[1]));
+        }
+
+        //adjacency list with initial labels
+        String workDir = conf.get("dcf.work.dir", args[1] + "_work");
+        String nodePath = workDir + "/iter_0";
+        int status = runJob(conf, "Duplicate cluster graph builder MR", args[0], nodePath,
+        	DuplicateClusterFinder.EdgeMapper.class, DuplicateClusterFinder.AdjacencyReducer.class);
+
+        //propagate smallest label until convergence
+        int maxIterations = conf.getInt("dcf.max.iterations", 50);
+        boolean converged = false;
+        for (int iter = 1; 0 == status && !converged && iter <= maxIterations; ++iter) {
+        	String nextNodePath = workDir + "/iter_" + iter;
+        	Job job = createJob(conf, "Duplicate cluster label propagation MR iteration " + iter, nodePath,
+        		nextNodePath, DuplicateClusterFinder.PropagationMapper.class, DuplicateClusterFinder.PropagationReducer.class);
+        	status = job.waitForCompletion(true) ? 0 : 1;
+        	if (0 == status) {
+        		long changed = job.getCounters().findCounter("Clustering", "Labels changed").getValue();
+        		LOG.info("iteration:" + iter + " labels changed:" + changed);
+        		converged = 0 == changed;
+        		fs.delete(new Path(nodePath), true);
+        		nodePath = nextNodePath;
+        	}
+        }
+        if (0 == status && !converged) {
+        	LOG.warn("labels not converged after " + maxIterations + " iterations");
+        }
+
+        //entity and cluster ID
+        if (0 == status) {
+        	Job job = createJob(conf, "Duplicate cluster output MR", nodePath, args[1],
+        		DuplicateClusterFinder.ClusterMapper.class, null);
+        	job.setNumReduceTasks(0);
+        	status = job.waitForCompletion(true) ? 0 : 1;
+        	fs.delete(new Path(workDir), true);
+        }
+        return status;
+    }
+
+    /**
+     * @param conf
+     * @param jobName
+     * @param inputPath
+     * @param outputPath
+     * @param mapperClass
+     * @param reducerClass
+     * @return
+     * @throws Exception
+     */
+    @SuppressWarnings("rawtypes")
+	private int runJob(Configuration conf, String jobName, String inputPath, String outputPath,
+    		Class<? extends Mapper> mapperClass, Class<? extends Reducer> reducerClass) throws Exception {
+    	return createJob(conf, jobName, inputPath, outputPath, mapperClass, reducerClass).waitForCompletion(true) ? 0 : 1;
+    }
+
+    /**
+     * @param conf
+     * @param jobName
+     * @param inputPath
+     * @param outputPath
+     * @param mapperClass
+     * @param reducerClass
+     * @return
+     * @throws IOException
+     */
+    @SuppressWarnings("rawtypes")
+	private Job createJob(Configuration conf, String jobName, String inputPath, String outputPath,
+    		Class<? extends Mapper> mapperClass, Class<? extends Reducer> reducerClass) throws IOException {
+        Job job = new Job(conf);
+        job.setJobName(jobName);
+        job.setJarByClass(DuplicateClusterFinder.class);
+
+        FileInputFormat.addInputPath(job, new Path(inputPath));
+        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+
+        job.setMapperClass(mapperClass);
+        if (null != reducerClass) {
+        	job.setReducerClass(reducerClass);
+        }
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(Text.class);
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(Text.class);
+
+        int numReducer = job.getConfiguration().getInt("dcf.num.reducer", -1);
+        numReducer = -1 == numReducer ? job.getConfiguration().getInt("num.reducer", 1) : numReducer;
+        job.setNumReduceTasks(numReducer);
+        return job;
+    }
+
+    /**
+     * Union find over primitive arrays, with entity IDs mapped to array index
+     * @param conf
+     * @param fs
+     * @param inputPath
+     * @param outputPath
+     * @return
+     * @throws IOException
+     */
+    private int findInMemory(Configuration conf, FileSystem fs, Path inputPath, Path outputPath)
+    	throws IOException {
+    	String fieldDelimRegex = conf.get("field.delim.regex", ",");
+    	String fieldDelim = conf.get("field.delim", ",");
+    	int[] idOrdinals = org.chombo.util.Utility.intArrayFromString(conf.get("dcf.id.field.ordinals", "0,1"));
+    	int distThreshold = conf.getInt("dcf.dist.threshold", -1);
+
+    	Map<String, Integer> idIndexes = new HashMap<String, Integer>();
+    	List<String> ids = new ArrayList<String>();
+    	UnionFind unionFind = new UnionFind(1024);
+        FileStatus[] statusList = fs.isFile(inputPath) ? new FileStatus[]{fs.getFileStatus(inputPath)} :
+        	fs.listStatus(inputPath);
+        for (FileStatus status : statusList) {
+        	String name = status.getPath().getName();
+        	if (status.isDir() || name.startsWith("_") || name.startsWith(".")) {
+        		continue;
+        	}
+        	BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(status.getPath())));
+        	try {
+        		String line = null;
+        		while((line = reader.readLine()) != null) {
+        			String[] items = line.split(fieldDelimRegex);
+        			if (distThreshold >= 0 && Integer.parseInt(items[items.length - 1]) > distThreshold) {
+        				continue;
+        			}
+        			int first = getIndex(items[idOrdinals[0]], idIndexes, ids, unionFind);
+        			int second = getIndex(items[idOrdinals[1]], idIndexes, ids, unionFind);
+        			unionFind.union(first, second);
+        		}
+        	} finally {
+        		reader.close();
+        	}
+        }
+
+        //smallest ID of each component as cluster ID
+        int count = ids.size();
+        int[] clusterIds = new int[count];
+        for (int i = 0; i < count; ++i) {
+        	clusterIds[i] = -1;
+        }
+        for (int i = 0; i < count; ++i) {
+        	int root = unionFind.find(i);
+        	if (clusterIds[root] < 0 || ids.get(i).compareTo(ids.get(clusterIds[root])) < 0) {
+        		clusterIds[root] = i;
+        	}
+        }
+
+        fs.mkdirs(outputPath);
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fs.create(new Path(outputPath, "part-m-00000"))));
+        try {
+        	for (int i = 0; i < count; ++i) {
+        		writer.write(ids.get(i) + fieldDelim + ids.get(clusterIds[unionFind.find(i)]));
+        		writer.newLine();
+        	}
+        } finally {
+        	writer.close();
+        }
+        LOG.info("entities:" + count + " clusters:" + unionFind.getComponentCount());
+        return 0;
+    }
+
+    /**
+     * @param id
+     * @param idIndexes
+     * @param ids
+     * @param unionFind
+     * @return
+     */
+    private int getIndex(String id, Map<String, Integer> idIndexes, List<String> ids, UnionFind unionFind) {
+    	Integer index = idIndexes.get(id);
+    	if (null == index) {
+    		index = ids.size();
+    		idIndexes.put(id, index);
+    		ids.add(id);
+    		unionFind.add();
+    	}
+    	return index;
+    }
+
+    /**
+     * Disjoint sets with union by rank and path halving
+     * @author pranab
+     *
+     */
+    public static class UnionFind {
+    	private int[] parents;
+    	private byte[] ranks;
+    	private int size;
+    	private int componentCount;
+
+    	/**
+    	 * @param capacity
+    	 */
+    	public UnionFind(int capacity) {
+    		parents = new int[capacity];
+    		ranks = new byte[capacity];
+    	}
+
+    	/**
+    	 * Adds a singleton set
+    	 * @return index of new element
+    	 */
+    	public int add() {
+    		if (size == parents.length) {
+    			int[] newParents = new int[2 * size];
+    			System.arraycopy(parents, 0, newParents, 0, size);
+    			parents = newParents;
+    			byte[] newRanks = new byte[2 * size];
+    			System.arraycopy(ranks, 0, newRanks, 0, size);
+    			ranks = newRanks;
+    		}
+    		parents[size] = size;
+    		++componentCount;
+    		return size++;
+    	}
+
+    	/**
+    	 * @param i
+    	 * @return root of the set
+    	 */
+    	public int find(int i) {
+    		while (parents[i] != i) {
+    			parents[i] = parents[parents[i]];
+    			i = parents[i];
+    		}
+    		return i;
+    	}
+
+    	/**
+    	 * @param i
+    	 * @param j
+    	 */
+    	public void union(int i, int j) {
+    		int rootI = find(i);
+    		int rootJ = find(j);
+    		if (rootI != rootJ) {
+    			if (ranks[rootI] < ranks[rootJ]) {
+    				parents[rootI] = rootJ;
+    			} else if (ranks[rootI] > ranks[rootJ]) {
+    				parents[rootJ] = rootI;
+    			} else {
+    				parents[rootJ] = rootI;
+    				++ranks[rootI];
+    			}
+    			--componentCount;
+    		}
+    	}
+
+    	/**
+    	 * @return
+    	 */
+    	public int size() {
+    		return size;
+    	}
+
+    	/**
+    	 * @return
+    	 */
+    	public int getComponentCount() {
+    		return componentCount;
+    	}
+    }
+
+    /**
+     * Emits matching pair in both directions
+     * @author pranab
+     *
+     */
+    public static class EdgeMapper extends Mapper<LongWritable, Text, Text, Text> {
+    	private Text keyHolder = new Text();
+    	private Text valueHolder = new Text();
+        private String fieldDelimRegex;
+        private int[] idOrdinals;
+        private int distThreshold;
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#setup(org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        protected void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+        	fieldDelimRegex = conf.get("field.delim.regex", ",");
+        	idOrdinals = org.chombo.util.Utility.intArrayFromString(conf.get("dcf.id.field.ordinals", "0,1"));
+        	distThreshold = conf.getInt("dcf.dist.threshold", -1);
+        }
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#map(KEYIN, VALUEIN, org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        @Override
+        protected void map(LongWritable key, Text value, Context context)
+            throws IOException, InterruptedException {
+            String[] items  =  value.toString().split(fieldDelimRegex);
+			if (distThreshold >= 0 && Integer.parseInt(items[items.length - 1]) > distThreshold) {
+				return;
+			}
+            String firstId = items[idOrdinals[0]];
+            String secondId = items[idOrdinals[1]];
+            keyHolder.set(firstId);
+            valueHolder.set(secondId);
+            context.write(keyHolder, valueHolder);
+            keyHolder.set(secondId);
+            valueHolder.set(firstId);
+            context.write(keyHolder, valueHolder);
+        }
+    }
+
+    /**
+     * Builds node with label and neighbors. Initial label is smallest of own and neighbor IDs
+     * @author pranab
+     *
+     */
+    public static class AdjacencyReducer extends Reducer<Text, Text, NullWritable, Text> {
+    	private Text outVal = new Text();
+    	private String fieldDelim;
+    	private Set<String> neighbors = new LinkedHashSet<String>();
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Reducer#setup(org.apache.hadoop.mapreduce.Reducer.Context)
+         */
+        protected void setup(Context context) throws IOException, InterruptedException {
+        	fieldDelim = context.getConfiguration().get("field.delim", ",");
+        }
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Reducer#reduce(KEYIN, java.lang.Iterable, org.apache.hadoop.mapreduce.Reducer.Context)
+         */
+        protected void reduce(Text key, Iterable<Text> values, Context context)
+        	throws IOException, InterruptedException {
+        	String id = key.toString();
+        	String label = id;
+        	neighbors.clear();
+        	for (Text value : values) {
+        		String neighbor = value.toString();
+        		if (!neighbor.equals(id) && neighbors.add(neighbor) && neighbor.compareTo(label) < 0) {
+        			label = neighbor;
+        		}
+        	}
+        	outVal.set(createNode(id, label, neighbors, fieldDelim));
+        	context.write(NullWritable.get(), outVal);
+        }
+    }
+
+    /**
+     * Passes node structure through and sends label to neighbors
+     * @author pranab
+     *
+     */
+    public static class PropagationMapper extends Mapper<LongWritable, Text, Text, Text> {
+    	private Text keyHolder = new Text();
+    	private Text valueHolder = new Text();
+        private String fieldDelimRegex;
+        private String fieldDelim;
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#setup(org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        protected void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+        	fieldDelimRegex = conf.get("field.delim.regex", ",");
+        	fieldDelim = conf.get("field.delim", ",");
+        }
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#map(KEYIN, VALUEIN, org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        @Override
+        protected void map(LongWritable key, Text value, Context context)
+            throws IOException, InterruptedException {
+            String[] items  =  value.toString().split(fieldDelimRegex);
+            String label = items[1];
+            keyHolder.set(items[0]);
+            valueHolder.set(NODE_TAG + fieldDelim + value.toString());
+            context.write(keyHolder, valueHolder);
+
+            valueHolder.set(LABEL_TAG + fieldDelim + label);
+            for (int i = 2; i < items.length; ++i) {
+            	if (label.compareTo(items[i]) < 0) {
+            		keyHolder.set(items[i]);
+            		context.write(keyHolder, valueHolder);
+            	}
+            }
+        }
+    }
+
+    /**
+     * Takes the smallest of own and received labels
+     * @author pranab
+     *
+     */
+    public static class PropagationReducer extends Reducer<Text, Text, NullWritable, Text> {
+    	private Text outVal = new Text();
+        private String fieldDelimRegex;
+    	private String fieldDelim;
+    	private List<String> neighbors = new ArrayList<String>();
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Reducer#setup(org.apache.hadoop.mapreduce.Reducer.Context)
+         */
+        protected void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+        	fieldDelimRegex = conf.get("field.delim.regex", ",");
+        	fieldDelim = conf.get("field.delim", ",");
+        }
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Reducer#reduce(KEYIN, java.lang.Iterable, org.apache.hadoop.mapreduce.Reducer.Context)
+         */
+        protected void reduce(Text key, Iterable<Text> values, Context context)
+        	throws IOException, InterruptedException {
+        	String label = null;
+        	String minReceived = null;
+        	neighbors.clear();
+        	for (Text value : values) {
+        		String[] items  =  value.toString().split(fieldDelimRegex);
+        		if (items[0].equals(NODE_TAG)) {
+        			label = items[2];
+        			for (int i = 3; i < items.length; ++i) {
+        				neighbors.add(items[i]);
+        			}
+        		} else if (null == minReceived || items[1].compareTo(minReceived) < 0) {
+        			minReceived = items[1];
+        		}
+        	}
+
+        	if (null != minReceived && minReceived.compareTo(label) < 0) {
+        		label = minReceived;
+        		context.getCounter("Clustering", "Labels changed").increment(1);
+        	}
+        	outVal.set(createNode(key.toString(), label, neighbors, fieldDelim));
+        	context.write(NullWritable.get(), outVal);
+        }
+    }
+
+    /**
+     * Entity ID and cluster ID from node
+     * @author pranab
+     *
+     */
+    public static class ClusterMapper extends Mapper<LongWritable, Text, NullWritable, Text> {
+    	private Text outVal = new Text();
+        private String fieldDelimRegex;
+        private String fieldDelim;
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#setup(org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        protected void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+        	fieldDelimRegex = conf.get("field.delim.regex", ",");
+        	fieldDelim = conf.get("field.delim", ",");
+        }
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#map(KEYIN, VALUEIN, org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        @Override
+        protected void map(LongWritable key, Text value, Context context)
+            throws IOException, InterruptedException {
+            String[] items  =  value.toString().split(fieldDelimRegex, 3);
+            outVal.set(items[0] + fieldDelim + items[1]);
+            context.write(NullWritable.get(), outVal);
+        }
+    }
+
+    /**
+     * Node as ID, label and neighbors
+     * @param id
+     * @param label
+     * @param neighbors
+     * @param fieldDelim
+     * @return
+     */
+    private static String createNode(String id, String label, Iterable<String> neighbors, String fieldDelim) {
+    	StringBuilder stBld = new StringBuilder();
+    	stBld.append(id).append(fieldDelim).append(label);
+    	for (String neighbor : neighbors) {
+    		stBld.append(fieldDelim).append(neighbor);
+    	}
+    	return stBld.toString();
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int exitCode = ToolRunner.run(new DuplicateClusterFinder(), args);
+        System.exit(exitCode);
+    }
+}
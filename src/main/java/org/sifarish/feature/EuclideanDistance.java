@@ -58,6 +58,13 @@ public class EuclideanDistance extends DistanceStrategy {
 	}
 	
 	
+	/* (non-Javadoc)
+	 * @see org.sifarish.feature.DistanceStrategy#getLowerBound(int)
+	 */
+	protected double getLowerBound(int maxCount) {
+		return (Math.sqrt(sumWt) * scale) / maxCount;
+	}
+	
 	/* (non-Javadoc)
 	 * @see org.sifarish.feature.DistanceStrategy#getSimilarity()
 	 */
@@ -0,0 +1,585 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Set;
+
+import org.chombo.util.Pair;
+import org.sifarish.util.Event;
+import org.sifarish.util.Field;
+import org.sifarish.util.Location;
+import org.sifarish.util.MatchingProfile;
+import org.sifarish.util.TimeWindow;
+
+/**
+ * Attribute distance for one field, resolved from the data type once when the schema is compiled.
+ * Comparators only hold field configuration. All mutable state is in the DistanceContext
+ * passed in, so that one compiled comparator array can be shared.
+ * @author pranab
+ *
+ */
+public abstract class FieldComparator {
+	protected Field field;
+	protected int ordinal;
+	protected int index;
+	
+	//relative cost of finding distance, for order of fields in bounded evaluation
+	public static final int COST_NUMERIC = 0;
+	public static final int COST_CATEGORICAL = 1;
+	public static final int COST_STRUCTURED = 2;
+	public static final int COST_TEXT = 3;
+
+	/**
+	 * @param field
+	 * @param index position in compiled array
+	 */
+	public FieldComparator(Field field, int index) {
+		this.field = field;
+		this.ordinal = field.getOrdinal();
+		this.index = index;
+	}
+
+	/**
+	 * Creates comparator based on data type
+	 * @param field
+	 * @param index
+	 * @param schema
+	 * @param subFieldDelim
+	 * @return
+	 */
+	public static FieldComparator create(Field field, int index, TypeSchema schema, String subFieldDelim) {
+		FieldComparator comparator = null;
+		String dataType = field.getDataType();
+		if (dataType.equals(Field.DATA_TYPE_CATEGORICAL)) {
+			comparator = new CategoricalComparator(field, index);
+		} else if (dataType.equals(Field.DATA_TYPE_INT)) {
+			comparator = new NumericComparator(field, index, true, schema.getNumericDiffThreshold());
+		} else if (dataType.equals(Field.DATA_TYPE_DOUBLE)) {
+			comparator = new NumericComparator(field, index, false, schema.getNumericDiffThreshold());
+		} else if (dataType.equals(Field.DATA_TYPE_TEXT)) {
+			comparator = new TextComparator(field, index);
+		} else if (dataType.equals(Field.DATA_TYPE_TIME_WINDOW)) {
+			comparator = new TimeWindowComparator(field, index);
+		} else if (dataType.equals(Field.DATA_TYPE_HOUR_WINDOW)) {
+			comparator = new HourWindowComparator(field, index);
+		} else if (dataType.equals(Field.DATA_TYPE_LOCATION)) {
+			comparator = new LocationComparator(field, index, subFieldDelim);
+		} else if (dataType.equals(Field.DATA_TYPE_GEO_LOCATION)) {
+			comparator = new GeoLocationComparator(field, index);
+		} else if (dataType.equals(Field.DATA_TYPE_EVENT)) {
+			comparator = new EventComparator(field, index, subFieldDelim, schema.getLocationComponentWeights());
+		} else {
+			//no distance defined, contributes zero distance
+			comparator = new NullComparator(field, index);
+		}
+		return comparator;
+	}
+
+	public Field getField() {
+		return field;
+	}
+
+	public int getOrdinal() {
+		return ordinal;
+	}
+
+	/**
+	 * Checks if the attribute distance satisfies triangle inequality, as required by pivot based pruning.
+	 * Any distance function other than linear, distance threshold or implosion and explosion breaks it
+	 * @param schema
+	 * @return
+	 */
+	public boolean isMetric(TypeSchema schema) {
+		return field.getContAttrDistanceFunction().equals("none") && field.getDistThreshold() <= 0 &&
+			field.getImplodeThreshold() < 0 && field.getExplodeThreshold() >= 1.0 && isMetricDistance(schema);
+	}
+
+	/**
+	 * @param schema
+	 * @return true if the data type specific distance is a metric
+	 */
+	protected boolean isMetricDistance(TypeSchema schema) {
+		return false;
+	}
+
+	/**
+	 * @param schema
+	 * @return true if distance is expensive compared to a cache look up and depends only on the values
+	 */
+	public boolean isCacheable(TypeSchema schema) {
+		return false;
+	}
+
+	/**
+	 * @return relative cost of finding distance
+	 */
+	public int getCost() {
+		return COST_STRUCTURED;
+	}
+
+	/**
+	 * Parses field value once for a record that will be in many pairs, so that finding distance does not
+	 * allocate. Distance is found the same way with or without it. Called from a single thread
+	 * @param record
+	 * @param context
+	 */
+	public void prepare(TypedRecord record, DistanceContext context) {
+	}
+
+	/**
+	 * Distance between non missing values of two records
+	 * @param first
+	 * @param second
+	 * @param context
+	 * @return
+	 * @throws IOException
+	 */
+	public abstract double findDistance(TypedRecord first, TypedRecord second, DistanceContext context)
+		throws IOException;
+
+	/**
+	 * Distance between matching profile and an item
+	 * @param profile
+	 * @param item
+	 * @param context
+	 * @return
+	 * @throws IOException
+	 */
+	public double findProfileDistance(MatchingProfile profile, TypedRecord item, DistanceContext context)
+		throws IOException {
+		throw new IllegalStateException("unsupported data type");
+	}
+
+	/**
+	 * @author pranab
+	 *
+	 */
+	public static class CategoricalComparator extends FieldComparator {
+		public CategoricalComparator(Field field, int index) {
+			super(field, index);
+		}
+
+		@Override
+		public int getCost() {
+			return COST_CATEGORICAL;
+		}
+
+		@Override
+		protected boolean isMetricDistance(TypeSchema schema) {
+			//plain equality, overridden distances are arbitrary
+			return null == field.getCategoricalDistances() && null == field.getConceptHierarchy();
+		}
+
+		@Override
+		public boolean isCacheable(TypeSchema schema) {
+			//plain equality is cheaper than cache look up
+			return null != field.getCategoricalDistances() || null != field.getConceptHierarchy();
+		}
+
+		@Override
+		public double findDistance(TypedRecord first, TypedRecord second, DistanceContext context) {
+			String firstValue = first.getItem(ordinal);
+			String secondValue = second.getItem(ordinal);
+			DistanceCache cache = context.getCache(index);
+			if (null == cache) {
+				return field.findDistance(firstValue, secondValue);
+			}
+			long key = cache.findKey(firstValue, secondValue);
+			double dist = cache.get(key);
+			if (Double.isNaN(dist)) {
+				dist = field.findDistance(firstValue, secondValue);
+				cache.put(key, dist);
+			}
+			return dist;
+		}
+
+		@Override
+		public double findProfileDistance(MatchingProfile profile, TypedRecord item, DistanceContext context) {
+			double dist = 0;
+			String fieldVal = item.getItem(ordinal);
+			Set<String> valueSet = profile.getCategoricalSet(ordinal);
+			if (!valueSet.contains(fieldVal)) {
+				//minimum distance to any in the set
+				double minDist = 2;
+				double thisDist = 0;
+				for (String thisValue : valueSet) {
+					thisDist = field.findDistance(thisValue, fieldVal);
+					if (thisDist < minDist) {
+						minDist = thisDist;
+					}
+				}
+				dist = minDist;
+			}
+			return dist;
+		}
+	}
+
+	/**
+	 * @author pranab
+	 *
+	 */
+	public static class NumericComparator extends FieldComparator {
+		private boolean isInt;
+		private double numericDiffThreshold;
+
+		public NumericComparator(Field field, int index, boolean isInt, double numericDiffThreshold) {
+			super(field, index);
+			this.isInt = isInt;
+			this.numericDiffThreshold = numericDiffThreshold;
+		}
+
+		@Override
+		public int getCost() {
+			return COST_NUMERIC;
+		}
+
+		@Override
+		protected boolean isMetricDistance(TypeSchema schema) {
+			//range normalized difference, relative difference with threshold is not
+			return field.getMax() > field.getMin();
+		}
+
+		@Override
+		public double findDistance(TypedRecord first, TypedRecord second, DistanceContext context) {
+			double dist = 0;
+			if (first.isNumericComparable(second, ordinal)) {
+				if (first.isValid(ordinal) && second.isValid(ordinal)) {
+					if (isInt) {
+						dist = field.findDistance((int)first.getValue(ordinal), (int)second.getValue(ordinal),
+							numericDiffThreshold);
+					} else {
+						dist = field.findDistance(first.getValue(ordinal), second.getValue(ordinal),
+							numericDiffThreshold);
+					}
+				} else {
+					context.invalidData(index);
+				}
+			}
+			return dist;
+		}
+
+		@Override
+		public double findProfileDistance(MatchingProfile profile, TypedRecord item, DistanceContext context) {
+			double dist = 0;
+			if (isInt) {
+				Pair<Integer, Integer> intRange = profile.getIntRange(ordinal);
+				int intVal = item.isValid(ordinal) ? (int)item.getValue(ordinal) : Integer.parseInt(item.getItem(ordinal));
+				if (intVal < intRange.getLeft()){
+					dist = field.findDistance(intVal, intRange.getLeft(), numericDiffThreshold);
+				} else if (intVal > intRange.getRight()) {
+					dist = field.findDistance(intVal, intRange.getRight(), numericDiffThreshold);
+				}
+			} else {
+				Pair<Double, Double> dblRange = profile.getDoubleRange(ordinal);
+				double dblVal = item.isValid(ordinal) ? item.getValue(ordinal) : Double.parseDouble(item.getItem(ordinal));
+				if (dblVal < dblRange.getLeft()){
+					dist = field.findDistance(dblVal, dblRange.getLeft(), numericDiffThreshold);
+				} else if (dblVal > dblRange.getRight()) {
+					dist = field.findDistance(dblVal, dblRange.getRight(), numericDiffThreshold);
+				}
+			}
+			return dist;
+		}
+	}
+
+	/**
+	 * @author pranab
+	 *
+	 */
+	public static class TextComparator extends FieldComparator {
+		public TextComparator(Field field, int index) {
+			super(field, index);
+		}
+
+		@Override
+		public int getCost() {
+			return COST_TEXT;
+		}
+
+		@Override
+		protected boolean isMetricDistance(TypeSchema schema) {
+			//jaccard distance, only when non matching terms are not weighted
+			String algorithm = schema.getTextMatchingAlgorithm();
+			return null != algorithm && algorithm.equals("jaccard") && schema.getSrcNonMatchingTermWeight() == 1.0 &&
+				schema.getTrgNonMatchingTermWeight() == 1.0;
+		}
+
+		@Override
+		public boolean isCacheable(TypeSchema schema) {
+			return true;
+		}
+
+		@Override
+		public void prepare(TypedRecord record, DistanceContext context) {
+			DynamicAttrSimilarityStrategy textSimStrategy = context.getTextSimStrategy();
+			if (textSimStrategy instanceof TokenSimilarityStrategy && !record.isMissing(ordinal)) {
+				record.setParsed(ordinal, record.getItem(ordinal).split(textSimStrategy.getFieldDelimRegex()));
+			}
+		}
+
+		@Override
+		public double findDistance(TypedRecord first, TypedRecord second, DistanceContext context)
+			throws IOException {
+			DistanceCache cache = context.getCache(index);
+			if (null == cache) {
+				return findTextDistance(first, second, context);
+			}
+			long key = cache.findKey(first.getItem(ordinal), second.getItem(ordinal));
+			double dist = cache.get(key);
+			if (Double.isNaN(dist)) {
+				dist = findTextDistance(first, second, context);
+				cache.put(key, dist);
+			}
+			return dist;
+		}
+
+		/**
+		 * @param first
+		 * @param second
+		 * @param context
+		 * @return distance from tokens if both records are prepared
+		 * @throws IOException
+		 */
+		private double findTextDistance(TypedRecord first, TypedRecord second, DistanceContext context)
+			throws IOException {
+			String[] firstTerms = (String[])first.getParsed(ordinal);
+			String[] secondTerms = (String[])second.getParsed(ordinal);
+			return null != firstTerms && null != secondTerms ? 
+				((TokenSimilarityStrategy)context.getTextSimStrategy()).findDistance(firstTerms, secondTerms) :
+				context.getTextSimStrategy().findDistance(first.getItem(ordinal), second.getItem(ordinal));
+		}
+
+		@Override
+		public double findProfileDistance(MatchingProfile profile, TypedRecord item, DistanceContext context)
+			throws IOException {
+			return context.getTextSimStrategy().findDistance(profile.getText(ordinal), item.getItem(ordinal));
+		}
+	}
+
+	/**
+	 * @author pranab
+	 *
+	 */
+	public static class TimeWindowComparator extends FieldComparator {
+		public TimeWindowComparator(Field field, int index) {
+			super(field, index);
+		}
+
+		@Override
+		public void prepare(TypedRecord record, DistanceContext context) {
+			if (record.isValid(ordinal)) {
+				record.setParsed(ordinal, record.getTimeWindow(ordinal));
+			}
+		}
+
+		@Override
+		public double findDistance(TypedRecord first, TypedRecord second, DistanceContext context) {
+			double dist = 0;
+			if (first.isValid(ordinal) && second.isValid(ordinal)) {
+				dist = field.findDistance(first.getTimeWindow(ordinal), second.getTimeWindow(ordinal));
+			} else {
+				context.invalidData(index);
+			}
+			return dist;
+		}
+	}
+
+	/**
+	 * @author pranab
+	 *
+	 */
+	public static class HourWindowComparator extends FieldComparator {
+		public HourWindowComparator(Field field, int index) {
+			super(field, index);
+		}
+
+		@Override
+		public void prepare(TypedRecord record, DistanceContext context) {
+			if (record.isValid(ordinal)) {
+				record.setParsed(ordinal, record.getHourWindow(ordinal));
+			}
+		}
+
+		@Override
+		public double findDistance(TypedRecord first, TypedRecord second, DistanceContext context) {
+			double dist = 0;
+			if (first.isValid(ordinal) && second.isValid(ordinal)) {
+				dist = field.findDistance(first.getHourWindow(ordinal), second.getHourWindow(ordinal));
+			} else {
+				context.invalidData(index);
+			}
+			return dist;
+		}
+	}
+
+	/**
+	 * @author pranab
+	 *
+	 */
+	public static class LocationComparator extends FieldComparator {
+		private String subFieldDelim;
+
+		public LocationComparator(Field field, int index, String subFieldDelim) {
+			super(field, index);
+			this.subFieldDelim = subFieldDelim;
+		}
+
+		@Override
+		public void prepare(TypedRecord record, DistanceContext context) {
+			if (!record.isMissing(ordinal)) {
+				record.setParsed(ordinal, createLocation(record.getItem(ordinal)));
+			}
+		}
+
+		@Override
+		public double findDistance(TypedRecord first, TypedRecord second, DistanceContext context) {
+			Location firstLocation = (Location)first.getParsed(ordinal);
+			if (null == firstLocation) {
+				firstLocation = createLocation(first.getItem(ordinal));
+			}
+			Location secondLocation = (Location)second.getParsed(ordinal);
+			if (null == secondLocation) {
+				secondLocation = createLocation(second.getItem(ordinal));
+			}
+			return field.findDistance(firstLocation, secondLocation);
+		}
+
+		/**
+		 * @param value
+		 * @return
+		 */
+		private Location createLocation(String value) {
+			String[] subFields = value.split(subFieldDelim);
+			return new Location( subFields[0], subFields[1], subFields[2]);
+		}
+	}
+
+	/**
+	 * @author pranab
+	 *
+	 */
+	public static class GeoLocationComparator extends FieldComparator {
+		public GeoLocationComparator(Field field, int index) {
+			super(field, index);
+		}
+
+		@Override
+		protected boolean isMetricDistance(TypeSchema schema) {
+			return true;
+		}
+
+		@Override
+		public double findDistance(TypedRecord first, TypedRecord second, DistanceContext context) {
+			double dist = 0;
+			if (first.isValid(ordinal) && second.isValid(ordinal)) {
+				dist = org.sifarish.util.Utility.getGeoDistance(first.getValue(ordinal), first.getSecondValue(ordinal),
+					second.getValue(ordinal), second.getSecondValue(ordinal));
+				dist /= field.getMaxDistance();
+				dist = dist <= 1.0 ? dist : 1.0;
+			} else {
+				context.invalidData(index);
+			}
+			return dist;
+		}
+	}
+
+	/**
+	 * @author pranab
+	 *
+	 */
+	public static class EventComparator extends FieldComparator {
+		private String subFieldDelim;
+		private double[] locationWeights;
+
+		public EventComparator(Field field, int index, String subFieldDelim, double[] locationWeights) {
+			super(field, index);
+			this.subFieldDelim = subFieldDelim;
+			this.locationWeights = locationWeights;
+		}
+
+		@Override
+		public void prepare(TypedRecord record, DistanceContext context) {
+			if (!record.isMissing(ordinal)) {
+				try {
+					record.setParsed(ordinal, createEvent(record.getItem(ordinal)));
+				} catch (ParseException e) {
+					//left for finding distance to count as invalid
+				}
+			}
+		}
+
+		@Override
+		public double findDistance(TypedRecord first, TypedRecord second, DistanceContext context) {
+			double dist = 0;
+			try {
+				Event firstEvent = (Event)first.getParsed(ordinal);
+				if (null == firstEvent) {
+					firstEvent = createEvent(first.getItem(ordinal));
+				}
+				Event secondEvent = (Event)second.getParsed(ordinal);
+				if (null == secondEvent) {
+					secondEvent = createEvent(second.getItem(ordinal));
+				}
+				dist = field.findDistance(firstEvent, secondEvent);
+			} catch (ParseException e) {
+				context.invalidData(index);
+			}
+			return dist;
+		}
+
+		/**
+		 * @param value
+		 * @return
+		 * @throws ParseException
+		 */
+		private Event createEvent(String value) throws ParseException {
+			String[] subFields = value.split(subFieldDelim);
+			String description = subFields[0];
+			Location location  = new Location( subFields[1], subFields[2], subFields[3]);
+			TimeWindow timeWindow = new TimeWindow(subFields[4], subFields[5]);
+			return new Event(description, location, timeWindow, locationWeights);
+		}
+	}
+
+	/**
+	 * @author pranab
+	 *
+	 */
+	public static class NullComparator extends FieldComparator {
+		public NullComparator(Field field, int index) {
+			super(field, index);
+		}
+
+		@Override
+		public int getCost() {
+			return COST_NUMERIC;
+		}
+
+		@Override
+		protected boolean isMetricDistance(TypeSchema schema) {
+			return true;
+		}
+
+		@Override
+		public double findDistance(TypedRecord first, TypedRecord second, DistanceContext context) {
+			return 0;
+		}
+	}
+}
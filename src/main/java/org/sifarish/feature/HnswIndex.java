@@ -0,0 +1,967 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+
+/**
+ * Approximate nearest neighbor index over records, as a hierarchical navigable small world graph. Every
+ * record is a node in layer 0 and in each higher layer with exponentially decreasing probability. A query
+ * descends greedily through the upper layers and does a best first search in layer 0. Distance is the
+ * record distance through the compiled schema. Records are inserted incrementally from a single thread.
+ * Any number of threads can query, each through its own searcher, while no insert is in progress. Index
+ * can be saved to a file and either loaded back to heap, after which more records can be inserted, or
+ * memory mapped read only for serving, with links and records read from the mapped file
+ * @author pranab
+ *
+ */
+public class HnswIndex {
+	private RecordComparator recordComparator;
+	private int scale;
+	private int maxNeighbors;
+	private int efConstruction;
+	private double levelMultiplier;
+	private Random random;
+	private List<TypedRecord> records = new ArrayList<TypedRecord>();
+	private List<int[][]> links = new ArrayList<int[][]>();
+	private Map<String, Integer> nodes = new HashMap<String, Integer>();
+	private int entryPoint = -1;
+	private int maxLevel = -1;
+	private Searcher inserter;
+	private MappedGraph graph;
+	private int recordCacheSize;
+
+	private static final int MAGIC = 0x484e5357;
+	private static final int VERSION = 3;
+
+	/**
+	 * @param recordComparator compiled schema, with distance threshold at scale
+	 * @param scale
+	 * @param maxNeighbors max links per node in upper layers, twice as many in layer 0
+	 * @param efConstruction size of candidate list while inserting
+	 * @param seed for random level of nodes
+	 */
+	public HnswIndex(RecordComparator recordComparator, int scale, int maxNeighbors, int efConstruction, long seed) {
+		if (maxNeighbors < 2) {
+			throw new IllegalArgumentException("max neighbors should be at least 2");
+		}
+		this.recordComparator = recordComparator;
+		this.scale = scale;
+		this.maxNeighbors = maxNeighbors;
+		this.efConstruction = Math.max(efConstruction, maxNeighbors);
+		levelMultiplier = 1.0 / Math.log(maxNeighbors);
+		random = new Random(seed);
+		inserter = new Searcher();
+	}
+
+	/**
+	 * @return number of records
+	 */
+	public int size() {
+		return null != graph ? graph.numNodes : records.size();
+	}
+
+	/**
+	 * @param id
+	 * @return true if record with ID is indexed
+	 */
+	public boolean contains(String id) throws IOException {
+		return null != graph ? graph.findNode(id) >= 0 : nodes.containsKey(id);
+	}
+
+	/**
+	 * @param id
+	 * @return record with ID or null. For a mapped index, a copy read from the file
+	 * @throws IOException
+	 */
+	public TypedRecord getRecord(String id) throws IOException {
+		if (null != graph) {
+			int node = graph.findNode(id);
+			return node < 0 ? null : graph.readRecord(node, new TypedRecord());
+		}
+		Integer node = nodes.get(id);
+		return null == node ? null : records.get(node);
+	}
+
+	/**
+	 * @return true if index is memory mapped and read only
+	 */
+	public boolean isMapped() {
+		return null != graph;
+	}
+
+	/**
+	 * @return searcher for the calling thread
+	 */
+	public Searcher createSearcher() {
+		return new Searcher();
+	}
+
+	/**
+	 * Adds a record, linking it with its nearest neighbors in each of its layers
+	 * @param record not modified afterwards by caller
+	 * @throws IOException
+	 */
+	public void insert(TypedRecord record) throws IOException {
+		if (null != graph) {
+			throw new IllegalStateException("mapped index is read only, it should be loaded for insert");
+		}
+		String id = record.getId();
+		if (nodes.containsKey(id)) {
+			throw new IllegalArgumentException("record already indexed " + id);
+		}
+		recordComparator.prepare(record, inserter.distContext);
+		int node = records.size();
+		int level = (int)(-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+		int[][] nodeLinks = new int[level + 1][];
+		for (int l = 0; l <= level; ++l) {
+			nodeLinks[l] = new int[getCapacity(l) + 1];
+		}
+		records.add(record);
+		links.add(nodeLinks);
+		nodes.put(id, node);
+		inserter.ensureCapacity(records.size());
+
+		if (entryPoint < 0) {
+			entryPoint = node;
+			maxLevel = level;
+			return;
+		}
+
+		//greedy descent to the top layer of the new node, then candidates and links in each of its layers
+		int current = entryPoint;
+		inserter.currentDist = inserter.distance(record, current);
+		for (int l = maxLevel; l > level; --l) {
+			current = inserter.descend(record, current, l);
+		}
+		double currentDist = inserter.currentDist;
+		for (int l = Math.min(level, maxLevel); l >= 0; --l) {
+			inserter.searchLayer(record, current, currentDist, efConstruction, l);
+			int numCandidates = inserter.drainResults();
+			current = inserter.sortedIds[0];
+			currentDist = inserter.sortedDists[0];
+			int numSelected = inserter.selectNeighbors(numCandidates, maxNeighbors);
+			int[] selected = nodeLinks[l];
+			selected[0] = numSelected;
+			System.arraycopy(inserter.sortedIds, 0, selected, 1, numSelected);
+			
+			//sorted arrays are reused while linking
+			double[] selectedDists = Arrays.copyOf(inserter.sortedDists, numSelected);
+			for (int i = 0; i < numSelected; ++i) {
+				link(selected[i + 1], node, selectedDists[i], l);
+			}
+		}
+
+		if (level > maxLevel) {
+			maxLevel = level;
+			entryPoint = node;
+		}
+	}
+
+	/**
+	 * Adds reverse link to a neighbor, pruning links of the neighbor if full
+	 * @param neighbor
+	 * @param node
+	 * @param dist
+	 * @param level
+	 * @throws IOException
+	 */
+	private void link(int neighbor, int node, double dist, int level) throws IOException {
+		int[] neighborLinks = links.get(neighbor)[level];
+		int count = neighborLinks[0];
+		if (count < neighborLinks.length - 1) {
+			neighborLinks[count + 1] = node;
+			neighborLinks[0] = count + 1;
+		} else {
+			//select among existing links and the new one
+			TypedRecord neighborRecord = records.get(neighbor);
+			inserter.clearSorted();
+			inserter.addSorted(node, dist);
+			for (int i = 1; i <= count; ++i) {
+				inserter.addSorted(neighborLinks[i], inserter.distance(neighborRecord, neighborLinks[i]));
+			}
+			inserter.sortCandidates();
+			int numSelected = inserter.selectNeighbors(count + 1, count);
+			neighborLinks[0] = numSelected;
+			System.arraycopy(inserter.sortedIds, 0, neighborLinks, 1, numSelected);
+		}
+	}
+
+	/**
+	 * @param level
+	 * @return max links per node in layer
+	 */
+	private int getCapacity(int level) {
+		return 0 == level ? 2 * maxNeighbors : maxNeighbors;
+	}
+
+	/**
+	 * Writes graph, records and record IDs, each section with an offset table, so that a mapped index can
+	 * find links of a node, a record and a node by ID without reading the whole file
+	 * @param path
+	 * @throws IOException
+	 */
+	public void save(String path) throws IOException {
+		if (null != graph) {
+			throw new IllegalStateException("mapped index can not be saved");
+		}
+		int numNodes = records.size();
+		int[] linkOffsets = new int[numNodes];
+		int linkInts = 0;
+		for (int n = 0; n < numNodes; ++n) {
+			linkOffsets[n] = linkInts;
+			++linkInts;
+			for (int[] levelLinks : links.get(n)) {
+				linkInts += 1 + levelLinks[0];
+			}
+		}
+		DataOutputBuffer recordBuffer = new DataOutputBuffer();
+		int[] recordOffsets = new int[numNodes + 1];
+		for (int n = 0; n < numNodes; ++n) {
+			records.get(n).write(recordBuffer);
+			recordOffsets[n + 1] = recordBuffer.getLength();
+		}
+
+		//nodes in order of ID, for binary search
+		Integer[] idOrder = new Integer[numNodes];
+		for (int n = 0; n < numNodes; ++n) {
+			idOrder[n] = n;
+		}
+		Arrays.sort(idOrder, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer thisNode, Integer thatNode) {
+				return records.get(thisNode).getId().compareTo(records.get(thatNode).getId());
+			}
+		});
+		byte[][] ids = new byte[numNodes][];
+		int[] idOffsets = new int[numNodes + 1];
+		for (int i = 0; i < numNodes; ++i) {
+			ids[i] = records.get(idOrder[i]).getId().getBytes("UTF-8");
+			idOffsets[i + 1] = idOffsets[i] + ids[i].length;
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(maxNeighbors);
+			out.writeInt(efConstruction);
+			out.writeInt(entryPoint);
+			out.writeInt(maxLevel);
+			out.writeInt(numNodes);
+			out.writeInt(linkInts);
+			out.writeInt(recordBuffer.getLength());
+			out.writeInt(idOffsets[numNodes]);
+			for (int offset : linkOffsets) {
+				out.writeInt(offset);
+			}
+			for (int[][] nodeLinks : links) {
+				out.writeInt(nodeLinks.length - 1);
+				for (int[] levelLinks : nodeLinks) {
+					int count = levelLinks[0];
+					for (int i = 0; i <= count; ++i) {
+						out.writeInt(levelLinks[i]);
+					}
+				}
+			}
+			for (int offset : recordOffsets) {
+				out.writeInt(offset);
+			}
+			out.write(recordBuffer.getData(), 0, recordBuffer.getLength());
+			for (int node : idOrder) {
+				out.writeInt(node);
+			}
+			for (int offset : idOffsets) {
+				out.writeInt(offset);
+			}
+			for (byte[] id : ids) {
+				out.write(id);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Maps index saved earlier, read only. Links are read from the mapped file as nodes are visited and 
+	 * records are deserialized as needed into a cache per searcher, so that heap used does not grow with
+	 * index size and the file is shared through the page cache by all processes serving it
+	 * @param path
+	 * @param recordComparator compiled from the same schema as when the index was built
+	 * @param scale
+	 * @param recordCacheSize records held deserialized by each searcher
+	 * @return
+	 * @throws IOException
+	 */
+	public static HnswIndex map(String path, RecordComparator recordComparator, int scale, int recordCacheSize)
+		throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		HnswIndex index = null;
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("index file too large for memory map");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IllegalArgumentException("not a valid index file " + path);
+			}
+			index = new HnswIndex(recordComparator, scale, buffer.getInt(), buffer.getInt(), 1);
+			index.entryPoint = buffer.getInt();
+			index.maxLevel = buffer.getInt();
+			index.recordCacheSize = Math.max(recordCacheSize, 1);
+			MappedGraph graph = new MappedGraph();
+			graph.numNodes = buffer.getInt();
+			int linkInts = buffer.getInt();
+			int recordBytes = buffer.getInt();
+			int idBytes = buffer.getInt();
+			graph.linkOffsets = slice(buffer, 4 * graph.numNodes).asIntBuffer();
+			graph.links = slice(buffer, 4 * linkInts).asIntBuffer();
+			graph.recordOffsets = slice(buffer, 4 * (graph.numNodes + 1)).asIntBuffer();
+			graph.records = slice(buffer, recordBytes);
+			graph.idOrder = slice(buffer, 4 * graph.numNodes).asIntBuffer();
+			graph.idOffsets = slice(buffer, 4 * (graph.numNodes + 1)).asIntBuffer();
+			graph.ids = slice(buffer, idBytes);
+			index.graph = graph;
+		} finally {
+			file.close();
+		}
+		return index;
+	}
+
+	/**
+	 * @param buffer
+	 * @param size
+	 * @return section of given size at current position, which is moved past the section
+	 */
+	private static ByteBuffer slice(ByteBuffer buffer, int size) {
+		ByteBuffer section = buffer.slice();
+		section.limit(size);
+		buffer.position(buffer.position() + size);
+		return section;
+	}
+
+	/**
+	 * Loads index saved earlier to heap. Links and records are copied from the mapped file, with link 
+	 * arrays at full capacity, so that more records can be inserted afterwards. Heap needed is same as 
+	 * for the index before it was saved
+	 * @param path
+	 * @param recordComparator compiled from the same schema as when the index was built
+	 * @param scale
+	 * @param seed
+	 * @return
+	 * @throws IOException
+	 */
+	public static HnswIndex load(String path, RecordComparator recordComparator, int scale, long seed)
+		throws IOException {
+		HnswIndex mapped = map(path, recordComparator, scale, 1);
+		MappedGraph graph = mapped.graph;
+		HnswIndex index = new HnswIndex(recordComparator, scale, mapped.maxNeighbors, mapped.efConstruction, seed);
+		index.entryPoint = mapped.entryPoint;
+		index.maxLevel = mapped.maxLevel;
+		for (int n = 0; n < graph.numNodes; ++n) {
+			int level = graph.getLevel(n);
+			int[][] nodeLinks = new int[level + 1][];
+			for (int l = 0; l <= level; ++l) {
+				nodeLinks[l] = graph.readLinks(n, l, new int[index.getCapacity(l) + 1]);
+			}
+			index.links.add(nodeLinks);
+			TypedRecord record = graph.readRecord(n, new TypedRecord());
+			recordComparator.prepare(record, index.inserter.distContext);
+			index.records.add(record);
+			index.nodes.put(record.getId(), n);
+		}
+		index.inserter.ensureCapacity(graph.numNodes);
+		return index;
+	}
+
+	/**
+	 * Search state of a thread. Holds distance context, visited marks and candidate heaps, which are
+	 * reused across queries
+	 * @author pranab
+	 *
+	 */
+	public class Searcher {
+		private DistanceContext distContext;
+		private int[] visited = new int[0];
+		private int visitMark;
+		private NodeHeap candidates = new NodeHeap(false);
+		private NodeHeap results = new NodeHeap(true);
+		private int[] sortedIds = new int[0];
+		private double[] sortedDists = new double[0];
+		private int numSorted;
+		private double currentDist;
+		private int[] linkHolder;
+		private int[] cachedNodes;
+		private TypedRecord[] cachedRecords;
+		private TypedRecord queryHolder;
+
+		private Searcher() {
+			distContext = recordComparator.createContext(scale);
+		}
+
+		/**
+		 * K nearest neighbors of a record, which need not be in the index
+		 * @param query
+		 * @param k
+		 * @param ef size of candidate list, at least k, larger for better recall
+		 * @return neighbors in order of distance
+		 * @throws IOException
+		 */
+		public List<Neighbor> search(TypedRecord query, int k, int ef) throws IOException {
+			recordComparator.prepare(query, distContext);
+			return search(query, k, ef, null);
+		}
+
+		/**
+		 * K nearest neighbors of an indexed record, excluding the record itself i.e. items like this one
+		 * @param id
+		 * @param k
+		 * @param ef
+		 * @return neighbors in order of distance, null if record is not in the index
+		 * @throws IOException
+		 */
+		public List<Neighbor> findSimilar(String id, int k, int ef) throws IOException {
+			if (null != graph) {
+				//query read apart from the cache, so that it's not evicted while searching
+				int node = graph.findNode(id);
+				if (node < 0) {
+					return null;
+				}
+				if (null == queryHolder) {
+					queryHolder = new TypedRecord();
+				}
+				graph.readRecord(node, queryHolder);
+				recordComparator.prepare(queryHolder, distContext);
+				return search(queryHolder, k, ef + 1, id);
+			}
+			Integer node = nodes.get(id);
+			return null == node ? null : search(records.get(node), k, ef + 1, id);
+		}
+
+		/**
+		 * @param query
+		 * @param k
+		 * @param ef
+		 * @param excludedId
+		 * @return
+		 * @throws IOException
+		 */
+		private List<Neighbor> search(TypedRecord query, int k, int ef, String excludedId) throws IOException {
+			List<Neighbor> neighbors = new ArrayList<Neighbor>();
+			if (entryPoint < 0) {
+				return neighbors;
+			}
+			ensureCapacity(size());
+			int current = entryPoint;
+			currentDist = distance(query, current);
+			for (int l = maxLevel; l > 0; --l) {
+				current = descend(query, current, l);
+			}
+			searchLayer(query, current, currentDist, Math.max(ef, k), 0);
+			int numResults = drainResults();
+			for (int i = 0; i < numResults && neighbors.size() < k; ++i) {
+				TypedRecord record = getNodeRecord(sortedIds[i]);
+				if (null == excludedId || !excludedId.equals(record.getId())) {
+					neighbors.add(new Neighbor(record.getId(), (int)sortedDists[i]));
+				}
+			}
+			return neighbors;
+		}
+
+		/**
+		 * @param size
+		 */
+		private void ensureCapacity(int size) {
+			if (visited.length < size) {
+				visited = Arrays.copyOf(visited, Math.max(size, 2 * visited.length));
+			}
+		}
+
+		/**
+		 * @param query
+		 * @param node
+		 * @return
+		 * @throws IOException
+		 */
+		private double distance(TypedRecord query, int node) throws IOException {
+			return recordComparator.findDistance(query, getNodeRecord(node), distContext);
+		}
+
+		/**
+		 * @param node
+		 * @return record of node, from the cache of this searcher for a mapped index
+		 * @throws IOException
+		 */
+		private TypedRecord getNodeRecord(int node) throws IOException {
+			if (null == graph) {
+				return records.get(node);
+			}
+			if (null == cachedNodes) {
+				cachedNodes = new int[recordCacheSize];
+				Arrays.fill(cachedNodes, -1);
+				cachedRecords = new TypedRecord[recordCacheSize];
+			}
+			int slot = node % recordCacheSize;
+			if (cachedNodes[slot] != node) {
+				if (null == cachedRecords[slot]) {
+					cachedRecords[slot] = new TypedRecord();
+				}
+				graph.readRecord(node, cachedRecords[slot]);
+				recordComparator.prepare(cachedRecords[slot], distContext);
+				cachedNodes[slot] = node;
+			}
+			return cachedRecords[slot];
+		}
+
+		/**
+		 * @param node
+		 * @param level
+		 * @return links of node in layer, with count first. For a mapped index, valid until the next call
+		 */
+		private int[] getLinks(int node, int level) {
+			if (null == graph) {
+				return links.get(node)[level];
+			}
+			if (null == linkHolder) {
+				linkHolder = new int[getCapacity(0) + 1];
+			}
+			return graph.readLinks(node, level, linkHolder);
+		}
+
+		/**
+		 * Greedy search for closest node in an upper layer
+		 * @param query
+		 * @param current
+		 * @param level
+		 * @return closest node found, with its distance in current distance
+		 * @throws IOException
+		 */
+		private int descend(TypedRecord query, int current, int level) throws IOException {
+			boolean changed = true;
+			while (changed) {
+				changed = false;
+				int[] levelLinks = getLinks(current, level);
+				for (int i = 1; i <= levelLinks[0]; ++i) {
+					double dist = distance(query, levelLinks[i]);
+					if (dist < currentDist) {
+						currentDist = dist;
+						current = levelLinks[i];
+						changed = true;
+					}
+				}
+			}
+			return current;
+		}
+
+		/**
+		 * Best first search in a layer, leaves up to ef closest nodes in results
+		 * @param query
+		 * @param entry
+		 * @param entryDist
+		 * @param ef
+		 * @param level
+		 * @throws IOException
+		 */
+		private void searchLayer(TypedRecord query, int entry, double entryDist, int ef, int level)
+			throws IOException {
+			if (++visitMark == Integer.MAX_VALUE) {
+				Arrays.fill(visited, 0);
+				visitMark = 1;
+			}
+			candidates.clear();
+			results.clear();
+			visited[entry] = visitMark;
+			candidates.push(entry, entryDist);
+			results.push(entry, entryDist);
+			while (candidates.size() > 0) {
+				if (results.size() >= ef && candidates.topDistance() > results.topDistance()) {
+					break;
+				}
+				int[] levelLinks = getLinks(candidates.pop(), level);
+				for (int i = 1; i <= levelLinks[0]; ++i) {
+					int neighbor = levelLinks[i];
+					if (visited[neighbor] == visitMark) {
+						continue;
+					}
+					visited[neighbor] = visitMark;
+					double dist = distance(query, neighbor);
+					if (results.size() < ef || dist < results.topDistance()) {
+						candidates.push(neighbor, dist);
+						results.push(neighbor, dist);
+						if (results.size() > ef) {
+							results.pop();
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Moves results into sorted arrays in order of distance
+		 * @return number of results
+		 */
+		private int drainResults() {
+			clearSorted();
+			int size = results.size();
+			growSorted(size);
+			for (int i = size - 1; i >= 0; --i) {
+				sortedDists[i] = results.topDistance();
+				sortedIds[i] = results.pop();
+			}
+			numSorted = size;
+			return size;
+		}
+
+		private void clearSorted() {
+			numSorted = 0;
+		}
+
+		/**
+		 * @param node
+		 * @param dist
+		 */
+		private void addSorted(int node, double dist) {
+			growSorted(numSorted + 1);
+			sortedIds[numSorted] = node;
+			sortedDists[numSorted++] = dist;
+		}
+
+		/**
+		 * Insertion sort, for the few links of a node
+		 */
+		private void sortCandidates() {
+			for (int i = 1; i < numSorted; ++i) {
+				int node = sortedIds[i];
+				double dist = sortedDists[i];
+				int j = i - 1;
+				for (; j >= 0 && sortedDists[j] > dist; --j) {
+					sortedIds[j + 1] = sortedIds[j];
+					sortedDists[j + 1] = sortedDists[j];
+				}
+				sortedIds[j + 1] = node;
+				sortedDists[j + 1] = dist;
+			}
+		}
+
+		/**
+		 * @param size
+		 */
+		private void growSorted(int size) {
+			if (sortedIds.length < size) {
+				int newSize = Math.max(size, 2 * sortedIds.length);
+				sortedIds = Arrays.copyOf(sortedIds, newSize);
+				sortedDists = Arrays.copyOf(sortedDists, newSize);
+			}
+		}
+
+		/**
+		 * Neighbor selection heuristic. A candidate is kept only if it's closer to the base than to any
+		 * candidate already kept, so that links spread out in different directions. Skipped candidates fill
+		 * up any remaining slots. Selected are moved to the front of sorted arrays
+		 * @param numCandidates candidates in sorted arrays in order of distance
+		 * @param maxSelected
+		 * @return number selected
+		 * @throws IOException
+		 */
+		private int selectNeighbors(int numCandidates, int maxSelected) throws IOException {
+			int numSelected = 0;
+			int numSkipped = 0;
+			int[] skippedIds = new int[numCandidates];
+			double[] skippedDists = new double[numCandidates];
+			for (int i = 0; i < numCandidates && numSelected < maxSelected; ++i) {
+				int candidate = sortedIds[i];
+				double candidateDist = sortedDists[i];
+				TypedRecord candidateRecord = records.get(candidate);
+				boolean diverse = true;
+				for (int j = 0; diverse && j < numSelected; ++j) {
+					diverse = candidateDist <= distance(candidateRecord, sortedIds[j]);
+				}
+				if (diverse) {
+					sortedIds[numSelected] = candidate;
+					sortedDists[numSelected++] = candidateDist;
+				} else {
+					skippedIds[numSkipped] = candidate;
+					skippedDists[numSkipped++] = candidateDist;
+				}
+			}
+
+			//closest of the skipped ones for any remaining slots
+			for (int i = 0; i < numSkipped && numSelected < maxSelected; ++i) {
+				sortedIds[numSelected] = skippedIds[i];
+				sortedDists[numSelected++] = skippedDists[i];
+			}
+			return numSelected;
+		}
+	}
+
+	/**
+	 * Neighbor found by a query
+	 * @author pranab
+	 *
+	 */
+	public static class Neighbor {
+		private String id;
+		private int distance;
+
+		public Neighbor(String id, int distance) {
+			this.id = id;
+			this.distance = distance;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public int getDistance() {
+			return distance;
+		}
+	}
+
+	/**
+	 * Binary heap of nodes by distance, on primitive arrays
+	 * @author pranab
+	 *
+	 */
+	private static class NodeHeap {
+		private int[] ids = new int[64];
+		private double[] dists = new double[64];
+		private int size;
+		private boolean maxHeap;
+
+		/**
+		 * @param maxHeap farthest at top if true, otherwise closest
+		 */
+		public NodeHeap(boolean maxHeap) {
+			this.maxHeap = maxHeap;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public void clear() {
+			size = 0;
+		}
+
+		public double topDistance() {
+			return dists[0];
+		}
+
+		/**
+		 * @param id
+		 * @param dist
+		 */
+		public void push(int id, double dist) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, 2 * size);
+				dists = Arrays.copyOf(dists, 2 * size);
+			}
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (!isAbove(dist, dists[parent])) {
+					break;
+				}
+				ids[i] = ids[parent];
+				dists[i] = dists[parent];
+				i = parent;
+			}
+			ids[i] = id;
+			dists[i] = dist;
+		}
+
+		/**
+		 * @return id at top
+		 */
+		public int pop() {
+			int top = ids[0];
+			int id = ids[--size];
+			double dist = dists[size];
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && isAbove(dists[child + 1], dists[child])) {
+					++child;
+				}
+				if (!isAbove(dists[child], dist)) {
+					break;
+				}
+				ids[i] = ids[child];
+				dists[i] = dists[child];
+				i = child;
+			}
+			ids[i] = id;
+			dists[i] = dist;
+			return top;
+		}
+
+		/**
+		 * @param dist
+		 * @param other
+		 * @return true if dist should be above other
+		 */
+		private boolean isAbove(double dist, double other) {
+			return maxHeap ? dist > other : dist < other;
+		}
+	}
+
+	/**
+	 * Sections of a mapped index file. Only absolute reads are done on shared buffers, so that any number
+	 * of searchers can read concurrently
+	 * @author pranab
+	 *
+	 */
+	private static class MappedGraph {
+		private int numNodes;
+		private IntBuffer linkOffsets;
+		private IntBuffer links;
+		private IntBuffer recordOffsets;
+		private ByteBuffer records;
+		private IntBuffer idOrder;
+		private IntBuffer idOffsets;
+		private ByteBuffer ids;
+
+		/**
+		 * @param node
+		 * @return top layer of node
+		 */
+		public int getLevel(int node) {
+			return links.get(linkOffsets.get(node));
+		}
+
+		/**
+		 * @param node
+		 * @param level
+		 * @param holder large enough for links of the layer and the count
+		 * @return holder with count followed by links
+		 */
+		public int[] readLinks(int node, int level, int[] holder) {
+			int pos = linkOffsets.get(node) + 1;
+			for (int l = 0; l < level; ++l) {
+				pos += 1 + links.get(pos);
+			}
+			int count = links.get(pos);
+			holder[0] = count;
+			for (int i = 1; i <= count; ++i) {
+				holder[i] = links.get(pos + i);
+			}
+			return holder;
+		}
+
+		/**
+		 * @param node
+		 * @param record reused
+		 * @return
+		 * @throws IOException
+		 */
+		public TypedRecord readRecord(int node, TypedRecord record) throws IOException {
+			ByteBuffer buffer = records.duplicate();
+			buffer.limit(recordOffsets.get(node + 1));
+			buffer.position(recordOffsets.get(node));
+			record.readFields(new DataInputStream(new ByteBufferInputStream(buffer)));
+			return record;
+		}
+
+		/**
+		 * @param id
+		 * @return node or -1 if not found
+		 * @throws IOException
+		 */
+		public int findNode(String id) throws IOException {
+			int low = 0;
+			int high = numNodes - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int cmp = readId(mid).compareTo(id);
+				if (cmp < 0) {
+					low = mid + 1;
+				} else if (cmp > 0) {
+					high = mid - 1;
+				} else {
+					return idOrder.get(mid);
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @param position in order of ID
+		 * @return
+		 * @throws IOException
+		 */
+		private String readId(int position) throws IOException {
+			int start = idOffsets.get(position);
+			byte[] bytes = new byte[idOffsets.get(position + 1) - start];
+			for (int i = 0; i < bytes.length; ++i) {
+				bytes[i] = ids.get(start + i);
+			}
+			return new String(bytes, "UTF-8");
+		}
+	}
+
+	/**
+	 * Stream over memory mapped buffer, for deserializing records
+	 * @author pranab
+	 *
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private ByteBuffer buffer;
+
+		public ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int off, int len) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, buffer.remaining());
+			buffer.get(bytes, off, len);
+			return len;
+		}
+	}
+}
@@ -22,7 +22,7 @@ package org.sifarish.feature;
  * @author pranab
  *
  */
-public class JaccardSimilarity extends DynamicAttrSimilarityStrategy {
+public class JaccardSimilarity extends TokenSimilarityStrategy {
 	private double srcNonMatchingTermWeight;
 	private double trgNonMatchingTermWeight;
 
@@ -39,15 +39,11 @@ public class JaccardSimilarity extends DynamicAttrSimilarityStrategy {
 
 
 	/* (non-Javadoc)
-	 * @see org.sifarish.feature.DynamicAttrSimilarityStrategy#findDistance(java.lang.String, java.lang.String)
+	 * @see org.sifarish.feature.TokenSimilarityStrategy#findDistance(java.lang.String[], java.lang.String[])
 	 */
 	@Override
-	public double findDistance(String src, String target) {
+	public double findDistance(String[] srcTerms, String[] trgTerms) {
 		double distance = 1.0;
-		
-		String[] srcTerms = src.split(fieldDelimRegex);
-		String[] trgTerms = target.split(fieldDelimRegex);
-		
 		int matchCount = 0;
 		for (String srcTerm : srcTerms) {
 			for (String trgTerm : trgTerms) {
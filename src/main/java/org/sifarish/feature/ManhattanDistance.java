@@ -50,6 +50,11 @@ public class ManhattanDistance extends DistanceStrategy {
 		++count;
 	}
 	
+	@Override
+	protected double getLowerBound(int maxCount) {
+		return (sumWt * scale) / maxCount;
+	}
+	
 	@Override
 	public int getSimilarity() {
 		int sim = 0;
@@ -73,6 +78,6 @@ public class ManhattanDistance extends DistanceStrategy {
 		} else {
 			sim = ((sumWt) / count);
 		}
-		return 0;
+		return sim;
 	}
 }
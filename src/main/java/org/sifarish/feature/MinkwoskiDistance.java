@@ -58,6 +58,14 @@ public class MinkwoskiDistance extends DistanceStrategy {
 
 	
 	
+	/* (non-Javadoc)
+	 * @see org.sifarish.feature.DistanceStrategy#getLowerBound(int)
+	 */
+	@Override
+	protected double getLowerBound(int maxCount) {
+		return (Math.pow(sumWt, 1.0/power)  * scale) / maxCount;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.sifarish.feature.DistanceStrategy#getSimilarity()
 	 */
@@ -84,7 +92,7 @@ public class MinkwoskiDistance extends DistanceStrategy {
 		} else {
 			dist = ((Math.pow(sumWt, 1.0/power) ) / count);
 		}
-		return 0;
+		return dist;
 	}
 
 }
@@ -0,0 +1,254 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.util.List;
+
+import org.sifarish.util.Field;
+
+/**
+ * Euclidean distance for schemas with only range normalized int and double fields. Records of a group
+ * are laid out as one double array per field. Distances from one record to the records of a block are
+ * computed a tile at a time, one field at a time over the tile, so that the inner loop runs over primitive
+ * arrays without any per field virtual call or status check. Results are same as the compiled comparators.
+ * Pairs with missing or invalid values, or with distance implosion or explosion, are not handled and
+ * should be evaluated with the compiled comparators
+ * @author pranab
+ *
+ */
+public class NumericColumnKernel {
+	private int numFields;
+	private int[] ordinals;
+	private double[] ranges;
+	private boolean[] linear;
+	private double[] linearCoeffs;
+	private double[] quadCoeffs;
+	private double[] implodeThresholds;
+	private double[] explodeThresholds;
+	private int scale;
+	private int tileSize;
+
+	public static final int NOT_EVALUATED = -1;
+
+	/**
+	 * @param recordComparator
+	 * @param scale
+	 * @param tileSize
+	 */
+	public NumericColumnKernel(RecordComparator recordComparator, int scale, int tileSize) {
+		if (!isApplicable(recordComparator)) {
+			throw new IllegalArgumentException("columnar distance requires euclidean distance with only numeric fields");
+		}
+		FieldComparator[] comparators = recordComparator.getComparators();
+		numFields = comparators.length;
+		ordinals = new int[numFields];
+		ranges = new double[numFields];
+		linear = new boolean[numFields];
+		linearCoeffs = new double[numFields];
+		quadCoeffs = new double[numFields];
+		implodeThresholds = new double[numFields];
+		explodeThresholds = new double[numFields];
+		for (int f = 0; f < numFields; ++f) {
+			Field field = comparators[f].getField();
+			ordinals[f] = field.getOrdinal();
+			ranges[f] = field.getMax() - field.getMin();
+			linear[f] = field.getContAttrDistanceFunction().equals("none");
+
+			//same coefficients as the non linear distance function
+			linearCoeffs[f] = 1 / field.getWeight();
+			quadCoeffs[f] = 1 - 1 / field.getWeight();
+			implodeThresholds[f] = field.getImplodeThreshold();
+			explodeThresholds[f] = field.getExplodeThreshold();
+		}
+		this.scale = scale;
+		this.tileSize = tileSize;
+	}
+
+	/**
+	 * Euclidean distance, all fields numeric with range normalization, linear or non linear distance
+	 * function and no attribute distance threshold
+	 * @param recordComparator
+	 * @return
+	 */
+	public static boolean isApplicable(RecordComparator recordComparator) {
+		FieldComparator[] comparators = recordComparator.getComparators();
+		boolean applicable = recordComparator.getSchema().getDistAlgorithm().equals("euclidean") &&
+			comparators.length > 0;
+		for (int f = 0; applicable && f < comparators.length; ++f) {
+			Field field = comparators[f].getField();
+			String distFunction = field.getContAttrDistanceFunction();
+			applicable = comparators[f] instanceof FieldComparator.NumericComparator &&
+				field.getMax() > field.getMin() && field.getDistThreshold() <= 0 &&
+				(distFunction.equals("none") || distFunction.equals("nonLinear"));
+		}
+		return applicable;
+	}
+
+	/**
+	 * Lays out records by column
+	 * @param records
+	 * @return
+	 */
+	public ColumnBlock createBlock(List<TypedRecord> records) {
+		int size = records.size();
+		ColumnBlock block = new ColumnBlock(numFields, size);
+		for (int i = 0; i < size; ++i) {
+			TypedRecord record = records.get(i);
+			boolean eligible = true;
+			for (int f = 0; f < numFields; ++f) {
+				int ordinal = ordinals[f];
+				if (record.getStatus(ordinal) == TypedRecord.STATUS_VALID) {
+					block.columns[f][i] = record.getValue(ordinal);
+				} else {
+					//missing, invalid or with unit
+					eligible = false;
+				}
+			}
+			block.eligible[i] = eligible;
+		}
+		return block;
+	}
+
+	/**
+	 * Distances from one record to a range of records in a block
+	 * @param rowBlock
+	 * @param row
+	 * @param block
+	 * @param start
+	 * @param end
+	 * @param sums scratch with at least end - start elements
+	 * @param outOfRange scratch with at least end - start elements
+	 * @param distances distances from start, NOT_EVALUATED for pairs to be evaluated otherwise
+	 */
+	public void findDistances(ColumnBlock rowBlock, int row, ColumnBlock block, int start, int end,
+			double[] sums, boolean[] outOfRange, int[] distances) {
+		int len = end - start;
+		if (!rowBlock.eligible[row]) {
+			for (int j = 0; j < len; ++j) {
+				distances[j] = NOT_EVALUATED;
+			}
+			return;
+		}
+
+		for (int j = 0; j < len; ++j) {
+			sums[j] = 0;
+			outOfRange[j] = false;
+		}
+
+		//one field at a time over the tile
+		for (int f = 0; f < numFields; ++f) {
+			double value = rowBlock.columns[f][row];
+			double[] column = block.columns[f];
+			double range = ranges[f];
+			double implodeThreshold = implodeThresholds[f];
+			double explodeThreshold = explodeThresholds[f];
+			if (linear[f]) {
+				for (int j = 0; j < len; ++j) {
+					double dist = (value - column[start + j]) / range;
+					if (dist < 0) {
+						dist = -dist;
+					}
+					sums[j] += dist * dist;
+					outOfRange[j] |= dist < implodeThreshold || dist > explodeThreshold;
+				}
+			} else {
+				double linearCoeff = linearCoeffs[f];
+				double quadCoeff = quadCoeffs[f];
+				for (int j = 0; j < len; ++j) {
+					double dist = (value - column[start + j]) / range;
+					if (dist < 0) {
+						dist = -dist;
+					}
+					double effectDist = linearCoeff * dist + quadCoeff * dist * dist;
+					sums[j] += effectDist * effectDist;
+					outOfRange[j] |= effectDist < implodeThreshold || effectDist > explodeThreshold;
+				}
+			}
+		}
+
+		for (int j = 0; j < len; ++j) {
+			distances[j] = outOfRange[j] || !block.eligible[start + j] ? NOT_EVALUATED :
+				(int)((Math.sqrt(sums[j]) * scale) / numFields);
+		}
+	}
+
+	/**
+	 * @return per thread cursor
+	 */
+	public RowCursor createCursor() {
+		return new RowCursor();
+	}
+
+	/**
+	 * Records of a group by column
+	 * @author pranab
+	 *
+	 */
+	public static class ColumnBlock {
+		private double[][] columns;
+		private boolean[] eligible;
+
+		public ColumnBlock(int numFields, int size) {
+			columns = new double[numFields][size];
+			eligible = new boolean[size];
+		}
+
+		public int size() {
+			return eligible.length;
+		}
+	}
+
+	/**
+	 * Distances of the current row are computed a tile at a time, as pairs are visited in row order.
+	 * Not thread safe
+	 * @author pranab
+	 *
+	 */
+	public class RowCursor {
+		private double[] sums = new double[tileSize];
+		private boolean[] outOfRange = new boolean[tileSize];
+		private int[] distances = new int[tileSize];
+		private ColumnBlock rowBlock;
+		private int row;
+		private ColumnBlock block;
+		private int tileStart;
+		private int tileEnd;
+
+		/**
+		 * @param rowBlock
+		 * @param row
+		 * @param block
+		 * @param col
+		 * @return distance or NOT_EVALUATED
+		 */
+		public int findDistance(ColumnBlock rowBlock, int row, ColumnBlock block, int col) {
+			if (rowBlock != this.rowBlock || row != this.row || block != this.block ||
+					col < tileStart || col >= tileEnd) {
+				//next tile from the column asked for
+				this.rowBlock = rowBlock;
+				this.row = row;
+				this.block = block;
+				tileStart = col;
+				tileEnd = Math.min(col + tileSize, block.size());
+				NumericColumnKernel.this.findDistances(rowBlock, row, block, tileStart, tileEnd, sums,
+					outOfRange, distances);
+			}
+			return distances[col - tileStart];
+		}
+	}
+}
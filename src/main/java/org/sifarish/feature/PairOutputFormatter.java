@@ -0,0 +1,119 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+/**
+ * Output of a matching pair for same type similarity, with ID pair, passive fields, extra fields
+ * or records and distance. Shared by the reduce side and the map side join
+ * @author pranab
+ *
+ */
+public class PairOutputFormatter {
+	private String fieldDelim;
+	private boolean outputIdFirst;
+	private int[] passiveFields;
+	private int[] extraOutputFields;
+	private boolean outputRecord;
+
+	/**
+	 * @param fieldDelim
+	 * @param outputIdFirst
+	 * @param extraOutputFields
+	 * @param outputRecord
+	 */
+	public PairOutputFormatter(String fieldDelim, boolean outputIdFirst, int[] extraOutputFields,
+			boolean outputRecord) {
+		this.fieldDelim = fieldDelim;
+		this.outputIdFirst = outputIdFirst;
+		this.extraOutputFields = extraOutputFields;
+		this.outputRecord = outputRecord;
+	}
+
+	public int[] getPassiveFields() {
+		return passiveFields;
+	}
+
+	/**
+	 * @param passiveFields fields not participating in distance, to be included in output
+	 */
+	public void setPassiveFields(int[] passiveFields) {
+		this.passiveFields = passiveFields;
+	}
+
+    /**
+     * generates output to emit, id pair, passive fields, extra fields or records and distance
+     * @param first
+     * @param second
+     * @param firstId
+     * @param secondId
+     * @param dist
+     * @return
+     */
+    public String format(TypedRecord first, TypedRecord second, String firstId, String secondId, int dist) {
+    	StringBuilder stBld = new StringBuilder();
+
+    	if (outputIdFirst) {
+    		stBld.append(firstId).append(fieldDelim).append(secondId).append(fieldDelim);
+    	}
+
+    	//include passive fields
+    	if (null != passiveFields) {
+    		for (int i :  passiveFields) {
+    			stBld.append(first.getItem(i)).append(fieldDelim);
+    		}
+    		for (int i :  passiveFields) {
+    			stBld.append(second.getItem(i)).append(fieldDelim);
+    		}
+    	}
+
+    	if (!outputIdFirst) {
+    		stBld.append(firstId).append(fieldDelim).append(secondId).append(fieldDelim);
+    	}
+    	if (null != extraOutputFields) {
+    		appendExtraField(first, stBld);
+    		appendExtraField(second, stBld);
+    	} else if (outputRecord) {
+    		appendRecord(first, stBld);
+    		appendRecord(second, stBld);
+    	}
+    	stBld.append(dist);
+    	return stBld.toString();
+    }
+
+    /**
+     * adds selected fields in the output
+     * @param value
+     * @param stBld
+     */
+    private void appendExtraField(TypedRecord record, StringBuilder stBld) {
+    	for (int extraOutputField : extraOutputFields) {
+    		if (extraOutputField < record.size()) {
+    			stBld.append(record.getItem(extraOutputField)).append(fieldDelim);
+    		}
+    	}
+    }
+
+    /**
+     * appends whole record
+     * @param record
+     * @param stBld
+     */
+    private void appendRecord(TypedRecord record, StringBuilder stBld) {
+    	stBld.append(record.toString(fieldDelim)).append(fieldDelim);
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * Evaluates all pairs of a materialized group on a thread pool inside a reducer. Pairs are split into
+ * tiles of rows of the first list. Each tile is scored with a scorer taken from a pool, so that each
+ * scorer with it's mutable strategies is used by one thread at a time. Output is passed through a
+ * bounded queue and written by the reducer thread, either as text formatted by the scorer or, with an
+ * output sink, as ID pair and distance without any text. Scorers count locally and counters are flushed
+ * by the reducer thread, since hadoop context is not thread safe
+ * @author pranab
+ *
+ * @param <T>
+ */
+public class ParallelPairEvaluator<T> {
+	private ExecutorService executor;
+	private List<PairScorer<T>> scorers = new ArrayList<PairScorer<T>>();
+	private BlockingQueue<PairScorer<T>> scorerPool;
+	private BlockingQueue<PairOutput> outQueue;
+	private int tileSize;
+	private Text valueHolder = new Text();
+	private OutputSink outputSink;
+	private static final long POLL_TIME_OUT = 10;
+
+	//distance of a pair that is skipped or not within threshold
+	public static final int NOT_SCORED = -1;
+
+	/**
+	 * @param numThreads
+	 * @param tileSize number of rows of the first list in a tile
+	 * @param queueSize output queue size
+	 * @param factory
+	 * @throws IOException
+	 */
+	public ParallelPairEvaluator(int numThreads, int tileSize, int queueSize, ScorerFactory<T> factory)
+		throws IOException {
+		//daemon threads, so that a failed task does not hang
+		executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "pair-evaluator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scorerPool = new ArrayBlockingQueue<PairScorer<T>>(numThreads);
+		for (int i = 0; i < numThreads; ++i) {
+			PairScorer<T> scorer = factory.createScorer();
+			scorers.add(scorer);
+			scorerPool.add(scorer);
+		}
+		this.tileSize = tileSize;
+		outQueue = new ArrayBlockingQueue<PairOutput>(queueSize);
+	}
+
+	/**
+	 * Evaluates all pairs and writes output
+	 * @param firstList
+	 * @param secondList
+	 * @param selfJoin only pairs with second index greater than first index are evaluated
+	 * @param context
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void evaluate(final List<T> firstList, final List<T> secondList, final boolean selfJoin,
+			TaskInputOutputContext<?, ?, NullWritable, Text> context) throws IOException, InterruptedException {
+		int numTiles = (firstList.size() + tileSize - 1) / tileSize;
+		final AtomicInteger pendingTiles = new AtomicInteger(numTiles);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+		for (int t = 0; t < numTiles; ++t) {
+			final int start = t * tileSize;
+			final int end = Math.min(start + tileSize, firstList.size());
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						PairScorer<T> scorer = scorerPool.take();
+						try {
+							scoreTile(scorer, firstList, secondList, selfJoin, start, end, failure);
+						} finally {
+							scorerPool.put(scorer);
+						}
+					} catch (Exception ex) {
+						failure.compareAndSet(null, ex);
+					} finally {
+						pendingTiles.decrementAndGet();
+					}
+				}
+			});
+		}
+
+		//drain output on this thread
+		while (pendingTiles.get() > 0 || !outQueue.isEmpty()) {
+			PairOutput output = outQueue.poll(POLL_TIME_OUT, TimeUnit.MILLISECONDS);
+			if (null != output) {
+				if (null != outputSink) {
+					outputSink.collect(output.firstId, output.secondId, output.distance);
+				} else {
+					valueHolder.set(output.text);
+					context.write(NullWritable.get(), valueHolder);
+				}
+			} else {
+				context.progress();
+			}
+		}
+
+		Exception ex = failure.get();
+		if (null != ex) {
+			throw ex instanceof IOException ? (IOException)ex : new IOException("failed in pair evaluation", ex);
+		}
+	}
+
+	/**
+	 * @param scorer
+	 * @param firstList
+	 * @param secondList
+	 * @param selfJoin
+	 * @param start
+	 * @param end
+	 * @param failure
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void scoreTile(PairScorer<T> scorer, List<T> firstList, List<T> secondList, boolean selfJoin,
+			int start, int end, AtomicReference<Exception> failure) throws IOException, InterruptedException {
+		for (int i = start; i < end && null == failure.get(); ++i) {
+			T first = firstList.get(i);
+			for (int j = selfJoin ? i + 1 : 0; j < secondList.size(); ++j) {
+				T second = secondList.get(j);
+				int distance = scorer.score(first, second, i, j);
+				if (distance != NOT_SCORED) {
+					//text formatted in this thread, unless output goes to sink
+					outQueue.put(null != outputSink ? new PairOutput(scorer.getId(first), scorer.getId(second), distance) :
+						new PairOutput(scorer.format(first, second, distance)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param outputSink receives ID pair and distance instead of text output to context, on the reducer thread
+	 */
+	public void setOutputSink(OutputSink outputSink) {
+		this.outputSink = outputSink;
+	}
+
+	/**
+	 * Flushes counters of all scorers. Should be called from the reducer thread
+	 * @param context
+	 */
+	public void flushCounters(TaskInputOutputContext<?, ?, ?, ?> context) {
+		for (PairScorer<T> scorer : scorers) {
+			scorer.flushCounters(context);
+		}
+	}
+
+	/**
+	 *
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Scores a pair. Instances are not shared between threads
+	 * @author pranab
+	 *
+	 * @param <T>
+	 */
+	public static abstract class PairScorer<T> {
+		private PairCounter[] counters;
+		private long[] counts;
+
+		/**
+		 * @param counters all counters of the scorer, in ordinal order e.g. values of an enum
+		 */
+		protected PairScorer(PairCounter[] counters) {
+			this.counters = counters;
+			counts = new long[counters.length];
+		}
+
+		/**
+		 * @param first
+		 * @param second
+		 * @param firstIndex
+		 * @param secondIndex
+		 * @return distance for the pair, NOT_SCORED if nothing to emit
+		 * @throws IOException
+		 */
+		public abstract int score(T first, T second, int firstIndex, int secondIndex) throws IOException;
+
+		/**
+		 * Text output for a pair. Called right after the pair is scored, by the same thread, so that any
+		 * state from scoring the pair can be used
+		 * @param first
+		 * @param second
+		 * @param distance
+		 * @return
+		 */
+		public abstract String format(T first, T second, int distance);
+
+		/**
+		 * @param record
+		 * @return entity ID
+		 */
+		public abstract String getId(T record);
+
+		/**
+		 * Local counter
+		 * @param counter
+		 */
+		protected void increment(PairCounter counter) {
+			++counts[counter.ordinal()];
+		}
+
+		/**
+		 * Adds local counts to hadoop counters and resets them
+		 * @param context
+		 */
+		public void flushCounters(TaskInputOutputContext<?, ?, ?, ?> context) {
+			for (int i = 0; i < counts.length; ++i) {
+				if (counts[i] > 0) {
+					context.getCounter(counters[i].getGroup(), counters[i].getName()).increment(counts[i]);
+					counts[i] = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counter updated by scorers, implemented by an enum so that a count is found by ordinal
+	 * @author pranab
+	 *
+	 */
+	public static interface PairCounter {
+		/**
+		 * @return
+		 */
+		public int ordinal();
+
+		/**
+		 * @return
+		 */
+		public String getGroup();
+
+		/**
+		 * @return
+		 */
+		public String getName();
+	}
+
+	/**
+	 * Creates scorer for each thread
+	 * @author pranab
+	 *
+	 * @param <T>
+	 */
+	public static interface ScorerFactory<T> {
+		/**
+		 * @return
+		 * @throws IOException
+		 */
+		public PairScorer<T> createScorer() throws IOException;
+	}
+
+	/**
+	 * Consumes pair output in the reducer thread
+	 * @author pranab
+	 *
+	 */
+	public static interface OutputSink {
+		/**
+		 * @param firstId
+		 * @param secondId
+		 * @param distance
+		 * @throws IOException
+		 * @throws InterruptedException
+		 */
+		public void collect(String firstId, String secondId, int distance) throws IOException, InterruptedException;
+	}
+
+	/**
+	 * Pair output passed from evaluating threads to the reducer thread, text or ID pair and distance
+	 * @author pranab
+	 *
+	 */
+	private static class PairOutput {
+		private String text;
+		private String firstId;
+		private String secondId;
+		private int distance;
+
+		public PairOutput(String text) {
+			this.text = text;
+		}
+
+		public PairOutput(String firstId, String secondId, int distance) {
+			this.firstId = firstId;
+			this.secondId = secondId;
+			this.distance = distance;
+		}
+	}
+}
@@ -0,0 +1,255 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+import org.chombo.util.Tuple;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.sifarish.util.Utility;
+
+/**
+ * Sampling pre pass for SameTypeSimilarity. Estimates record count and pair work load for each value of
+ * the partitioning column and decides the number of hash buckets for each. Hot partitions get enough
+ * buckets for the pairs per reducer group to be close to a target. Cold partitions are left out of the
+ * plan and get a single bucket, so that their records are not replicated. With inter set matching and in 
+ * delta mode, pairs are estimated from the size of both sets. In delta mode, changed records are matched 
+ * against all records, so they are counted in both sets. Output is a plan file with partition value and 
+ * bucket count, consumed by the SameTypeSimilarity mapper
+ * @author pranab
+ *
+ */
+public class PartitionSkewPlanner extends Configured implements Tool {
+
+    @Override
+    public int run(String[] args) throws Exception {
+        Job job = new Job(getConf());
+        String jobName = "Partition skew planner MR";
+        job.setJobName(jobName);
+
+        job.setJarByClass(PartitionSkewPlanner.class);
+
+        FileInputFormat.addInputPath(job, new Path(args[0]));
+        FileOutputFormat.setOutputPath(job, new Path(args[1]));
+
+        job.setMapperClass(PartitionSkewPlanner.SamplingMapper.class);
+        job.setCombinerClass(PartitionSkewPlanner.CountCombiner.class);
+        job.setReducerClass(PartitionSkewPlanner.PlanReducer.class);
+
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(Tuple.class);
+
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(Text.class);
+
+        Utility.setConfiguration(job.getConfiguration());
+
+        //single plan file
+        job.setNumReduceTasks(1);
+
+        int status =  job.waitForCompletion(true) ? 0 : 1;
+        return status;
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int exitCode = ToolRunner.run(new PartitionSkewPlanner(), args);
+        System.exit(exitCode);
+    }
+
+    /**
+     * Samples records and counts them by partition value and set
+     * @author pranab
+     *
+     */
+    public static class SamplingMapper extends Mapper<LongWritable, Text, Text, Tuple> {
+    	private Text keyHolder = new Text();
+    	private Tuple valueHolder = new Tuple();
+    	private String fieldDelimRegex;
+    	private int partitonOrdinal;
+    	private double samplingRate;
+    	private Random random;
+    	private boolean isBaseSetSplit;
+    	private boolean isOtherSetSplit;
+    	private long zero = 0;
+    	private long one = 1;
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#setup(org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        protected void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+        	fieldDelimRegex = conf.get("field.delim.regex", "\\[\\]");
+
+    		InputStream fs = org.chombo.util.Utility.getFileStream(conf, "sts.same.schema.file.path");
+            ObjectMapper mapper = new ObjectMapper();
+            SingleTypeSchema schema = mapper.readValue(fs, SingleTypeSchema.class);
+            partitonOrdinal = schema.getPartitioningColumn();
+
+            //auto generated ID is not in the input yet
+            if (partitonOrdinal >= 0 && conf.getBoolean("sts.auto.generate.id", false)) {
+            	--partitonOrdinal;
+            }
+
+            samplingRate = conf.getFloat("sts.skew.sampling.rate", (float)0.1);
+            random = new Random(context.getTaskAttemptID().getTaskID().getId());
+
+            boolean interSetMatching = conf.getBoolean("sts.inter.set.matching",  false);
+            String splitName = ((FileSplit)context.getInputSplit()).getPath().getName();
+            if (conf.getBoolean("sts.delta.mode", false)) {
+            	//changed records against all records
+           	 	String changedSetSplitPrefix = conf.get("sts.delta.changed.split.prefix", "changed");
+           	 	isBaseSetSplit = splitName.startsWith(changedSetSplitPrefix);
+           	 	isOtherSetSplit = true;
+            } else {
+           	 	String baseSetSplitPrefix = conf.get("sts.base.set.split.prefix", "base");
+           	 	isBaseSetSplit = !interSetMatching || splitName.startsWith(baseSetSplitPrefix);
+           	 	isOtherSetSplit = !isBaseSetSplit;
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#map(KEYIN, VALUEIN, org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        @Override
+        protected void map(LongWritable key, Text value, Context context)
+            throws IOException, InterruptedException {
+        	if (random.nextDouble() < samplingRate) {
+        		String[] items  =  value.toString().split(fieldDelimRegex);
+        		keyHolder.set(partitonOrdinal >= 0 ? items[partitonOrdinal] :  "N");
+        		valueHolder.initialize();
+        		valueHolder.add(isBaseSetSplit ? one : zero, isOtherSetSplit ? one : zero);
+        		context.write(keyHolder, valueHolder);
+        	}
+        }
+    }
+
+    /**
+     * @author pranab
+     *
+     */
+    public static class CountCombiner extends Reducer<Text, Tuple, Text, Tuple> {
+    	private Tuple valueHolder = new Tuple();
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Reducer#reduce(KEYIN, java.lang.Iterable, org.apache.hadoop.mapreduce.Reducer.Context)
+         */
+        protected void reduce(Text  key, Iterable<Tuple> values, Context context)
+        	throws IOException, InterruptedException {
+        	long baseCount = 0;
+        	long otherCount = 0;
+        	for (Tuple value : values) {
+        		baseCount += value.getLong(0);
+        		otherCount += value.getLong(1);
+        	}
+        	valueHolder.initialize();
+        	valueHolder.add(baseCount, otherCount);
+        	context.write(key, valueHolder);
+        }
+    }
+
+    /**
+     * Estimates pairs and decides bucket count for each partition
+     * @author pranab
+     *
+     */
+    public static class PlanReducer extends Reducer<Text, Tuple, NullWritable, Text> {
+    	private Text valueHolder = new Text();
+    	private String fieldDelim;
+    	private double samplingRate;
+    	private double targetGroupPairs;
+    	private int coldBucketCount;
+    	private int maxBucketCount;
+    	private boolean twoSets;
+        private static final Logger LOG = Logger.getLogger(PartitionSkewPlanner.PlanReducer.class);
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Reducer#setup(org.apache.hadoop.mapreduce.Reducer.Context)
+         */
+        protected void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+        	fieldDelim = conf.get("field.delim", ",");
+            samplingRate = conf.getFloat("sts.skew.sampling.rate", (float)0.1);
+            targetGroupPairs = conf.getLong("sts.skew.target.group.pairs", 1000000L);
+            coldBucketCount = conf.getInt("sts.skew.cold.bucket.count", 1);
+            maxBucketCount = conf.getInt("sts.skew.max.bucket.count", -1);
+            twoSets = conf.getBoolean("sts.inter.set.matching",  false) || conf.getBoolean("sts.delta.mode", false);
+        }
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Reducer#reduce(KEYIN, java.lang.Iterable, org.apache.hadoop.mapreduce.Reducer.Context)
+         */
+        protected void reduce(Text  key, Iterable<Tuple> values, Context context)
+        	throws IOException, InterruptedException {
+        	long baseCount = 0;
+        	long otherCount = 0;
+        	for (Tuple value : values) {
+        		baseCount += value.getLong(0);
+        		otherCount += value.getLong(1);
+        	}
+
+        	//scale up sample counts
+        	double baseSize = baseCount / samplingRate;
+        	double otherSize = otherCount / samplingRate;
+        	int bucketCount = 0;
+        	if (twoSets) {
+        		//n1 x n2 pairs over b x b groups
+        		bucketCount = (int)Math.ceil(Math.sqrt(baseSize * otherSize / targetGroupPairs));
+        	} else {
+        		//n x n / 2 pairs over b x (b + 1) / 2 groups of triangular block layout
+        		bucketCount = (int)Math.ceil(baseSize / Math.sqrt(targetGroupPairs));
+        	}
+        	
+        	//optional cap, since records of a partition are replicated as many times as it's bucket count
+        	if (maxBucketCount > 0 && bucketCount > maxBucketCount) {
+        		LOG.info("bucket count capped for partition:" + key.toString() + " planned:" + bucketCount + 
+        			" cap:" + maxBucketCount);
+        		context.getCounter("Skew Plan", "Capped partitions").increment(1);
+        		bucketCount = maxBucketCount;
+        	}
+
+        	if (bucketCount > coldBucketCount) {
+        		context.getCounter("Skew Plan", "Hot partitions").increment(1);
+        		valueHolder.set(key.toString() + fieldDelim + bucketCount);
+        		context.write(NullWritable.get(), valueHolder);
+        	} else {
+        		context.getCounter("Skew Plan", "Cold partitions").increment(1);
+        	}
+        }
+    }
+}
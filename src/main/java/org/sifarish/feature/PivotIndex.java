@@ -0,0 +1,142 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pivot based pruning for threshold similarity join with metric distance. Distance of each record
+ * to a few pivot records is pre computed. By triangle inequality |d(a,p) - d(b,p)| is a lower bound
+ * of d(a,b), so a pair can be skipped when the bound for any pivot is beyond the threshold.
+ * @author pranab
+ *
+ */
+public class PivotIndex {
+	private RecordComparator recordComparator;
+	private DistanceContext distContext;
+	private int pivotCount;
+	private List<TypedRecord> pivots = new ArrayList<TypedRecord>();
+	private List<double[]> pivotDistances = new ArrayList<double[]>();
+	private double pruneThreshold;
+	private long distanceCount;
+
+	/**
+	 * @param recordComparator must be metric
+	 * @param pivotCount
+	 * @param scale
+	 * @param distThreshold
+	 */
+	public PivotIndex(RecordComparator recordComparator, int pivotCount, int scale, int distThreshold) {
+		if (!recordComparator.isMetric()) {
+			throw new IllegalArgumentException("pivot based pruning requires metric distance");
+		}
+		this.recordComparator = recordComparator;
+		this.pivotCount = pivotCount;
+
+		//separate context, so that pivot distances don't show up in data quality counters
+		distContext = recordComparator.createContext(scale);
+
+		//pair distance is truncated to int, d < threshold + 1 passes the threshold
+		pruneThreshold = distThreshold + 1;
+	}
+
+	/**
+	 * Selects pivots evenly spaced in the records and computes distance to pivots for all records
+	 * @param records
+	 * @throws IOException
+	 */
+	public void build(List<TypedRecord> records) throws IOException {
+		pivots.clear();
+		pivotDistances.clear();
+
+		List<TypedRecord> candidates = new ArrayList<TypedRecord>();
+		for (TypedRecord record : records) {
+			if (recordComparator.isMetricComparable(record)) {
+				candidates.add(record);
+			}
+		}
+		int numPivots = Math.min(pivotCount, candidates.size());
+		for (int i = 0; i < numPivots; ++i) {
+			pivots.add(candidates.get((i * candidates.size()) / numPivots));
+		}
+
+		for (TypedRecord record : records) {
+			pivotDistances.add(findPivotDistances(record));
+		}
+	}
+
+	/**
+	 * @param record
+	 * @return distances to pivots, null if the record can not be pruned
+	 * @throws IOException
+	 */
+	public double[] findPivotDistances(TypedRecord record) throws IOException {
+		double[] distances = null;
+		if (!pivots.isEmpty() && recordComparator.isMetricComparable(record)) {
+			distances = new double[pivots.size()];
+			for (int i = 0; i < distances.length; ++i) {
+				distances[i] = recordComparator.findMetricDistance(record, pivots.get(i), distContext);
+			}
+			distanceCount += distances.length;
+		}
+		return distances;
+	}
+
+	/**
+	 * @param index index of indexed record
+	 * @param otherDistances pivot distances of the other record
+	 * @return true if the pair distance is guaranteed to be above threshold
+	 */
+	public boolean canPrune(int index, double[] otherDistances) {
+		return canPrune(pivotDistances.get(index), otherDistances);
+	}
+
+	/**
+	 * @param firstDistances
+	 * @param secondDistances
+	 * @return true if the pair distance is guaranteed to be above threshold
+	 */
+	public boolean canPrune(double[] firstDistances, double[] secondDistances) {
+		boolean prune = false;
+		if (null != firstDistances && null != secondDistances) {
+			for (int i = 0; !prune && i < firstDistances.length; ++i) {
+				prune = Math.abs(firstDistances[i] - secondDistances[i]) > pruneThreshold;
+			}
+		}
+		return prune;
+	}
+
+	/**
+	 * @param index
+	 * @return pivot distances of indexed record
+	 */
+	public double[] getPivotDistances(int index) {
+		return pivotDistances.get(index);
+	}
+
+	/**
+	 * @return number of pivot distances computed and reset
+	 */
+	public long flushDistanceCount() {
+		long count = distanceCount;
+		distanceCount = 0;
+		return count;
+	}
+}
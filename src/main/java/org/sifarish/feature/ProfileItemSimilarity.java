@@ -21,7 +21,6 @@ package org.sifarish.feature;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
@@ -37,10 +36,8 @@ import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.chombo.util.BasicUtils;
-import org.chombo.util.Pair;
 import org.chombo.util.SecondarySort;
 import org.chombo.util.Tuple;
-import org.sifarish.util.Field;
 import org.sifarish.util.MatchingProfile;
 import org.sifarish.util.Utility;
 
@@ -94,19 +91,13 @@ public class ProfileItemSimilarity extends Configured implements Tool {
         private SingleTypeSchema schema;
         private List<MatchingProfile> profiles = new ArrayList<MatchingProfile>();
         private String[] items;
-        private double dist;
         private int idOrdinal;
-        private String fieldVal;
-        private String dataType;
-        private Pair<Integer, Integer> intRange;
-        private Pair<Double, Double> dblRange;
-        private Set<String> valueSet;
         private int scale;
-        private DistanceStrategy distStrategy;
-        private DynamicAttrSimilarityStrategy textSimStrategy;
+        private RecordComparator recordComparator;
+        private DistanceContext distContext;
+        private TypedRecord item = new TypedRecord();
         private String itemId;
         private String profileId;
-        private int fieldOrd;
         
 
         /* (non-Javadoc)
@@ -127,12 +118,10 @@ public class ProfileItemSimilarity extends Configured implements Tool {
             //ordinal of Id field
             idOrdinal = schema.getEntity().getIdField().getOrdinal();
             
-        	//distance calculation strategy
+        	//schema compiled into field comparators
         	scale = config.getInt("pes.distance.scale", 1000);
-        	distStrategy = schema.createDistanceStrategy(scale);
-            
-        	//text field similarity calculation strategy
-        	textSimStrategy = schema.createTextSimilarityStrategy();
+        	recordComparator = new RecordComparator(schema, null, subFieldDelimRegex, scale);
+        	distContext = recordComparator.createContext(scale);
         }
         
         /* (non-Javadoc)
@@ -144,68 +133,13 @@ public class ProfileItemSimilarity extends Configured implements Tool {
         	items  = value.toString().split(fieldDelimRegex);
         	itemId = items[idOrdinal];
         	
+        	//parsed once for all profiles
+        	item.initialize(items, 0, idOrdinal, schema.getEntity().getFields(), subFieldDelimRegex);
+        	
         	//all profiles
         	for (MatchingProfile profile : profiles) {
         		profileId = profile.getId(idOrdinal);
-        		
-        		//all fields
-        		distStrategy.initialize();
-        		for (Field field :  schema.getEntity().getFields()) {
-        			//if ID or class attribute field, skip it
-        			if (field.isId() ||  field.isClassAttribute()) {
-        				continue;
-        			}
-        			
-        			fieldOrd = field.getOrdinal();
-        			fieldVal = items[fieldOrd];
-        			dataType =  field.getDataType();
-        			if (dataType.equals(Field.DATA_TYPE_INT)) {
-        				intRange = profile.getIntRange(fieldOrd);
-        				int intVal = Integer.parseInt(fieldVal);
-        				if (intVal >= intRange.getLeft() && intVal <= intRange.getRight()) {
-        					dist = 0;
-        				} else if (intVal < intRange.getLeft()){
-    	    				dist = field.findDistance(intVal, intRange.getLeft(), schema.getNumericDiffThreshold());
-        				} else {
-    	    				dist = field.findDistance(intVal, intRange.getRight(), schema.getNumericDiffThreshold());
-        				}
-        			} else if (dataType.equals(Field.DATA_TYPE_DOUBLE)) {
-        				dblRange = profile.getDoubleRange(fieldOrd);
-        				double dblVal = Double.parseDouble(fieldVal);
-        				if (dblVal >= dblRange.getLeft() && dblVal <= dblRange.getRight()) {
-        					dist = 0;
-        				} else if (dblVal < dblRange.getLeft()){
-    	    				dist = field.findDistance(dblVal, dblRange.getLeft(), schema.getNumericDiffThreshold());
-        				} else {
-    	    				dist = field.findDistance(dblVal, dblRange.getRight(), schema.getNumericDiffThreshold());
-        				}
-        			} else if (dataType.equals(Field.DATA_TYPE_CATEGORICAL)) {
-        				valueSet = profile.getCategoricalSet(fieldOrd);
-        				if (valueSet.contains(fieldVal)) {
-        					dist = 0;
-        				} else {
-        					//minimum distance to any in the set
-        					double minDist = 2;
-        					double thisDist = 0;
-        					for (String thisValue : valueSet) {
-        						thisDist = field.findDistance(thisValue, fieldVal);
-        						if (thisDist < minDist) {
-        							minDist = thisDist;
-        						}
-        					}
-        					dist = minDist;
-        				}
-        			} else if (dataType.equals(Field.DATA_TYPE_TEXT)) {
-	    				dist = textSimStrategy.findDistance(profile.getText(fieldOrd), fieldVal);	    				
-        			} else {
-        				throw new IllegalStateException("unsupported data type");
-        			} 
-        			
-        			//aggregate attribute  distance for all entity attributes
-    				distStrategy.accumulate(dist, field);
-        		}
-        		
-        		int netDist = distStrategy.getSimilarity();
+        		int netDist = recordComparator.findProfileDistance(profile, item, distContext);
         		outKey.initialize();
         		outKey.add(profileId, netDist);
         		outVal.initialize();
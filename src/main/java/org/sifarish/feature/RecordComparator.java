@@ -0,0 +1,341 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.sifarish.util.Field;
+import org.sifarish.util.MatchingProfile;
+
+/**
+ * Schema compiled once into a flat array of field comparators. Faceting, ID and class attribute 
+ * fields, missing value policy and per field distance function are resolved at compile time, so 
+ * that evaluating a pair is a loop over the array without any schema look up
+ * @author pranab
+ *
+ */
+public class RecordComparator {
+	private SingleTypeSchema schema;
+	private FieldComparator[] comparators;
+	private int[] activeOrdinals;
+	private int missingPolicy;
+	private int distThreshold;
+	private boolean metric;
+	private int distanceCacheSize;
+	private boolean earlyAbandon;
+	private FieldComparator[] boundedComparators;
+	
+	private static final int MISSING_DEFAULT = 0;
+	private static final int MISSING_SKIP = 1;
+	private static final int MISSING_CUSTOM = 2;
+	
+	/**
+	 * @param schema
+	 * @param facetedFields fields to be included, all if null
+	 * @param subFieldDelim
+	 * @param distThreshold
+	 */
+	public RecordComparator(SingleTypeSchema schema, int[] facetedFields, String subFieldDelim, int distThreshold) {
+		this.schema = schema;
+		this.distThreshold = distThreshold;
+		
+		List<FieldComparator> comparatorList = new ArrayList<FieldComparator>();
+		for (Field field :  schema.getEntity().getFields()) {
+			//if facetted set but field not included, then skip it
+			if (null != facetedFields && !ArrayUtils.contains(facetedFields, field.getOrdinal())) {
+				continue;
+			}
+			
+			//if ID or class attribute field, skip it
+			if (field.isId() ||  field.isClassAttribute()) {
+				continue;
+			}
+			comparatorList.add(FieldComparator.create(field, comparatorList.size(), schema, subFieldDelim));
+		}
+		comparators = comparatorList.toArray(new FieldComparator[comparatorList.size()]);
+		activeOrdinals = new int[comparators.length];
+		for (int i = 0; i < comparators.length; ++i) {
+			activeOrdinals[i] = comparators[i].getOrdinal();
+		}
+		
+		String missingValueHandler = schema.getMissingValueHandler();
+		if (missingValueHandler.equals("default")) {
+			missingPolicy = MISSING_DEFAULT;
+		} else if (missingValueHandler.equals("skip")) {
+			missingPolicy = MISSING_SKIP;
+		} else {
+			missingPolicy = MISSING_CUSTOM;
+		}
+		metric = checkMetric();
+	}
+	
+	/**
+	 * Record distance is a metric when the aggregation is a norm and every attribute distance is a metric. 
+	 * Skipping missing values or zero distance for them breaks triangle inequality
+	 * @return
+	 */
+	private boolean checkMetric() {
+		String distAlgorithm = schema.getDistAlgorithm();
+		boolean isMetric = distAlgorithm.equals("euclidean") || distAlgorithm.equals("manhattan") || 
+			(distAlgorithm.equals("minkwoski") && schema.getMinkowskiParam() >= 1.0);
+		isMetric = isMetric && missingPolicy == MISSING_DEFAULT;
+		for (int i = 0; isMetric && i < comparators.length; ++i) {
+			isMetric = comparators[i].isMetric(schema);
+		}
+		return isMetric;
+	}
+	
+	/**
+	 * Creates per thread mutable state
+	 * @param scale
+	 * @return
+	 */
+	public DistanceContext createContext(int scale) {
+		DistanceContext context = new DistanceContext(schema.createDistanceStrategy(scale), 
+				schema.createTextSimilarityStrategy(), activeOrdinals);
+		if (distanceCacheSize > 0) {
+			for (int i = 0; i < comparators.length; ++i) {
+				if (comparators[i].isCacheable(schema)) {
+					context.setCache(i, new DistanceCache(distanceCacheSize));
+				}
+			}
+		}
+		return context;
+	}
+	
+	/**
+	 * Enables distance caches for cacheable fields in contexts created afterwards 
+	 * @param distanceCacheSize max cached pairs per field, 0 to disable
+	 */
+	public void setDistanceCacheSize(int distanceCacheSize) {
+		this.distanceCacheSize = distanceCacheSize;
+	}
+	
+	/**
+	 * Bounded evaluation, where evaluation of a pair stops as soon as the distance is certain to exceed the 
+	 * distance threshold. Fields are evaluated cheapest first and within the same cost fields with attribute 
+	 * distance threshold first, so that most pairs are rejected before expensive fields are evaluated. Not 
+	 * applicable if any field distance can implode
+	 * @param earlyAbandon
+	 * @return true if bounded evaluation is on
+	 */
+	public boolean setEarlyAbandon(boolean earlyAbandon) {
+		this.earlyAbandon = earlyAbandon;
+		for (int i = 0; this.earlyAbandon && i < comparators.length; ++i) {
+			this.earlyAbandon = comparators[i].field.getImplodeThreshold() <= 0;
+		}
+		if (this.earlyAbandon) {
+			boundedComparators = Arrays.copyOf(comparators, comparators.length);
+			Arrays.sort(boundedComparators, new Comparator<FieldComparator>() {
+				@Override
+				public int compare(FieldComparator thisComparator, FieldComparator thatComparator) {
+					int cmp = thisComparator.getCost() - thatComparator.getCost();
+					if (0 == cmp) {
+						boolean thisThreshold = thisComparator.field.getDistThreshold() > 0;
+						boolean thatThreshold = thatComparator.field.getDistThreshold() > 0;
+						cmp = thisThreshold == thatThreshold ? 0 : (thisThreshold ? -1 : 1);
+					}
+					return cmp;
+				}
+			});
+		}
+		return this.earlyAbandon;
+	}
+	
+	/**
+	 * @return
+	 */
+	public SingleTypeSchema getSchema() {
+		return schema;
+	}
+
+	/**
+	 * @return
+	 */
+	public FieldComparator[] getComparators() {
+		return comparators;
+	}
+
+	/**
+	 * @return ordinals of fields participating in distance
+	 */
+	public int[] getActiveOrdinals() {
+		return activeOrdinals;
+	}
+	
+	/**
+	 * @return
+	 */
+	public int getDistThreshold() {
+		return distThreshold;
+	}
+	
+	/**
+	 * @return true if record distance satisfies triangle inequality
+	 */
+	public boolean isMetric() {
+		return metric;
+	}
+	
+	/**
+	 * Invalid values and values with unit contribute zero distance in some pairs, which breaks triangle 
+	 * inequality. Such records are excluded from pivot based pruning
+	 * @param record
+	 * @return
+	 */
+	public boolean isMetricComparable(TypedRecord record) {
+		boolean comparable = true;
+		for (int i = 0; comparable && i < activeOrdinals.length; ++i) {
+			byte status = record.getStatus(activeOrdinals[i]);
+			comparable = status != TypedRecord.STATUS_INVALID && status != TypedRecord.STATUS_INVALID_WITH_UNIT &&
+				status != TypedRecord.STATUS_UNIT_MISMATCH && status != TypedRecord.STATUS_VALID_WITH_UNIT;
+		}
+		return comparable;
+	}
+	
+	/**
+	 * @param numFields
+	 * @return ordinals of fields not participating in distance, null if none
+	 */
+	public int[] findPassiveFields(int numFields) {
+		int[] passiveFields = null;
+    	int len = numFields - activeOrdinals.length;
+    	if (len > 0) {
+        	passiveFields = new int[len];
+        	for (int i = 0,j=0; i < numFields; ++i) {
+        		if (!ArrayUtils.contains(activeOrdinals, i) ) {
+        			passiveFields[j++] = i;
+        		}
+        	}
+    	}
+    	return passiveFields;
+	}
+	
+	/**
+	 * Parses structured fields and text tokens of a record once, for records evaluated in many pairs
+	 * @param record
+	 * @param context
+	 */
+	public void prepare(TypedRecord record, DistanceContext context) {
+		for (int i = 0; i < comparators.length; ++i) {
+			comparators[i].prepare(record, context);
+		}
+	}
+	
+	/**
+	 * Distance between two records
+	 * @param first
+	 * @param second
+	 * @param context
+	 * @return
+	 * @throws IOException
+	 */
+	public int findDistance(TypedRecord first, TypedRecord second, DistanceContext context) throws IOException {
+		DistanceStrategy distStrategy = context.getDistStrategy();
+		distStrategy.initialize();
+		double dist = 0;
+		boolean thresholdCrossed = false;
+		FieldComparator[] evaluated = earlyAbandon ? boundedComparators : comparators;
+		for (int i = 0; i < evaluated.length; ++i) {
+			FieldComparator comparator = evaluated[i];
+			int ordinal = comparator.ordinal;
+			if (first.isMissing(ordinal) || second.isMissing(ordinal)) {
+				//handle missing value
+				context.missingData(comparator.index);
+				if (missingPolicy == MISSING_DEFAULT) {
+					context.missingDefault();
+					dist = 1.0;
+				} else if (missingPolicy == MISSING_SKIP) {
+					context.missingSkip();
+					continue;
+				} else {
+					//custom handler
+					dist = 0;
+				}
+			} else {
+				dist = comparator.findDistance(first, second, context);
+			}
+			
+			//if threshold crossed for this attribute, skip the remaining attributes of the entity pair
+			thresholdCrossed = comparator.field.isDistanceThresholdCrossed(dist);
+			if (thresholdCrossed){
+				context.thresholdFiltered();
+				break;
+			}
+			
+			//aggregate attribute  distance for all entity attributes
+			distStrategy.accumulate(dist, comparator.field);
+			
+			//if pair can not be within threshold, skip the remaining attributes 
+			if (earlyAbandon && i < evaluated.length - 1 && 
+				distStrategy.isThresholdExceeded(distThreshold, evaluated.length)) {
+				context.earlyAbandoned();
+				thresholdCrossed = true;
+				break;
+			}
+		}
+		return thresholdCrossed?  distThreshold + 1  : distStrategy.getSimilarity();
+	}
+	
+	/**
+	 * Scaled distance without truncation, only for metric schema. Used for pivot distances, so that 
+	 * bounds are not distorted by rounding
+	 * @param first
+	 * @param second
+	 * @param context
+	 * @return
+	 * @throws IOException
+	 */
+	public double findMetricDistance(TypedRecord first, TypedRecord second, DistanceContext context) 
+		throws IOException {
+		DistanceStrategy distStrategy = context.getDistStrategy();
+		distStrategy.initialize();
+		for (int i = 0; i < comparators.length; ++i) {
+			FieldComparator comparator = comparators[i];
+			int ordinal = comparator.ordinal;
+			double dist = first.isMissing(ordinal) || second.isMissing(ordinal) ? 1.0 : 
+				comparator.findDistance(first, second, context);
+			distStrategy.accumulate(dist, comparator.field);
+		}
+		return distStrategy.getSimilarity(true);
+	}
+	
+	/**
+	 * Distance between a matching profile and an item
+	 * @param profile
+	 * @param item
+	 * @param context
+	 * @return
+	 * @throws IOException
+	 */
+	public int findProfileDistance(MatchingProfile profile, TypedRecord item, DistanceContext context) 
+		throws IOException {
+		DistanceStrategy distStrategy = context.getDistStrategy();
+		distStrategy.initialize();
+		for (int i = 0; i < comparators.length; ++i) {
+			FieldComparator comparator = comparators[i];
+			distStrategy.accumulate(comparator.findProfileDistance(profile, item, context), comparator.field);
+		}
+		return distStrategy.getSimilarity();
+	}
+}
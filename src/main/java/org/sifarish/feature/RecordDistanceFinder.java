@@ -31,7 +31,8 @@ import org.sifarish.util.Location;
 import org.sifarish.util.TimeWindow;
 
 /**
- * Finds distance between two records. Supports various kinds of attributes
+ * Finds distance between two records. Supports various kinds of attributes. Not thread safe, ScoringEngine
+ * should be used for scoring from many threads
  * @author pranab
  *
  */
@@ -49,6 +50,8 @@ public class RecordDistanceFinder {
 	private DynamicAttrSimilarityStrategy textSimStrategy;
 	private String subFieldDelim;
 	private StructuredTextNormalizer textNormalizer;
+	private RecordComparator recordComparator;
+	private DistanceContext distContext;
 	
     /**
      * @param fieldDelimRegex
@@ -273,6 +276,44 @@ public class RecordDistanceFinder {
 		return netDist;
     }
 
+    /**
+     * Distance between records parsed upfront
+     * @param first
+     * @param second
+     * @return
+     * @throws IOException
+     */
+    public int findDistance(TypedRecord first, TypedRecord second) throws IOException {
+		String firstId =  first.getId();
+		String secondId =  second.getId();
+		
+    	int netDist = 0;
+
+   		//if inter set matching with mixed in sets, match only same ID from different sets
+    	if (mixedInSets) {
+    		//entityID is concatenation of setID and real entityID
+    		String firstEntityId = firstId.substring(setIdSize);
+    		String secondEntityId = secondId.substring(setIdSize);
+    		if (!firstEntityId.equals(secondEntityId)) {
+    			netDist =  distThreshold + 1;
+    			return netDist;
+    		}
+    	}
+    	
+		//compiled lazily, since faceted fields are set after construction
+		if (null == recordComparator) {
+			recordComparator = new RecordComparator(schema, facetedFields, subFieldDelim, distThreshold);
+			distContext = new DistanceContext(distStrategy, textSimStrategy, recordComparator.getActiveOrdinals());
+		}
+		netDist = recordComparator.findDistance(first, second, distContext);
+		
+		//initialize passive fields
+		if (includePassiveFields && null == passiveFields) {
+			passiveFields = recordComparator.findPassiveFields(first.size());
+		}
+		return netDist;
+    }
+
     /**
      * @param field
      * @param firstAttr
@@ -16,28 +16,33 @@
  */
 package org.sifarish.feature;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.WritableComparable;
-import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
@@ -46,11 +51,7 @@ import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.sifarish.util.Event;
 import org.sifarish.util.Field;
-import org.sifarish.util.HourWindow;
-import org.sifarish.util.Location;
-import org.sifarish.util.TimeWindow;
 import org.sifarish.util.Utility;
 
 
@@ -64,9 +65,44 @@ import org.sifarish.util.Utility;
  *
  */
 public class SameTypeSimilarity  extends Configured implements Tool {
+	//changed record in delta mode, shipped as part of the whole set
+	public static final int CHANGED_SET_INDICATOR = 2;
+	private static final Logger LOG = Logger.getLogger(SameTypeSimilarity.class);
+	
     @Override
     public int run(String[] args) throws Exception {
-        Job job = new Job(getConf());
+    	//properties file loaded before any switch is read
+    	Configuration conf = getConf();
+    	Utility.setConfiguration(conf);
+    	if (conf.getBoolean("sts.broadcast.join", false)) {
+    		return runBroadcastJoin(conf, args);
+    	}
+    	
+    	//delta merge works on text output
+    	if (conf.getBoolean("sts.binary.edge.output", false) && conf.getBoolean("sts.delta.mode", false)) {
+    		throw new IllegalArgumentException("binary edge output not supported in delta mode");
+    	}
+    	
+    	//records are joined with text output by ID from data
+    	if (isRecordJoinNeeded(conf) && (conf.getBoolean("sts.binary.edge.output", false) || 
+    			conf.getBoolean("sts.auto.generate.id", false) || conf.getBoolean("sts.inter.set.matching", false))) {
+    		throw new IllegalArgumentException("record projection with whole record output not supported with binary edge output, " + 
+    			"auto generated ID or inter set matching");
+    	}
+    	
+    	//sampling pre pass for bucket count per partition
+    	if (conf.getBoolean("sts.skew.planning", false) && 
+    			!conf.get("sts.candidate.generation", "bucket").equals("blocking")) {
+    		String planDir = conf.get("sts.skew.plan.dir", args[1] + "_skew_plan");
+    		int planStatus = ToolRunner.run(new Configuration(conf), new PartitionSkewPlanner(), 
+    				new String[]{args[0], planDir});
+    		if (0 != planStatus) {
+    			return planStatus;
+    		}
+    		conf.set("sts.partition.bucket.plan.file.path", planDir + "/part-r-00000");
+    	}
+    	
+        Job job = new Job(conf);
         String jobName = "Same type entity similarity MR";
         job.setJobName(jobName);
         
@@ -78,25 +114,136 @@ public class SameTypeSimilarity  extends Configured implements Tool {
         job.setMapperClass(SameTypeSimilarity.SimilarityMapper.class);
         job.setReducerClass(SameTypeSimilarity.SimilarityReducer.class);
         
-        job.setMapOutputKeyClass(TextIntInt.class);
-        job.setMapOutputValueClass(Text.class);
+        job.setMapOutputKeyClass(BlockPairKey.class);
+        job.setMapOutputValueClass(TypedRecord.class);
 
         job.setOutputKeyClass(NullWritable.class);
         job.setOutputValueClass(Text.class);
  
-        job.setGroupingComparatorClass(IdPairGroupComprator.class);
-        job.setPartitionerClass(IdPairPartitioner.class);
+        job.setGroupingComparatorClass(BlockPairKey.GroupComparator.class);
+        job.setPartitionerClass(BlockPairKey.BlockPairPartitioner.class);
 
-        Utility.setConfiguration(job.getConfiguration());
+        //compact binary edge output
+        if (conf.getBoolean("sts.binary.edge.output", false)) {
+        	job.setOutputFormatClass(SimilarityEdgeOutputFormat.class);
+        }
 
-        int numReducer = job.getConfiguration().getInt("sts.num.reducer", -1);
-        numReducer = -1 == numReducer ? job.getConfiguration().getInt("num.reducer", 1) : numReducer;
+        int numReducer = conf.getInt("sts.num.reducer", -1);
+        numReducer = -1 == numReducer ? conf.getInt("num.reducer", 1) : numReducer;
         job.setNumReduceTasks(numReducer);
         
         int status =  job.waitForCompletion(true) ? 0 : 1;
+        
+        //merge delta pairs with previous output
+        String pairPath = args[1];
+        if (0 == status && conf.getBoolean("sts.delta.mode", false) && 
+        		null != conf.get("sts.delta.previous.output.path")) {
+        	pairPath = conf.get("sts.delta.merged.output.path", args[1] + "_merged");
+        	status = ToolRunner.run(new Configuration(conf), new DeltaSimilarityMerger(), 
+        		new String[]{conf.get("sts.delta.previous.output.path"), args[1], pairPath});
+        }
+        
+        //whole records joined with ID pairs, when records were projected in mapper
+        if (0 == status && isRecordJoinNeeded(conf)) {
+        	status = ToolRunner.run(new Configuration(conf), new SimilarityRecordJoiner(), 
+        		new String[]{pairPath, args[0], conf.get("sts.record.join.output.path", args[1] + "_joined")});
+        }
+        
+        //candidate pair reduction with blocking
+        if (0 == status && conf.get("sts.candidate.generation", "bucket").equals("blocking")) {
+        	reportCandidatePairs(job);
+        }
         return status;
     }
     
+    /**
+     * Whole records are output, but only projected records are shuffled
+     * @param conf
+     * @return
+     */
+    private boolean isRecordJoinNeeded(Configuration conf) {
+    	return conf.getBoolean("sts.record.projection", false) && conf.getBoolean("sts.output.record", false) && 
+    		!conf.getBoolean("sts.include.passive.fields", false) && StringUtils.isBlank(conf.get("sts.extra.output.field")) &&
+    		!conf.getBoolean("sts.top.match.in.reducer", false);
+    }
+    
+    /**
+     * Reports candidate pairs compared with blocking against the pairs exhaustive matching would compare.
+     * With a partitioning column, exhaustive count is an upper bound
+     * @param job
+     * @throws IOException
+     */
+    private void reportCandidatePairs(Job job) throws IOException {
+    	Counters counters = job.getCounters();
+    	long candidatePairs = counters.findCounter("Distance Data", "Pairs compared").getValue();
+    	long exhaustivePairs = 0;
+    	if (job.getConfiguration().getBoolean("sts.inter.set.matching",  false) || 
+    			job.getConfiguration().getBoolean("sts.delta.mode",  false)) {
+    		long baseCount = counters.findCounter("Blocking", "Base set records").getValue();
+    		long otherCount = counters.findCounter("Blocking", "Other set records").getValue();
+    		exhaustivePairs = baseCount * otherCount;
+    	} else {
+    		long count = counters.findCounter("Blocking", "Records").getValue();
+    		exhaustivePairs = count * (count - 1) / 2;
+    	}
+    	double reduction = exhaustivePairs > 0 ? 
+    			100.0 * (exhaustivePairs - candidatePairs) / exhaustivePairs : 0;
+    	LOG.info("blocking candidate pairs:" + candidatePairs + " exhaustive pairs:" + exhaustivePairs + 
+    			" reduction:" + String.format("%.2f", reduction) + "%");
+    }
+    
+    /**
+     * Map only job for inter set matching, with base set shipped to all mappers through distributed cache
+     * @param conf
+     * @param args
+     * @return
+     * @throws Exception
+     */
+    private int runBroadcastJoin(Configuration conf, String[] args) throws Exception {
+    	if (!conf.getBoolean("sts.inter.set.matching",  false)) {
+    		throw new IllegalArgumentException("broadcast join is only for inter set matching");
+    	}
+    	String baseSetPath = conf.get("sts.broadcast.base.set.path");
+    	if (null == baseSetPath) {
+    		throw new IllegalArgumentException("base set path for broadcast join not provided");
+    	}
+    	
+        Job job = new Job(conf);
+        String jobName = "Same type entity similarity broadcast join MR";
+        job.setJobName(jobName);
+        
+        job.setJarByClass(SameTypeSimilarity.class);
+        
+        FileInputFormat.addInputPath(job, new Path(args[0]));
+        FileOutputFormat.setOutputPath(job, new Path(args[1]));
+        
+        //base set files, file or directory
+        Path basePath = new Path(baseSetPath);
+        FileSystem fs = basePath.getFileSystem(job.getConfiguration());
+        FileStatus[] statusList = fs.isFile(basePath) ? new FileStatus[]{fs.getFileStatus(basePath)} :
+        	fs.listStatus(basePath);
+        for (FileStatus status : statusList) {
+        	String name = status.getPath().getName();
+        	if (!status.isDir() && !name.startsWith("_") && !name.startsWith(".")) {
+        		DistributedCache.addCacheFile(fs.makeQualified(status.getPath()).toUri(), job.getConfiguration());
+        	}
+        }
+
+        job.setMapperClass(SameTypeSimilarity.BroadcastJoinMapper.class);
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(Text.class);
+
+        //compact binary edge output
+        if (conf.getBoolean("sts.binary.edge.output", false)) {
+        	job.setOutputFormatClass(SimilarityEdgeOutputFormat.class);
+        }
+        
+        //no shuffle
+        job.setNumReduceTasks(0);
+        
+        int status =  job.waitForCompletion(true) ? 0 : 1;
+        return status;
+    }
     
     /**
      * @param args
@@ -107,26 +254,91 @@ public class SameTypeSimilarity  extends Configured implements Tool {
         System.exit(exitCode);
     }
     
+    /**
+     * Blocking key generator, with canopy centers loaded when the schema has canopy fields
+     * @param schema
+     * @param conf
+     * @param subFieldDelim
+     * @return
+     * @throws IOException
+     */
+    private static BlockingKeyGenerator createKeyGenerator(SingleTypeSchema schema, Configuration conf, 
+    	String subFieldDelim) throws IOException {
+    	BlockingKeyGenerator keyGenerator = new BlockingKeyGenerator(schema);
+    	if (keyGenerator.isCanopyBlocking()) {
+    		keyGenerator.setCanopies(CanopyFinder.loadCanopyCenters(schema, conf, "sts.canopy.center.file.path", 
+    			conf.get("field.delim.regex", ","), subFieldDelim));
+    	}
+    	return keyGenerator;
+    }
+    
+    /**
+     * Fields shipped by mapper with record projection, schema fields and extra output fields. Not 
+     * applicable when passive fields are included in output
+     * @param schema
+     * @param conf
+     * @return ordinals of projected fields, null if projection is off
+     */
+    static int[] findProjectedFields(SingleTypeSchema schema, Configuration conf) {
+    	int[] projectedFields = null;
+    	if (conf.getBoolean("sts.record.projection", false) && !conf.getBoolean("sts.include.passive.fields", false)) {
+    		projectedFields = new int[0];
+    		for (Field field : schema.getEntity().getFields()) {
+    			projectedFields = ArrayUtils.add(projectedFields, field.getOrdinal());
+    		}
+        	String extraOutputFieldList = conf.get("sts.extra.output.field");
+        	if (!StringUtils.isBlank(extraOutputFieldList)) {
+        		for (int ordinal : org.chombo.util.Utility.intArrayFromString(extraOutputFieldList)) {
+        			if (!ArrayUtils.contains(projectedFields, ordinal)) {
+        				projectedFields = ArrayUtils.add(projectedFields, ordinal);
+        			}
+        		}
+        	}
+    	}
+    	return projectedFields;
+    }
+    
+    /**
+     * Record with fields that are not projected left empty, so that ordinals don't change
+     * @param items
+     * @param projectedFields
+     * @return
+     */
+    static String[] projectRecord(String[] items, int[] projectedFields) {
+    	String[] projected = new String[items.length];
+    	Arrays.fill(projected, "");
+    	for (int ordinal : projectedFields) {
+    		if (ordinal < items.length) {
+    			projected[ordinal] = items[ordinal];
+    		}
+    	}
+    	return projected;
+    }
+    
     /**
      * @author pranab
      *
      */
-    public static class SimilarityMapper extends Mapper<LongWritable, Text, TextIntInt, Text> {
-        private TextIntInt keyHolder = new TextIntInt();
-        private Text valueHolder = new Text();
+    public static class SimilarityMapper extends Mapper<LongWritable, Text, BlockPairKey, TypedRecord> {
+        private BlockPairKey keyHolder = new BlockPairKey();
+        private TypedRecord valueHolder = new TypedRecord();
         private SingleTypeSchema schema;
         private int bucketCount;
-        private int hash;
+        private int block;
         private int idOrdinal;
         private String fieldDelimRegex;
         private  int partitonOrdinal;
-        private int hashPair;
-        private int hashCode;
    	 	private boolean interSetMatching;
    	 	private  boolean  isBaseSetSplit;
-   	 	private static final int hashMultiplier = 1000;
    	 	private boolean autoGenerateId;
-   	 	private String record;
+   	 	private String subFieldDelim;
+   	 	private boolean blockingMode;
+   	 	private BlockingKeyGenerator keyGenerator;
+   	 	private Map<String, Integer> bucketPlan;
+   	 	private boolean deltaMode;
+   	 	private boolean isChangedSplit;
+   	 	private int coldBucketCount;
+   	 	private int[] projectedFields;
         private static final Logger LOG = Logger.getLogger(SimilarityMapper.class);
  
         /* (non-Javadoc)
@@ -164,7 +376,53 @@ public class SameTypeSimilarity  extends Configured implements Tool {
        	 	if (autoGenerateId && idOrdinal != 0) {
        	 		throw new IllegalArgumentException("when record  Id is auto generated, it should be the first field");
        	 	}
+       	 	subFieldDelim = conf.get("sts.sub.field.delim.regex", "::");
+       	 	
+       	 	//delta mode, changed records against all records
+       	 	deltaMode = conf.getBoolean("sts.delta.mode", false);
+       	 	if (deltaMode) {
+       	 		if (interSetMatching) {
+       	 			throw new IllegalArgumentException("delta mode can not be used with inter set matching");
+       	 		}
+       	 		if (autoGenerateId) {
+       	 			throw new IllegalArgumentException("delta mode requires record Id that does not change across runs");
+       	 		}
+           	 	String changedSetSplitPrefix = conf.get("sts.delta.changed.split.prefix", "changed");
+           	 	isChangedSplit = ((FileSplit)context.getInputSplit()).getPath().getName().startsWith(changedSetSplitPrefix);
+       	 	}
+       	 	
+       	 	//candidate generation by blocking instead of bucket pairs
+       	 	blockingMode = conf.get("sts.candidate.generation", "bucket").equals("blocking");
+       	 	if (blockingMode) {
+       	 		keyGenerator = createKeyGenerator(schema, conf, subFieldDelim);
+       	 	}
+       	 	
+       	 	//bucket count by partition from skew plan, partitions not in plan are cold
+       	 	if (null != conf.get("sts.partition.bucket.plan.file.path")) {
+       	 		loadBucketPlan(conf);
+       	 	}
+       	 	
+       	 	//only fields needed for distance and output are shuffled
+       	 	projectedFields = findProjectedFields(schema, conf);
        }
+        
+        /**
+         * Loads partition value and bucket count for hot partitions
+         * @param conf
+         * @throws IOException
+         */
+        private void loadBucketPlan(Configuration conf) throws IOException {
+        	String fieldDelim = conf.get("field.delim", ",");
+        	bucketPlan = new HashMap<String, Integer>();
+        	List<String> lines = org.chombo.util.Utility.getFileLines(conf, "sts.partition.bucket.plan.file.path");
+        	for (String line : lines) {
+        		//partition value may contain delimiter
+        		int pos = line.lastIndexOf(fieldDelim);
+        		bucketPlan.put(line.substring(0, pos), Integer.parseInt(line.substring(pos + fieldDelim.length())));
+        	}
+        	coldBucketCount = conf.getInt("sts.skew.cold.bucket.count", 1);
+        	LOG.info("hot partitions in bucket plan:" + bucketPlan.size());
+        }
 
         /* (non-Javadoc)
          * @see org.apache.hadoop.mapreduce.Mapper#map(KEYIN, VALUEIN, org.apache.hadoop.mapreduce.Mapper.Context)
@@ -172,51 +430,73 @@ public class SameTypeSimilarity  extends Configured implements Tool {
         @Override
         protected void map(LongWritable key, Text value, Context context)
             throws IOException, InterruptedException {
-        	record = value.toString();
+            String[] items  =  value.toString().split(fieldDelimRegex);
         	if (autoGenerateId) {
-        		record = org.chombo.util.Utility.generateId() + fieldDelimRegex + record;
+        		items = ArrayUtils.add(items, 0, org.chombo.util.Utility.generateId());
         	} 
-            String[] items  =  record.split(fieldDelimRegex);
+        	
+        	//parse once, reducer works with typed fields
+        	valueHolder.initialize(null != projectedFields ? projectRecord(items, projectedFields) : items, 0, idOrdinal, 
+        		schema.getEntity().getFields(), subFieldDelim);
             String partition = partitonOrdinal >= 0 ? items[partitonOrdinal] :  "N";
-       		hashCode = items[idOrdinal].hashCode();
-       		if (hashCode < 0) {
-       			hashCode = - hashCode;
+       		int numBuckets = bucketCount;
+       		if (null != bucketPlan) {
+       			Integer plannedCount = bucketPlan.get(partition);
+       			numBuckets = null != plannedCount ? plannedCount : coldBucketCount;
        		}
             	
-            if (interSetMatching) {
-            	// 2 sets
-	    		hash = hashCode %  bucketCount ;
-            	if (isBaseSetSplit) {
-    	    		for (int i = 0; i < bucketCount;  ++i) {
-	       				hashPair = hash * hashMultiplier +  i;
-	       				keyHolder.set(partition, hashPair,0);
-	       				valueHolder.set("0" + value.toString());
-		    			LOG.debug("hashPair:" + hashPair);
+       		if (blockingMode) {
+       			//emit once per block, records meet only if they share a block
+       			int setIndicator = (interSetMatching && !isBaseSetSplit) || (deltaMode && !isChangedSplit) ? 1 : 0;
+       			String recCounter = interSetMatching || deltaMode ? 
+       				(setIndicator == 0 ? "Base set records" : "Other set records") : "Records";
+				context.getCounter("Blocking", recCounter).increment(1);
+				if (deltaMode && isChangedSplit) {
+					//changed records are also part of the whole set
+					context.getCounter("Blocking", "Other set records").increment(1);
+				}
+       			
+       			List<String> blockKeys = keyGenerator.generateKeys(items);
+       			if (blockKeys.isEmpty()) {
+       				context.getCounter("Blocking", "Records without block key").increment(1);
+       			}
+       			valueHolder.setSetIndicator(setIndicator);
+       			for (String blockKey : blockKeys) {
+       				keyHolder.set(BlockingKeyGenerator.createGroupKey(partition, blockKey), 0, 0, setIndicator);
+	    			LOG.debug("blockKey:" + blockKey);
+	   	   			context.write(keyHolder, valueHolder);
+	   	   			if (deltaMode && isChangedSplit) {
+	   	   				keyHolder.set(BlockingKeyGenerator.createGroupKey(partition, blockKey), 0, 0, 1);
+	   	   				valueHolder.setSetIndicator(CHANGED_SET_INDICATOR);
+	   	   				context.write(keyHolder, valueHolder);
+	   	   				valueHolder.setSetIndicator(setIndicator);
+	   	   			}
+       			}
+				context.getCounter("Blocking", "Block keys emitted").increment(blockKeys.size());
+       		} else if (interSetMatching || deltaMode) {
+            	// 2 sets, in delta mode changed records are in both sets
+	    		block = BlockPairKey.getBlock(items[idOrdinal], numBuckets);
+	    		boolean isBase = deltaMode ? isChangedSplit : isBaseSetSplit;
+            	if (isBase) {
+    	    		for (int i = 0; i < numBuckets;  ++i) {
+	       				keyHolder.set(partition, block, i, 0);
+	       				valueHolder.setSetIndicator(0);
 		   	   			context.write(keyHolder, valueHolder);
     	    		}
-            	} else {
-    	    		for (int i = 0; i < bucketCount;  ++i) {
-	    				hashPair =  i * hashMultiplier  +  hash;
-	       				keyHolder.set(partition, hashPair,1);
-	       				valueHolder.set("1" + value.toString());
-		    			LOG.debug("hashPair:" + hashPair);
+            	} 
+            	if (!isBase || deltaMode) {
+    	    		for (int i = 0; i < numBuckets;  ++i) {
+	       				keyHolder.set(partition, i, block, 1);
+	       				valueHolder.setSetIndicator(isBase ? CHANGED_SET_INDICATOR : 1);
 		   	   			context.write(keyHolder, valueHolder);
     	    		}            		
             	}
             } else {
-            	// 1 set
-	    		hash = (hashCode %  bucketCount) / 2 ;
-	    		for (int i = 0; i < bucketCount;  ++i) {
-	    			if (i < hash){
-	       				hashPair = hash * hashMultiplier +  i;
-	       				keyHolder.set(partition, hashPair,0);
-	       				valueHolder.set("0" + value.toString());
-	       	   		 } else {
-	    				hashPair =  i * hashMultiplier  +  hash;
-	       				keyHolder.set(partition, hashPair,1);
-	       				valueHolder.set("1" + value.toString());
-	    			} 
-	    			LOG.debug("hashPair:" + hashPair);
+            	// 1 set, triangular layout of block pairs
+	    		block = BlockPairKey.getBlock(items[idOrdinal], numBuckets);
+	    		for (int i = 0; i < numBuckets;  ++i) {
+	    			keyHolder.setTriangular(partition, block, i);
+	    			valueHolder.setSetIndicator(keyHolder.getSet());
 	   	   			context.write(keyHolder, valueHolder);
 	    		}
 	        }
@@ -228,26 +508,24 @@ public class SameTypeSimilarity  extends Configured implements Tool {
      * @author pranab
      *
      */
-    public static class SimilarityReducer extends Reducer<TextIntInt, Text, NullWritable, Text> {
+    public static class SimilarityReducer extends Reducer<BlockPairKey, TypedRecord, NullWritable, Text> 
+    	implements ParallelPairEvaluator.ScorerFactory<TypedRecord> {
         private Text valueHolder = new Text();
-        private List<String> valueList = new ArrayList<String>();
-        private Set<String> valueSet = new HashSet<String>();
+        private List<TypedRecord> valueList = new ArrayList<TypedRecord>();
+        private List<TypedRecord> secondValueList = new ArrayList<TypedRecord>();
         private SingleTypeSchema schema;
-        private String firstId;
-        private String  secondId;
-        private int dist;
+        private Configuration conf;
         private int idOrdinal;
         private String fieldDelimRegex;
         private String fieldDelim;
         private int scale;
-        private DistanceStrategy distStrategy;
-        private DynamicAttrSimilarityStrategy textSimStrategy;
+        private RecordComparator recordComparator;
+        private int distanceCacheSize;
+        private boolean earlyAbandon;
         private String subFieldDelim;
         private int[] facetedFields;
-        private int[] passiveFields ;
+        private PairOutputFormatter formatter;
         private boolean includePassiveFields;
-        private String[] firstItems;
-        private String[] secondItems;
         private int  distThreshold;
         private boolean  outputIdFirst ;
         private int setIdSize;
@@ -257,6 +535,29 @@ public class SameTypeSimilarity  extends Configured implements Tool {
         private boolean mixedInSets;
         private int[]  extraOutputFields;
         private boolean outputRecord;
+        private boolean interSetMatching;
+        private boolean deltaMode;
+        private boolean selfJoin;
+        private boolean blockingMode;
+        private BlockingKeyGenerator keyGenerator;
+        private List<List<String>> blockKeyList = new ArrayList<List<String>>();
+        private List<List<String>> secondBlockKeyList = new ArrayList<List<String>>();
+        private String blockKey;
+        private PivotIndex pivotIndex;
+        private NumericColumnKernel columnKernel;
+        private NumericColumnKernel.ColumnBlock firstBlock;
+        private NumericColumnKernel.ColumnBlock secondBlock;
+        private boolean secondRowMajor;
+        private int minPivotIndexSize;
+        private boolean pruning;
+        private List<double[]> secondPivotList = new ArrayList<double[]>();
+        private PairScorer serialScorer;
+        private ParallelPairEvaluator<TypedRecord> parallelEvaluator;
+        private long minParallelPairs;
+        private int secondTileSize;
+        private TopMatchCollector topMatchCollector;
+        private SpillableRecordList spillList;
+        private boolean spilled;
         private static final Logger LOG = Logger.getLogger(SimilarityReducer.class);
         
         
@@ -264,27 +565,17 @@ public class SameTypeSimilarity  extends Configured implements Tool {
     	 * @see org.apache.hadoop.mapreduce.Reducer#setup(org.apache.hadoop.mapreduce.Reducer.Context)
     	 */
     	protected void setup(Context context) throws IOException, InterruptedException {
-			Configuration conf = context.getConfiguration();
+			conf = context.getConfiguration();
         	fieldDelimRegex = conf.get("field.delim.regex", ",");
         	fieldDelim = context.getConfiguration().get("field.delim", ",");
 			
 			//schema
-       		InputStream fs = org.chombo.util.Utility.getFileStream(conf, "sts.same.schema.file.path");
-       	    ObjectMapper mapper = new ObjectMapper();
-            schema = mapper.readValue(fs, SingleTypeSchema.class);
-            schema.processStructuredFields();
-            schema.setConf(conf);
+            schema = loadSchema();
         	
             idOrdinal = schema.getEntity().getIdField().getOrdinal();
         	scale = conf.getInt("sts.distance.scale", 1000);
         	subFieldDelim = conf.get("sts.sub.field.delim.regex", "::");
         	
-        	//distance calculation strategy
-        	distStrategy = schema.createDistanceStrategy(scale);
-
-        	//text field similarity calculation strategy
-        	textSimStrategy = schema.createTextSimilarityStrategy();
-        	
         	//faceted fields
         	String facetedFieldValues =  conf.get("sts.faceted.field.ordinal");
         	if (!StringUtils.isBlank(facetedFieldValues)) {
@@ -297,6 +588,28 @@ public class SameTypeSimilarity  extends Configured implements Tool {
         	//distance threshold for output
         	distThreshold = conf.getInt("sts.dist.threshold", scale);
         	
+        	//schema compiled into field comparators
+        	recordComparator = new RecordComparator(schema, facetedFields, subFieldDelim, distThreshold);
+        	
+        	//memo of attribute distance for repeated values of text and categorical fields
+        	distanceCacheSize = conf.getInt("sts.distance.cache.size", 0);
+        	recordComparator.setDistanceCacheSize(distanceCacheSize);
+        	
+        	//stop evaluating a pair as soon as it can not be within distance threshold
+        	earlyAbandon = recordComparator.setEarlyAbandon(conf.getBoolean("sts.early.abandon", false));
+        	
+        	//pivot based pruning, only when distance is metric
+        	if (conf.getBoolean("sts.pivot.pruning", false)) {
+        		if (recordComparator.isMetric()) {
+        			int pivotCount = conf.getInt("sts.pivot.count", 4);
+        			pivotIndex = new PivotIndex(recordComparator, pivotCount, scale, distThreshold);
+        			minPivotIndexSize = conf.getInt("sts.pivot.min.group.size", 4 * pivotCount);
+        		} else {
+        			LOG.info("pivot pruning disabled, distance is not metric for the schema");
+        			context.getCounter("Pivot Pruning", "Disabled non metric").increment(1);
+        		}
+        	}
+        	
         	//output ID first
         	outputIdFirst =   conf.getBoolean("sts.output.id.first", true);      	
 
@@ -314,463 +627,957 @@ public class SameTypeSimilarity  extends Configured implements Tool {
         	//output whole record
         	outputRecord =  conf.getBoolean("sts.output.record", false);     
         	
+        	//projected records are not whole, ID pairs are joined with records afterwards by SimilarityRecordJoiner
+        	if (outputRecord && null == extraOutputFields && null != findProjectedFields(schema, conf)) {
+        		outputRecord = false;
+        	}
+        	
+        	//inter set matching
+        	interSetMatching = conf.getBoolean("sts.inter.set.matching",  false);
+        	
+        	//delta mode, changed records against all records
+        	deltaMode = conf.getBoolean("sts.delta.mode", false);
+        	
+        	//candidate generation by blocking
+        	blockingMode = conf.get("sts.candidate.generation", "bucket").equals("blocking");
+        	if (blockingMode) {
+        		keyGenerator = createKeyGenerator(schema, conf, subFieldDelim);
+        	}
+        	
+        	//top matches per entity in reducer, only ID pair and distance in pair output
+        	if (conf.getBoolean("sts.top.match.in.reducer", false)) {
+        		topMatchCollector = new TopMatchCollector(conf.getInt("sts.top.match.count", 10), 
+        			conf.getInt("sts.top.match.max.entity.count", 100000), fieldDelim);
+        		outputIdFirst = true;
+        		includePassiveFields = false;
+        		extraOutputFields = null;
+        		outputRecord = false;
+        	}
+        	formatter = new PairOutputFormatter(fieldDelim, outputIdFirst, extraOutputFields, outputRecord);
+        	
+        	//columnar distance for numeric schema
+        	if (conf.getBoolean("sts.columnar.kernel", false)) {
+        		if (NumericColumnKernel.isApplicable(recordComparator)) {
+        			columnKernel = new NumericColumnKernel(recordComparator, scale, 
+        				conf.getInt("sts.columnar.tile.size", 256));
+        		} else {
+        			context.getCounter("Columnar", "Disabled non numeric").increment(1);
+        		}
+        	}
+        	
+        	//bounded memory for large groups, spilled groups are joined as block nested loop
+        	int spillMemoryBudget = conf.getInt("sts.spill.memory.budget.mb", 0);
+        	if (spillMemoryBudget > 0) {
+        		String spillDir = conf.get("sts.spill.dir");
+        		spillList = new SpillableRecordList(spillMemoryBudget * 1024L * 1024L, 
+        			null != spillDir ? new File(spillDir) : null);
+        	}
+        	
+        	//pair evaluation in multiple threads, each thread with it's own scorer
+        	serialScorer = new PairScorer(recordComparator);
+        	int numThreads = conf.getInt("sts.parallel.thread.count", 1);
+        	if (numThreads > 1) {
+        		parallelEvaluator = new ParallelPairEvaluator<TypedRecord>(numThreads, 
+        			conf.getInt("sts.parallel.tile.size", 64), conf.getInt("sts.parallel.queue.size", 10000), this);
+        		minParallelPairs = conf.getLong("sts.parallel.min.pair.count", 10000);
+        		secondTileSize = conf.getInt("sts.parallel.tile.size", 64);
+        		parallelEvaluator.setOutputSink(topMatchCollector);
+        	}
+        	
             if (conf.getBoolean("debug.on", false)) {
              	LOG.setLevel(Level.DEBUG);
             }
       }
+    	
+    	/**
+    	 * @return
+    	 * @throws IOException
+    	 */
+    	private SingleTypeSchema loadSchema() throws IOException {
+       		InputStream fs = org.chombo.util.Utility.getFileStream(conf, "sts.same.schema.file.path");
+       	    ObjectMapper mapper = new ObjectMapper();
+       	    SingleTypeSchema schema = mapper.readValue(fs, SingleTypeSchema.class);
+            schema.processStructuredFields();
+            schema.setConf(conf);
+            return schema;
+    	}
+    	
+    	/* (non-Javadoc)
+    	 * @see org.sifarish.feature.ParallelPairEvaluator.ScorerFactory#createScorer()
+    	 */
+    	public PairScorer createScorer() throws IOException {
+    		//own schema, since structured fields have distance strategy with state
+    		RecordComparator scorerComparator = new RecordComparator(loadSchema(), facetedFields, subFieldDelim, 
+    			distThreshold);
+    		scorerComparator.setDistanceCacheSize(distanceCacheSize);
+    		scorerComparator.setEarlyAbandon(earlyAbandon);
+    		return new PairScorer(scorerComparator);
+    	}
+        
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Reducer#cleanup(org.apache.hadoop.mapreduce.Reducer.Context)
+         */
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+        	if (null != topMatchCollector) {
+        		topMatchCollector.flush(context);
+        	}
+        	serialScorer.flushCounters(context);
+        	if (null != spillList) {
+        		spillList.clear();
+        	}
+        	if (null != parallelEvaluator) {
+        		parallelEvaluator.flushCounters(context);
+        		parallelEvaluator.shutdown();
+        	}
+        }
         
         /* (non-Javadoc)
          * @see org.apache.hadoop.mapreduce.Reducer#reduce(KEYIN, java.lang.Iterable, org.apache.hadoop.mapreduce.Reducer.Context)
          */
-        protected void reduce(TextIntInt  key, Iterable<Text> values, Context context)
+        protected void reduce(BlockPairKey  key, Iterable<TypedRecord> values, Context context)
         throws IOException, InterruptedException {
         	valueList.clear();
+        	secondValueList.clear();
+        	blockKeyList.clear();
+        	secondBlockKeyList.clear();
+        	secondPivotList.clear();
+        	pruning = false;
+        	firstBlock = secondBlock = null;
+        	spilled = false;
+        	if (null != spillList) {
+        		spillList.clear();
+        	}
         	inFirstBucket = true;
         	firstBucketSize = secondBucketSize = 0;
-        	int secondPart = key.getSecond().get();
-        	LOG.debug("reducer key hash pair:" + secondPart);
-        	if (secondPart/1000 == secondPart%1000){
-        		//same hash bucket
-	        	for (Text value : values){
-	        		String valSt = value.toString();
-	        		valueList.add(valSt.substring(1));
+        	LOG.debug("reducer key block pair:" + key.getFirstBlock() + "," + key.getSecondBlock());
+        	
+        	//self join only for single set, with blocking every group is a self join
+        	if (blockingMode) {
+        		blockKey = BlockingKeyGenerator.extractBlockKey(key.getPartition().toString());
+        		selfJoin = !interSetMatching && !deltaMode;
+        	} else {
+        		selfJoin = !interSetMatching && !deltaMode && key.isDiagonal();
+        	}
+        	
+        	if (selfJoin){
+        		//same block
+	        	for (TypedRecord value : values){
+	        		if (null != spillList) {
+	        			spillList.add(value);
+	        		} else {
+	        			addFirstRecord(value.createClone());
+	        		}
 	        	}
-	        	firstBucketSize = secondBucketSize = valueList.size();
-	        	for (int i = 0;  i < valueList.size();  ++i){
-	        		String first = valueList.get(i);
-	        		firstId =  first.split(fieldDelimRegex)[idOrdinal];
-	        		for (int j = i+1;  j < valueList.size();  ++j) {
-	            		String second = valueList.get(j);
-	            		secondId =  second.split(fieldDelimRegex)[idOrdinal];
-	            		if (!firstId.equals(secondId)){
-		        			dist  = findDistance( first,  second,  context);
-		        			if (dist <= distThreshold) {
-		        				valueHolder.set(createValueField(first, first));
-		        				context.write(NullWritable.get(), valueHolder);
-		        			}
-	            		} else {
-	    					context.getCounter("Distance Data", "Same ID").increment(1);
-	    					LOG.debug("Repeat:" + firstId );
-	            		}
-	   				}
+	        	if (null != spillList) {
+	        		spilled = spillList.isSpilled();
+	        		if (!spilled) {
+	        			addFirstRecords(spillList.getMemoryRecords());
+	        		}
+	        	}
+	        	
+	        	if (spilled) {
+	        		joinSpilled(context);
+	        	} else {
+		        	firstBucketSize = secondBucketSize = valueList.size();
+		        	pruning = buildPivotIndex(context);
+		        	buildColumnBlocks();
+		        	intializePassiveFields();
+		        	long numPairs = (long)valueList.size() * (valueList.size() - 1) / 2;
+		        	if (null != parallelEvaluator && numPairs >= minParallelPairs) {
+		        		parallelEvaluator.evaluate(valueList, valueList, true, context);
+		        	} else {
+			        	for (int i = 0;  i < valueList.size();  ++i){
+			        		TypedRecord first = valueList.get(i);
+			        		for (int j = i+1;  j < valueList.size();  ++j) {
+			        			emit(first, valueList.get(j), i, j, context);
+			   				}
+			        	}
+		        	}
 	        	}
         	} else {
-        		//different hash bucket
-	        	for (Text value : values){
-	        		String valSt = value.toString();
-	        		if (valSt.startsWith("0")) {
-	        			valueList.add(valSt.substring(1));
+        		//different blocks
+	        	for (TypedRecord value : values){
+	        		if (value.getSetIndicator() == 0) {
+	        			if (null != spillList) {
+	        				spillList.add(value);
+	        			} else {
+	        				addFirstRecord(value.createClone());
+	        			}
+	        		} else if (spilled || inFirstBucket && null != spillList && spillList.isSpilled()) {
+	        			//block of second set against all blocks of the first set
+	        			if (inFirstBucket) {
+	        				firstBucketSize = spillList.size();
+	        				inFirstBucket = false;
+	        				spilled = true;
+	        			}
+	        			++secondBucketSize;
+	        			secondValueList.add(value.createClone());
+	        			if (secondValueList.size() >= spillList.getMemoryRecords().size()) {
+	        				joinSpilled(context);
+	        			}
 	        		} else {
 	        			if (inFirstBucket) {
+	        				if (null != spillList) {
+	        					addFirstRecords(spillList.getMemoryRecords());
+	        				}
 	        				firstBucketSize = valueList.size();
 	        				inFirstBucket = false;
+	        				pruning = buildPivotIndex(context);
+	        				buildColumnBlocks();
+	        				intializePassiveFields();
 	        			}
 	        			++secondBucketSize;
-	        			String second = valSt.substring(1);
-	            		secondId =  second.split(fieldDelimRegex)[idOrdinal];
-	            		for (String first : valueList){
-	                		firstId =  first.split(fieldDelimRegex)[idOrdinal];
-	                		LOG.debug("ID pair:" + firstId + "  " +  secondId);
-		        			dist  = findDistance( first,  second,  context);
-		        			if (dist <= distThreshold) {
-		        				valueHolder.set(createValueField(first, second));
-		        				context.write(NullWritable.get(), valueHolder);
-		        			}
-	            		}
+	        			if (null != parallelEvaluator) {
+	        				//second set in tiles for parallel evaluation, only a tile is held in memory
+	        				TypedRecord second = value.createClone();
+	        				secondValueList.add(second);
+	        				addSecondRecordState(second);
+	        				if (secondValueList.size() >= secondTileSize) {
+	        					evaluateSecondTile(context);
+	        				}
+	        			} else {
+	        				//match with all items of first set as they stream in
+	        				secondValueList.clear();
+	        				secondBlockKeyList.clear();
+	        				secondPivotList.clear();
+	        				secondValueList.add(value);
+	        				addSecondRecordState(value);
+	        				if (null != columnKernel) {
+	        					secondBlock = columnKernel.createBlock(secondValueList);
+	        				}
+		            		for (int i = 0;  i < valueList.size();  ++i){
+		            			emit(valueList.get(i), value, i, 0, context);
+		            		}
+	        			}
 	        		}
 	        	}
+	        	
+	        	if (spilled && !secondValueList.isEmpty()) {
+	        		joinSpilled(context);
+	        	} else if (null != parallelEvaluator && !secondValueList.isEmpty()) {
+	        		evaluateSecondTile(context);
+	        	}
         	}
         	
-        	LOG.debug("bucket pair:" + key.getSecond() + " firstBucketSize:" + firstBucketSize +  
+        	if (spilled) {
+        		context.getCounter("Spill", "Bytes spilled").increment(spillList.getSpillBytes());
+        	}
+        	if (null != pivotIndex) {
+        		context.getCounter("Pivot Pruning", "Pivot distances").increment(pivotIndex.flushDistanceCount());
+        	}
+        	if (null != topMatchCollector && topMatchCollector.isFull()) {
+        		topMatchCollector.flush(context);
+        	}
+        	LOG.debug("block pair:" + key.getFirstBlock() + "," + key.getSecondBlock() + " firstBucketSize:" + firstBucketSize +  
         			" secondBucketSize:" + secondBucketSize);
         }    
         
         /**
+         * Evaluates buffered records of the second set against all records of the first set and 
+         * releases them
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        private void evaluateSecondTile(Context context) throws IOException, InterruptedException {
+    		if (null != columnKernel) {
+    			secondBlock = columnKernel.createBlock(secondValueList);
+    		}
+        	long numPairs = (long)valueList.size() * secondValueList.size();
+        	if (numPairs >= minParallelPairs) {
+        		parallelEvaluator.evaluate(valueList, secondValueList, false, context);
+        	} else {
+        		joinBlocks(context);
+        	}
+        	secondValueList.clear();
+        	secondBlockKeyList.clear();
+        	secondPivotList.clear();
+        }
+        
+        /**
+         * Scores a pair in the reducer thread. Pair is formatted only when it's written and not when
+         * it goes to top match collector
          * @param first
          * @param second
+         * @param firstIndex
+         * @param secondIndex
          * @param context
-         * @return
-         * @throws IOException 
+         * @throws IOException
+         * @throws InterruptedException
          */
-        private int findDistance(String first, String second, Context context) throws IOException {
-        	//LOG.debug("findDistance:" + first + "  " + second);
-        	int netDist = 0;
-
-       		//if inter set matching with mixed in sets, match only same ID from different sets
-        	if (mixedInSets) {
-        		//entityID is concatenation of setID and real entityID
-        		String firstEntityId = firstId.substring(setIdSize);
-        		String secondEntityId = secondId.substring(setIdSize);
-        		if (!firstEntityId.equals(secondEntityId)) {
-        			netDist =  distThreshold + 1;
-					context.getCounter("Distance Data", "Diff ID from separate sets").increment(1);
-        			return netDist;
+        private void emit(TypedRecord first, TypedRecord second, int firstIndex, int secondIndex, Context context) 
+        	throws IOException, InterruptedException {
+        	int dist = serialScorer.score(first, second, firstIndex, secondIndex);
+        	if (dist != ParallelPairEvaluator.NOT_SCORED) {
+        		if (null != topMatchCollector) {
+        			topMatchCollector.collect(first.getId(), second.getId(), dist);
+        		} else {
+        			valueHolder.set(serialScorer.format(first, second, dist));
+        			context.write(NullWritable.get(), valueHolder);
         		}
         	}
-        	
-    		firstItems = first.split(fieldDelimRegex);
-    		secondItems = second.split(fieldDelimRegex);
-    		double dist = 0;
-    		boolean valid = false;
-    		distStrategy.initialize();
-    		List<Integer> activeFields = null;
-    		
-    		boolean thresholdCrossed = false;
-    		for (Field field :  schema.getEntity().getFields()) {
-    			if (null != facetedFields) {
-    				//if facetted set but field not included, then skip it
-    				if (!ArrayUtils.contains(facetedFields, field.getOrdinal())) {
-    					continue;
-    				}
-    			}
-    			
-    			//if ID or class attribute field, skip it
-    			if (field.isId() ||  field.isClassAttribute()) {
-    				continue;
-    			}
-    			
-    			//track fields participating is dist calculation
-    			if (includePassiveFields && null == passiveFields) {
-    				if (null == activeFields) {
-    					activeFields = new ArrayList<Integer>();
-    				}
-    				activeFields.add(field.getOrdinal());
-    			}
-    			
-    			//extract fields
-    			String firstAttr = "";
-    			if (field.getOrdinal() < firstItems.length ){
-    				firstAttr = firstItems[field.getOrdinal()];
-    			} else {
-    				throw new IOException("Invalid field ordinal. Looking for field " + field.getOrdinal() + 
-    						" found "  + firstItems.length + " fields in the record:" + first);
-    			}
-    			
-    			String secondAttr = "";
-    			if (field.getOrdinal() < secondItems.length ){
-    				secondAttr = secondItems[field.getOrdinal()];
-    			}else {
-    				throw new IOException("Invalid field ordinal. Looking for field " + field.getOrdinal() + 
-    						" found "  + secondItems.length + " fields in the record:" + second);
-    			}
-    			String unit = field.getUnit();
-    			
-    			if (firstAttr.isEmpty() || secondAttr.isEmpty() ) {
-    				//handle missing value
-					context.getCounter("Missing Data", "Field:" + field.getOrdinal()).increment(1);
-					String missingValueHandler = schema.getMissingValueHandler();
-    				if (missingValueHandler.equals("default")) {
-       					context.getCounter("Missing Data", "Distance Set at Max").increment(1);
-       				    dist = 1.0;
-    				} else if (missingValueHandler.equals("skip")) {
-    					context.getCounter("Missing Data", "FieldSkipped").increment(1);
-    					continue;
-    				} else {
-    					//custom handler
-    					
-    				}
-    			} else {
-    				dist = 0;
-	    			if (field.getDataType().equals(Field.DATA_TYPE_CATEGORICAL)) {
-	    				//categorical
-	    				dist = field.findDistance(firstAttr, secondAttr);
-	    			} else if (field.getDataType().equals(Field.DATA_TYPE_INT)) {
-	    				//int
-	    				dist = numericDistance(field,  firstAttr,  secondAttr,  true, context);
-	    			} else if (field.getDataType().equals(Field.DATA_TYPE_DOUBLE)) {
-	    				//double
-	    				dist =  numericDistance( field,  firstAttr,  secondAttr, false, context);
-	    			} else if (field.getDataType().equals(Field.DATA_TYPE_TEXT)) { 
-	    				//text
-	    				dist = textSimStrategy.findDistance(firstAttr, secondAttr);	    				
-	    			} else if (field.getDataType().equals(Field.DATA_TYPE_TIME_WINDOW)) {
-	    				//time window
-	    				dist = timeWindowDistance(field, firstAttr,  secondAttr, context);
-	    			} else if (field.getDataType().equals(Field.DATA_TYPE_HOUR_WINDOW)) {
-	    				//hour window
-	    				dist = hourWindowDistance(field, firstAttr,  secondAttr, context);
-	    			}   else if (field.getDataType().equals(Field.DATA_TYPE_LOCATION)) {
-	    				//location
-	    				dist = locationDistance(field, firstAttr,  secondAttr, context);
-	    			} else if (field.getDataType().equals(Field.DATA_TYPE_GEO_LOCATION)) {
-	    				//geo location
-	    				dist = geoLocationDistance(field, firstAttr,  secondAttr, context);
-	    			}  else if (field.getDataType().equals(Field.DATA_TYPE_EVENT)) {
-	    				//event
-	    				dist = eventDistance(field, firstAttr,  secondAttr, context);
-	    			}
-    			}
-    			
-    			//if threshold crossed for this attribute, skip the remaining attributes of the entity pair
-    			thresholdCrossed = field.isDistanceThresholdCrossed(dist);
-    			if (thresholdCrossed){
-					context.getCounter("Distance Data", "Attribute distance threshold filter").increment(1);
-    				break;
-    			}
-    			
-    			//aggregate attribute  distance for all entity attributes
-				distStrategy.accumulate(dist, field);
-    		}  
-    		
-    		//initialize passive fields
-			if (includePassiveFields && null == passiveFields) {
-				intializePassiveFieldOrdinal(activeFields, firstItems.length);
-			}
-			
-    		netDist = thresholdCrossed?  distThreshold + 1  : distStrategy.getSimilarity();
-    		return netDist;
         }
         
         /**
-         * @param activeFields
-         * @param numFields
+         * @param record
          */
-        private void intializePassiveFieldOrdinal(List<Integer> activeFields, int numFields) {
-        	int len = numFields - activeFields.size();
-        	if (len > 0) {
-        		//all fields that are not active i.e not defined in schema
-	        	passiveFields = new int[len];
-	        	for (int i = 0,j=0; i < numFields; ++i) {
-	        		if (!activeFields.contains(i) ) {
-	        			passiveFields[j++] = i;
-	        		}
-	        	}
-        	}
+        private void addFirstRecord(TypedRecord record) {
+        	serialScorer.prepare(record);
+        	valueList.add(record);
+    		if (blockingMode) {
+    			blockKeyList.add(keyGenerator.generateKeys(record.getItems()));
+    		}
         }
         
         /**
-         * generates output to emit
-         * @return
+         * @param records
          */
-        private String createValueField(String first, String second) {
-        	StringBuilder stBld = new StringBuilder();
-        	
-        	if (outputIdFirst) {
-        		stBld.append(firstId).append(fieldDelim).append(secondId).append(fieldDelim);
+        private void addFirstRecords(List<TypedRecord> records) {
+        	for (TypedRecord record : records) {
+        		addFirstRecord(record);
         	}
-        	
-        	//include passive fields
-        	if (null != passiveFields) {
-        		for (int i :  passiveFields) {
-        			stBld.append(firstItems[i]).append(fieldDelim);
+        }
+        
+        /**
+         * Block nested loop join of a group that did not fit in memory. For self join, pairs within each 
+         * block and pairs across blocks are evaluated. Otherwise the buffered block of the second set is 
+         * evaluated against each block of the first set. Evaluated serially, without pruning and columnar 
+         * distance
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        private void joinSpilled(Context context) throws IOException, InterruptedException {
+        	if (selfJoin) {
+        		context.getCounter("Spill", "Self join groups spilled").increment(1);
+        		firstBucketSize = secondBucketSize = spillList.size();
+        		int numBlocks = spillList.getBlockCount();
+        		for (int b = 0; b < numBlocks; ++b) {
+        			valueList.clear();
+        			blockKeyList.clear();
+        			addFirstRecords(spillList.readBlock(b));
+        			intializePassiveFields();
+        			
+        			//within block
+        			for (int i = 0;  i < valueList.size();  ++i){
+        				TypedRecord first = valueList.get(i);
+        				for (int j = i+1;  j < valueList.size();  ++j) {
+        					emit(first, valueList.get(j), i, j, context);
+        				}
+        			}
+        			
+        			//across blocks
+        			selfJoin = false;
+        			for (int c = b + 1; c < numBlocks; ++c) {
+        				secondValueList.clear();
+        				secondBlockKeyList.clear();
+        				secondValueList.addAll(spillList.readBlock(c));
+        				for (TypedRecord second : secondValueList) {
+        					addSecondRecordState(second);
+        				}
+        				joinBlocks(context);
+        				context.getCounter("Spill", "Blocks read").increment(1);
+        			}
+        			selfJoin = true;
         		}
-        		for (int i :  passiveFields) {
-        			stBld.append(secondItems[i]).append(fieldDelim);
+        	} else {
+        		context.getCounter("Spill", "Second set blocks joined").increment(1);
+        		secondBlockKeyList.clear();
+        		for (TypedRecord second : secondValueList) {
+        			addSecondRecordState(second);
         		}
+        		for (int b = 0; b < spillList.getBlockCount(); ++b) {
+        			valueList.clear();
+        			blockKeyList.clear();
+        			addFirstRecords(spillList.readBlock(b));
+        			intializePassiveFields();
+        			joinBlocks(context);
+        			context.getCounter("Spill", "Blocks read").increment(1);
+        		}
+        		secondValueList.clear();
+        		secondBlockKeyList.clear();
         	}
-        	
-        	if (!outputIdFirst) {
-        		stBld.append(firstId).append(fieldDelim).append(secondId).append(fieldDelim);
-        	}
-        	if (null != extraOutputFields) {
-        		appendExtraField(firstItems, stBld);
-        		appendExtraField(secondItems, stBld);
-        	} else if (outputRecord) {
-        		appendRecord(first, stBld);
-        		appendRecord(second, stBld);
-        	}
-        	stBld.append(dist);
-        	return stBld.toString();
         }
-
+        
         /**
-         * adds selected fields in the output
-         * @param value
-         * @param stBld
+         * All pairs of a block of the first set and a block of the second set
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
          */
-        private void appendExtraField(String[] items, StringBuilder stBld) {
-        	for (int extraOutputField : extraOutputFields) {
-        		if (extraOutputField < items.length) {
-        			stBld.append(fieldDelim).append(items[extraOutputField]);
+        private void joinBlocks(Context context) throws IOException, InterruptedException {
+        	for (int i = 0;  i < valueList.size();  ++i){
+        		TypedRecord first = valueList.get(i);
+        		for (int j = 0;  j < secondValueList.size();  ++j) {
+        			emit(first, secondValueList.get(j), i, j, context);
         		}
         	}
         }
         
         /**
-         * appends whole record
-         * @param record
-         * @param stBld
+         * Block keys and pivot distances of a record from the second set
+         * @param second
+         * @throws IOException
          */
-        private void appendRecord(String record, StringBuilder stBld) {
-        	stBld.append(fieldDelim).append(record);
+        private void addSecondRecordState(TypedRecord second) throws IOException {
+        	serialScorer.prepare(second);
+    		if (blockingMode) {
+    			secondBlockKeyList.add(keyGenerator.generateKeys(second.getItems()));
+    		}
+    		if (pruning) {
+    			secondPivotList.add(pivotIndex.findPivotDistances(second));
+    		}
         }
         
         /**
-         * @param field
-         * @param firstAttr
-         * @param secondAttr
+         * Builds pivot index on buffered records, if the group is large enough to make it worthwhile
          * @param context
-         * @return
+         * @return true if pruning is on for the group
+         * @throws IOException
          */
-        private double numericDistance(Field field, String firstAttr,  String secondAttr, boolean isInt, Context context) {
-        	double dist = 0;
-			String[] firstValItems = firstAttr.split("\\s+");
-			String[] secondValItems = secondAttr.split("\\s+");
-			boolean valid = false;
-    		String unit = field.getUnit();
-
-    		if (firstValItems.length == 1 && secondValItems.length == 1){
-				valid = true;
-			} else if (firstValItems.length == 2 && secondValItems.length == 2 && 
-					firstValItems[1].equals(unit) && secondValItems[1].equals(unit)) {
-				valid = true;
-			}
-			
-			if (valid) {
-				try {
-					if (isInt) {
-	    				dist = field.findDistance(Integer.parseInt(firstValItems[0]), Integer.parseInt(secondValItems[0]), 
-	        					schema.getNumericDiffThreshold());
-					} else {
-						dist = field.findDistance(Double.parseDouble(firstValItems[0]), Double.parseDouble(secondValItems[0]), 
-							schema.getNumericDiffThreshold());
-					}
-				} catch (NumberFormatException nfEx) {
-					context.getCounter("Invalid Data Format", "Field:" + field.getOrdinal()).increment(1);
-				}
-			} else {
+        private boolean buildPivotIndex(Context context) throws IOException {
+        	boolean pruning = null != pivotIndex && valueList.size() >= minPivotIndexSize;
+        	if (pruning) {
+        		pivotIndex.build(valueList);
+        	}
+        	return pruning;
+        }
+        
+        /**
+         * Column layout of buffered records. When the second set streams in, each second record is 
+         * matched with all buffered records, so distances are found by rows of the second set
+         */
+        private void buildColumnBlocks() {
+        	if (null != columnKernel) {
+        		firstBlock = columnKernel.createBlock(valueList);
+        		secondRowMajor = !selfJoin && null == parallelEvaluator;
+        	}
+        }
+        
+        /**
+         * Passive fields, initialized before pairs are evaluated by multiple threads
+         */
+        private void intializePassiveFields() {
+			if (includePassiveFields && null == formatter.getPassiveFields() && !valueList.isEmpty()) {
+				formatter.setPassiveFields(recordComparator.findPassiveFields(valueList.get(0).size()));
 			}
-        	return dist;
-        }       
+        }
         
         /**
-         * Distance as overlap between time ranges
-         * @param field
-         * @param firstAttr
-         * @param secondAttr
-         * @param context
-         * @return
+         * Counters of pair scorers
+         * @author pranab
+         *
          */
-        private double timeWindowDistance(Field field, String firstAttr, String secondAttr,Context context) {
-        	double dist = 0;
-    		try {
-    			String[] subFields = firstAttr.split(subFieldDelim);
-    			TimeWindow firstTimeWindow = new TimeWindow(subFields[0], subFields[1]);
-    			subFields = secondAttr.split(subFieldDelim);
-    			TimeWindow secondTimeWindow = new TimeWindow(subFields[0], subFields[1]);
-
-    			dist = field.findDistance(firstTimeWindow, secondTimeWindow);
-    		} catch (ParseException e) {
-    			context.getCounter("Invalid Data Format", "Field:" + field.getOrdinal()).increment(1);
-    		}
-        	return dist;
-        }    
+        private static enum ScorerCounter implements ParallelPairEvaluator.PairCounter {
+        	SAME_ID("Distance Data", "Same ID"),
+        	CHANGED_PAIR_SKIPPED("Delta", "Changed pair skipped"),
+        	REDUNDANT_PAIR_SKIPPED("Blocking", "Redundant pairs skipped"),
+        	PAIR_COMPARED("Distance Data", "Pairs compared"),
+        	PAIR_PRUNED("Pivot Pruning", "Pairs pruned"),
+        	PAIR_EVALUATED("Pivot Pruning", "Pairs evaluated"),
+        	DIFF_ID_SEPARATE_SETS("Distance Data", "Diff ID from separate sets"),
+        	PAIR_NOT_BY_COLUMN("Columnar", "Pairs not evaluated by column");
+        	
+        	private String group;
+        	private String name;
+        	
+        	private ScorerCounter(String group, String name) {
+        		this.group = group;
+        		this.name = name;
+        	}
+        	
+        	public String getGroup() {
+        		return group;
+        	}
+        	
+        	public String getName() {
+        		return name;
+        	}
+        }
         
         /**
-         * @param field
-         * @param firstAttr
-         * @param secondAttr
-         * @param context
-         * @return
+         * Scores record pairs. Group state in the reducer is only read while pairs are evaluated. One
+         * instance per thread
+         * @author pranab
+         *
          */
-        private double hourWindowDistance(Field field, String firstAttr, String secondAttr,Context context) {
-        	double dist = 0;
-    		try {
-    			String[] subFields = firstAttr.split(subFieldDelim);
-    			HourWindow firstTimeWindow = new HourWindow(subFields[0], subFields[1]);
-    			subFields = secondAttr.split(subFieldDelim);
-    			HourWindow secondTimeWindow = new HourWindow(subFields[0], subFields[1]);
-
-    			dist = field.findDistance(firstTimeWindow, secondTimeWindow);
-    		} catch (ParseException e) {
-    			context.getCounter("Invalid Data Format", "Field:" + field.getOrdinal()).increment(1);
-    		}
-        	return dist;
-        }    
+        private class PairScorer extends ParallelPairEvaluator.PairScorer<TypedRecord> {
+        	private RecordComparator recordComparator;
+        	private DistanceContext distContext;
+        	private NumericColumnKernel.RowCursor cursor;
+        	
+        	/**
+        	 * @param recordComparator
+        	 */
+        	public PairScorer(RecordComparator recordComparator) {
+        		super(ScorerCounter.values());
+        		this.recordComparator = recordComparator;
+        		distContext = recordComparator.createContext(scale);
+        		if (null != columnKernel) {
+        			cursor = columnKernel.createCursor();
+        		}
+        	}
+        	
+        	/* (non-Javadoc)
+        	 * @see org.sifarish.feature.ParallelPairEvaluator.PairScorer#score(java.lang.Object, java.lang.Object, int, int)
+        	 */
+        	public int score(TypedRecord first, TypedRecord second, int firstIndex, int secondIndex) 
+        		throws IOException {
+        		int output = ParallelPairEvaluator.NOT_SCORED;
+        		String firstId = first.getId();
+        		String secondId = second.getId();
+        		List<List<String>> secondKeys = selfJoin ? blockKeyList : secondBlockKeyList;
+        		if (!interSetMatching && firstId.equals(secondId)) {
+        			//same entity, also across blocks of a spilled group and between changed and whole set
+					increment(ScorerCounter.SAME_ID);
+					LOG.debug("Repeat:" + firstId );
+        		} else if (deltaMode && second.getSetIndicator() == CHANGED_SET_INDICATOR && 
+        				firstId.compareTo(secondId) >= 0) {
+        			//pair of changed records is seen from both sides, evaluated only once
+        			increment(ScorerCounter.CHANGED_PAIR_SKIPPED);
+        		} else if (blockingMode && !BlockingKeyGenerator.isFirstCommonKey(blockKeyList.get(firstIndex), 
+        				secondKeys.get(secondIndex), blockKey)) {
+        			//pair sharing multiple blocks is compared only in the first common block
+        			increment(ScorerCounter.REDUNDANT_PAIR_SKIPPED);
+        		} else {
+        			increment(ScorerCounter.PAIR_COMPARED);
+        			if (pruning && pivotIndex.canPrune(firstIndex, selfJoin ? pivotIndex.getPivotDistances(secondIndex) : 
+        					secondPivotList.get(secondIndex))) {
+        				increment(ScorerCounter.PAIR_PRUNED);
+        			} else {
+        				if (pruning) {
+        					increment(ScorerCounter.PAIR_EVALUATED);
+        				}
+        				int dist  = findDistance(first, second, firstId, secondId, firstIndex, secondIndex);
+        				if (dist <= distThreshold) {
+        					output = dist;
+        				}
+        			}
+        		}
+        		return output;
+        	}
+        	
+        	/* (non-Javadoc)
+        	 * @see org.sifarish.feature.ParallelPairEvaluator.PairScorer#format(java.lang.Object, java.lang.Object, int)
+        	 */
+        	public String format(TypedRecord first, TypedRecord second, int distance) {
+        		return formatter.format(first, second, first.getId(), second.getId(), distance);
+        	}
+        	
+        	/* (non-Javadoc)
+        	 * @see org.sifarish.feature.ParallelPairEvaluator.PairScorer#getId(java.lang.Object)
+        	 */
+        	public String getId(TypedRecord record) {
+        		return record.getId();
+        	}
+        	
+            /**
+             * @param first
+             * @param second
+             * @param firstId
+             * @param secondId
+             * @param firstIndex
+             * @param secondIndex
+             * @return
+             * @throws IOException 
+             */
+            private int findDistance(TypedRecord first, TypedRecord second, String firstId, String secondId, 
+            		int firstIndex, int secondIndex) throws IOException {
+            	int netDist = 0;
 
+           		//if inter set matching with mixed in sets, match only same ID from different sets
+            	if (mixedInSets) {
+            		//entityID is concatenation of setID and real entityID
+            		String firstEntityId = firstId.substring(setIdSize);
+            		String secondEntityId = secondId.substring(setIdSize);
+            		if (!firstEntityId.equals(secondEntityId)) {
+            			netDist =  distThreshold + 1;
+            			increment(ScorerCounter.DIFF_ID_SEPARATE_SETS);
+            			return netDist;
+            		}
+            	}
+            	
+            	//numeric fields by column
+            	if (null != cursor && null != firstBlock) {
+            		if (selfJoin) {
+            			netDist = cursor.findDistance(firstBlock, firstIndex, firstBlock, secondIndex);
+            		} else if (secondRowMajor) {
+            			netDist = cursor.findDistance(secondBlock, secondIndex, firstBlock, firstIndex);
+            		} else {
+            			netDist = cursor.findDistance(firstBlock, firstIndex, secondBlock, secondIndex);
+            		}
+            		if (netDist != NumericColumnKernel.NOT_EVALUATED) {
+            			return netDist;
+            		}
+            		increment(ScorerCounter.PAIR_NOT_BY_COLUMN);
+            	}
+            	
+        		//all fields through compiled comparators
+        		netDist = recordComparator.findDistance(first, second, distContext);
+        		return netDist;
+            }
+            
+        	/**
+        	 * Parses fields of a buffered record once. Called from the reducer thread before the record 
+        	 * is shared with pair evaluating threads
+        	 * @param record
+        	 */
+        	public void prepare(TypedRecord record) {
+        		recordComparator.prepare(record, distContext);
+        	}
+        	
+        	/* (non-Javadoc)
+        	 * @see org.sifarish.feature.ParallelPairEvaluator.PairScorer#flushCounters(org.apache.hadoop.mapreduce.TaskInputOutputContext)
+        	 */
+        	public void flushCounters(TaskInputOutputContext<?, ?, ?, ?> context) {
+        		super.flushCounters(context);
+        		distContext.flushCounters(context);
+        	}
+        }
+    }    
+    
+    /**
+     * Map side join for inter set matching. The base set, which should be small, is loaded from the
+     * distributed cache in each mapper, grouped by partition. Records of the other set are matched as they
+     * stream through the mapper against the base records of the same partition, without any shuffle
+     * @author pranab
+     *
+     */
+    public static class BroadcastJoinMapper extends Mapper<LongWritable, Text, NullWritable, Text> {
+        private Text valueHolder = new Text();
+        private SingleTypeSchema schema;
+        private String fieldDelimRegex;
+        private String subFieldDelim;
+        private int idOrdinal;
+        private int partitonOrdinal;
+        private int scale;
+        private int  distThreshold;
+        private RecordComparator recordComparator;
+        private DistanceContext distContext;
+        private PairOutputFormatter formatter;
+        private boolean isBaseSetSplit;
+        private boolean mixedInSets;
+        private int setIdSize;
+        private TypedRecord record = new TypedRecord();
+        private Map<String, List<TypedRecord>> baseRecords = new HashMap<String, List<TypedRecord>>();
+        private BlockingKeyGenerator keyGenerator;
+        private Map<String, List<Integer>> blockIndex;
+        private Map<String, int[]> visitMarks;
+        private int visitMark;
+        private Map<String, PivotIndex> pivotIndexes;
+        private NumericColumnKernel columnKernel;
+        private Map<String, NumericColumnKernel.ColumnBlock> columnBlocks;
+        private NumericColumnKernel.RowCursor cursor;
+        private List<TypedRecord> recordList = new ArrayList<TypedRecord>();
+        private TopMatchCollector topMatchCollector;
+        private long pairCount;
+        private long prunedPairCount;
+        private static final Logger LOG = Logger.getLogger(BroadcastJoinMapper.class);
+        
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#setup(org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        protected void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+        	fieldDelimRegex = conf.get("field.delim.regex", "\\[\\]");
+        	String fieldDelim = conf.get("field.delim", ",");
+        	subFieldDelim = conf.get("sts.sub.field.delim.regex", "::");
+        	if (conf.getBoolean("sts.auto.generate.id", false)) {
+        		throw new IllegalArgumentException("broadcast join requires record Id in the data");
+        	}
+        	
+        	//schema
+    		InputStream fs = org.chombo.util.Utility.getFileStream(conf, "sts.same.schema.file.path");
+            ObjectMapper mapper = new ObjectMapper();
+            schema = mapper.readValue(fs, SingleTypeSchema.class);
+            schema.processStructuredFields();
+            schema.setConf(conf);
+            idOrdinal = schema.getEntity().getIdField().getOrdinal();
+            partitonOrdinal = schema.getPartitioningColumn();
+        	scale = conf.getInt("sts.distance.scale", 1000);
+        	distThreshold = conf.getInt("sts.dist.threshold", scale);
+        	
+        	//base set files are skipped if they are in the input
+       	 	String baseSetSplitPrefix = conf.get("sts.base.set.split.prefix", "base");
+       	 	isBaseSetSplit = ((FileSplit)context.getInputSplit()).getPath().getName().startsWith(baseSetSplitPrefix);
+        	
+        	//compiled comparators
+        	int[] facetedFields = null;
+        	String facetedFieldValues =  conf.get("sts.faceted.field.ordinal");
+        	if (!StringUtils.isBlank(facetedFieldValues)) {
+        		facetedFields = org.chombo.util.Utility.intArrayFromString(facetedFieldValues);
+        	}
+        	recordComparator = new RecordComparator(schema, facetedFields, subFieldDelim, distThreshold);
+        	recordComparator.setDistanceCacheSize(conf.getInt("sts.distance.cache.size", 0));
+        	recordComparator.setEarlyAbandon(conf.getBoolean("sts.early.abandon", false));
+        	distContext = recordComparator.createContext(scale);
+        	mixedInSets = conf.getBoolean("sts.mixed.in.sets",  false);
+        	setIdSize = conf.getInt("sts.set.ID.size",  0);
+        	
+        	//output
+        	boolean outputIdFirst = conf.getBoolean("sts.output.id.first", true);
+        	int[] extraOutputFields = null;
+        	String extraOutputFieldList = conf.get("sts.extra.output.field");
+        	if (!StringUtils.isBlank(extraOutputFieldList)) {
+        		extraOutputFields = org.chombo.util.Utility.intArrayFromString(extraOutputFieldList);
+        	}
+        	boolean outputRecord = conf.getBoolean("sts.output.record", false);
+        	boolean includePassiveFields = conf.getBoolean("sts.include.passive.fields", false);
+        	if (conf.getBoolean("sts.top.match.in.reducer", false)) {
+        		topMatchCollector = new TopMatchCollector(conf.getInt("sts.top.match.count", 10), 
+        			conf.getInt("sts.top.match.max.entity.count", 100000), fieldDelim);
+        		outputIdFirst = true;
+        		includePassiveFields = false;
+        		extraOutputFields = null;
+        		outputRecord = false;
+        	}
+        	formatter = new PairOutputFormatter(fieldDelim, outputIdFirst, extraOutputFields, outputRecord);
+        	
+        	loadBaseSet(conf, context);
+        	if (includePassiveFields && !baseRecords.isEmpty()) {
+        		int numFields = baseRecords.values().iterator().next().get(0).size();
+        		formatter.setPassiveFields(recordComparator.findPassiveFields(numFields));
+        	}
+        	
+        	//candidate generation by blocking
+        	if (conf.get("sts.candidate.generation", "bucket").equals("blocking")) {
+        		keyGenerator = createKeyGenerator(schema, conf, subFieldDelim);
+        		buildBlockIndex();
+        	}
+        	
+        	//pivot based pruning for each partition
+        	if (conf.getBoolean("sts.pivot.pruning", false)) {
+        		buildPivotIndexes(conf, context);
+        	}
+        	
+        	//columnar distance for numeric schema
+        	if (conf.getBoolean("sts.columnar.kernel", false)) {
+        		if (NumericColumnKernel.isApplicable(recordComparator)) {
+        			columnKernel = new NumericColumnKernel(recordComparator, scale, 
+        				conf.getInt("sts.columnar.tile.size", 256));
+        			cursor = columnKernel.createCursor();
+        			columnBlocks = new HashMap<String, NumericColumnKernel.ColumnBlock>();
+        			for (String partition : baseRecords.keySet()) {
+        				columnBlocks.put(partition, columnKernel.createBlock(baseRecords.get(partition)));
+        			}
+        		} else {
+        			context.getCounter("Columnar", "Disabled non numeric").increment(1);
+        		}
+        	}
+        	
+            if (conf.getBoolean("debug.on", false)) {
+             	LOG.setLevel(Level.DEBUG);
+            }
+        }
+        
         /**
-         * @param field
-         * @param firstAttr
-         * @param secondAttr
+         * Loads base set records from distributed cache, grouped by partition
+         * @param conf
          * @param context
-         * @return
+         * @throws IOException
          */
-        private double locationDistance(Field field, String firstAttr, String secondAttr,Context context) {
-        	double dist = 0;
-			String[] subFields = firstAttr.split(subFieldDelim);
-			Location firstLocation  = new Location( subFields[0], subFields[1], subFields[2]); 
-		    subFields = secondAttr.split(subFieldDelim);
-			Location secondLocation  = new Location( subFields[0], subFields[1], subFields[2]); 
-			dist = field.findDistance(firstLocation, secondLocation);
-        	return dist;
-        }    
-
+        private void loadBaseSet(Configuration conf, Context context) throws IOException {
+        	Path[] cacheFiles = DistributedCache.getLocalCacheFiles(conf);
+        	if (null == cacheFiles) {
+        		throw new IllegalStateException("base set not found in distributed cache");
+        	}
+        	int count = 0;
+        	for (Path cacheFile : cacheFiles) {
+        		BufferedReader reader = new BufferedReader(new FileReader(cacheFile.toString()));
+        		try {
+        			String line = null;
+        			while((line = reader.readLine()) != null) {
+        				if (line.isEmpty()) {
+        					continue;
+        				}
+        				String[] items = line.split(fieldDelimRegex);
+        				TypedRecord baseRecord = new TypedRecord();
+        				baseRecord.initialize(items, 0, idOrdinal, schema.getEntity().getFields(), subFieldDelim);
+        				String partition = partitonOrdinal >= 0 ? items[partitonOrdinal] :  "N";
+        				List<TypedRecord> records = baseRecords.get(partition);
+        				if (null == records) {
+        					records = new ArrayList<TypedRecord>();
+        					baseRecords.put(partition, records);
+        				}
+        				recordComparator.prepare(baseRecord, distContext);
+        				records.add(baseRecord);
+        				++count;
+        			}
+        		} finally {
+        			reader.close();
+        		}
+        	}
+        	context.getCounter("Broadcast", "Base set records loaded").increment(count);
+        	LOG.info("base set records:" + count + " partitions:" + baseRecords.size());
+        }
+        
         /**
-         * @param field
-         * @param firstAttr
-         * @param secondAttr
-         * @param context
-         * @return
+         * Base records by block key within partition
          */
-        private double geoLocationDistance(Field field, String firstAttr, String secondAttr,Context context) {
-    		double dist = org.sifarish.util.Utility.getGeoDistance(firstAttr, secondAttr);
-    		dist /= field.getMaxDistance();
-    		dist = dist <= 1.0 ? dist : 1.0;
-    		return dist;
-        }    
+        private void buildBlockIndex() {
+        	blockIndex = new HashMap<String, List<Integer>>();
+        	visitMarks = new HashMap<String, int[]>();
+        	for (String partition : baseRecords.keySet()) {
+        		List<TypedRecord> records = baseRecords.get(partition);
+        		for (int i = 0; i < records.size(); ++i) {
+        			for (String blockKey : keyGenerator.generateKeys(records.get(i).getItems())) {
+        				String groupKey = BlockingKeyGenerator.createGroupKey(partition, blockKey);
+        				List<Integer> indexes = blockIndex.get(groupKey);
+        				if (null == indexes) {
+        					indexes = new ArrayList<Integer>();
+        					blockIndex.put(groupKey, indexes);
+        				}
+        				indexes.add(i);
+        			}
+        		}
+        		visitMarks.put(partition, new int[records.size()]);
+        	}
+        }
         
         /**
-         * @param field
-         * @param firstAttr
-         * @param secondAttr
+         * @param conf
          * @param context
-         * @return
+         * @throws IOException
          */
-        private double eventDistance(Field field, String firstAttr, String secondAttr,Context context) {
-        	double dist = 0;
-    		try {
-    			double[] locationWeights = schema.getLocationComponentWeights();
-    			String[] subFields = firstAttr.split(subFieldDelim);
-    			String description = subFields[0];
-    			Location location  = new Location( subFields[1], subFields[2], subFields[3]); 
-    			TimeWindow timeWindow = new TimeWindow(subFields[4], subFields[5]);
-    			Event firstEvent = new Event(description, location, timeWindow, locationWeights);
-    			
-    			subFields = secondAttr.split(subFieldDelim);
-    			description = subFields[0];
-    			location  = new Location( subFields[1], subFields[2], subFields[3]); 
-    			timeWindow = new TimeWindow(subFields[4], subFields[5]);
-    			Event secondEvent = new Event(description, location, timeWindow, locationWeights);
- 
-    			dist = field.findDistance(firstEvent, secondEvent);
-    		} catch (ParseException e) {
-    			context.getCounter("Invalid Data Format", "Field:" + field.getOrdinal()).increment(1);
+        private void buildPivotIndexes(Configuration conf, Context context) throws IOException {
+    		if (recordComparator.isMetric()) {
+    			int pivotCount = conf.getInt("sts.pivot.count", 4);
+    			int minPivotIndexSize = conf.getInt("sts.pivot.min.group.size", 4 * pivotCount);
+    			pivotIndexes = new HashMap<String, PivotIndex>();
+    			for (String partition : baseRecords.keySet()) {
+    				List<TypedRecord> records = baseRecords.get(partition);
+    				if (records.size() >= minPivotIndexSize) {
+    					PivotIndex pivotIndex = new PivotIndex(recordComparator, pivotCount, scale, distThreshold);
+    					pivotIndex.build(records);
+    					pivotIndexes.put(partition, pivotIndex);
+    				}
+    			}
+    		} else {
+    			LOG.info("pivot pruning disabled, distance is not metric for the schema");
+    			context.getCounter("Pivot Pruning", "Disabled non metric").increment(1);
     		}
-        	return dist;
-        }    
-    }    
+        }
+        
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#map(KEYIN, VALUEIN, org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        @Override
+        protected void map(LongWritable key, Text value, Context context)
+            throws IOException, InterruptedException {
+        	if (isBaseSetSplit) {
+        		return;
+        	}
+            String[] items  =  value.toString().split(fieldDelimRegex);
+            String partition = partitonOrdinal >= 0 ? items[partitonOrdinal] :  "N";
+            List<TypedRecord> records = baseRecords.get(partition);
+			context.getCounter("Broadcast", "Other set records").increment(1);
+            if (null == records) {
+            	return;
+            }
+            record.initialize(items, 1, idOrdinal, schema.getEntity().getFields(), subFieldDelim);
+            recordComparator.prepare(record, distContext);
+            
+            //pivot distances of this record
+            PivotIndex pivotIndex = null != pivotIndexes ? pivotIndexes.get(partition) : null;
+            double[] pivotDistances = null != pivotIndex ? pivotIndex.findPivotDistances(record) : null;
+            
+            //this record against all base records of the partition
+            NumericColumnKernel.ColumnBlock baseBlock = null;
+            NumericColumnKernel.ColumnBlock recordBlock = null;
+            if (null != columnKernel) {
+            	baseBlock = columnBlocks.get(partition);
+            	recordList.clear();
+            	recordList.add(record);
+            	recordBlock = columnKernel.createBlock(recordList);
+            }
+            
+            if (null != keyGenerator) {
+            	//only base records sharing a block, each once
+            	int[] marks = visitMarks.get(partition);
+            	++visitMark;
+            	for (String blockKey : keyGenerator.generateKeys(items)) {
+            		List<Integer> indexes = blockIndex.get(BlockingKeyGenerator.createGroupKey(partition, blockKey));
+            		if (null != indexes) {
+            			for (int i : indexes) {
+            				if (marks[i] != visitMark) {
+            					marks[i] = visitMark;
+            					match(records.get(i), i, pivotIndex, pivotDistances, baseBlock, recordBlock, context);
+            				}
+            			}
+            		}
+            	}
+            } else {
+            	for (int i = 0; i < records.size(); ++i) {
+            		match(records.get(i), i, pivotIndex, pivotDistances, baseBlock, recordBlock, context);
+            	}
+            }
+        }
+        
+        /**
+         * Matches a base record with the current record
+         * @param baseRecord
+         * @param index
+         * @param pivotIndex
+         * @param pivotDistances
+         * @param baseBlock
+         * @param recordBlock
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        private void match(TypedRecord baseRecord, int index, PivotIndex pivotIndex, double[] pivotDistances,
+        		NumericColumnKernel.ColumnBlock baseBlock, NumericColumnKernel.ColumnBlock recordBlock, 
+        		Context context) throws IOException, InterruptedException {
+        	String baseId = baseRecord.getId();
+        	String id = record.getId();
+        	if (mixedInSets && !baseId.substring(setIdSize).equals(id.substring(setIdSize))) {
+        		//match only same ID from different sets
+        		return;
+        	}
+        	++pairCount;
+        	if (null != pivotIndex && pivotIndex.canPrune(index, pivotDistances)) {
+        		++prunedPairCount;
+				return;
+        	}
+        	
+        	int dist = NumericColumnKernel.NOT_EVALUATED;
+        	if (null != cursor) {
+        		dist = cursor.findDistance(recordBlock, 0, baseBlock, index);
+        	}
+        	if (dist == NumericColumnKernel.NOT_EVALUATED) {
+        		dist = recordComparator.findDistance(baseRecord, record, distContext);
+        	}
+        	if (dist <= distThreshold) {
+        		if (null != topMatchCollector) {
+        			topMatchCollector.collect(baseId, id, dist);
+        			if (topMatchCollector.isFull()) {
+        				topMatchCollector.flush(context);
+        			}
+        		} else {
+        			valueHolder.set(formatter.format(baseRecord, record, baseId, id, dist));
+        			context.write(NullWritable.get(), valueHolder);
+        		}
+        	}
+        }
+        
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#cleanup(org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+        	if (null != topMatchCollector) {
+        		topMatchCollector.flush(context);
+        	}
+        	distContext.flushCounters(context);
+			context.getCounter("Distance Data", "Pairs compared").increment(pairCount);
+        	if (null != pivotIndexes) {
+				context.getCounter("Pivot Pruning", "Pairs pruned").increment(prunedPairCount);
+        		long count = 0;
+        		for (PivotIndex pivotIndex : pivotIndexes.values()) {
+        			count += pivotIndex.flushDistanceCount();
+        		}
+        		context.getCounter("Pivot Pruning", "Pivot distances").increment(count);
+        	}
+        }
+    }
     
-    /**
-     * @author pranab
-     *
-     */
-    public static class IdPairPartitioner extends Partitioner<TextIntInt, Text> {
-	     @Override
-	     public int getPartition(TextIntInt key, Text value, int numPartitions) {
-	    	 //consider only base part of  key
-		     return key.hashCodeBase() % numPartitions;
-	     }
-   
-   }
-   
-    /**
-     * @author pranab
-     *
-     */
-    public static class IdPairGroupComprator extends WritableComparator {
-    	protected IdPairGroupComprator() {
-    		super(TextIntInt.class, true);
-    	}
-
-    	@Override
-    	public int compare(WritableComparable w1, WritableComparable w2) {
-    		//consider only the base part of the key
-    		TextIntInt t1 = (TextIntInt)w1;
-    		TextIntInt t2 = (TextIntInt)w2;
-    		
-    		int comp = t1.compareToBase(t2);
-    		return comp;
-    	}
-     }
-
 }
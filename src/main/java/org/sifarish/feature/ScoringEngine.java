@@ -0,0 +1,164 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Thread safe record scoring for embedding in an online service, as opposed to RecordDistanceFinder
+ * which should be used from one thread only. Configuration is fixed at construction and mutable state
+ * of distance is in a context per thread. Records created through the engine are parsed and prepared
+ * once, after which they are only read, so that the same query and candidate records can be scored
+ * from any number of threads
+ * @author pranab
+ *
+ */
+public class ScoringEngine {
+	private final RecordComparator recordComparator;
+	private final SingleTypeSchema schema;
+	private final int idOrdinal;
+	private final String subFieldDelim;
+	private final int distThreshold;
+	private final ThreadLocal<DistanceContext> distContext;
+
+	/**
+	 * @param schema
+	 * @param facetedFields fields included in distance, null for all fields
+	 * @param subFieldDelim
+	 * @param scale
+	 * @param distThreshold
+	 * @param earlyAbandon stop evaluating a pair as soon as it can not be within distance threshold
+	 */
+	public ScoringEngine(SingleTypeSchema schema, int[] facetedFields, String subFieldDelim,
+		final int scale, int distThreshold, boolean earlyAbandon) {
+		this.schema = schema;
+		this.subFieldDelim = subFieldDelim;
+		this.distThreshold = distThreshold;
+		idOrdinal = schema.getEntity().getIdField().getOrdinal();
+		recordComparator = new RecordComparator(schema, facetedFields, subFieldDelim, distThreshold);
+		recordComparator.setEarlyAbandon(earlyAbandon);
+		distContext = new ThreadLocal<DistanceContext>() {
+			@Override
+			protected DistanceContext initialValue() {
+				return recordComparator.createContext(scale);
+			}
+		};
+	}
+
+	/**
+	 * @param schema
+	 * @param subFieldDelim
+	 * @param scale
+	 * @param distThreshold
+	 */
+	public ScoringEngine(SingleTypeSchema schema, String subFieldDelim, int scale, int distThreshold) {
+		this(schema, null, subFieldDelim, scale, distThreshold, false);
+	}
+
+	/**
+	 * Parses and prepares a record. Should not be modified afterwards
+	 * @param items
+	 * @return
+	 * @throws IOException
+	 */
+	public TypedRecord createRecord(String[] items) throws IOException {
+		TypedRecord record = new TypedRecord();
+		record.initialize(items, 0, idOrdinal, schema.getEntity().getFields(), subFieldDelim);
+		recordComparator.prepare(record, distContext.get());
+		return record;
+	}
+
+	/**
+	 * @param first
+	 * @param second
+	 * @return distance, greater than distance threshold if pair is not within threshold
+	 * @throws IOException
+	 */
+	public int findDistance(TypedRecord first, TypedRecord second) throws IOException {
+		return recordComparator.findDistance(first, second, distContext.get());
+	}
+
+	/**
+	 * Scores a query against many candidates
+	 * @param query
+	 * @param candidates
+	 * @param distances distance for each candidate, at least as long as candidates
+	 * @return number of candidates within distance threshold
+	 * @throws IOException
+	 */
+	public int findDistances(TypedRecord query, List<TypedRecord> candidates, int[] distances)
+		throws IOException {
+		DistanceContext context = distContext.get();
+		int matched = 0;
+		for (int i = 0; i < candidates.size(); ++i) {
+			distances[i] = recordComparator.findDistance(query, candidates.get(i), context);
+			if (distances[i] <= distThreshold) {
+				++matched;
+			}
+		}
+		return matched;
+	}
+
+	/**
+	 * Top matches of a query among candidates
+	 * @param query
+	 * @param candidates
+	 * @param k
+	 * @return candidates within distance threshold in order of distance, excluding any with same ID as query
+	 * @throws IOException
+	 */
+	public List<HnswIndex.Neighbor> findMatches(TypedRecord query, List<TypedRecord> candidates, int k)
+		throws IOException {
+		DistanceContext context = distContext.get();
+		List<HnswIndex.Neighbor> neighbors = new ArrayList<HnswIndex.Neighbor>();
+		String id = query.getId();
+		for (TypedRecord candidate : candidates) {
+			if (!candidate.getId().equals(id)) {
+				int dist = recordComparator.findDistance(query, candidate, context);
+				if (dist <= distThreshold) {
+					neighbors.add(new HnswIndex.Neighbor(candidate.getId(), dist));
+				}
+			}
+		}
+		Collections.sort(neighbors, new Comparator<HnswIndex.Neighbor>() {
+			@Override
+			public int compare(HnswIndex.Neighbor thisNeighbor, HnswIndex.Neighbor thatNeighbor) {
+				return thisNeighbor.getDistance() - thatNeighbor.getDistance();
+			}
+		});
+		return neighbors.size() > k ? new ArrayList<HnswIndex.Neighbor>(neighbors.subList(0, k)) : neighbors;
+	}
+
+	/**
+	 * @return
+	 */
+	public SingleTypeSchema getSchema() {
+		return schema;
+	}
+
+	/**
+	 * @return
+	 */
+	public int getDistThreshold() {
+		return distThreshold;
+	}
+}
@@ -0,0 +1,925 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Stand alone micro benchmark for pairwise distance. Runs on local files, outside of hadoop.
+ * Usage: SimilarityBenchmark mode schemaFile dataFile numPairs [fieldDelimRegex]
+ * Modes
+ * pipeline : string split and parse per pair compared with pre parsed records and compiled comparators
+ * columnar : compiled comparators compared with columnar kernel, for euclidean distance with numeric fields
+ * sort : map output sort and reducer grouping of BlockPairKey shuffle keys, deserializing comparators 
+ * compared with raw comparators. numPairs is the number of map output keys
+ * cache : compiled comparators without and with distance cache for text and categorical fields
+ * bounded : pairs within a distance threshold of a tenth of scale, found with full evaluation and with 
+ * early abandon of pairs that can not be within threshold
+ * ann : approximate nearest neighbor index, loaded to heap and memory mapped, compared with exhaustive search, 
+ * for recall and latency of top matches of indexed records. numPairs is the number of queries
+ * lsh : pairs within a distance threshold of a fiftieth of scale found exhaustively and found through block
+ * index on random projection keys, for recall and candidate pairs. numPairs is not used
+ * canopy : same as lsh with canopy keys from canopy centers over cheap fields, with a threshold of a tenth 
+ * of scale. numPairs is not used
+ * concurrent : batch scoring of a query against 100 candidates per request from 1 to twice the number 
+ * of cores threads, with one shared scoring engine and with a record distance finder per request
+ * projection : serialized map output value size per record, whole and projected on schema fields. 
+ * numPairs is not used
+ * alloc : bytes allocated per pair, for string path and for compiled comparators without and with records
+ * prepared. Needs a JVM that reports thread allocation
+ * @author pranab
+ *
+ */
+public class SimilarityBenchmark {
+	private SingleTypeSchema schema;
+	private List<String> lines = new ArrayList<String>();
+	private String fieldDelimRegex;
+	private String subFieldDelim = "::";
+	private int idOrdinal;
+	private int scale = 1000;
+	private long numPairs;
+	private long checkSum;
+	private long loopAllocation;
+	private static final int SORT_BUCKET_COUNT = 32;
+	private static final int CONCURRENT_BATCH_SIZE = 100;
+
+	/**
+	 * @param schemaFile
+	 * @param dataFile
+	 * @param numPairs
+	 * @param fieldDelimRegex
+	 * @throws IOException
+	 */
+	public SimilarityBenchmark(String schemaFile, String dataFile, long numPairs, String fieldDelimRegex)
+		throws IOException {
+		InputStream fs = new FileInputStream(schemaFile);
+		ObjectMapper mapper = new ObjectMapper();
+		schema = mapper.readValue(fs, SingleTypeSchema.class);
+		fs.close();
+		schema.processStructuredFields();
+		schema.setConf(new Configuration());
+		idOrdinal = schema.getEntity().getIdField().getOrdinal();
+
+		BufferedReader reader = new BufferedReader(new FileReader(dataFile));
+		String line = null;
+		while((line = reader.readLine()) != null) {
+			if (!line.trim().isEmpty()) {
+				lines.add(line);
+			}
+		}
+		reader.close();
+		if (lines.size() < 2) {
+			throw new IllegalArgumentException("need at least 2 records");
+		}
+		this.numPairs = numPairs;
+		this.fieldDelimRegex = fieldDelimRegex;
+	}
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.out.println("usage: SimilarityBenchmark mode schemaFile dataFile numPairs [fieldDelimRegex]");
+			System.exit(1);
+		}
+		String mode = args[0];
+		String fieldDelimRegex = args.length > 4 ? args[4] : ",";
+		SimilarityBenchmark benchmark = new SimilarityBenchmark(args[1], args[2], Long.parseLong(args[3]),
+				fieldDelimRegex);
+
+		if (mode.equals("pipeline")) {
+			benchmark.runPipeline();
+		} else if (mode.equals("columnar")) {
+			benchmark.runColumnar();
+		} else if (mode.equals("cache")) {
+			benchmark.runCache();
+		} else if (mode.equals("sort")) {
+			benchmark.runSort();
+		} else if (mode.equals("bounded")) {
+			benchmark.runBounded();
+		} else if (mode.equals("ann")) {
+			benchmark.runNearestNeighbor();
+		} else if (mode.equals("lsh")) {
+			benchmark.runProjectionBlocking();
+		} else if (mode.equals("canopy")) {
+			benchmark.runCanopyBlocking();
+		} else if (mode.equals("concurrent")) {
+			benchmark.runConcurrent();
+		} else if (mode.equals("projection")) {
+			benchmark.runProjection();
+		} else if (mode.equals("alloc")) {
+			benchmark.runAllocation();
+		} else {
+			throw new IllegalArgumentException("invalid benchmark mode " + mode);
+		}
+	}
+
+	/**
+	 * String based per pair parsing compared with compiled pipeline on pre parsed records
+	 * @throws IOException
+	 */
+	public void runPipeline() throws IOException {
+		//warm up
+		long savedNumPairs = numPairs;
+		numPairs = Math.min(numPairs, 100000);
+		runStringPath();
+		runCompiledPath();
+		numPairs = savedNumPairs;
+
+		long start = System.nanoTime();
+		runStringPath();
+		report("string parse per pair", start, checkSum);
+
+		start = System.nanoTime();
+		runCompiledPath();
+		report("compiled comparators", start, checkSum);
+	}
+
+	/**
+	 * Compiled comparators compared with columnar kernel on the same pairs
+	 * @throws IOException
+	 */
+	public void runColumnar() throws IOException {
+		RecordComparator recordComparator = new RecordComparator(schema, null, subFieldDelim, scale);
+		if (!NumericColumnKernel.isApplicable(recordComparator)) {
+			throw new IllegalArgumentException("schema not suitable for columnar distance");
+		}
+
+		//warm up
+		long savedNumPairs = numPairs;
+		numPairs = Math.min(numPairs, 100000);
+		runCompiledPath();
+		runColumnarPath();
+		numPairs = savedNumPairs;
+
+		long start = System.nanoTime();
+		runCompiledPath();
+		report("compiled comparators", start, checkSum);
+
+		start = System.nanoTime();
+		long notEvaluated = runColumnarPath();
+		report("columnar kernel", start, checkSum);
+		System.out.println("pairs not evaluated by column:" + notEvaluated);
+	}
+
+	/**
+	 * Compiled comparators compared with same comparators with distance cache
+	 * @throws IOException
+	 */
+	public void runCache() throws IOException {
+		int distanceCacheSize = 64 * 1024;
+		
+		//warm up
+		long savedNumPairs = numPairs;
+		numPairs = Math.min(numPairs, 100000);
+		runCompiledPath(0);
+		runCompiledPath(distanceCacheSize);
+		numPairs = savedNumPairs;
+
+		long start = System.nanoTime();
+		runCompiledPath(0);
+		report("compiled comparators", start, checkSum);
+
+		start = System.nanoTime();
+		DistanceContext distContext = runCompiledPath(distanceCacheSize);
+		report("with distance cache", start, checkSum);
+		int[] ordinals = new RecordComparator(schema, null, subFieldDelim, scale).getActiveOrdinals();
+		for (int i = 0; i < ordinals.length; ++i) {
+			DistanceCache cache = distContext.getCache(i);
+			if (null != cache) {
+				long lookups = cache.getHitCount() + cache.getMissCount();
+				System.out.println("field:" + ordinals[i] + " hit rate:" + (double)cache.getHitCount() / lookups + 
+					" evictions:" + cache.getEvictionCount() + " resets:" + cache.getResetCount());
+			}
+		}
+	}
+
+	/**
+	 * Full evaluation compared with bounded evaluation, for pairs within threshold
+	 * @throws IOException
+	 */
+	public void runBounded() throws IOException {
+		int distThreshold = scale / 10;
+		
+		//warm up
+		long savedNumPairs = numPairs;
+		numPairs = Math.min(numPairs, 100000);
+		runBoundedPath(distThreshold, false);
+		runBoundedPath(distThreshold, true);
+		numPairs = savedNumPairs;
+
+		long start = System.nanoTime();
+		long matched = runBoundedPath(distThreshold, false);
+		report("full evaluation", start, checkSum);
+		System.out.println("full evaluation pairs within threshold:" + matched);
+
+		start = System.nanoTime();
+		matched = runBoundedPath(distThreshold, true);
+		report("early abandon", start, checkSum);
+		System.out.println("early abandon pairs within threshold:" + matched);
+	}
+
+	/**
+	 * @param distThreshold
+	 * @param earlyAbandon
+	 * @return number of pairs within threshold
+	 * @throws IOException
+	 */
+	private long runBoundedPath(int distThreshold, boolean earlyAbandon) throws IOException {
+		List<TypedRecord> records = parseRecords();
+		RecordComparator recordComparator = new RecordComparator(schema, null, subFieldDelim, distThreshold);
+		if (earlyAbandon && !recordComparator.setEarlyAbandon(true)) {
+			throw new IllegalArgumentException("schema not suitable for early abandon");
+		}
+		DistanceContext distContext = recordComparator.createContext(scale);
+		for (TypedRecord record : records) {
+			recordComparator.prepare(record, distContext);
+		}
+		checkSum = 0;
+		long matched = 0;
+		int size = records.size();
+		long count = 0;
+		while (count < numPairs) {
+			for (int i = 0; i < size && count < numPairs; ++i) {
+				TypedRecord first = records.get(i);
+				for (int j = i + 1; j < size && count < numPairs; ++j, ++count) {
+					int dist = recordComparator.findDistance(first, records.get(j), distContext);
+					if (dist <= distThreshold) {
+						checkSum += dist;
+						++matched;
+					}
+				}
+			}
+		}
+		return matched;
+	}
+
+	/**
+	 * Index build, save, load and map, followed by top k queries by exhaustive search and through the loaded 
+	 * and the mapped index. A neighbor found through an index counts towards recall if it's within the k th 
+	 * exhaustive distance
+	 * @throws IOException
+	 */
+	public void runNearestNeighbor() throws IOException {
+		int k = 10;
+		int ef = 64;
+		List<TypedRecord> records = parseRecords();
+		int size = records.size();
+		RecordComparator recordComparator = new RecordComparator(schema, null, subFieldDelim, scale);
+
+		long start = System.nanoTime();
+		HnswIndex index = new HnswIndex(recordComparator, scale, 16, 128, 1);
+		for (TypedRecord record : records) {
+			index.insert(record);
+		}
+		System.out.println("index build records:" + size + " time(ms):" + (System.nanoTime() - start) / 1000000);
+		File indexFile = File.createTempFile("hnsw", ".idx");
+		HnswIndex mappedIndex = null;
+		try {
+			index.save(indexFile.getPath());
+			start = System.nanoTime();
+			index = HnswIndex.load(indexFile.getPath(), recordComparator, scale, 1);
+			System.out.println("index load bytes:" + indexFile.length() + " time(ms):" + 
+				(System.nanoTime() - start) / 1000000);
+			start = System.nanoTime();
+			mappedIndex = HnswIndex.map(indexFile.getPath(), recordComparator, scale, 4096);
+			System.out.println("index map time(ms):" + (System.nanoTime() - start) / 1000000);
+		} finally {
+			indexFile.delete();
+		}
+
+		//exhaustive
+		int numQueries = (int)Math.min(numPairs, size);
+		DistanceContext distContext = recordComparator.createContext(scale);
+		int[] kthDistances = new int[numQueries];
+		int[] distances = new int[size - 1];
+		start = System.nanoTime();
+		for (int q = 0; q < numQueries; ++q) {
+			TypedRecord query = records.get((int)((long)q * size / numQueries));
+			int n = 0;
+			for (TypedRecord record : records) {
+				if (record != query) {
+					distances[n++] = recordComparator.findDistance(query, record, distContext);
+				}
+			}
+			Arrays.sort(distances);
+			kthDistances[q] = distances[Math.min(k, n) - 1];
+		}
+		reportQueries("exhaustive search", start, numQueries);
+
+		//through index
+		searchIndex("index search", index, records, kthDistances, k, ef);
+		searchIndex("mapped index search", mappedIndex, records, kthDistances, k, ef);
+	}
+
+	/**
+	 * @param label
+	 * @param index
+	 * @param records
+	 * @param kthDistances k th exhaustive distance of each query
+	 * @param k
+	 * @param ef
+	 * @throws IOException
+	 */
+	private void searchIndex(String label, HnswIndex index, List<TypedRecord> records, int[] kthDistances, 
+		int k, int ef) throws IOException {
+		int size = records.size();
+		int numQueries = kthDistances.length;
+		HnswIndex.Searcher searcher = index.createSearcher();
+		long found = 0;
+		long start = System.nanoTime();
+		for (int q = 0; q < numQueries; ++q) {
+			String id = records.get((int)((long)q * size / numQueries)).getId();
+			for (HnswIndex.Neighbor neighbor : searcher.findSimilar(id, k, ef)) {
+				if (neighbor.getDistance() <= kthDistances[q]) {
+					++found;
+				}
+			}
+		}
+		reportQueries(label, start, numQueries);
+		System.out.println("recall at " + k + ":" + (double)found / ((long)numQueries * Math.min(k, size - 1)));
+	}
+
+	/**
+	 * All pairs within threshold found exhaustively and by looking up each record in a block index. Schema
+	 * should have fields marked for projection blocking
+	 * @throws IOException
+	 */
+	public void runProjectionBlocking() throws IOException {
+		runBlockIndex(scale / 50, null);
+	}
+
+	/**
+	 * Canopy centers found over all records with cheap distance on canopy fields, and pairs within distance
+	 * threshold found exhaustively compared with pairs found through block index on canopy keys
+	 * @throws IOException
+	 */
+	public void runCanopyBlocking() throws IOException {
+		long start = System.nanoTime();
+		CanopyCenters canopies = new CanopyCenters(schema, subFieldDelim);
+		DistanceContext canopyContext = canopies.createContext();
+		for (String line : lines) {
+			canopies.offer(canopies.createRecord(line.split(fieldDelimRegex)), canopyContext);
+		}
+		System.out.println("canopy centers:" + canopies.getCenters().size() + " time(ms):" + 
+			(System.nanoTime() - start) / 1000000);
+		runBlockIndex(scale / 10, canopies);
+	}
+
+	/**
+	 * @param distThreshold
+	 * @param canopies canopy centers for canopy keys, null if none
+	 * @throws IOException
+	 */
+	private void runBlockIndex(int distThreshold, CanopyCenters canopies) throws IOException {
+		List<TypedRecord> records = parseRecords();
+		int size = records.size();
+		RecordComparator recordComparator = new RecordComparator(schema, null, subFieldDelim, distThreshold);
+		DistanceContext distContext = recordComparator.createContext(scale);
+
+		long start = System.nanoTime();
+		long matched = 0;
+		for (int i = 0; i < size; ++i) {
+			TypedRecord first = records.get(i);
+			for (int j = i + 1; j < size; ++j) {
+				if (recordComparator.findDistance(first, records.get(j), distContext) <= distThreshold) {
+					++matched;
+				}
+			}
+		}
+		long exhaustivePairs = (long)size * (size - 1) / 2;
+		System.out.println("exhaustive pairs:" + exhaustivePairs + " time(ms):" + (System.nanoTime() - start) / 1000000 + 
+			" pairs within threshold:" + matched);
+
+		//each pair is found from both records
+		start = System.nanoTime();
+		BlockIndex index = new BlockIndex(recordComparator, scale);
+		if (null != canopies) {
+			index.setCanopies(canopies);
+		}
+		for (TypedRecord record : records) {
+			index.insert(record);
+		}
+		BlockIndex.Searcher searcher = index.createSearcher();
+		long candidates = 0;
+		long found = 0;
+		for (TypedRecord record : records) {
+			candidates += searcher.findCandidates(record) - 1;
+			found += searcher.search(record, size).size();
+		}
+		System.out.println("block index candidate pairs:" + candidates / 2 + " time(ms):" + 
+			(System.nanoTime() - start) / 1000000 + " pairs within threshold:" + found / 2 + " blocks:" + 
+			index.getBlockCount());
+		System.out.println("candidate fraction:" + (double)candidates / 2 / exhaustivePairs + " recall:" + 
+			(matched > 0 ? (double)found / 2 / matched : 1.0));
+	}
+
+	/**
+	 * @param label
+	 * @param start
+	 * @param numQueries
+	 */
+	private void reportQueries(String label, long start, int numQueries) {
+		long elapsed = System.nanoTime() - start;
+		System.out.println(label + " queries:" + numQueries + " time(ms):" + elapsed / 1000000 + 
+			" latency(micro sec):" + elapsed / 1000 / numQueries);
+	}
+
+	/**
+	 * Batch scoring from many threads, with one scoring engine shared by all threads compared with a record 
+	 * distance finder created per request. Each request scores a query against a batch of candidates
+	 * @throws Exception
+	 */
+	public void runConcurrent() throws Exception {
+		int distThreshold = scale / 10;
+		final ScoringEngine engine = new ScoringEngine(schema, subFieldDelim, scale, distThreshold);
+		final List<TypedRecord> records = new ArrayList<TypedRecord>();
+		for (String line : lines) {
+			records.add(engine.createRecord(line.split(fieldDelimRegex)));
+		}
+
+		//warm up
+		long savedNumPairs = numPairs;
+		numPairs = Math.min(numPairs, 200000);
+		runConcurrent("warm up shared engine", 1, engine, records);
+		runConcurrent("warm up finder per request", 1, null, records);
+		numPairs = savedNumPairs;
+
+		int maxThreads = 2 * Runtime.getRuntime().availableProcessors();
+		for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+			runConcurrent("shared engine threads:" + numThreads, numThreads, engine, records);
+			runConcurrent("finder per request threads:" + numThreads, numThreads, null, records);
+		}
+	}
+
+	/**
+	 * @param label
+	 * @param numThreads
+	 * @param engine shared engine, null for a finder per request
+	 * @param records
+	 * @throws Exception
+	 */
+	private void runConcurrent(String label, int numThreads, final ScoringEngine engine, 
+		final List<TypedRecord> records) throws Exception {
+		final int batchSize = Math.min(CONCURRENT_BATCH_SIZE, records.size());
+		final int distThreshold = scale / 10;
+		final long requestsPerThread = numPairs / batchSize / numThreads;
+		final long[] checkSums = new long[numThreads];
+		final Exception[] failures = new Exception[numThreads];
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; ++t) {
+			final int thread = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						int[] distances = new int[batchSize];
+						int size = records.size();
+						for (long r = 0; r < requestsPerThread; ++r) {
+							int queryIndex = (int)((r * checkSums.length + thread) % size);
+							TypedRecord query = records.get(queryIndex);
+							int from = (queryIndex + 1) % (size - batchSize + 1);
+							List<TypedRecord> candidates = records.subList(from, from + batchSize);
+							if (null != engine) {
+								checkSums[thread] += engine.findDistances(query, candidates, distances);
+							} else {
+								RecordDistanceFinder finder = new RecordDistanceFinder(fieldDelimRegex, idOrdinal, 
+									scale, distThreshold, schema, subFieldDelim);
+								for (TypedRecord candidate : candidates) {
+									if (finder.findDistance(query, candidate) <= distThreshold) {
+										++checkSums[thread];
+									}
+								}
+							}
+						}
+					} catch (Exception e) {
+						failures[thread] = e;
+					}
+				}
+			});
+		}
+
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		long checkSum = 0;
+		for (int t = 0; t < numThreads; ++t) {
+			if (null != failures[t]) {
+				throw failures[t];
+			}
+			checkSum += checkSums[t];
+		}
+		long pairs = requestsPerThread * batchSize * numThreads;
+		double pairsPerSec = elapsed > 0 ? pairs * 1.0e9 / elapsed : 0;
+		System.out.println(label + " pairs:" + pairs + " time(ms):" + elapsed / 1000000 +
+				" pairs/sec:" + (long)pairsPerSec + " matched:" + checkSum);
+	}
+
+	/**
+	 * Serialized size of map output value, whole record compared with record projected on schema fields
+	 * @throws IOException
+	 */
+	public void runProjection() throws IOException {
+		Configuration conf = new Configuration();
+		conf.setBoolean("sts.record.projection", true);
+		int[] projectedFields = SameTypeSimilarity.findProjectedFields(schema, conf);
+		DataOutputBuffer buffer = new DataOutputBuffer();
+		TypedRecord record = new TypedRecord();
+		long wholeBytes = 0;
+		long projectedBytes = 0;
+		for (String line : lines) {
+			String[] items = line.split(fieldDelimRegex);
+			record.initialize(items, 0, idOrdinal, schema.getEntity().getFields(), subFieldDelim);
+			buffer.reset();
+			record.write(buffer);
+			wholeBytes += buffer.getLength();
+
+			record.initialize(SameTypeSimilarity.projectRecord(items, projectedFields), 0, idOrdinal, 
+				schema.getEntity().getFields(), subFieldDelim);
+			buffer.reset();
+			record.write(buffer);
+			projectedBytes += buffer.getLength();
+		}
+		System.out.println("records:" + lines.size() + " projected fields:" + projectedFields.length + 
+			" whole bytes/record:" + wholeBytes / lines.size() + " projected bytes/record:" + 
+			projectedBytes / lines.size() + " reduction:" + 
+			String.format("%.1f", 100.0 * (wholeBytes - projectedBytes) / wholeBytes) + "%");
+	}
+
+	/**
+	 * Heap allocation in the pair loop, excluding record parsing and set up
+	 * @throws IOException
+	 */
+	public void runAllocation() throws IOException {
+		if (allocatedBytes() < 0) {
+			throw new IllegalStateException("thread allocation not supported by JVM");
+		}
+		
+		//warm up
+		long savedNumPairs = numPairs;
+		numPairs = Math.min(numPairs, 100000);
+		runStringPath();
+		runCompiledPath(0, false);
+		runCompiledPath(0, true);
+		numPairs = savedNumPairs;
+
+		long start = System.nanoTime();
+		runStringPath();
+		reportAllocation("string parse per pair", start);
+
+		start = System.nanoTime();
+		runCompiledPath(0, false);
+		reportAllocation("compiled comparators", start);
+
+		start = System.nanoTime();
+		runCompiledPath(0, true);
+		reportAllocation("compiled comparators prepared records", start);
+	}
+
+	/**
+	 * Baseline with records split and fields parsed for every pair
+	 * @throws IOException
+	 */
+	private void runStringPath() throws IOException {
+		RecordDistanceFinder distFinder = new RecordDistanceFinder(fieldDelimRegex, idOrdinal, scale, scale,
+				schema, subFieldDelim);
+		checkSum = 0;
+		int size = lines.size();
+		long count = 0;
+		long startAllocation = allocatedBytes();
+		while (count < numPairs) {
+			for (int i = 0; i < size && count < numPairs; ++i) {
+				for (int j = i + 1; j < size && count < numPairs; ++j, ++count) {
+					checkSum += distFinder.findDistance(lines.get(i), lines.get(j));
+				}
+			}
+		}
+		loopAllocation = allocatedBytes() - startAllocation;
+	}
+
+	/**
+	 * Records parsed once, pairs evaluated through compiled comparators
+	 * @throws IOException
+	 */
+	private void runCompiledPath() throws IOException {
+		runCompiledPath(0);
+	}
+
+	/**
+	 * @param distanceCacheSize
+	 * @return
+	 * @throws IOException
+	 */
+	private DistanceContext runCompiledPath(int distanceCacheSize) throws IOException {
+		return runCompiledPath(distanceCacheSize, true);
+	}
+
+	/**
+	 * @param distanceCacheSize
+	 * @param prepared records prepared as in reducer
+	 * @return
+	 * @throws IOException
+	 */
+	private DistanceContext runCompiledPath(int distanceCacheSize, boolean prepared) throws IOException {
+		List<TypedRecord> records = parseRecords();
+		RecordComparator recordComparator = new RecordComparator(schema, null, subFieldDelim, scale);
+		recordComparator.setDistanceCacheSize(distanceCacheSize);
+		DistanceContext distContext = recordComparator.createContext(scale);
+		if (prepared) {
+			for (TypedRecord record : records) {
+				recordComparator.prepare(record, distContext);
+			}
+		}
+		checkSum = 0;
+		int size = records.size();
+		long count = 0;
+		long startAllocation = allocatedBytes();
+		while (count < numPairs) {
+			for (int i = 0; i < size && count < numPairs; ++i) {
+				TypedRecord first = records.get(i);
+				for (int j = i + 1; j < size && count < numPairs; ++j, ++count) {
+					checkSum += recordComparator.findDistance(first, records.get(j), distContext);
+				}
+			}
+		}
+		loopAllocation = allocatedBytes() - startAllocation;
+		return distContext;
+	}
+
+	/**
+	 * Records laid out by column, distances found a tile at a time for each row
+	 * @return number of pairs evaluated through compiled comparators
+	 * @throws IOException
+	 */
+	private long runColumnarPath() throws IOException {
+		List<TypedRecord> records = parseRecords();
+		RecordComparator recordComparator = new RecordComparator(schema, null, subFieldDelim, scale);
+		DistanceContext distContext = recordComparator.createContext(scale);
+		NumericColumnKernel kernel = new NumericColumnKernel(recordComparator, scale, 256);
+		NumericColumnKernel.ColumnBlock block = kernel.createBlock(records);
+		NumericColumnKernel.RowCursor cursor = kernel.createCursor();
+		checkSum = 0;
+		long notEvaluated = 0;
+		int size = records.size();
+		long count = 0;
+		while (count < numPairs) {
+			for (int i = 0; i < size && count < numPairs; ++i) {
+				for (int j = i + 1; j < size && count < numPairs; ++j, ++count) {
+					int dist = cursor.findDistance(block, i, block, j);
+					if (dist == NumericColumnKernel.NOT_EVALUATED) {
+						dist = recordComparator.findDistance(records.get(i), records.get(j), distContext);
+						++notEvaluated;
+					}
+					checkSum += dist;
+				}
+			}
+		}
+		return notEvaluated;
+	}
+
+	/**
+	 * Map side sort and reduce side grouping of serialized keys, as in the shuffle of pairwise similarity
+	 * jobs. Each record is replicated to every block pair group of its block
+	 * @throws IOException
+	 */
+	public void runSort() throws IOException {
+		int partitonOrdinal = schema.getPartitioningColumn();
+		BlockPairKey blockPairKey = new BlockPairKey();
+		KeyBuffer blockPairKeys = new KeyBuffer();
+
+		int size = lines.size();
+		long count = 0;
+		for (int round = 0; count < numPairs; ++round) {
+			for (int i = 0; i < size && count < numPairs; ++i) {
+				String[] items = lines.get(i).split(fieldDelimRegex);
+				String partition = partitonOrdinal >= 0 ? items[partitonOrdinal] :  "N";
+				String id = round > 0 ? items[idOrdinal] + "_" + round : items[idOrdinal];
+				int block = BlockPairKey.getBlock(id, SORT_BUCKET_COUNT);
+				for (int j = 0; j < SORT_BUCKET_COUNT && count < numPairs; ++j, ++count) {
+					blockPairKey.setTriangular(partition, block, j);
+					blockPairKeys.add(blockPairKey);
+				}
+			}
+		}
+
+		runSort("BlockPairKey", blockPairKeys, BlockPairKey.class, new BlockPairKey.GroupComparator(),
+			new WritableComparator(BlockPairKey.class, true) {
+				@SuppressWarnings("rawtypes")
+				public int compare(WritableComparable w1, WritableComparable w2) {
+					return ((BlockPairKey)w1).compareToBase((BlockPairKey)w2);
+				}
+			});
+	}
+
+	/**
+	 * Sorts and groups keys with deserializing comparators and then with raw comparators
+	 * @param label
+	 * @param keys
+	 * @param keyClass
+	 * @param rawGroupComparator
+	 * @param objectGroupComparator
+	 */
+	@SuppressWarnings("rawtypes")
+	private void runSort(String label, KeyBuffer keys, Class<? extends WritableComparable> keyClass,
+		RawComparator<?> rawGroupComparator, RawComparator<?> objectGroupComparator) {
+		//comparator that hadoop falls back on when none is registered for the key class
+		RawComparator<?> objectComparator = new WritableComparator(keyClass, true) {};
+		RawComparator<?> rawComparator = WritableComparator.get(keyClass);
+
+		//warm up
+		keys.sort(objectComparator);
+		keys.countGroups(objectGroupComparator);
+		keys.sort(rawComparator);
+		keys.countGroups(rawGroupComparator);
+
+		long start = System.nanoTime();
+		keys.sort(objectComparator);
+		int[] objectOrder = keys.order.clone();
+		int groups = keys.countGroups(objectGroupComparator);
+		reportSort(label + " deserializing comparators", start, keys.size, groups);
+
+		start = System.nanoTime();
+		keys.sort(rawComparator);
+		groups = keys.countGroups(rawGroupComparator);
+		reportSort(label + " raw comparators", start, keys.size, groups);
+		if (!Arrays.equals(objectOrder, keys.order)) {
+			System.out.println(label + " sort order differs between comparators");
+		}
+	}
+
+	/**
+	 * @param label
+	 * @param start
+	 * @param numKeys
+	 * @param groups
+	 */
+	private void reportSort(String label, long start, int numKeys, int groups) {
+		long elapsed = System.nanoTime() - start;
+		double keysPerSec = elapsed > 0 ? numKeys * 1.0e9 / elapsed : 0;
+		System.out.println(label + " keys:" + numKeys + " time(ms):" + elapsed / 1000000 +
+				" keys/sec:" + (long)keysPerSec + " groups:" + groups);
+	}
+
+	/**
+	 * Serialized keys back to back in a buffer with offsets, like map output before spill
+	 * @author pranab
+	 *
+	 */
+	private static class KeyBuffer implements IndexedSortable {
+		private DataOutputBuffer buffer = new DataOutputBuffer();
+		private int[] offsets = new int[1024];
+		private int[] order;
+		private int size;
+		private RawComparator<?> comparator;
+
+		/**
+		 * @param key
+		 * @throws IOException
+		 */
+		public void add(WritableComparable<?> key) throws IOException {
+			if (size == offsets.length) {
+				offsets = Arrays.copyOf(offsets, 2 * size);
+			}
+			offsets[size++] = buffer.getLength();
+			key.write(buffer);
+		}
+
+		/**
+		 * Sorts starting from insertion order
+		 * @param comparator
+		 */
+		public void sort(RawComparator<?> comparator) {
+			order = new int[size];
+			for (int i = 0; i < size; ++i) {
+				order[i] = i;
+			}
+			this.comparator = comparator;
+			new QuickSort().sort(this, 0, size);
+		}
+
+		/**
+		 * Counts reducer groups in sorted keys
+		 * @param groupComparator
+		 * @return
+		 */
+		public int countGroups(RawComparator<?> groupComparator) {
+			int groups = size > 0 ? 1 : 0;
+			for (int i = 1; i < size; ++i) {
+				if (compare(groupComparator, order[i - 1], order[i]) != 0) {
+					++groups;
+				}
+			}
+			return groups;
+		}
+
+		@Override
+		public int compare(int i, int j) {
+			return compare(comparator, order[i], order[j]);
+		}
+
+		@Override
+		public void swap(int i, int j) {
+			int temp = order[i];
+			order[i] = order[j];
+			order[j] = temp;
+		}
+
+		private int compare(RawComparator<?> comparator, int first, int second) {
+			byte[] data = buffer.getData();
+			int firstEnd = first + 1 < size ? offsets[first + 1] : buffer.getLength();
+			int secondEnd = second + 1 < size ? offsets[second + 1] : buffer.getLength();
+			return comparator.compare(data, offsets[first], firstEnd - offsets[first], data, offsets[second],
+				secondEnd - offsets[second]);
+		}
+	}
+
+	/**
+	 * @return
+	 * @throws IOException
+	 */
+	private List<TypedRecord> parseRecords() throws IOException {
+		List<TypedRecord> records = new ArrayList<TypedRecord>();
+		for (String line : lines) {
+			TypedRecord record = new TypedRecord();
+			record.initialize(line.split(fieldDelimRegex), 0, idOrdinal, schema.getEntity().getFields(), subFieldDelim);
+			records.add(record);
+		}
+		return records;
+	}
+
+	/**
+	 * @return bytes allocated by current thread, -1 if not supported
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunThreadBean = (com.sun.management.ThreadMXBean)threadBean;
+			if (sunThreadBean.isThreadAllocatedMemorySupported() && sunThreadBean.isThreadAllocatedMemoryEnabled()) {
+				return sunThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param label
+	 * @param start
+	 */
+	private void reportAllocation(String label, long start) {
+		report(label, start, checkSum);
+		System.out.println(label + " bytes allocated:" + loopAllocation + " bytes/pair:" + 
+				(double)loopAllocation / numPairs);
+	}
+
+	/**
+	 * @param label
+	 * @param start
+	 * @param checkSum
+	 */
+	private void report(String label, long start, long checkSum) {
+		long elapsed = System.nanoTime() - start;
+		double pairsPerSec = elapsed > 0 ? numPairs * 1.0e9 / elapsed : 0;
+		System.out.println(label + " pairs:" + numPairs + " time(ms):" + elapsed / 1000000 +
+				" pairs/sec:" + (long)pairsPerSec + " checksum:" + checkSum);
+	}
+}
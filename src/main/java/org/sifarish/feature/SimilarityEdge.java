@@ -0,0 +1,143 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Edge of similarity graph, a pair of entity IDs followed by int values e.g. distance or correlation
+ * and intersection length, as in the text output id1,id2,dist[,len] of the pairwise similarity jobs
+ * @author pranab
+ *
+ */
+public class SimilarityEdge implements Writable {
+	private String firstId;
+	private String secondId;
+	private int[] values = new int[4];
+	private int numValues;
+
+	/**
+	 * @param firstId
+	 * @param secondId
+	 */
+	public void set(String firstId, String secondId) {
+		this.firstId = firstId;
+		this.secondId = secondId;
+		numValues = 0;
+	}
+
+	/**
+	 * @param value
+	 */
+	public void addValue(int value) {
+		if (numValues == values.length) {
+			values = Arrays.copyOf(values, 2 * numValues);
+		}
+		values[numValues++] = value;
+	}
+
+	/**
+	 * Sets from text output line
+	 * @param items
+	 */
+	public void set(String[] items) {
+		if (items.length < 3) {
+			throw new IllegalArgumentException("edge needs 2 IDs and at least one value");
+		}
+		set(items[0], items[1]);
+		try {
+			for (int i = 2; i < items.length; ++i) {
+				addValue(Integer.parseInt(items[i]));
+			}
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("binary edge needs ID pair followed by int fields only", ex);
+		}
+	}
+
+	public String getFirstId() {
+		return firstId;
+	}
+
+	public String getSecondId() {
+		return secondId;
+	}
+
+	public int getNumValues() {
+		return numValues;
+	}
+
+	/**
+	 * @param index
+	 * @return
+	 */
+	public int getValue(int index) {
+		return values[index];
+	}
+
+	/**
+	 * @return last value, which is distance for similarity output
+	 */
+	public int getDistance() {
+		return values[numValues - 1];
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		firstId = Text.readString(in);
+		secondId = Text.readString(in);
+		numValues = 0;
+		int count = WritableUtils.readVInt(in);
+		for (int i = 0; i < count; ++i) {
+			addValue(WritableUtils.readVInt(in));
+		}
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		Text.writeString(out, firstId);
+		Text.writeString(out, secondId);
+		WritableUtils.writeVInt(out, numValues);
+		for (int i = 0; i < numValues; ++i) {
+			WritableUtils.writeVInt(out, values[i]);
+		}
+	}
+
+	/**
+	 * @param fieldDelim
+	 * @return text output line
+	 */
+	public String toString(String fieldDelim) {
+		StringBuilder stBld = new StringBuilder();
+		stBld.append(firstId).append(fieldDelim).append(secondId);
+		for (int i = 0; i < numValues; ++i) {
+			stBld.append(fieldDelim).append(values[i]);
+		}
+		return stBld.toString();
+	}
+
+	public String toString() {
+		return toString(",");
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+
+/**
+ * Input format for jobs consuming similarity output. Binary edge files, identified by extension, are
+ * read whole and values are SimilarityEdge. Any other file is read as text lines as in TextInputFormat
+ * and values are Text. Jobs with mixed input can take both.
+ * @author pranab
+ *
+ */
+public class SimilarityEdgeInputFormat extends FileInputFormat<LongWritable, Writable> {
+
+	@Override
+	public RecordReader<LongWritable, Writable> createRecordReader(InputSplit split, TaskAttemptContext context)
+		throws IOException, InterruptedException {
+		return isEdgeFile(((FileSplit)split).getPath()) ? new EdgeRecordReader() : new TextRecordReader();
+	}
+
+	@Override
+	protected boolean isSplitable(JobContext context, Path file) {
+		return !isEdgeFile(file) &&
+			null == new CompressionCodecFactory(context.getConfiguration()).getCodec(file);
+	}
+
+	/**
+	 * @param path
+	 * @return true if binary edge file
+	 */
+	public static boolean isEdgeFile(Path path) {
+		return path.getName().endsWith(SimilarityEdgeOutputFormat.EXTENSION);
+	}
+
+	/**
+	 * Reads binary edges, key is edge index in file
+	 * @author pranab
+	 *
+	 */
+	public static class EdgeRecordReader extends RecordReader<LongWritable, Writable> {
+		private SimilarityEdgeReader reader;
+		private long length;
+		private LongWritable key = new LongWritable(-1);
+		private SimilarityEdge value = new SimilarityEdge();
+
+		@Override
+		public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
+			FileSplit fileSplit = (FileSplit)split;
+			Configuration conf = context.getConfiguration();
+			Path path = fileSplit.getPath();
+			FSDataInputStream in = path.getFileSystem(conf).open(path);
+			length = fileSplit.getLength();
+			reader = new SimilarityEdgeReader(in, conf);
+		}
+
+		@Override
+		public boolean nextKeyValue() throws IOException, InterruptedException {
+			boolean found = reader.next(value);
+			if (found) {
+				key.set(key.get() + 1);
+			}
+			return found;
+		}
+
+		@Override
+		public LongWritable getCurrentKey() throws IOException, InterruptedException {
+			return key;
+		}
+
+		@Override
+		public Writable getCurrentValue() throws IOException, InterruptedException {
+			return value;
+		}
+
+		@Override
+		public float getProgress() throws IOException, InterruptedException {
+			return length > 0 ? Math.min(1.0f, (float)reader.getBytesRead() / length) : 1.0f;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (null != reader) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Text lines with Writable value type
+	 * @author pranab
+	 *
+	 */
+	public static class TextRecordReader extends RecordReader<LongWritable, Writable> {
+		private LineRecordReader lineReader = new LineRecordReader();
+
+		@Override
+		public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
+			lineReader.initialize(split, context);
+		}
+
+		@Override
+		public boolean nextKeyValue() throws IOException, InterruptedException {
+			return lineReader.nextKeyValue();
+		}
+
+		@Override
+		public LongWritable getCurrentKey() throws IOException, InterruptedException {
+			return lineReader.getCurrentKey();
+		}
+
+		@Override
+		public Writable getCurrentValue() throws IOException, InterruptedException {
+			return lineReader.getCurrentValue();
+		}
+
+		@Override
+		public float getProgress() throws IOException, InterruptedException {
+			return lineReader.getProgress();
+		}
+
+		@Override
+		public void close() throws IOException {
+			lineReader.close();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Output format for pairwise similarity jobs, writing output lines id1,id2,dist[,len] as binary
+ * similarity edges. Jobs keep emitting text, so that any output path of a job can use it. Lines with
+ * any field other than ints after the ID pair e.g. records in output are rejected.
+ * @author pranab
+ *
+ */
+public class SimilarityEdgeOutputFormat extends FileOutputFormat<NullWritable, Text> {
+	public static final String EXTENSION = ".edge";
+
+	@Override
+	public RecordWriter<NullWritable, Text> getRecordWriter(TaskAttemptContext context)
+		throws IOException, InterruptedException {
+		Configuration conf = context.getConfiguration();
+		Class<? extends CompressionCodec> codecClass = conf.getClass("edge.compression.codec", DefaultCodec.class,
+			CompressionCodec.class);
+		CompressionCodec codec = (CompressionCodec)ReflectionUtils.newInstance(codecClass, conf);
+		int blockSize = conf.getInt("edge.block.size", 1024 * 1024);
+
+		Path file = getDefaultWorkFile(context, EXTENSION);
+		FSDataOutputStream out = file.getFileSystem(conf).create(file, false);
+		SimilarityEdgeWriter writer = new SimilarityEdgeWriter(out, codec, blockSize);
+		return new EdgeRecordWriter(writer, Pattern.quote(conf.get("field.delim", ",")));
+	}
+
+	/**
+	 * @author pranab
+	 *
+	 */
+	public static class EdgeRecordWriter extends RecordWriter<NullWritable, Text> {
+		private SimilarityEdgeWriter writer;
+		private Pattern fieldDelimPattern;
+		private SimilarityEdge edge = new SimilarityEdge();
+
+		/**
+		 * @param writer
+		 * @param fieldDelimRegex
+		 */
+		public EdgeRecordWriter(SimilarityEdgeWriter writer, String fieldDelimRegex) {
+			this.writer = writer;
+			fieldDelimPattern = Pattern.compile(fieldDelimRegex);
+		}
+
+		@Override
+		public void write(NullWritable key, Text value) throws IOException, InterruptedException {
+			edge.set(fieldDelimPattern.split(value.toString()));
+			writer.write(edge);
+		}
+
+		@Override
+		public void close(TaskAttemptContext context) throws IOException, InterruptedException {
+			writer.close();
+		}
+	}
+}
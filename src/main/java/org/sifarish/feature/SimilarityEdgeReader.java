@@ -0,0 +1,196 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Reads similarity edges written by SimilarityEdgeWriter, one block at a time
+ * @author pranab
+ *
+ */
+public class SimilarityEdgeReader {
+	private DataInputStream in;
+	private CompressionCodec codec;
+	private Decompressor decompressor;
+	private byte[] compressed = new byte[64 * 1024];
+	private byte[] raw = new byte[64 * 1024];
+	private int position;
+	private String[] ids = new String[1024];
+	private int numValues;
+	private int remainingEdges;
+	private long bytesRead;
+	private boolean done;
+
+	/**
+	 * @param in
+	 * @param conf
+	 * @throws IOException
+	 */
+	public SimilarityEdgeReader(InputStream in, Configuration conf) throws IOException {
+		this.in = new DataInputStream(in);
+		byte[] magic = new byte[SimilarityEdgeWriter.MAGIC.length];
+		this.in.readFully(magic);
+		if (!Arrays.equals(magic, SimilarityEdgeWriter.MAGIC)) {
+			throw new IOException("not a similarity edge file");
+		}
+		int version = this.in.readByte();
+		if (version != SimilarityEdgeWriter.VERSION) {
+			throw new IOException("unsupported similarity edge file version " + version);
+		}
+		String codecClassName = Text.readString(this.in);
+		try {
+			codec = (CompressionCodec)ReflectionUtils.newInstance(conf.getClassByName(codecClassName), conf);
+		} catch (ClassNotFoundException ex) {
+			throw new IOException("compression codec not found " + codecClassName);
+		}
+		decompressor = CodecPool.getDecompressor(codec);
+	}
+
+	/**
+	 * @param edge
+	 * @return false if there are no more edges
+	 * @throws IOException
+	 */
+	public boolean next(SimilarityEdge edge) throws IOException {
+		while (remainingEdges == 0) {
+			if (done || !readBlock()) {
+				return false;
+			}
+		}
+		String firstId = ids[readVInt()];
+		edge.set(firstId, ids[readVInt()]);
+		for (int i = 0; i < numValues; ++i) {
+			edge.addValue(readVInt());
+		}
+		--remainingEdges;
+		return true;
+	}
+
+	/**
+	 * Reads and decompresses next block and its ID dictionary
+	 * @return false if end of blocks
+	 * @throws IOException
+	 */
+	private boolean readBlock() throws IOException {
+		int rawLength = in.readInt();
+		if (rawLength == SimilarityEdgeWriter.END_OF_BLOCKS) {
+			done = true;
+			return false;
+		}
+		int compressedLength = in.readInt();
+		if (compressedLength > compressed.length) {
+			compressed = new byte[compressedLength];
+		}
+		in.readFully(compressed, 0, compressedLength);
+		bytesRead += compressedLength + 8;
+
+		if (rawLength > raw.length) {
+			raw = new byte[rawLength];
+		}
+		decompressor.reset();
+		DataInputStream blockStream = new DataInputStream(codec.createInputStream(
+			new ByteArrayInputStream(compressed, 0, compressedLength), decompressor));
+		blockStream.readFully(raw, 0, rawLength);
+		position = 0;
+
+		int numIds = readVInt();
+		if (numIds > ids.length) {
+			ids = new String[numIds];
+		}
+		for (int i = 0; i < numIds; ++i) {
+			int length = readVInt();
+			ids[i] = Text.decode(raw, position, length);
+			position += length;
+		}
+		numValues = readVInt();
+		remainingEdges = readVInt();
+		return true;
+	}
+
+	/**
+	 * Decodes var int in place from block bytes, same encoding as WritableUtils
+	 * @return
+	 */
+	private int readVInt() {
+		byte first = raw[position++];
+		int size = WritableUtils.decodeVIntSize(first);
+		if (size == 1) {
+			return first;
+		}
+		long value = 0;
+		for (int i = 0; i < size - 1; ++i) {
+			value = (value << 8) | (raw[position++] & 0xFF);
+		}
+		return (int)(WritableUtils.isNegativeVInt(first) ? ~value : value);
+	}
+
+	/**
+	 * @return compressed bytes consumed so far
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		try {
+			in.close();
+		} finally {
+			if (null != decompressor) {
+				CodecPool.returnDecompressor(decompressor);
+				decompressor = null;
+			}
+		}
+	}
+
+	/**
+	 * Prints edges of a file as text lines
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		Configuration conf = new Configuration();
+		Path path = new Path(args[0]);
+		String fieldDelim = args.length > 1 ? args[1] : ",";
+		SimilarityEdgeReader reader = new SimilarityEdgeReader(path.getFileSystem(conf).open(path), conf);
+		SimilarityEdge edge = new SimilarityEdge();
+		try {
+			while (reader.next(edge)) {
+				System.out.println(edge.toString(fieldDelim));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
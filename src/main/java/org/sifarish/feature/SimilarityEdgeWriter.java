@@ -0,0 +1,203 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+
+/**
+ * Writes similarity edges in compact binary form. Edges are collected in blocks. Each block has a
+ * dictionary of the entity IDs in the block, followed by the edges with IDs as dictionary index and
+ * values, all as var ints. Blocks are compressed separately.
+ * File layout : magic, version, codec class name, blocks each as raw length, compressed length and
+ * compressed bytes, end marker.
+ * Block layout : ID count, IDs, value count per edge, edge count, edges
+ * @author pranab
+ *
+ */
+public class SimilarityEdgeWriter {
+	private DataOutputStream out;
+	private CompressionCodec codec;
+	private Compressor compressor;
+	private int blockSize;
+	private Map<String, Integer> idIndexes = new HashMap<String, Integer>();
+	private List<String> ids = new ArrayList<String>();
+	private int idBytes;
+	private byte[] edgeBytes = new byte[64 * 1024];
+	private int edgeLength;
+	private DataOutputBuffer blockBuffer = new DataOutputBuffer();
+	private DataOutputBuffer compressedBuffer = new DataOutputBuffer();
+	private int numEdges;
+	private int numValues = -1;
+	private long edgeCount;
+
+	public static final byte[] MAGIC = {'S', 'E', 'D', 'G'};
+	public static final int VERSION = 1;
+	public static final int END_OF_BLOCKS = -1;
+	private static final int MAX_VINT_SIZE = 5;
+
+	/**
+	 * @param out
+	 * @param codec
+	 * @param blockSize approximate uncompressed block size in bytes
+	 * @throws IOException
+	 */
+	public SimilarityEdgeWriter(DataOutputStream out, CompressionCodec codec, int blockSize) throws IOException {
+		this.out = out;
+		this.codec = codec;
+		this.blockSize = blockSize;
+		compressor = CodecPool.getCompressor(codec);
+
+		out.write(MAGIC);
+		out.writeByte(VERSION);
+		Text.writeString(out, codec.getClass().getName());
+	}
+
+	/**
+	 * @param edge
+	 * @throws IOException
+	 */
+	public void write(SimilarityEdge edge) throws IOException {
+		//all edges of a block have same number of values
+		if (edge.getNumValues() != numValues) {
+			flush();
+			numValues = edge.getNumValues();
+		}
+		if (edgeLength + (numValues + 2) * MAX_VINT_SIZE > edgeBytes.length) {
+			edgeBytes = Arrays.copyOf(edgeBytes, 2 * edgeBytes.length);
+		}
+		writeVInt(findIndex(edge.getFirstId()));
+		writeVInt(findIndex(edge.getSecondId()));
+		for (int i = 0; i < numValues; ++i) {
+			writeVInt(edge.getValue(i));
+		}
+		++numEdges;
+		++edgeCount;
+		if (edgeLength + idBytes >= blockSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * @param id
+	 * @return dictionary index of ID in current block
+	 */
+	private int findIndex(String id) {
+		Integer index = idIndexes.get(id);
+		if (null == index) {
+			index = ids.size();
+			idIndexes.put(id, index);
+			ids.add(id);
+			idBytes += id.length() + 1;
+		}
+		return index;
+	}
+
+	/**
+	 * Encodes var int in place in edge bytes, same encoding as WritableUtils
+	 * @param value
+	 */
+	private void writeVInt(int value) {
+		if (value >= -112 && value <= 127) {
+			edgeBytes[edgeLength++] = (byte)value;
+			return;
+		}
+		long longValue = value;
+		int len = -112;
+		if (longValue < 0) {
+			longValue ^= -1L;
+			len = -120;
+		}
+		for (long temp = longValue; temp != 0; temp >>= 8) {
+			--len;
+		}
+		edgeBytes[edgeLength++] = (byte)len;
+		len = (len < -120) ? -(len + 120) : -(len + 112);
+		for (int i = len; i != 0; --i) {
+			edgeBytes[edgeLength++] = (byte)(longValue >> ((i - 1) * 8));
+		}
+	}
+
+	/**
+	 * Compresses and writes current block
+	 * @throws IOException
+	 */
+	private void flush() throws IOException {
+		if (numEdges == 0) {
+			return;
+		}
+		blockBuffer.reset();
+		WritableUtils.writeVInt(blockBuffer, ids.size());
+		for (String id : ids) {
+			Text.writeString(blockBuffer, id);
+		}
+		WritableUtils.writeVInt(blockBuffer, numValues);
+		WritableUtils.writeVInt(blockBuffer, numEdges);
+		blockBuffer.write(edgeBytes, 0, edgeLength);
+
+		compressedBuffer.reset();
+		compressor.reset();
+		CompressionOutputStream compOut = codec.createOutputStream(compressedBuffer, compressor);
+		compOut.write(blockBuffer.getData(), 0, blockBuffer.getLength());
+		compOut.finish();
+
+		out.writeInt(blockBuffer.getLength());
+		out.writeInt(compressedBuffer.getLength());
+		out.write(compressedBuffer.getData(), 0, compressedBuffer.getLength());
+
+		idIndexes.clear();
+		ids.clear();
+		idBytes = 0;
+		edgeLength = 0;
+		numEdges = 0;
+	}
+
+	/**
+	 * @return number of edges written
+	 */
+	public long getEdgeCount() {
+		return edgeCount;
+	}
+
+	/**
+	 * Writes last block and end marker
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+			out.writeInt(END_OF_BLOCKS);
+			out.close();
+		} finally {
+			CodecPool.returnCompressor(compressor);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.sifarish.util.Utility;
+
+/**
+ * Compares matching pairs found with candidate pair reduction e.g. blocking or sorted neighborhood
+ * with matching pairs found by exhaustive matching. Reports recall i.e. fraction of exhaustive pairs
+ * found. Pairs are unordered, so that output with either order of IDs can be compared. Both sets
+ * of pairs are held in memory.
+ * @author pranab
+ *
+ */
+public class SimilarityRecallEvaluator extends Configured implements Tool {
+	private String fieldDelimRegex;
+	private int[] idOrdinals;
+	private int distThreshold;
+
+    @Override
+    public int run(String[] args) throws Exception {
+    	Configuration conf = getConf();
+    	Utility.setConfiguration(conf);
+    	fieldDelimRegex = conf.get("field.delim.regex", ",");
+    	idOrdinals = org.chombo.util.Utility.intArrayFromString(conf.get("sre.id.field.ordinals", "0,1"));
+
+    	//exhaustive output may have been generated with a higher threshold
+    	distThreshold = conf.getInt("sre.dist.threshold", -1);
+
+    	FileSystem fs = FileSystem.get(conf);
+    	Set<String> exhaustivePairs = loadPairs(fs, new Path(args[0]));
+    	Set<String> candidatePairs = loadPairs(fs, new Path(args[1]));
+
+    	int found = 0;
+    	for (String pair : exhaustivePairs) {
+    		if (candidatePairs.contains(pair)) {
+    			++found;
+    		}
+    	}
+    	double recall = exhaustivePairs.isEmpty() ? 1.0 : (double)found / exhaustivePairs.size();
+    	System.out.println("exhaustive pairs: " + exhaustivePairs.size() + " candidate pairs: " +
+    		candidatePairs.size() + " found: " + found);
+    	System.out.println("recall: " + recall);
+    	return 0;
+    }
+
+    /**
+     * Loads pairs from a file or all files in a directory
+     * @param fs
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    private Set<String> loadPairs(FileSystem fs, Path path) throws IOException {
+    	Set<String> pairs = new HashSet<String>();
+        FileStatus[] statusList = fs.isFile(path) ? new FileStatus[]{fs.getFileStatus(path)} :
+        	fs.listStatus(path);
+        for (FileStatus status : statusList) {
+        	String name = status.getPath().getName();
+        	if (status.isDir() || name.startsWith("_") || name.startsWith(".")) {
+        		continue;
+        	}
+        	BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(status.getPath())));
+        	try {
+        		String line = null;
+        		while((line = reader.readLine()) != null) {
+        			String[] items = line.split(fieldDelimRegex);
+        			if (distThreshold >= 0 && Integer.parseInt(items[items.length - 1]) > distThreshold) {
+        				continue;
+        			}
+        			String firstId = items[idOrdinals[0]];
+        			String secondId = items[idOrdinals[1]];
+        			if (firstId.equals(secondId)) {
+        				continue;
+        			}
+        			pairs.add(firstId.compareTo(secondId) < 0 ? firstId + " " + secondId : secondId + " " + firstId);
+        		}
+        	} finally {
+        		reader.close();
+        	}
+        }
+        return pairs;
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int exitCode = ToolRunner.run(new SimilarityRecallEvaluator(), args);
+        System.exit(exitCode);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.chombo.util.SecondarySort;
+import org.chombo.util.Tuple;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.sifarish.util.Utility;
+
+/**
+ * Joins ID pairs from SameTypeSimilarity with whole records, when records are projected in the mapper
+ * and whole records are needed in output. Input pairs are id, id and distance. Output is same as
+ * SameTypeSimilarity without projection, id, id, first record, second record and distance. Reduce side
+ * join in two passes, first for first ID and then for second ID of pairs. Records are sorted ahead of
+ * pairs for an ID, so that only the record is held in memory. Records are output with the output field 
+ * delimiter and a record joined in the first pass is not split again
+ * @author pranab
+ *
+ */
+public class SimilarityRecordJoiner extends Configured implements Tool {
+
+    @Override
+    public int run(String[] args) throws Exception {
+    	//pair path, record path and output path
+    	Configuration conf = getConf();
+    	String firstPassPath = conf.get("sts.record.join.first.pass.path", args[2] + "_first_pass");
+    	int status = runJoin(conf, args[0], args[1], firstPassPath, 0);
+    	if (0 == status) {
+    		status = runJoin(conf, firstPassPath, args[1], args[2], 1);
+    		FileSystem.get(conf).delete(new Path(firstPassPath), true);
+    	}
+    	return status;
+    }
+
+    /**
+     * @param conf
+     * @param pairPath
+     * @param recordPath
+     * @param outputPath
+     * @param pass
+     * @return
+     * @throws Exception
+     */
+    private int runJoin(Configuration conf, String pairPath, String recordPath, String outputPath, int pass)
+    	throws Exception {
+        Job job = new Job(new Configuration(conf));
+        String jobName = "Similarity record joiner MR pass " + pass;
+        job.setJobName(jobName);
+
+        job.setJarByClass(SimilarityRecordJoiner.class);
+
+        FileInputFormat.addInputPath(job, new Path(pairPath));
+        FileInputFormat.addInputPath(job, new Path(recordPath));
+        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        job.getConfiguration().set("sts.record.join.record.path", recordPath);
+        job.getConfiguration().setInt("sts.record.join.pass", pass);
+
+        job.setMapperClass(SimilarityRecordJoiner.JoinMapper.class);
+        job.setReducerClass(SimilarityRecordJoiner.JoinReducer.class);
+
+        job.setMapOutputKeyClass(Tuple.class);
+        job.setMapOutputValueClass(Text.class);
+
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(Text.class);
+
+        job.setGroupingComparatorClass(SecondarySort.TuplePairGroupComprator.class);
+        job.setPartitionerClass(SecondarySort.TupleTextPartitioner.class);
+
+        Utility.setConfiguration(job.getConfiguration());
+        int numReducer = job.getConfiguration().getInt("sts.num.reducer", -1);
+        numReducer = -1 == numReducer ? job.getConfiguration().getInt("num.reducer", 1) : numReducer;
+        job.setNumReduceTasks(numReducer);
+
+        return job.waitForCompletion(true) ? 0 : 1;
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int exitCode = ToolRunner.run(new SimilarityRecordJoiner(), args);
+        System.exit(exitCode);
+    }
+
+    /**
+     * Keys records by record ID and pairs by ID of the pass
+     * @author pranab
+     *
+     */
+    public static class JoinMapper extends Mapper<LongWritable, Text, Tuple, Text> {
+    	private Tuple outKey = new Tuple();
+    	private Text outVal = new Text();
+    	private String fieldDelimRegex;
+    	private String fieldDelim;
+    	private boolean isRecordSplit;
+    	private int idOrdinal;
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#setup(org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        protected void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+        	fieldDelimRegex = conf.get("field.delim.regex", "\\[\\]");
+        	fieldDelim = conf.get("field.delim", ",");
+
+        	//record or pair split
+        	FileSystem fs = FileSystem.get(conf);
+        	Path recordPath = fs.makeQualified(new Path(conf.get("sts.record.join.record.path")));
+        	Path splitPath = ((FileSplit)context.getInputSplit()).getPath();
+        	isRecordSplit = recordPath.equals(splitPath.getParent()) || recordPath.equals(splitPath);
+
+        	if (isRecordSplit) {
+        		InputStream schemaStream = org.chombo.util.Utility.getFileStream(conf, "sts.same.schema.file.path");
+        		ObjectMapper mapper = new ObjectMapper();
+        		SingleTypeSchema schema = mapper.readValue(schemaStream, SingleTypeSchema.class);
+        		idOrdinal = schema.getEntity().getIdField().getOrdinal();
+        	} else {
+        		idOrdinal = conf.getInt("sts.record.join.pass", 0);
+        	}
+        }
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#map(KEYIN, VALUEIN, org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        @Override
+        protected void map(LongWritable key, Text value, Context context)
+            throws IOException, InterruptedException {
+        	outKey.initialize();
+        	if (isRecordSplit) {
+        		//record with output delimiter, same as in SameTypeSimilarity output
+        		String[] items  =  value.toString().split(fieldDelimRegex);
+        		outKey.add(items[idOrdinal], 0);
+        		outVal.set(org.chombo.util.Utility.join(items, fieldDelim));
+        		context.write(outKey, outVal);
+        	} else {
+        		//only the IDs are split out, any record already joined is left as is
+        		String[] items  =  value.toString().split(fieldDelimRegex, 3);
+        		outKey.add(items[idOrdinal], 1);
+        		context.write(outKey, value);
+        	}
+        }
+    }
+
+    /**
+     * Appends record to pairs in first pass and lays out final output in second pass
+     * @author pranab
+     *
+     */
+    public static class JoinReducer extends Reducer<Tuple, Text, NullWritable, Text> {
+    	private Text outVal = new Text();
+    	private String fieldDelimRegex;
+    	private String fieldDelim;
+    	private int pass;
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Reducer#setup(org.apache.hadoop.mapreduce.Reducer.Context)
+         */
+        protected void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+        	fieldDelimRegex = conf.get("field.delim.regex", "\\[\\]");
+        	fieldDelim = conf.get("field.delim", ",");
+        	pass = conf.getInt("sts.record.join.pass", 0);
+        }
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Reducer#reduce(KEYIN, java.lang.Iterable, org.apache.hadoop.mapreduce.Reducer.Context)
+         */
+        protected void reduce(Tuple key, Iterable<Text> values, Context context)
+        	throws IOException, InterruptedException {
+        	//record sorts first, if there is one
+        	boolean withRecord = key.getInt(1) == 0;
+        	String record = null;
+        	for (Text value : values) {
+        		if (null == record && withRecord) {
+        			record = value.toString();
+        		} else if (null == record) {
+        			context.getCounter("Record Join", "Pairs without record").increment(1);
+        		} else if (0 == pass) {
+        			//id, id, distance, first record
+        			outVal.set(value.toString() + fieldDelim + record);
+        			context.write(NullWritable.get(), outVal);
+        		} else {
+        			//id, id, first record, second record, distance
+        			//first record is not split, so that it's delimiters don't change
+        			String[] items = value.toString().split(fieldDelimRegex, 4);
+        			outVal.set(items[0] + fieldDelim + items[1] + fieldDelim + items[3] + fieldDelim +
+        				record + fieldDelim + items[2]);
+        			context.write(NullWritable.get(), outVal);
+        			context.getCounter("Record Join", "Pairs joined").increment(1);
+        		}
+        	}
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.sifarish.util.Utility;
+
+/**
+ * Estimates work load of the bucket based similarity jobs before launching them, for a range of bucket
+ * counts. A sample of the input is mapped to reducer groups exactly as the mapper of the job would, and
+ * counts are scaled up to the whole input. For each bucket count, reports shuffle bytes, pairs in the
+ * largest reducer group, pairs per reducer and reducer imbalance, and recommends the smallest bucket
+ * count for which the largest group is within a target. Supports SameTypeSimilarity (sts),
+ * ItemDynamicAttributeSimilarity (idas) and PearsonCorrelator (pec). Runs in a single process.
+ * @author pranab
+ *
+ */
+public class SimilarityWorkloadEstimator extends Configured implements Tool {
+	private String jobType;
+	private String fieldDelimRegex;
+	private List<SampleRecord> sample = new ArrayList<SampleRecord>();
+	private long linesRead;
+	private long bytesRead;
+	private double scale;
+	private BlockPairKey groupKey = new BlockPairKey();
+
+	private static final int KEY_BYTES = 10;
+
+    @Override
+    public int run(String[] args) throws Exception {
+    	Configuration conf = getConf();
+    	Utility.setConfiguration(conf);
+    	jobType = conf.get("swe.job.type", "sts");
+    	if (!jobType.equals("sts") && !jobType.equals("idas") && !jobType.equals("pec")) {
+    		throw new IllegalArgumentException("invalid job type " + jobType);
+    	}
+    	fieldDelimRegex = conf.get("field.delim.regex", jobType.equals("sts") ? "\\[\\]" : ",");
+    	if (jobType.equals("sts") && conf.get("sts.candidate.generation", "bucket").equals("blocking")) {
+    		System.out.println("bucket count does not apply with blocking");
+    		return 0;
+    	}
+    	int numReducer = conf.getInt(jobType + ".num.reducer", -1);
+    	numReducer = -1 == numReducer ? conf.getInt("num.reducer", 1) : numReducer;
+
+    	//sample and scale to whole input
+    	FileSystem fs = FileSystem.get(conf);
+    	Path inputPath = new Path(args[0]);
+    	takeSample(conf, fs, inputPath);
+    	if (sample.isEmpty()) {
+    		System.out.println("no records sampled");
+    		return 0;
+    	}
+    	long inputBytes = fs.getContentSummary(inputPath).getLength();
+    	double estRecordCount = (double)inputBytes * linesRead / bytesRead;
+    	scale = estRecordCount / sample.size();
+    	System.out.println("sampled records: " + sample.size() + " estimated records: " + (long)estRecordCount);
+
+    	//evaluate bucket counts
+    	int[] bucketCounts = org.chombo.util.Utility.intArrayFromString(
+    		conf.get("swe.bucket.counts", "2,4,8,16,32,64,128,256,512"));
+    	long targetGroupPairs = conf.getLong("swe.target.group.pairs", 1000000L);
+    	double maxImbalance = Double.parseDouble(conf.get("swe.max.imbalance", "2.0"));
+    	System.out.println("bucketCount,shuffleBytes,reducerGroups,maxGroupRecords,maxGroupPairs,maxReducerPairs,imbalance");
+    	int recommended = -1;
+    	int fallback = -1;
+    	double minMaxReducerPairs = Double.MAX_VALUE;
+    	for (int bucketCount : bucketCounts) {
+    		Estimate estimate = estimate(bucketCount, numReducer);
+    		System.out.println(estimate);
+    		if (recommended < 0 && estimate.maxGroupPairs <= targetGroupPairs && estimate.imbalance <= maxImbalance) {
+    			recommended = bucketCount;
+    		}
+    		if (estimate.maxReducerPairs < minMaxReducerPairs) {
+    			minMaxReducerPairs = estimate.maxReducerPairs;
+    			fallback = bucketCount;
+    		}
+    	}
+
+    	//smallest count meeting the target has the least shuffle
+    	if (recommended < 0) {
+    		System.out.println("no bucket count meets the target, recommending the one with least pairs per reducer");
+    		recommended = fallback;
+    	}
+    	System.out.println("recommended " + jobType + ".bucket.count=" + recommended);
+    	return 0;
+    }
+
+    /**
+     * Bernoulli sample of lines from all files, optionally capped
+     * @param conf
+     * @param fs
+     * @param inputPath
+     * @throws IOException
+     */
+    private void takeSample(Configuration conf, FileSystem fs, Path inputPath) throws IOException {
+    	double samplingRate = Double.parseDouble(conf.get("swe.sampling.rate", "0.1"));
+    	int maxSampleSize = conf.getInt("swe.max.sample.size", 100000);
+    	Random random = new Random(conf.getLong("swe.random.seed", 1));
+    	RecordMapper recordMapper = new RecordMapper(conf);
+
+        FileStatus[] statusList = fs.isFile(inputPath) ? new FileStatus[]{fs.getFileStatus(inputPath)} :
+        	fs.listStatus(inputPath);
+        for (FileStatus status : statusList) {
+        	String name = status.getPath().getName();
+        	if (status.isDir() || name.startsWith("_") || name.startsWith(".")) {
+        		continue;
+        	}
+        	boolean isBaseSplit = name.startsWith(conf.get("sts.base.set.split.prefix", "base"));
+        	BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(status.getPath())));
+        	try {
+        		String line = null;
+        		while(sample.size() < maxSampleSize && (line = reader.readLine()) != null) {
+        			++linesRead;
+        			bytesRead += line.length() + 1;
+        			if (random.nextDouble() < samplingRate) {
+        				sample.add(recordMapper.map(line, isBaseSplit));
+        			}
+        		}
+        	} finally {
+        		reader.close();
+        	}
+        }
+    }
+
+    /**
+     * Maps sampled records to reducer groups for a bucket count, as the job mapper does
+     * @param bucketCount
+     * @param numReducer
+     * @return
+     */
+    private Estimate estimate(int bucketCount, int numReducer) {
+    	Map<BlockPairKey, GroupLoad> groups = new HashMap<BlockPairKey, GroupLoad>();
+    	BlockPairKey key = new BlockPairKey();
+    	BlockPairKey.BlockPairPartitioner partitioner = new BlockPairKey.BlockPairPartitioner();
+    	boolean interSet = jobType.equals("sts") && getConf().getBoolean("sts.inter.set.matching", false);
+    	double shuffleBytes = 0;
+    	for (SampleRecord record : sample) {
+    		int block = BlockPairKey.getBlock(record.id, bucketCount);
+    		for (int i = 0; i < bucketCount; ++i) {
+    			if (interSet) {
+    				if (record.isBase) {
+    					key.set(record.partition, block, i, 0);
+    				} else {
+    					key.set(record.partition, i, block, 1);
+    				}
+    			} else {
+    				key.setTriangular(record.partition, block, i);
+    			}
+    			addToGroup(groups, key, numReducer, partitioner);
+    		}
+    		shuffleBytes += (double)bucketCount * (record.bytes + record.partition.length() + KEY_BYTES);
+    	}
+
+    	Estimate estimate = new Estimate();
+    	estimate.bucketCount = bucketCount;
+    	estimate.shuffleBytes = shuffleBytes * scale;
+    	estimate.reducerGroups = groups.size();
+    	double[] reducerPairs = new double[numReducer];
+    	for (GroupLoad group : groups.values()) {
+    		double first = group.counts[0] * scale;
+    		double second = group.counts[1] * scale;
+    		double pairs = !interSet && group.selfJoin ? first * (first - 1) / 2 : first * second;
+    		estimate.maxGroupRecords = Math.max(estimate.maxGroupRecords, first + second);
+    		estimate.maxGroupPairs = Math.max(estimate.maxGroupPairs, pairs);
+    		reducerPairs[group.reducer] += pairs;
+    	}
+    	double totalPairs = 0;
+    	for (double pairs : reducerPairs) {
+    		totalPairs += pairs;
+    		estimate.maxReducerPairs = Math.max(estimate.maxReducerPairs, pairs);
+    	}
+    	double meanPairs = totalPairs / numReducer;
+    	estimate.imbalance = meanPairs > 0 ? estimate.maxReducerPairs / meanPairs : 1.0;
+    	return estimate;
+    }
+
+    /**
+     * @param groups
+     * @param key
+     * @param numReducer
+     * @param partitioner
+     */
+    private void addToGroup(Map<BlockPairKey, GroupLoad> groups, BlockPairKey key, int numReducer,
+    		BlockPairKey.BlockPairPartitioner partitioner) {
+    	//group part of the key only
+    	String partition = key.getPartition().toString();
+    	groupKey.set(partition, key.getFirstBlock(), key.getSecondBlock(), 0);
+    	GroupLoad group = groups.get(groupKey);
+    	if (null == group) {
+    		BlockPairKey newGroupKey = new BlockPairKey();
+    		newGroupKey.set(partition, key.getFirstBlock(), key.getSecondBlock(), 0);
+    		group = new GroupLoad();
+    		group.selfJoin = key.isDiagonal();
+    		group.reducer = partitioner.getPartition(key, null, numReducer);
+    		groups.put(newGroupKey, group);
+    	}
+    	++group.counts[key.getSet()];
+    }
+
+    /**
+     * Extracts what determines the reducer group of a record, for each job type
+     * @author pranab
+     *
+     */
+    private class RecordMapper {
+    	private int idOrdinal;
+    	private int partitionOrdinal = -1;
+    	private SingleTypeSchema schema;
+    	private String subFieldDelim;
+    	private TypedRecord record;
+    	private DataOutputBuffer serBuffer;
+
+    	/**
+    	 * @param conf
+    	 * @throws IOException
+    	 */
+    	public RecordMapper(Configuration conf) throws IOException {
+    		if (jobType.equals("sts")) {
+        		InputStream fs = org.chombo.util.Utility.getFileStream(conf, "sts.same.schema.file.path");
+                ObjectMapper mapper = new ObjectMapper();
+                schema = mapper.readValue(fs, SingleTypeSchema.class);
+                idOrdinal = schema.getEntity().getIdField().getOrdinal();
+                partitionOrdinal = schema.getPartitioningColumn();
+           	 	subFieldDelim = conf.get("sts.sub.field.delim.regex", "::");
+                record = new TypedRecord();
+                serBuffer = new DataOutputBuffer();
+    		} else if (jobType.equals("idas")) {
+    			partitionOrdinal = conf.getInt("idas.paritioning.field.ordinal", -1);
+    		}
+    	}
+
+    	/**
+    	 * @param line
+    	 * @param isBaseSplit
+    	 * @return
+    	 * @throws IOException
+    	 */
+    	public SampleRecord map(String line, boolean isBaseSplit) throws IOException {
+    		String[] items = line.split(fieldDelimRegex);
+    		SampleRecord sampleRec = new SampleRecord();
+    		sampleRec.id = items[idOrdinal];
+    		sampleRec.isBase = isBaseSplit;
+    		if (jobType.equals("sts")) {
+    			sampleRec.partition = partitionOrdinal >= 0 ? items[partitionOrdinal] : "N";
+
+    			//serialized typed record is what gets shuffled
+    			record.initialize(items, 0, idOrdinal, schema.getEntity().getFields(), subFieldDelim);
+    			serBuffer.reset();
+    			record.write(serBuffer);
+    			sampleRec.bytes = serBuffer.getLength();
+    		} else {
+    			sampleRec.partition = partitionOrdinal >= 0 ? items[partitionOrdinal] : "none";
+    			sampleRec.bytes = line.length() + 2;
+    		}
+    		return sampleRec;
+    	}
+    }
+
+    /**
+     * Sampled record
+     * @author pranab
+     *
+     */
+    private static class SampleRecord {
+    	private String id;
+    	private String partition;
+    	private boolean isBase;
+    	private int bytes;
+    }
+
+    /**
+     * Records of each set in a reducer group
+     * @author pranab
+     *
+     */
+    private static class GroupLoad {
+    	private long[] counts = new long[2];
+    	private boolean selfJoin;
+    	private int reducer;
+    }
+
+    /**
+     * Estimates for a bucket count
+     * @author pranab
+     *
+     */
+    private static class Estimate {
+    	private int bucketCount;
+    	private double shuffleBytes;
+    	private int reducerGroups;
+    	private double maxGroupRecords;
+    	private double maxGroupPairs;
+    	private double maxReducerPairs;
+    	private double imbalance;
+
+    	/* (non-Javadoc)
+    	 * @see java.lang.Object#toString()
+    	 */
+    	public String toString() {
+    		return bucketCount + "," + (long)shuffleBytes + "," + reducerGroups + "," + (long)maxGroupRecords + "," +
+    			(long)maxGroupPairs + "," + (long)maxReducerPairs + "," + String.format("%.2f", imbalance);
+    	}
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int exitCode = ToolRunner.run(new SimilarityWorkloadEstimator(), args);
+        System.exit(exitCode);
+    }
+}
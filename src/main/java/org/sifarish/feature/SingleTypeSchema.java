@@ -22,6 +22,7 @@ import java.util.List;
 import org.sifarish.util.Entity;
 import org.sifarish.util.Field;
 import org.sifarish.util.IDistanceStrategy;
+import org.sifarish.util.SortKey;
 
 import java.io.Serializable;
 
@@ -32,6 +33,14 @@ import java.io.Serializable;
 public class SingleTypeSchema  extends TypeSchema implements Serializable {
 	private Entity entity;
 	private int partitioningColumn = -1;
+	private int minHashCount = 20;
+	private int minHashBandCount = 5;
+	private int projectionTableCount = 4;
+	private int projectionHashCount = 2;
+	private double projectionBucketWidth = 0.2;
+	private double canopyLooseThreshold = 0.3;
+	private double canopyTightThreshold = 0.15;
+	private List<SortKey> sortKeys;
 	
 	/**
 	 * @return
@@ -57,6 +66,102 @@ public class SingleTypeSchema  extends TypeSchema implements Serializable {
 	public void setPartitioningColumn(int partitioningColumn) {
 		this.partitioningColumn = partitioningColumn;
 	}
+	/**
+	 * @return
+	 */
+	public int getMinHashCount() {
+		return minHashCount;
+	}
+	/**
+	 * @param minHashCount
+	 */
+	public void setMinHashCount(int minHashCount) {
+		this.minHashCount = minHashCount;
+	}
+	/**
+	 * @return
+	 */
+	public int getMinHashBandCount() {
+		return minHashBandCount;
+	}
+	/**
+	 * @param minHashBandCount
+	 */
+	public void setMinHashBandCount(int minHashBandCount) {
+		this.minHashBandCount = minHashBandCount;
+	}
+	/**
+	 * @return number of random projection hash tables
+	 */
+	public int getProjectionTableCount() {
+		return projectionTableCount;
+	}
+	/**
+	 * @param projectionTableCount
+	 */
+	public void setProjectionTableCount(int projectionTableCount) {
+		this.projectionTableCount = projectionTableCount;
+	}
+	/**
+	 * @return number of random projections concatenated in a table key
+	 */
+	public int getProjectionHashCount() {
+		return projectionHashCount;
+	}
+	/**
+	 * @param projectionHashCount
+	 */
+	public void setProjectionHashCount(int projectionHashCount) {
+		this.projectionHashCount = projectionHashCount;
+	}
+	/**
+	 * @return bucket width of a projection, in range normalized distance
+	 */
+	public double getProjectionBucketWidth() {
+		return projectionBucketWidth;
+	}
+	/**
+	 * @param projectionBucketWidth
+	 */
+	public void setProjectionBucketWidth(double projectionBucketWidth) {
+		this.projectionBucketWidth = projectionBucketWidth;
+	}
+	/**
+	 * @return distance over canopy fields within which a record belongs to a canopy
+	 */
+	public double getCanopyLooseThreshold() {
+		return canopyLooseThreshold;
+	}
+	/**
+	 * @param canopyLooseThreshold
+	 */
+	public void setCanopyLooseThreshold(double canopyLooseThreshold) {
+		this.canopyLooseThreshold = canopyLooseThreshold;
+	}
+	/**
+	 * @return distance over canopy fields within which a record can not be another canopy center
+	 */
+	public double getCanopyTightThreshold() {
+		return canopyTightThreshold;
+	}
+	/**
+	 * @param canopyTightThreshold
+	 */
+	public void setCanopyTightThreshold(double canopyTightThreshold) {
+		this.canopyTightThreshold = canopyTightThreshold;
+	}
+	/**
+	 * @return
+	 */
+	public List<SortKey> getSortKeys() {
+		return sortKeys;
+	}
+	/**
+	 * @param sortKeys one key for each sorted neighborhood pass
+	 */
+	public void setSortKeys(List<SortKey> sortKeys) {
+		this.sortKeys = sortKeys;
+	}
 
 	/**
 	 * Process structured fields
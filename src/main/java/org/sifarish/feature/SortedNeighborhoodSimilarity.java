@@ -0,0 +1,409 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.chombo.util.Tuple;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.sifarish.util.SortKey;
+import org.sifarish.util.Utility;
+
+/**
+ * Sorted neighborhood duplicate detection. For each sort key defined in the schema, records are
+ * sorted by the key and each record is matched only with the records within a sliding window
+ * preceding it. With a window size of w, there are about n x (w - 1) pairs for each pass instead
+ * of n x n / 2. Multiple passes with different keys catch duplicates that differ in the leading
+ * field of one of the keys. A pair found in multiple passes is written once, if distinct pairs are
+ * asked for.
+ * @author pranab
+ *
+ */
+public class SortedNeighborhoodSimilarity extends Configured implements Tool {
+
+    @Override
+    public int run(String[] args) throws Exception {
+    	Configuration conf = getConf();
+    	boolean distinctPairs = conf.getBoolean("sns.distinct.pairs", true);
+    	String passOutputPath = distinctPairs ? args[1] + "_passes" : args[1];
+
+        Job job = new Job(conf);
+        String jobName = "Sorted neighborhood similarity MR";
+        job.setJobName(jobName);
+
+        job.setJarByClass(SortedNeighborhoodSimilarity.class);
+
+        FileInputFormat.addInputPath(job, new Path(args[0]));
+        FileOutputFormat.setOutputPath(job, new Path(passOutputPath));
+
+        job.setMapperClass(SortedNeighborhoodSimilarity.SortKeyMapper.class);
+        job.setReducerClass(SortedNeighborhoodSimilarity.WindowReducer.class);
+
+        job.setMapOutputKeyClass(Tuple.class);
+        job.setMapOutputValueClass(TypedRecord.class);
+
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(Text.class);
+
+        //group by pass and partition, sorted by key and ID within group
+        job.setGroupingComparatorClass(SortedNeighborhoodSimilarity.PassGroupComprator.class);
+        job.setPartitionerClass(SortedNeighborhoodSimilarity.PassPartitioner.class);
+
+        Utility.setConfiguration(job.getConfiguration());
+
+        int numReducer = job.getConfiguration().getInt("sns.num.reducer", -1);
+        numReducer = -1 == numReducer ? job.getConfiguration().getInt("num.reducer", 1) : numReducer;
+        job.setNumReduceTasks(numReducer);
+
+        int status =  job.waitForCompletion(true) ? 0 : 1;
+
+        //pairs found in more than one pass
+        if (0 == status && distinctPairs) {
+        	status = runDistinctPairs(passOutputPath, args[1]);
+        }
+        return status;
+    }
+
+    /**
+     * Removes pairs found in more than one pass
+     * @param inputPath
+     * @param outputPath
+     * @return
+     * @throws Exception
+     */
+    private int runDistinctPairs(String inputPath, String outputPath) throws Exception {
+        Job job = new Job(getConf());
+        String jobName = "Sorted neighborhood distinct pairs MR";
+        job.setJobName(jobName);
+
+        job.setJarByClass(SortedNeighborhoodSimilarity.class);
+
+        FileInputFormat.addInputPath(job, new Path(inputPath));
+        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+
+        job.setMapperClass(SortedNeighborhoodSimilarity.DistinctPairMapper.class);
+        job.setReducerClass(SortedNeighborhoodSimilarity.DistinctPairReducer.class);
+
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(Text.class);
+
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(Text.class);
+
+        Utility.setConfiguration(job.getConfiguration());
+
+        int numReducer = job.getConfiguration().getInt("sns.num.reducer", -1);
+        numReducer = -1 == numReducer ? job.getConfiguration().getInt("num.reducer", 1) : numReducer;
+        job.setNumReduceTasks(numReducer);
+
+        return job.waitForCompletion(true) ? 0 : 1;
+    }
+
+    /**
+     * @param conf
+     * @return
+     * @throws IOException
+     */
+    private static SingleTypeSchema loadSchema(Configuration conf) throws IOException {
+		InputStream fs = org.chombo.util.Utility.getFileStream(conf, "sns.same.schema.file.path");
+        ObjectMapper mapper = new ObjectMapper();
+        SingleTypeSchema schema = mapper.readValue(fs, SingleTypeSchema.class);
+        if (null == schema.getSortKeys() || schema.getSortKeys().isEmpty()) {
+        	throw new IllegalStateException("sorted neighborhood requires sort keys in schema");
+        }
+        return schema;
+    }
+
+    /**
+     * Emits a record for each pass, keyed by pass, partition and sort key
+     * @author pranab
+     *
+     */
+    public static class SortKeyMapper extends Mapper<LongWritable, Text, Tuple, TypedRecord> {
+    	private Tuple keyHolder = new Tuple();
+        private TypedRecord valueHolder = new TypedRecord();
+        private String fieldDelimRegex;
+        private int idOrdinal;
+        private int partitonOrdinal;
+        private List<SortKey> sortKeys;
+        private String subFieldDelim;
+        private SingleTypeSchema schema;
+        private static final Logger LOG = Logger.getLogger(SortKeyMapper.class);
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#setup(org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        protected void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+        	fieldDelimRegex = conf.get("field.delim.regex", "\\[\\]");
+        	subFieldDelim = conf.get("sns.sub.field.delim.regex", "::");
+            schema = loadSchema(conf);
+            partitonOrdinal = schema.getPartitioningColumn();
+            idOrdinal = schema.getEntity().getIdField().getOrdinal();
+            sortKeys = schema.getSortKeys();
+
+            if (conf.getBoolean("debug.on", false)) {
+            	LOG.setLevel(Level.DEBUG);
+            }
+        	LOG.debug("passes: " + sortKeys.size() + " partitonOrdinal: " + partitonOrdinal  + " idOrdinal:" + idOrdinal);
+        }
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#map(KEYIN, VALUEIN, org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        @Override
+        protected void map(LongWritable key, Text value, Context context)
+            throws IOException, InterruptedException {
+            String[] items  =  value.toString().split(fieldDelimRegex);
+        	valueHolder.initialize(items, 0, idOrdinal, schema.getEntity().getFields(), subFieldDelim);
+            String partition = partitonOrdinal >= 0 ? items[partitonOrdinal] :  "N";
+
+            //ID after the key, so that records with same key are in a repeatable order
+            for (int pass = 0; pass < sortKeys.size(); ++pass) {
+            	keyHolder.initialize();
+            	keyHolder.add(pass, partition, sortKeys.get(pass).createKey(items), items[idOrdinal]);
+            	context.write(keyHolder, valueHolder);
+            }
+        }
+    }
+
+    /**
+     * Matches each record with the records in the window preceding it in key order
+     * @author pranab
+     *
+     */
+    public static class WindowReducer extends Reducer<Tuple, TypedRecord, NullWritable, Text> {
+    	private Text outVal = new Text();
+    	private int windowSize;
+    	private ArrayDeque<TypedRecord> window = new ArrayDeque<TypedRecord>();
+    	private RecordComparator recordComparator;
+    	private DistanceContext distContext;
+    	private PairOutputFormatter formatter;
+    	private int distThreshold;
+    	private long pairsCompared;
+    	private long pairsMatched;
+        private static final Logger LOG = Logger.getLogger(WindowReducer.class);
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Reducer#setup(org.apache.hadoop.mapreduce.Reducer.Context)
+         */
+        protected void setup(Context context) throws IOException, InterruptedException {
+        	Configuration conf = context.getConfiguration();
+            if (conf.getBoolean("debug.on", false)) {
+            	LOG.setLevel(Level.DEBUG);
+            }
+        	String fieldDelim = conf.get("field.delim", ",");
+        	String subFieldDelim = conf.get("sns.sub.field.delim.regex", "::");
+        	int scale = conf.getInt("sns.distance.scale", 1000);
+        	distThreshold = conf.getInt("sns.dist.threshold", scale);
+        	windowSize = conf.getInt("sns.window.size", 10);
+        	if (windowSize < 2) {
+        		throw new IllegalArgumentException("window size should be at least 2");
+        	}
+
+        	SingleTypeSchema schema = loadSchema(conf);
+            schema.processStructuredFields();
+            schema.setConf(conf);
+
+        	//faceted field i.e. only a subset of fields are to be used for distance calculation
+        	int[] facetedFields = null;
+        	String facetedFieldValues =  conf.get("sns.faceted.field.ordinal");
+        	if (null != facetedFieldValues) {
+        		facetedFields = org.chombo.util.Utility.intArrayFromString(facetedFieldValues);
+        	}
+        	recordComparator = new RecordComparator(schema, facetedFields, subFieldDelim, distThreshold);
+        	recordComparator.setDistanceCacheSize(conf.getInt("sns.distance.cache.size", 0));
+        	recordComparator.setEarlyAbandon(conf.getBoolean("sns.early.abandon", false));
+        	distContext = recordComparator.createContext(scale);
+
+        	//ID pair always first, for distinct pairs
+        	int[] extraOutputFields = null;
+        	String extraOutputFieldList = conf.get("sns.extra.output.field");
+        	if (null != extraOutputFieldList) {
+        		extraOutputFields = org.chombo.util.Utility.intArrayFromString(extraOutputFieldList);
+        	}
+        	formatter = new PairOutputFormatter(fieldDelim, true, extraOutputFields,
+        		conf.getBoolean("sns.output.record", false));
+        	LOG.debug("windowSize:" + windowSize + " distThreshold:" + distThreshold);
+        }
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Reducer#cleanup(org.apache.hadoop.mapreduce.Reducer.Context)
+         */
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+        	context.getCounter("Sorted Neighborhood", "Pairs compared").increment(pairsCompared);
+        	context.getCounter("Sorted Neighborhood", "Pairs matched").increment(pairsMatched);
+        	distContext.flushCounters(context);
+        }
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Reducer#reduce(KEYIN, java.lang.Iterable, org.apache.hadoop.mapreduce.Reducer.Context)
+         */
+        protected void reduce(Tuple key, Iterable<TypedRecord> values, Context context)
+        	throws IOException, InterruptedException {
+        	window.clear();
+        	for (TypedRecord next : values) {
+        		//parsed once, for all pairs in the window
+        		TypedRecord value = next.createClone();
+        		recordComparator.prepare(value, distContext);
+        		String secondId = value.getId();
+        		for (TypedRecord first : window) {
+        			String firstId = first.getId();
+        			if (firstId.equals(secondId)) {
+        				continue;
+        			}
+        			int dist = recordComparator.findDistance(first, value, distContext);
+        			++pairsCompared;
+        			if (dist <= distThreshold) {
+        				//ID pair in a fixed order, so that same pair from different passes can be found
+        				if (firstId.compareTo(secondId) < 0) {
+        					outVal.set(formatter.format(first, value, firstId, secondId, dist));
+        				} else {
+        					outVal.set(formatter.format(value, first, secondId, firstId, dist));
+        				}
+        				context.write(NullWritable.get(), outVal);
+        				++pairsMatched;
+        			}
+        		}
+
+        		//slide window
+        		if (window.size() == windowSize - 1) {
+        			window.removeFirst();
+        		}
+        		window.addLast(value);
+        	}
+        }
+    }
+
+    /**
+     * Partitions by pass and partition, leaving out sort key and ID
+     * @author pranab
+     *
+     */
+    public static class PassPartitioner extends Partitioner<Tuple, TypedRecord> {
+	     @Override
+	     public int getPartition(Tuple key, TypedRecord value, int numPartitions) {
+	    	 int hash = 31 * key.getInt(0) + key.getString(1).hashCode();
+		     return (hash & Integer.MAX_VALUE) % numPartitions;
+	     }
+    }
+
+    /**
+     * Groups by pass and partition, leaving out sort key and ID
+     * @author pranab
+     *
+     */
+    public static class PassGroupComprator extends WritableComparator {
+    	protected PassGroupComprator() {
+    		super(Tuple.class, true);
+    	}
+
+    	@Override
+    	public int compare(WritableComparable w1, WritableComparable w2) {
+    		Tuple t1 = (Tuple)w1;
+    		Tuple t2 = (Tuple)w2;
+    		int cmp = t1.getInt(0) - t2.getInt(0);
+    		return 0 == cmp ? t1.getString(1).compareTo(t2.getString(1)) : cmp;
+    	}
+     }
+
+    /**
+     * Keys pair output by ID pair
+     * @author pranab
+     *
+     */
+    public static class DistinctPairMapper extends Mapper<LongWritable, Text, Text, Text> {
+    	private Text keyHolder = new Text();
+        private String fieldDelimRegex;
+        private String fieldDelim;
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#setup(org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        protected void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+        	fieldDelimRegex = conf.get("field.delim.regex", "\\[\\]");
+        	fieldDelim = conf.get("field.delim", ",");
+        }
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Mapper#map(KEYIN, VALUEIN, org.apache.hadoop.mapreduce.Mapper.Context)
+         */
+        @Override
+        protected void map(LongWritable key, Text value, Context context)
+            throws IOException, InterruptedException {
+            String[] items  =  value.toString().split(fieldDelimRegex, 3);
+            keyHolder.set(items[0] + fieldDelim + items[1]);
+            context.write(keyHolder, value);
+        }
+    }
+
+    /**
+     * Emits one line for each ID pair
+     * @author pranab
+     *
+     */
+    public static class DistinctPairReducer extends Reducer<Text, Text, NullWritable, Text> {
+
+        /* (non-Javadoc)
+         * @see org.apache.hadoop.mapreduce.Reducer#reduce(KEYIN, java.lang.Iterable, org.apache.hadoop.mapreduce.Reducer.Context)
+         */
+        protected void reduce(Text key, Iterable<Text> values, Context context)
+        	throws IOException, InterruptedException {
+        	int count = 0;
+        	for (Text value : values) {
+        		if (0 == count++) {
+        			context.write(NullWritable.get(), value);
+        		}
+        	}
+        	if (count > 1) {
+        		context.getCounter("Sorted Neighborhood", "Pairs in multiple passes").increment(1);
+        	}
+        }
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int exitCode = ToolRunner.run(new SortedNeighborhoodSimilarity(), args);
+        System.exit(exitCode);
+    }
+}
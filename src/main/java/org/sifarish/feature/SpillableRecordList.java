@@ -0,0 +1,245 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+
+/**
+ * Buffers records of a reducer group within a memory budget. Records are held in memory until the
+ * first block is full. After that records are serialized into blocks in a local spill file. Blocks
+ * are memory mapped when read back, so that a join can proceed as block nested loop with only a few
+ * blocks in memory. The spill file is mapped once, when the first block is read back, and deleted when
+ * the list is cleared. Budget is in terms of serialized size. Block size is a third of the budget, since
+ * the first block stays in memory and two more blocks are needed for the join
+ * @author pranab
+ *
+ */
+public class SpillableRecordList {
+	private long blockSize;
+	private File spillDir;
+	private List<TypedRecord> memoryRecords = new ArrayList<TypedRecord>();
+	private long memoryBytes;
+	private File spillFile;
+	private DataOutputStream spillOut;
+	private List<Long> blockOffsets = new ArrayList<Long>();
+	private long spillBytes;
+	private long blockBytes;
+	private int size;
+	private DataOutputBuffer serBuffer = new DataOutputBuffer();
+	private List<ByteBuffer> blockBuffers = new ArrayList<ByteBuffer>();
+
+	/**
+	 * @param memoryBudget serialized bytes
+	 * @param spillDir local directory for spill file, system temp directory if null
+	 */
+	public SpillableRecordList(long memoryBudget, File spillDir) {
+		blockSize = memoryBudget / 3;
+		this.spillDir = spillDir;
+	}
+
+	/**
+	 * Adds record. Record is copied, so that the value object reused by hadoop can be passed
+	 * @param record
+	 * @throws IOException
+	 */
+	public void add(TypedRecord record) throws IOException {
+		serBuffer.reset();
+		record.write(serBuffer);
+		int len = serBuffer.getLength();
+		if (null == spillOut && memoryBytes + len <= blockSize) {
+			memoryRecords.add(record.createClone());
+			memoryBytes += len;
+		} else {
+			if (null == spillOut) {
+				spillFile = File.createTempFile("sifarish-spill", ".bin", spillDir);
+				spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+			}
+			if (blockOffsets.isEmpty() || blockBytes + len > blockSize) {
+				//new block
+				blockOffsets.add(spillBytes);
+				blockBytes = 0;
+			}
+			//mapping no longer covers the file
+			blockBuffers.clear();
+			spillOut.write(serBuffer.getData(), 0, len);
+			blockBytes += len;
+			spillBytes += len;
+		}
+		++size;
+	}
+
+	/**
+	 * @return true if records did not fit in memory
+	 */
+	public boolean isSpilled() {
+		return null != spillOut;
+	}
+
+	/**
+	 * @return number of records
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return number of blocks, including the one in memory
+	 */
+	public int getBlockCount() {
+		return 1 + blockOffsets.size();
+	}
+
+	/**
+	 * @return records in memory
+	 */
+	public List<TypedRecord> getMemoryRecords() {
+		return memoryRecords;
+	}
+
+	/**
+	 * @return bytes in spill file
+	 */
+	public long getSpillBytes() {
+		return spillBytes;
+	}
+
+	/**
+	 * Reads a block. First block is the one in memory, others are read from the spill file
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 */
+	public List<TypedRecord> readBlock(int index) throws IOException {
+		if (0 == index) {
+			return memoryRecords;
+		}
+		if (blockBuffers.isEmpty()) {
+			mapBlocks();
+		}
+
+		List<TypedRecord> records = new ArrayList<TypedRecord>();
+		ByteBuffer buffer = blockBuffers.get(index - 1).duplicate();
+		DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+		while (buffer.hasRemaining()) {
+			TypedRecord record = new TypedRecord();
+			record.readFields(in);
+			records.add(record);
+		}
+		return records;
+	}
+
+	/**
+	 * Maps spill file once and slices it into blocks. Blocks are grouped into as few mappings as the
+	 * mapping size limit allows
+	 * @throws IOException
+	 */
+	private void mapBlocks() throws IOException {
+		spillOut.flush();
+		RandomAccessFile file = new RandomAccessFile(spillFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			int first = 0;
+			while (first < blockOffsets.size()) {
+				long start = blockOffsets.get(first);
+				int last = first;
+				while (last + 1 < blockOffsets.size() && getBlockEnd(last + 1) - start <= Integer.MAX_VALUE) {
+					++last;
+				}
+				MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, start, getBlockEnd(last) - start);
+				for (int b = first; b <= last; ++b) {
+					mapping.limit((int)(getBlockEnd(b) - start));
+					mapping.position((int)(blockOffsets.get(b) - start));
+					blockBuffers.add(mapping.slice());
+				}
+				first = last + 1;
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * @param blockIndex index among spilled blocks
+	 * @return end offset of block in spill file
+	 */
+	private long getBlockEnd(int blockIndex) {
+		return blockIndex + 1 < blockOffsets.size() ? blockOffsets.get(blockIndex + 1) : spillBytes;
+	}
+
+	/**
+	 * Removes all records and deletes the spill file
+	 * @throws IOException
+	 */
+	public void clear() throws IOException {
+		memoryRecords.clear();
+		memoryBytes = 0;
+		blockBuffers.clear();
+		if (null != spillOut) {
+			spillOut.close();
+			spillOut = null;
+			spillFile.delete();
+			spillFile = null;
+		}
+		blockOffsets.clear();
+		spillBytes = 0;
+		blockBytes = 0;
+		size = 0;
+	}
+
+	/**
+	 * Input stream over a mapped buffer
+	 * @author pranab
+	 *
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private ByteBuffer buffer;
+
+		public ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int off, int len) throws IOException {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, buffer.remaining());
+			buffer.get(bytes, off, len);
+			return len;
+		}
+	}
+}
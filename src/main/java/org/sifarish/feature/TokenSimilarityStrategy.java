@@ -0,0 +1,42 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.sifarish.feature;
+
+/**
+ * Similarity strategy working on terms of text split with field delimiter. Terms can be split once
+ * per record and reused for all pairs
+ * @author pranab
+ *
+ */
+public abstract class TokenSimilarityStrategy extends DynamicAttrSimilarityStrategy {
+
+	/* (non-Javadoc)
+	 * @see org.sifarish.feature.DynamicAttrSimilarityStrategy#findDistance(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public double findDistance(String src, String target) {
+		return findDistance(src.split(fieldDelimRegex), target.split(fieldDelimRegex));
+	}
+
+	/**
+	 * Distance between terms already split with field delimiter
+	 * @param srcTerms
+	 * @param trgTerms
+	 * @return
+	 */
+	public abstract double findDistance(String[] srcTerms, String[] trgTerms);
+}
@@ -0,0 +1,147 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * Keeps top k nearest neighbors for each entity in a bounded max heap, across all groups processed by
+ * a reducer, instead of writing every pair. Entity ID pair and distance are collected in both directions,
+ * without any text formatting of pairs. When the number of entities exceeds the limit, partial neighbor 
+ * lists are flushed. Output is source ID, target ID and distance, so that partial lists from all reducers
+ * and flushes can be merged with TopMatches, with it's record in output option off
+ * @author pranab
+ *
+ */
+public class TopMatchCollector implements ParallelPairEvaluator.OutputSink {
+	private int topMatchCount;
+	private int maxEntityCount;
+	private String fieldDelim;
+	private Map<String, PriorityQueue<Neighbor>> neighbors = new HashMap<String, PriorityQueue<Neighbor>>();
+	private Text valueHolder = new Text();
+
+	/**
+	 * @param topMatchCount
+	 * @param maxEntityCount entities held before partial lists are flushed
+	 * @param fieldDelim
+	 */
+	public TopMatchCollector(int topMatchCount, int maxEntityCount, String fieldDelim) {
+		this.topMatchCount = topMatchCount;
+		this.maxEntityCount = maxEntityCount;
+		this.fieldDelim = fieldDelim;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.sifarish.feature.ParallelPairEvaluator.OutputSink#collect(java.lang.String, java.lang.String, int)
+	 */
+	public void collect(String firstId, String secondId, int distance) {
+		add(firstId, secondId, distance);
+		add(secondId, firstId, distance);
+	}
+
+	/**
+	 * @param entityId
+	 * @param neighborId
+	 * @param distance
+	 */
+	public void add(String entityId, String neighborId, int distance) {
+		PriorityQueue<Neighbor> heap = neighbors.get(entityId);
+		if (null == heap) {
+			heap = new PriorityQueue<Neighbor>(topMatchCount + 1, Collections.reverseOrder());
+			neighbors.put(entityId, heap);
+		}
+
+		if (heap.size() < topMatchCount) {
+			heap.add(new Neighbor(neighborId, distance));
+		} else {
+			//replace farthest if nearer
+			Neighbor farthest = heap.peek();
+			if (distance < farthest.distance || distance == farthest.distance &&
+					neighborId.compareTo(farthest.id) < 0) {
+				heap.poll();
+				heap.add(new Neighbor(neighborId, distance));
+			}
+		}
+	}
+
+	/**
+	 * @return true if partial lists should be flushed
+	 */
+	public boolean isFull() {
+		return neighbors.size() >= maxEntityCount;
+	}
+
+	/**
+	 * Emits neighbors of all entities held, nearest first
+	 * @param context
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void flush(TaskInputOutputContext<?, ?, NullWritable, Text> context)
+		throws IOException, InterruptedException {
+		long count = 0;
+		List<Neighbor> sorted = new ArrayList<Neighbor>();
+		for (String entityId : neighbors.keySet()) {
+			sorted.clear();
+			sorted.addAll(neighbors.get(entityId));
+			Collections.sort(sorted);
+			for (Neighbor neighbor : sorted) {
+				valueHolder.set(entityId + fieldDelim + neighbor.id + fieldDelim + neighbor.distance);
+				context.write(NullWritable.get(), valueHolder);
+			}
+			count += sorted.size();
+		}
+		context.getCounter("Top Match", "Partial lists flushed").increment(neighbors.size());
+		context.getCounter("Top Match", "Neighbors emitted").increment(count);
+		neighbors.clear();
+	}
+
+	/**
+	 * Neighbor ordered by distance and then ID
+	 * @author pranab
+	 *
+	 */
+	private static class Neighbor implements Comparable<Neighbor> {
+		private String id;
+		private int distance;
+
+		public Neighbor(String id, int distance) {
+			this.id = id;
+			this.distance = distance;
+		}
+
+		@Override
+		public int compareTo(Neighbor that) {
+			int cmp = distance < that.distance ? -1 : (distance > that.distance ? 1 : 0);
+			if (0 == cmp) {
+				cmp = id.compareTo(that.id);
+			}
+			return cmp;
+		}
+	}
+}
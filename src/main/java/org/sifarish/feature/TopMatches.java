@@ -27,6 +27,7 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
@@ -39,7 +40,9 @@ import org.chombo.util.Tuple;
 import org.chombo.util.Utility;
 
 /**
- * Top match map reduce based on distance with neighbors
+ * Top match map reduce based on distance with neighbors. Also merges partial neighbor lists written by
+ * TopMatchCollector in similarity reducers, which have source ID, target ID and distance. For that input
+ * tom.record.in.output should be off and distance should be the last field, which is the default
  * @author pranab
  *
  */
@@ -56,6 +59,9 @@ public class TopMatches extends Configured implements Tool {
         FileInputFormat.addInputPath(job, new Path(args[0]));
         FileOutputFormat.setOutputPath(job, new Path(args[1]));
         
+        //text or binary edge input
+        job.setInputFormatClass(SimilarityEdgeInputFormat.class);
+        
         job.setMapperClass(TopMatches.TopMatchesMapper.class);
         job.setReducerClass(TopMatches.TopMatchesReducer.class);
         job.setCombinerClass(TopMatches.TopMatchesCombiner.class);
@@ -82,7 +88,7 @@ public class TopMatches extends Configured implements Tool {
 	 * @author pranab
 	 *
 	 */
-	public static class TopMatchesMapper extends Mapper<LongWritable, Text, Tuple, Text> {
+	public static class TopMatchesMapper extends Mapper<LongWritable, Writable, Tuple, Text> {
 		private String srcEntityId;
 		private String trgEntityId;
 		private int rank;
@@ -115,8 +121,19 @@ public class TopMatches extends Configured implements Tool {
          * @see org.apache.hadoop.mapreduce.Mapper#map(KEYIN, VALUEIN, org.apache.hadoop.mapreduce.Mapper.Context)
          */
         @Override
-        protected void map(LongWritable key, Text value, Context context)
+        protected void map(LongWritable key, Writable value, Context context)
             throws IOException, InterruptedException {
+            if (value instanceof SimilarityEdge) {
+            	//binary edge with only IDs and distance, no parsing
+            	SimilarityEdge edge = (SimilarityEdge)value;
+            	rank = edge.getDistance();
+            	outKey.initialize();
+            	outKey.add(edge.getFirstId(), rank);
+            	outVal.set(edge.getSecondId() + fieldDelim + rank);
+            	context.write(outKey, outVal);
+            	return;
+            }
+            
             String[] items  =  value.toString().split(fieldDelimRegex);
             
             srcEntityId = items[0];
@@ -0,0 +1,458 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.sifarish.util.Field;
+import org.sifarish.util.HourWindow;
+import org.sifarish.util.TimeWindow;
+
+/**
+ * Record parsed once in the mapper based on schema. Numeric, time window, hour window and geo location
+ * fields are shipped as parsed values along with a status per field, so that the reducer does not have
+ * to split and parse the record for every pair. Raw field values are retained for categorical, text and
+ * other structured fields and for output. When the raw value of a parsed field is the plain format of the 
+ * parsed values, e.g. 12.5 or 37.4:-122.1, only the parsed values are serialized and the raw value is 
+ * formatted again when it's accessed. Structured attributes and text tokens can be parsed once in the
+ * reducer and held with the record, they are not serialized. Consecutive missing fields are serialized 
+ * as a run. The raw input line can optionally be shipped along, when it's needed as is in the output
+ * @author pranab
+ *
+ */
+public class TypedRecord implements Writable {
+	private int setIndicator;
+	private int idOrdinal;
+	private String[] items;
+	private byte[] status;
+	private double[] values;
+	private double[] secondValues;
+	private boolean[] derived;
+	private Object[] parsed;
+	private String line;
+
+	//field status
+	public static final byte STATUS_RAW = 0;
+	public static final byte STATUS_MISSING = 1;
+	public static final byte STATUS_VALID = 2;
+	public static final byte STATUS_VALID_WITH_UNIT = 3;
+	public static final byte STATUS_VALID_COMPOSITE = 4;
+	public static final byte STATUS_INVALID = 5;
+	public static final byte STATUS_INVALID_WITH_UNIT = 6;
+	public static final byte STATUS_UNIT_MISMATCH = 7;
+	
+	//serialized with status when raw value is not serialized
+	private static final int DERIVED_FLAG = 0x10;
+	
+	//serialized with set indicator when raw line is serialized
+	private static final int LINE_FLAG = 0x40;
+
+	public TypedRecord() {
+	}
+
+	/**
+	 * Parses fields based on schema
+	 * @param items
+	 * @param setIndicator
+	 * @param idOrdinal
+	 * @param fields
+	 * @param subFieldDelim
+	 * @throws IOException
+	 */
+	public void initialize(String[] items, int setIndicator, int idOrdinal, List<Field> fields, String subFieldDelim)
+		throws IOException {
+		this.items = items;
+		this.setIndicator = setIndicator;
+		this.idOrdinal = idOrdinal;
+		line = null;
+		allocate(items.length);
+		clearParsed();
+		for (int i = 0; i < items.length; ++i) {
+			status[i] = items[i].isEmpty() ? STATUS_MISSING : STATUS_RAW;
+		}
+
+		for (Field field : fields) {
+			int ordinal = field.getOrdinal();
+			if (ordinal >= items.length) {
+				throw new IOException("Invalid field ordinal. Looking for field " + ordinal +
+						" found "  + items.length + " fields in the record starting with:" + items[0]);
+			}
+			if (status[ordinal] != STATUS_MISSING) {
+				parseField(field, ordinal, subFieldDelim);
+			}
+		}
+	}
+
+	/**
+	 * @param field
+	 * @param ordinal
+	 * @param subFieldDelim
+	 */
+	private void parseField(Field field, int ordinal, String subFieldDelim) {
+		String dataType = field.getDataType();
+		String item = items[ordinal];
+		if (dataType.equals(Field.DATA_TYPE_INT) || dataType.equals(Field.DATA_TYPE_DOUBLE)) {
+			//value with optional unit
+			String[] valItems = item.split("\\s+");
+			boolean withUnit = false;
+			if (valItems.length == 1) {
+				status[ordinal] = STATUS_VALID;
+			} else if (valItems.length == 2 && valItems[1].equals(field.getUnit())) {
+				status[ordinal] = STATUS_VALID_WITH_UNIT;
+				withUnit = true;
+			} else {
+				status[ordinal] = STATUS_UNIT_MISMATCH;
+			}
+
+			if (status[ordinal] != STATUS_UNIT_MISMATCH) {
+				try {
+					if (dataType.equals(Field.DATA_TYPE_INT)) {
+						values[ordinal] = Integer.parseInt(valItems[0]);
+					} else {
+						values[ordinal] = Double.parseDouble(valItems[0]);
+					}
+				} catch (NumberFormatException nfEx) {
+					status[ordinal] = withUnit ? STATUS_INVALID_WITH_UNIT : STATUS_INVALID;
+				}
+			}
+			derived[ordinal] = status[ordinal] == STATUS_VALID && item.equals(formatValue(values[ordinal]));
+		} else if (dataType.equals(Field.DATA_TYPE_TIME_WINDOW)) {
+			//epoch time range
+			try {
+				String[] subFields = item.split(subFieldDelim);
+				TimeWindow timeWindow = new TimeWindow(subFields[0], subFields[1]);
+				values[ordinal] = timeWindow.getStart();
+				secondValues[ordinal] = timeWindow.getEnd();
+				status[ordinal] = STATUS_VALID_COMPOSITE;
+			} catch (ParseException e) {
+				status[ordinal] = STATUS_INVALID;
+			}
+		} else if (dataType.equals(Field.DATA_TYPE_HOUR_WINDOW)) {
+			//minutes since midnight range
+			try {
+				String[] subFields = item.split(subFieldDelim);
+				HourWindow hourWindow = new HourWindow(subFields[0], subFields[1]);
+				values[ordinal] = hourWindow.getStart();
+				secondValues[ordinal] = hourWindow.getEnd();
+				status[ordinal] = STATUS_VALID_COMPOSITE;
+			} catch (ParseException e) {
+				status[ordinal] = STATUS_INVALID;
+			}
+		} else if (dataType.equals(Field.DATA_TYPE_GEO_LOCATION)) {
+			//lat and long
+			try {
+				String[] subFields = item.split(":");
+				values[ordinal] = Double.parseDouble(subFields[0]);
+				secondValues[ordinal] = Double.parseDouble(subFields[1]);
+				status[ordinal] = STATUS_VALID_COMPOSITE;
+				derived[ordinal] = item.equals(formatLocation(values[ordinal], secondValues[ordinal]));
+			} catch (NumberFormatException nfEx) {
+				status[ordinal] = STATUS_INVALID;
+			}
+		}
+	}
+
+	/**
+	 * @param size
+	 */
+	private void allocate(int size) {
+		if (null == status || status.length != size) {
+			status = new byte[size];
+			values = new double[size];
+			secondValues = new double[size];
+			derived = new boolean[size];
+		} else {
+			Arrays.fill(derived, false);
+		}
+	}
+	
+	/**
+	 * @param value
+	 * @return plain format of a number, without fraction if integral
+	 */
+	private static String formatValue(double value) {
+		long longValue = (long)value;
+		return longValue == value ? Long.toString(longValue) : Double.toString(value);
+	}
+	
+	/**
+	 * @param latitude
+	 * @param longitude
+	 * @return
+	 */
+	private static String formatLocation(double latitude, double longitude) {
+		return formatValue(latitude) + ":" + formatValue(longitude);
+	}
+	
+	/**
+	 * Formats raw value of a field that was not serialized. A record shared between threads may have
+	 * the same value formatted more than once, which is harmless
+	 * @param ordinal
+	 * @return
+	 */
+	private String formatItem(int ordinal) {
+		String item = items[ordinal];
+		if (null == item) {
+			item = status[ordinal] == STATUS_VALID_COMPOSITE ? formatLocation(values[ordinal], secondValues[ordinal]) :
+				formatValue(values[ordinal]);
+			items[ordinal] = item;
+		}
+		return item;
+	}
+
+	/**
+	 * Parsed values are stale when object is reused
+	 */
+	private void clearParsed() {
+		if (null != parsed) {
+			if (parsed.length == items.length) {
+				Arrays.fill(parsed, null);
+			} else {
+				parsed = null;
+			}
+		}
+	}
+
+	/**
+	 * @param ordinal
+	 * @return structured attribute or tokens parsed from field, null if not parsed
+	 */
+	public Object getParsed(int ordinal) {
+		return null == parsed ? null : parsed[ordinal];
+	}
+
+	/**
+	 * @param ordinal
+	 * @param value
+	 */
+	public void setParsed(int ordinal, Object value) {
+		if (null == parsed) {
+			parsed = new Object[items.length];
+		}
+		parsed[ordinal] = value;
+	}
+
+	/**
+	 * Deep copy, needed since hadoop reuses value object. Parsed values are not copied
+	 * @return
+	 */
+	public TypedRecord createClone() {
+		TypedRecord clone = new TypedRecord();
+		clone.setIndicator = setIndicator;
+		clone.idOrdinal = idOrdinal;
+		clone.items = items.clone();
+		clone.status = status.clone();
+		clone.values = values.clone();
+		clone.secondValues = secondValues.clone();
+		clone.derived = derived.clone();
+		clone.line = line;
+		return clone;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.hadoop.io.Writable#write(java.io.DataOutput)
+	 */
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(null == line ? setIndicator : setIndicator | LINE_FLAG);
+		if (null != line) {
+			Text.writeString(out, line);
+		}
+		WritableUtils.writeVInt(out, idOrdinal);
+		WritableUtils.writeVInt(out, items.length);
+		for (int i = 0; i < items.length; ++i) {
+			out.writeByte(derived[i] ? status[i] | DERIVED_FLAG : status[i]);
+			if (status[i] == STATUS_MISSING) {
+				//run of missing fields, e.g. fields left out by projection
+				int run = 0;
+				while (i + 1 < items.length && status[i + 1] == STATUS_MISSING) {
+					++run;
+					++i;
+				}
+				WritableUtils.writeVInt(out, run);
+				continue;
+			}
+			if (!derived[i]) {
+				Text.writeString(out, items[i]);
+			}
+			if (status[i] == STATUS_VALID || status[i] == STATUS_VALID_WITH_UNIT) {
+				out.writeDouble(values[i]);
+			} else if (status[i] == STATUS_VALID_COMPOSITE) {
+				out.writeDouble(values[i]);
+				out.writeDouble(secondValues[i]);
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.hadoop.io.Writable#readFields(java.io.DataInput)
+	 */
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		byte indicator = in.readByte();
+		setIndicator = indicator & ~LINE_FLAG;
+		line = (indicator & LINE_FLAG) != 0 ? Text.readString(in) : null;
+		idOrdinal = WritableUtils.readVInt(in);
+		int size = WritableUtils.readVInt(in);
+		if (null == items || items.length != size) {
+			items = new String[size];
+		}
+		allocate(size);
+		clearParsed();
+		for (int i = 0; i < size; ++i) {
+			byte st = in.readByte();
+			derived[i] = (st & DERIVED_FLAG) != 0;
+			status[i] = (byte)(st & ~DERIVED_FLAG);
+			if (status[i] == STATUS_MISSING) {
+				int end = i + WritableUtils.readVInt(in);
+				items[i] = "";
+				while (i < end) {
+					++i;
+					items[i] = "";
+					status[i] = STATUS_MISSING;
+				}
+				continue;
+			}
+			//formatted when accessed
+			items[i] = derived[i] ? null : Text.readString(in);
+			if (status[i] == STATUS_VALID || status[i] == STATUS_VALID_WITH_UNIT) {
+				values[i] = in.readDouble();
+			} else if (status[i] == STATUS_VALID_COMPOSITE) {
+				values[i] = in.readDouble();
+				secondValues[i] = in.readDouble();
+			}
+		}
+	}
+
+	public int getSetIndicator() {
+		return setIndicator;
+	}
+
+	public void setSetIndicator(int setIndicator) {
+		this.setIndicator = setIndicator;
+	}
+
+	/**
+	 * @return raw input line, null if not set
+	 */
+	public String getLine() {
+		return line;
+	}
+
+	/**
+	 * Raw input line to be shipped with the record. Should be set after initialize
+	 * @param line
+	 */
+	public void setLine(String line) {
+		this.line = line;
+	}
+
+	public String getId() {
+		return formatItem(idOrdinal);
+	}
+
+	public String[] getItems() {
+		for (int i = 0; i < items.length; ++i) {
+			if (derived[i]) {
+				formatItem(i);
+			}
+		}
+		return items;
+	}
+
+	public int size() {
+		return items.length;
+	}
+
+	public String getItem(int ordinal) {
+		return formatItem(ordinal);
+	}
+
+	public byte getStatus(int ordinal) {
+		return status[ordinal];
+	}
+
+	public boolean isMissing(int ordinal) {
+		return status[ordinal] == STATUS_MISSING;
+	}
+
+	public boolean isValid(int ordinal) {
+		return status[ordinal] == STATUS_VALID || status[ordinal] == STATUS_VALID_WITH_UNIT ||
+			status[ordinal] == STATUS_VALID_COMPOSITE;
+	}
+
+	public double getValue(int ordinal) {
+		return values[ordinal];
+	}
+
+	public double getSecondValue(int ordinal) {
+		return secondValues[ordinal];
+	}
+
+	/**
+	 * Numeric values are comparable when both have unit or both don't
+	 * @param other
+	 * @param ordinal
+	 * @return
+	 */
+	public boolean isNumericComparable(TypedRecord other, int ordinal) {
+		boolean comparable = false;
+		if (status[ordinal] != STATUS_UNIT_MISMATCH && other.status[ordinal] != STATUS_UNIT_MISMATCH) {
+			boolean withUnit = status[ordinal] == STATUS_VALID_WITH_UNIT || status[ordinal] == STATUS_INVALID_WITH_UNIT;
+			boolean otherWithUnit = other.status[ordinal] == STATUS_VALID_WITH_UNIT ||
+				other.status[ordinal] == STATUS_INVALID_WITH_UNIT;
+			comparable = withUnit == otherWithUnit;
+		}
+		return comparable;
+	}
+
+	/**
+	 * @param ordinal
+	 * @return
+	 */
+	public TimeWindow getTimeWindow(int ordinal) {
+		TimeWindow timeWindow = (TimeWindow)getParsed(ordinal);
+		return null != timeWindow ? timeWindow : new TimeWindow((long)values[ordinal], (long)secondValues[ordinal]);
+	}
+
+	/**
+	 * @param ordinal
+	 * @return
+	 */
+	public HourWindow getHourWindow(int ordinal) {
+		HourWindow hourWindow = (HourWindow)getParsed(ordinal);
+		return null != hourWindow ? hourWindow : new HourWindow((int)values[ordinal], (int)secondValues[ordinal]);
+	}
+
+	/**
+	 * Record as delimited string
+	 * @param delim
+	 * @return
+	 */
+	public String toString(String delim) {
+		return org.chombo.util.Utility.join(getItems(), delim);
+	}
+}
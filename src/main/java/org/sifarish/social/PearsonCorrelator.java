@@ -37,9 +37,10 @@ import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
-import org.chombo.util.SecondarySort;
 import org.chombo.util.Tuple;
 import org.chombo.util.Utility;
+import org.sifarish.feature.BlockPairKey;
+import org.sifarish.feature.SimilarityEdgeOutputFormat;
 
 
 /**
@@ -63,16 +64,21 @@ public class PearsonCorrelator extends Configured implements Tool{
         job.setMapperClass(PearsonCorrelator.PearsonMapper.class);
         job.setReducerClass(PearsonCorrelator.PrearsonReducer.class);
         
-        job.setMapOutputKeyClass(Tuple.class);
+        job.setMapOutputKeyClass(BlockPairKey.class);
         job.setMapOutputValueClass(Tuple.class);
 
         job.setOutputKeyClass(NullWritable.class);
         job.setOutputValueClass(Text.class);
  
-        job.setGroupingComparatorClass(SecondarySort.TuplePairGroupComprator.class);
-        job.setPartitionerClass(SecondarySort.TuplePairPartitioner.class);
+        job.setGroupingComparatorClass(BlockPairKey.GroupComparator.class);
+        job.setPartitionerClass(BlockPairKey.BlockPairPartitioner.class);
 
         Utility.setConfiguration(job.getConfiguration());
+
+        //compact binary edge output
+        if (job.getConfiguration().getBoolean("pec.binary.edge.output", false)) {
+        	job.setOutputFormatClass(SimilarityEdgeOutputFormat.class);
+        }
         int numReducer = job.getConfiguration().getInt("pec.num.reducer", -1);
         numReducer = -1 == numReducer ? job.getConfiguration().getInt("num.reducer", 1) : numReducer;
         job.setNumReduceTasks(numReducer);
@@ -86,16 +92,13 @@ public class PearsonCorrelator extends Configured implements Tool{
      * @author pranab
      *
      */
-    public static class PearsonMapper extends Mapper<LongWritable, Text, Tuple, Tuple> {
+    public static class PearsonMapper extends Mapper<LongWritable, Text, BlockPairKey, Tuple> {
         private int bucketCount;
-        private int hash;
+        private int block;
         private String fieldDelimRegex;
-        private Integer hashPair;
         private String itemID;
-        private Tuple keyHolder = new Tuple();
+        private BlockPairKey keyHolder = new BlockPairKey();
         private Tuple valueHolder = new Tuple();
-        private int hashPairMult;
-        private int hashCode;
         private int ratingScale;
     	private String subFieldDelim;
         private static final Logger LOG = Logger.getLogger(PearsonCorrelator.PearsonMapper.class);
@@ -113,7 +116,6 @@ public class PearsonCorrelator extends Configured implements Tool{
         	subFieldDelim = context.getConfiguration().get("subfield.delim", ":");
 
         	bucketCount = conf.getInt("pec.bucket.count", 10);
-        	hashPairMult = conf.getInt("pec.hash.pair.multiplier", 1000);
         	ratingScale = context.getConfiguration().getInt("pec.rating.scale", 100);
       }    
         
@@ -125,33 +127,19 @@ public class PearsonCorrelator extends Configured implements Tool{
             throws IOException, InterruptedException {
         	String[] items  =  value.toString().split(fieldDelimRegex);
         	itemID = items[0];
-        	hashCode = itemID.hashCode();
-        	if (hashCode < 0) {
-        		hashCode = - hashCode;
-        	}
-    		hash = (hashCode %  bucketCount) / 2 ;
+    		block = BlockPairKey.getBlock(itemID, bucketCount);
 
+    		//triangular layout of block pairs, value tagged with set which changes once at the diagonal
     		boolean valueInitialized = false;
     		for (int i = 0; i < bucketCount;  ++i) {
-    			keyHolder.initialize();
-    			if (i < hash){
-       				hashPair = hash * hashPairMult +  i;
-       				keyHolder.add(hashPair, Utility.ZERO);
-       				if (!valueInitialized) {
-       					createValueTuple(Utility.ZERO,  items);
-       					valueInitialized = true;
-       				}
-       	   		 } else {
-       	   			 if (i == hash) {
-       	   				 valueInitialized = false;
-       	   			 }
-    				hashPair =  i * hashPairMult  +  hash;
-       				keyHolder.add(hashPair, Utility.ONE);
-      				if (!valueInitialized) {
-      					createValueTuple(Utility.ONE,  items);
-       					valueInitialized = true;
-      				}
-    			} 
+    			keyHolder.setTriangular("none", block, i);
+    			if (i == block) {
+    				valueInitialized = false;
+    			}
+    			if (!valueInitialized) {
+    				createValueTuple(keyHolder.getSet() == 0 ? Utility.ZERO : Utility.ONE,  items);
+    				valueInitialized = true;
+    			}
    	   			context.write(keyHolder, valueHolder);
     		}
        	
@@ -184,10 +172,9 @@ public class PearsonCorrelator extends Configured implements Tool{
      * @author pranab
      *
      */
-    public static class PrearsonReducer extends Reducer<Tuple, Tuple, NullWritable, Text> {
+    public static class PrearsonReducer extends Reducer<BlockPairKey, Tuple, NullWritable, Text> {
         private Text valueHolder = new Text();
         private String fieldDelim;
-        private int hashPairMult;
         private int corrScale;
         private int minRatingSetIntersection;
         private int corr;
@@ -204,7 +191,6 @@ public class PearsonCorrelator extends Configured implements Tool{
             }
         	
         	fieldDelim = conf.get("field.delim", ",");
-        	hashPairMult = conf.getInt("pec.hash.pair.multiplier", 1000);
            	corrScale = conf.getInt("pec.correlation.scale", 1000);
            	minRatingSetIntersection =  conf.getInt("pec.min.rating.intersection.set", 3);
         }       
@@ -212,14 +198,13 @@ public class PearsonCorrelator extends Configured implements Tool{
         /* (non-Javadoc)
          * @see org.apache.hadoop.mapreduce.Reducer#reduce(KEYIN, java.lang.Iterable, org.apache.hadoop.mapreduce.Reducer.Context)
          */
-        protected void reduce(Tuple  key, Iterable<Tuple> values, Context context)
+        protected void reduce(BlockPairKey  key, Iterable<Tuple> values, Context context)
         throws IOException, InterruptedException {
         	
-        	int hashPair = key.getInt(0);
     		UserRating userRating = null;
     		UserRating userRatingSecond = null;
-        	if (hashPair / hashPairMult == hashPair % hashPairMult){
-        		//same bucket
+        	if (key.isDiagonal()){
+        		//same block
         		userRatings.clear();
         		for (Tuple tuple : values) {
         			userRating = new UserRating(tuple);
@@ -239,7 +224,7 @@ public class PearsonCorrelator extends Configured implements Tool{
         		}
         	
         	} else {
-        		//different bucket
+        		//different blocks
         		userRatings.clear();
         		for (Tuple tuple : values) {
         			if (tuple.getInt(0) == Utility.ZERO) {
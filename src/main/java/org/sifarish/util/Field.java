@@ -54,6 +54,11 @@ public class Field implements Serializable {
 	private double implodeThreshold = -0.1;
 	private double explodeThreshold = 1.1;
 	private double[] partWeights;
+	private boolean blockingKey;
+	private int blockingKeyPrefixLength;
+	private boolean minHashBlocking;
+	private boolean projectionBlocking;
+	private boolean canopyField;
 	public static final String DATA_TYPE_STRING = "string";
 	public static final String DATA_TYPE_CATEGORICAL = "categorical";
 	public static final String DATA_TYPE_INT = "int";
@@ -360,4 +365,34 @@ public class Field implements Serializable {
 	public void setPartWeights(double[] partWeights) {
 		this.partWeights = partWeights;
 	}
+	public boolean isBlockingKey() {
+		return blockingKey;
+	}
+	public void setBlockingKey(boolean blockingKey) {
+		this.blockingKey = blockingKey;
+	}
+	public int getBlockingKeyPrefixLength() {
+		return blockingKeyPrefixLength;
+	}
+	public void setBlockingKeyPrefixLength(int blockingKeyPrefixLength) {
+		this.blockingKeyPrefixLength = blockingKeyPrefixLength;
+	}
+	public boolean isMinHashBlocking() {
+		return minHashBlocking;
+	}
+	public void setMinHashBlocking(boolean minHashBlocking) {
+		this.minHashBlocking = minHashBlocking;
+	}
+	public boolean isProjectionBlocking() {
+		return projectionBlocking;
+	}
+	public void setProjectionBlocking(boolean projectionBlocking) {
+		this.projectionBlocking = projectionBlocking;
+	}
+	public boolean isCanopyField() {
+		return canopyField;
+	}
+	public void setCanopyField(boolean canopyField) {
+		this.canopyField = canopyField;
+	}
 }
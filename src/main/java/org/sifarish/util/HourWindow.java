@@ -42,6 +42,23 @@ public class HourWindow extends StructuredAttribute  {
 		}
 	}
 	
+	/**
+	 * @param start minutes since midnight
+	 * @param end minutes since midnight
+	 */
+	public HourWindow(int start, int end) {
+		this.start = start;
+		this.end = end;
+	}
+	
+	public int getStart() {
+		return start;
+	}
+
+	public int getEnd() {
+		return end;
+	}
+
 	@Override
 	public double distance(StructuredAttribute otherAttr, Field field) {
 		HourWindow other = (HourWindow)otherAttr;
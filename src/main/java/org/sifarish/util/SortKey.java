@@ -0,0 +1,82 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.util;
+
+import java.io.Serializable;
+
+/**
+ * Sort key for one pass of sorted neighborhood matching. Key is made of field values in the given
+ * order, each normalized and optionally truncated to a prefix
+ * @author pranab
+ *
+ */
+public class SortKey implements Serializable {
+	private int[] fields;
+	private int prefixLength;
+	
+	/**
+	 * @return
+	 */
+	public int[] getFields() {
+		return fields;
+	}
+	/**
+	 * @param fields ordinals of fields making up the key
+	 */
+	public void setFields(int[] fields) {
+		this.fields = fields;
+	}
+	/**
+	 * @return
+	 */
+	public int getPrefixLength() {
+		return prefixLength;
+	}
+	/**
+	 * @param prefixLength length of each field value in the key, whole value if 0
+	 */
+	public void setPrefixLength(int prefixLength) {
+		this.prefixLength = prefixLength;
+	}
+	
+	/**
+	 * Creates key from record. Values are lower cased with anything other than letter and digit 
+	 * removed, so that formatting differences do not move a record away from it's duplicates. Values 
+	 * are separated by space, which sorts before any normalized character
+	 * @param items
+	 * @return
+	 */
+	public String createKey(String[] items) {
+		StringBuilder stBld = new StringBuilder();
+		for (int i = 0; i < fields.length; ++i) {
+			if (i > 0) {
+				stBld.append(' ');
+			}
+			String value = fields[i] < items.length ? items[fields[i]] : "";
+			int count = 0;
+			for (int c = 0; c < value.length() && (prefixLength == 0 || count < prefixLength); ++c) {
+				char ch = Character.toLowerCase(value.charAt(c));
+				if (Character.isLetterOrDigit(ch)) {
+					stBld.append(ch);
+					++count;
+				}
+			}
+		}
+		return stBld.toString();
+	}
+}
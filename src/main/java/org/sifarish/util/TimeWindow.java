@@ -29,9 +29,17 @@ import java.text.SimpleDateFormat;
 public class TimeWindow  extends StructuredAttribute{
 	private long start;
 	private long end;
-	private static DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+	//date format is not thread safe
+	private static final ThreadLocal<DateFormat> dateFormat = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		}
+	};
 
 	public TimeWindow(String start, String end) throws ParseException {
+		DateFormat df = dateFormat.get();
 		this.start = df.parse(start).getTime();
 		this.end = df.parse(end).getTime();
 		if (this.start > this.end) {
@@ -40,6 +48,23 @@ public class TimeWindow  extends StructuredAttribute{
 		}
 	}
 	
+	/**
+	 * @param start epoch time in ms
+	 * @param end epoch time in ms
+	 */
+	public TimeWindow(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+	
+	public long getStart() {
+		return start;
+	}
+
+	public long getEnd() {
+		return end;
+	}
+
 	public long getLength() {
 		return end - start;
 	}
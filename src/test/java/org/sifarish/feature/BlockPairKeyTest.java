@@ -0,0 +1,146 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Raw comparators, triangular layout of block pairs and partitioner of BlockPairKey
+ * @author pranab
+ *
+ */
+public class BlockPairKeyTest {
+	private static final String[] PARTITIONS = {"", "N", "tv", "camera", "tvs", "\u00e9t\u00e9", "laptop computer"};
+
+	@Test
+	public void testRawComparatorsAgreeWithCompareTo() throws IOException {
+		Random random = new Random(31);
+		BlockPairKey.Comparator comparator = new BlockPairKey.Comparator();
+		BlockPairKey.GroupComparator groupComparator = new BlockPairKey.GroupComparator();
+		for (int i = 0; i < 20000; ++i) {
+			BlockPairKey first = createKey(random);
+			BlockPairKey second = createKey(random);
+			byte[] firstBytes = serialize(first);
+			byte[] secondBytes = serialize(second);
+			Assert.assertEquals(Integer.signum(comparator.compare(firstBytes, 0, firstBytes.length, 
+				secondBytes, 0, secondBytes.length)), Integer.signum(first.compareTo(second)), 
+				first + " " + second);
+			Assert.assertEquals(Integer.signum(groupComparator.compare(firstBytes, 0, firstBytes.length, 
+				secondBytes, 0, secondBytes.length)), Integer.signum(first.compareToBase(second)), 
+				first + " " + second);
+		}
+	}
+
+	@Test
+	public void testEveryBlockPairInOneGroup() {
+		for (int blockCount = 1; blockCount <= 12; ++blockCount) {
+			Set<String> allGroups = new HashSet<String>();
+			for (int k = 0; k < blockCount; ++k) {
+				for (int l = k; l < blockCount; ++l) {
+					//groups where a record in block k is paired with a record in block l
+					int paired = 0;
+					BlockPairKey first = new BlockPairKey();
+					BlockPairKey second = new BlockPairKey();
+					for (int i = 0; i < blockCount; ++i) {
+						first.setTriangular("N", k, i);
+						allGroups.add(first.getFirstBlock() + ":" + first.getSecondBlock());
+						for (int j = 0; j < blockCount; ++j) {
+							second.setTriangular("N", l, j);
+							//all records of a diagonal group are paired, otherwise records are paired across sets
+							if (0 == first.compareToBase(second) && 
+									(first.isDiagonal() || first.getSet() != second.getSet())) {
+								++paired;
+								if (first.isDiagonal()) {
+									Assert.assertEquals(first.getSet(), 0);
+									Assert.assertEquals(second.getSet(), 0);
+								}
+							}
+						}
+					}
+					Assert.assertEquals(paired, 1, "blocks " + k + " and " + l + " of " + blockCount);
+				}
+			}
+			Assert.assertEquals(allGroups.size(), blockCount * (blockCount + 1) / 2);
+		}
+	}
+
+	@Test
+	public void testPartitionerSpreadsGroups() {
+		BlockPairKey.BlockPairPartitioner partitioner = new BlockPairKey.BlockPairPartitioner();
+		BlockPairKey key = new BlockPairKey();
+		for (String partition : PARTITIONS) {
+			for (int blockCount = 1; blockCount <= 40; blockCount += 3) {
+				for (int numReducers = 1; numReducers <= 17; numReducers += 2) {
+					int[] groups = new int[numReducers];
+					for (int k = 0; k < blockCount; ++k) {
+						for (int l = k; l < blockCount; ++l) {
+							key.set(partition, k, l, 0);
+							int reducer = partitioner.getPartition(key, null, numReducers);
+							Assert.assertTrue(reducer >= 0 && reducer < numReducers);
+							++groups[reducer];
+
+							//both sets of a group go to the same reducer
+							key.set(partition, k, l, 1);
+							Assert.assertEquals(partitioner.getPartition(key, null, numReducers), reducer);
+						}
+					}
+					int min = Integer.MAX_VALUE;
+					int max = 0;
+					for (int count : groups) {
+						min = Math.min(min, count);
+						max = Math.max(max, count);
+					}
+					Assert.assertTrue(max - min <= 1, "blocks " + blockCount + " reducers " + numReducers + 
+						" min " + min + " max " + max);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param random
+	 * @return
+	 */
+	private BlockPairKey createKey(Random random) {
+		BlockPairKey key = new BlockPairKey();
+		int blockCount = 1 + random.nextInt(300);
+		key.set(PARTITIONS[random.nextInt(PARTITIONS.length)], random.nextInt(blockCount), random.nextInt(blockCount), 
+			random.nextInt(2));
+		return key;
+	}
+
+	/**
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	private byte[] serialize(BlockPairKey key) throws IOException {
+		DataOutputBuffer out = new DataOutputBuffer();
+		key.write(out);
+		byte[] bytes = new byte[out.getLength()];
+		System.arraycopy(out.getData(), 0, bytes, 0, out.getLength());
+		return bytes;
+	}
+}
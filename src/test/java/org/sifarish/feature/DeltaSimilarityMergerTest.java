@@ -0,0 +1,199 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.util.ToolRunner;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Delta run of SameTypeSimilarity merged with the previous output by DeltaSimilarityMerger should have 
+ * the same pairs as a full recompute on the changed data. Jobs run with local job runner
+ * @author pranab
+ *
+ */
+public class DeltaSimilarityMergerTest {
+	private static final int NUM_RECORDS = 200;
+	private File baseDir;
+
+	@BeforeClass
+	public void setup() throws IOException {
+		baseDir = File.createTempFile("delta_merge", "");
+		baseDir.delete();
+		baseDir.mkdirs();
+	}
+
+	@AfterClass
+	public void cleanup() throws IOException {
+		FileUtil.fullyDelete(baseDir);
+	}
+
+	@Test
+	public void testMergedSameAsFullRecompute() throws Exception {
+		String[][] records = ProductRecords.generate(NUM_RECORDS, 11);
+
+		//previous run on all records
+		writeRecords(new File(baseDir, "previous_input/records.txt"), records, 0, NUM_RECORDS);
+		Assert.assertEquals(runSimilarity(createConf(), "previous_input", "previous_output"), 0);
+
+		//some records changed, some new and some deleted
+		Random random = new Random(5);
+		String[][] newRecords = ProductRecords.generate(NUM_RECORDS + 10, 13);
+		List<String[]> changed = new ArrayList<String[]>();
+		List<String[]> unchanged = new ArrayList<String[]>();
+		Set<String> deletedIds = new HashSet<String>();
+		for (int i = 0; i < NUM_RECORDS; ++i) {
+			double select = random.nextDouble();
+			if (select < 0.05) {
+				deletedIds.add(records[i][0]);
+			} else if (select < 0.15) {
+				String[] items = records[i].clone();
+				items[3] = newRecords[i][3];
+				items[4] = newRecords[i][4];
+				changed.add(items);
+			} else {
+				unchanged.add(records[i]);
+			}
+		}
+		for (int i = NUM_RECORDS; i < newRecords.length; ++i) {
+			changed.add(newRecords[i]);
+		}
+		String[][] changedRecords = changed.toArray(new String[changed.size()][]);
+		String[][] unchangedRecords = unchanged.toArray(new String[unchanged.size()][]);
+		writeRecords(new File(baseDir, "delta_input/changed.txt"), changedRecords, 0, changedRecords.length);
+		writeRecords(new File(baseDir, "delta_input/other.txt"), unchangedRecords, 0, unchangedRecords.length);
+		PrintWriter writer = new PrintWriter(new FileWriter(new File(baseDir, "deleted.txt")));
+		for (String id : deletedIds) {
+			writer.println(id);
+		}
+		writer.close();
+
+		//delta run merged with previous output, delta settings in properties file as for a deployed job
+		File propFile = new File(baseDir, "delta.properties");
+		writer = new PrintWriter(new FileWriter(propFile));
+		writer.println("sts.delta.mode=true");
+		writer.println("sts.delta.changed.split.prefix=changed");
+		writer.println("sts.delta.changed.data.path=" + new File(baseDir, "delta_input/changed.txt").getAbsolutePath());
+		writer.println("sts.delta.deleted.id.file.path=" + new File(baseDir, "deleted.txt").getAbsolutePath());
+		writer.println("sts.delta.previous.output.path=" + new File(baseDir, "previous_output").getAbsolutePath());
+		writer.println("sts.delta.merged.output.path=" + new File(baseDir, "merged_output").getAbsolutePath());
+		writer.close();
+		Configuration conf = createConf();
+		conf.set("conf.path", propFile.getAbsolutePath());
+		Assert.assertEquals(runSimilarity(conf, "delta_input", "delta_output"), 0);
+
+		//full recompute
+		Assert.assertEquals(runSimilarity(createConf(), "delta_input", "full_output"), 0);
+
+		Set<String> merged = readPairs(new File(baseDir, "merged_output"));
+		Set<String> full = readPairs(new File(baseDir, "full_output"));
+		Assert.assertFalse(full.isEmpty());
+		Assert.assertFalse(full.equals(readPairs(new File(baseDir, "previous_output"))));
+		Assert.assertEquals(merged, full);
+	}
+
+	/**
+	 * @return
+	 */
+	private Configuration createConf() {
+		Configuration conf = new Configuration();
+		conf.set("fs.default.name", "file:///");
+		conf.set("mapred.job.tracker", "local");
+		conf.set("field.delim.regex", ",");
+		conf.set("field.delim", ",");
+		conf.set("sts.same.schema.file.path", ProductRecords.class.getResource("/product_schema.json").getPath());
+		conf.setInt("sts.bucket.count", 3);
+		conf.setInt("sts.distance.scale", 1000);
+		conf.setInt("sts.dist.threshold", 300);
+		return conf;
+	}
+
+	/**
+	 * @param conf
+	 * @param input
+	 * @param output
+	 * @return
+	 * @throws Exception
+	 */
+	private int runSimilarity(Configuration conf, String input, String output) throws Exception {
+		return ToolRunner.run(conf, new SameTypeSimilarity(), new String[]{
+			new File(baseDir, input).getAbsolutePath(), new File(baseDir, output).getAbsolutePath()});
+	}
+
+	/**
+	 * @param file
+	 * @param records
+	 * @param start
+	 * @param end
+	 * @throws IOException
+	 */
+	private void writeRecords(File file, String[][] records, int start, int end) throws IOException {
+		file.getParentFile().mkdirs();
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		for (int i = start; i < end; ++i) {
+			StringBuilder stBld = new StringBuilder();
+			for (int j = 0; j < records[i].length; ++j) {
+				if (j > 0) {
+					stBld.append(",");
+				}
+				stBld.append(records[i][j]);
+			}
+			writer.println(stBld.toString());
+		}
+		writer.close();
+	}
+
+	/**
+	 * @param dir
+	 * @return pairs with IDs in order and distance
+	 * @throws IOException
+	 */
+	private Set<String> readPairs(File dir) throws IOException {
+		Set<String> pairs = new TreeSet<String>();
+		for (File file : dir.listFiles()) {
+			if (file.getName().startsWith("part-")) {
+				BufferedReader reader = new BufferedReader(new FileReader(file));
+				String line = null;
+				while ((line = reader.readLine()) != null) {
+					String[] items = line.split(",");
+					String pair = items[0].compareTo(items[1]) < 0 ? items[0] + "," + items[1] : items[1] + "," + items[0];
+					Assert.assertTrue(pairs.add(pair + "," + items[items.length - 1]), "duplicate pair " + line);
+				}
+				reader.close();
+			}
+		}
+		return pairs;
+	}
+}
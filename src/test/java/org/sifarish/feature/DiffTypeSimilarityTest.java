@@ -0,0 +1,64 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Shuffle key grouping of DiffTypeSimilarity
+ * @author pranab
+ *
+ */
+public class DiffTypeSimilarityTest {
+
+	@Test
+	public void testRawGroupComparator() throws IOException {
+		DiffTypeSimilarity.IdPairGroupComprator comparator = new DiffTypeSimilarity.IdPairGroupComprator();
+		Random random = new Random(3);
+		LongWritable first = new LongWritable();
+		LongWritable second = new LongWritable();
+		for (int i = 0; i < 10000; ++i) {
+			//entity ID extended with set indicator, nearby IDs so that groups often match
+			first.set((random.nextInt(50) + (i % 2) * 1000000000L) * 10 + random.nextInt(2));
+			second.set((random.nextInt(50) + (i % 2) * 1000000000L) * 10 + random.nextInt(2));
+			DataOutputBuffer firstBuf = serialize(first);
+			DataOutputBuffer secondBuf = serialize(second);
+			int expected = Integer.signum(comparator.compare(first, second));
+			int actual = Integer.signum(comparator.compare(firstBuf.getData(), 0, firstBuf.getLength(), 
+				secondBuf.getData(), 0, secondBuf.getLength()));
+			Assert.assertEquals(actual, expected, first.get() + " " + second.get());
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	private DataOutputBuffer serialize(LongWritable key) throws IOException {
+		DataOutputBuffer buffer = new DataOutputBuffer();
+		key.write(buffer);
+		return buffer;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Distance from accumulated field distances
+ * @author pranab
+ *
+ */
+public class DistanceStrategyTest {
+	private static final double[] DISTANCES = {0.2, 0.4, 0.0, 1.0};
+	private static final int SCALE = 1000;
+
+	@Test
+	public void testManhattanDistance() {
+		DistanceStrategy distStrategy = new ManhattanDistance(SCALE);
+		accumulate(distStrategy);
+		assertDistance(distStrategy, 1.6 / DISTANCES.length);
+	}
+
+	@Test
+	public void testMinkowskiDistance() {
+		DistanceStrategy distStrategy = new MinkwoskiDistance(SCALE);
+		distStrategy.setPower(3.0);
+		accumulate(distStrategy);
+		double sum = 0;
+		for (double distance : DISTANCES) {
+			sum += Math.pow(distance, 3.0);
+		}
+		assertDistance(distStrategy, Math.pow(sum, 1.0 / 3.0) / DISTANCES.length);
+	}
+
+	@Test
+	public void testEuclideanDistance() {
+		DistanceStrategy distStrategy = new EuclideanDistance(SCALE);
+		accumulate(distStrategy);
+		double sum = 0;
+		for (double distance : DISTANCES) {
+			sum += distance * distance;
+		}
+		assertDistance(distStrategy, Math.sqrt(sum) / DISTANCES.length);
+	}
+
+	/**
+	 * @param distStrategy
+	 */
+	private void accumulate(DistanceStrategy distStrategy) {
+		distStrategy.initialize();
+		for (double distance : DISTANCES) {
+			distStrategy.accumulate(distance, 1.0);
+		}
+	}
+
+	/**
+	 * Unscaled, scaled and int distance should agree
+	 * @param distStrategy
+	 * @param expected
+	 */
+	private void assertDistance(DistanceStrategy distStrategy, double expected) {
+		Assert.assertEquals(distStrategy.getSimilarity(false), expected, 1.0e-9);
+		Assert.assertEquals(distStrategy.getSimilarity(true), expected * SCALE, 1.0e-6);
+		Assert.assertEquals(distStrategy.getSimilarity(), (int)(expected * SCALE));
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Saved index loaded to heap and memory mapped should answer queries same as the index that was saved
+ * @author pranab
+ *
+ */
+public class HnswIndexTest {
+	private static final int SCALE = 1000;
+
+	@Test
+	public void testLoadedAndMappedSameAsBuilt() throws IOException {
+		SingleTypeSchema schema = ProductRecords.loadSchema();
+		int idOrdinal = schema.getEntity().getIdField().getOrdinal();
+		RecordComparator recordComparator = new RecordComparator(schema, null, "::", SCALE);
+		HnswIndex index = new HnswIndex(recordComparator, SCALE, 8, 64, 1);
+		String[][] records = ProductRecords.generate(600, 7);
+		for (String[] items : records) {
+			TypedRecord record = new TypedRecord();
+			record.initialize(items, 0, idOrdinal, schema.getEntity().getFields(), "::");
+			index.insert(record);
+		}
+
+		File indexFile = File.createTempFile("hnsw", ".idx");
+		try {
+			index.save(indexFile.getPath());
+			HnswIndex loaded = HnswIndex.load(indexFile.getPath(), recordComparator, SCALE, 1);
+			
+			//small cache so that records are evicted and read again
+			HnswIndex mapped = HnswIndex.map(indexFile.getPath(), recordComparator, SCALE, 16);
+			Assert.assertTrue(mapped.isMapped());
+			Assert.assertFalse(loaded.isMapped());
+			Assert.assertEquals(loaded.size(), records.length);
+			Assert.assertEquals(mapped.size(), records.length);
+
+			HnswIndex.Searcher searcher = index.createSearcher();
+			HnswIndex.Searcher loadedSearcher = loaded.createSearcher();
+			HnswIndex.Searcher mappedSearcher = mapped.createSearcher();
+			for (int i = 0; i < records.length; i += 13) {
+				String id = records[i][idOrdinal];
+				Assert.assertTrue(mapped.contains(id));
+				Assert.assertEquals(mapped.getRecord(id).getItems(), records[i]);
+				List<String> expected = toStrings(searcher.findSimilar(id, 10, 32));
+				Assert.assertEquals(expected.size(), 10);
+				Assert.assertEquals(toStrings(loadedSearcher.findSimilar(id, 10, 32)), expected);
+				Assert.assertEquals(toStrings(mappedSearcher.findSimilar(id, 10, 32)), expected);
+			}
+			Assert.assertFalse(mapped.contains("none"));
+			Assert.assertNull(mappedSearcher.findSimilar("none", 10, 32));
+
+			//more records can be inserted after load, but not in a mapped index
+			TypedRecord record = new TypedRecord();
+			record.initialize(ProductRecords.generate(601, 7)[600], 0, idOrdinal, schema.getEntity().getFields(), "::");
+			loaded.insert(record);
+			Assert.assertEquals(loaded.size(), records.length + 1);
+			try {
+				mapped.insert(record);
+				Assert.fail("insert in mapped index should fail");
+			} catch (IllegalStateException ex) {
+			}
+		} finally {
+			indexFile.delete();
+		}
+	}
+
+	/**
+	 * @param neighbors
+	 * @return
+	 */
+	private List<String> toStrings(List<HnswIndex.Neighbor> neighbors) {
+		List<String> values = new ArrayList<String>();
+		for (HnswIndex.Neighbor neighbor : neighbors) {
+			values.add(neighbor.getId() + ":" + neighbor.getDistance());
+		}
+		return values;
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Pruning by pivot distances should never drop a pair within distance threshold
+ * @author pranab
+ *
+ */
+public class PivotIndexTest {
+	private static final int SCALE = 1000;
+
+	@Test
+	public void testPruneBound() throws Exception {
+		int threshold = 100;
+		RecordComparator recordComparator = new RecordComparator(ProductRecords.loadSchema(), null, "::", threshold);
+		PivotIndex pivotIndex = new PivotIndex(recordComparator, 4, SCALE, threshold);
+		
+		//distance is truncated to int, so bound has to be beyond threshold + 1
+		Assert.assertFalse(pivotIndex.canPrune(new double[]{10.0, 500.0}, new double[]{111.0, 400.0}));
+		Assert.assertTrue(pivotIndex.canPrune(new double[]{10.0, 500.0}, new double[]{111.5, 500.0}));
+		Assert.assertTrue(pivotIndex.canPrune(new double[]{10.0, 500.0}, new double[]{10.0, 398.0}));
+		
+		//records without pivot distances are never pruned
+		Assert.assertFalse(pivotIndex.canPrune(null, new double[]{0.0, 0.0}));
+		Assert.assertFalse(pivotIndex.canPrune(new double[]{0.0, 0.0}, null));
+	}
+
+	@Test
+	public void testNoPairWithinThresholdPruned() throws Exception {
+		int threshold = 250;
+		RecordComparator recordComparator = new RecordComparator(ProductRecords.loadSchema(), null, "::", threshold);
+		Assert.assertTrue(recordComparator.isMetric());
+		DistanceContext context = recordComparator.createContext(SCALE);
+		List<TypedRecord> records = new ArrayList<TypedRecord>();
+		for (String[] items : ProductRecords.generate(400, 23)) {
+			TypedRecord record = new TypedRecord();
+			record.initialize(items, 0, 0, recordComparator.getSchema().getEntity().getFields(), "::");
+			recordComparator.prepare(record, context);
+			records.add(record);
+		}
+		PivotIndex pivotIndex = new PivotIndex(recordComparator, 4, SCALE, threshold);
+		pivotIndex.build(records);
+		Assert.assertEquals(pivotIndex.flushDistanceCount(), 4L * records.size());
+
+		int pruned = 0;
+		for (int i = 0; i < records.size(); ++i) {
+			for (int j = i + 1; j < records.size(); ++j) {
+				if (pivotIndex.canPrune(i, pivotIndex.getPivotDistances(j))) {
+					++pruned;
+					int dist = recordComparator.findDistance(records.get(i), records.get(j), context);
+					Assert.assertTrue(dist > threshold, "pruned pair " + i + "," + j + " at distance " + dist);
+				}
+			}
+		}
+		Assert.assertTrue(pruned > 0);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testNonMetricRejected() throws Exception {
+		//weighted attribute distance is not metric
+		String schemaDef = "{\"distAlgorithm\": \"euclidean\", \"entity\": {\"name\": \"m\", \"fields\": [" + 
+			"{\"name\": \"id\", \"ordinal\": 0, \"id\": true, \"dataType\": \"string\"}, " + 
+			"{\"name\": \"a\", \"ordinal\": 1, \"dataType\": \"int\", \"min\": 0, \"max\": 100, \"weight\": 0.8}]}}";
+		SingleTypeSchema schema = new ObjectMapper().readValue(schemaDef, SingleTypeSchema.class);
+		schema.processStructuredFields();
+		new PivotIndex(new RecordComparator(schema, null, "::", 100), 4, SCALE, 100);
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Synthetic product records for the product schema in test resources
+ * @author pranab
+ *
+ */
+public class ProductRecords {
+	private static final String[] CATEGORIES = {"tv", "camera", "laptop", "phone", "tablet"};
+	private static final String[] BRANDS = {"nova", "acme", "zen", "orbit"};
+	private static final String[] COLORS = {"blue", "red", "black", "white"};
+	private static final String[] TERMS = {"smart", "ultra", "slim", "wireless", "hd", "max", "fast", "pro"};
+	
+	/**
+	 * @return
+	 * @throws IOException
+	 */
+	public static SingleTypeSchema loadSchema() throws IOException {
+		InputStream fs = ProductRecords.class.getResourceAsStream("/product_schema.json");
+		try {
+			ObjectMapper mapper = new ObjectMapper();
+			SingleTypeSchema schema = mapper.readValue(fs, SingleTypeSchema.class);
+			schema.processStructuredFields();
+			return schema;
+		} finally {
+			fs.close();
+		}
+	}
+
+	/**
+	 * @param count
+	 * @param seed
+	 * @return fields of records, with ID SKU followed by record index
+	 */
+	public static String[][] generate(int count, long seed) {
+		Random random = new Random(seed);
+		String[][] records = new String[count][];
+		for (int i = 0; i < count; ++i) {
+			StringBuilder description = new StringBuilder();
+			int numTerms = 2 + random.nextInt(3);
+			for (int t = 0; t < numTerms; ++t) {
+				if (t > 0) {
+					description.append(" ");
+				}
+				description.append(TERMS[random.nextInt(TERMS.length)]);
+			}
+			records[i] = new String[] {
+				"SKU" + i,
+				CATEGORIES[random.nextInt(CATEGORIES.length)],
+				BRANDS[random.nextInt(BRANDS.length)],
+				String.valueOf(Math.round(random.nextDouble() * 100000) / 100.0),
+				description.toString(),
+				String.valueOf(Math.round(random.nextDouble() * 500) / 100.0),
+				COLORS[random.nextInt(COLORS.length)]
+			};
+		}
+		return records;
+	}
+}
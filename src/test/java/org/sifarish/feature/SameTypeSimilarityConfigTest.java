@@ -0,0 +1,127 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.util.ToolRunner;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Switches of SameTypeSimilarity driver set in the properties file of conf.path
+ * @author pranab
+ *
+ */
+public class SameTypeSimilarityConfigTest {
+	private File baseDir;
+
+	@BeforeClass
+	public void setup() throws IOException {
+		baseDir = File.createTempFile("sts_config", "");
+		baseDir.delete();
+		baseDir.mkdirs();
+	}
+
+	@AfterClass
+	public void cleanup() throws IOException {
+		FileUtil.fullyDelete(baseDir);
+	}
+
+	@Test
+	public void testBroadcastJoinFromPropertiesFile() throws Exception {
+		try {
+			runSimilarity("broadcast.properties", "sts.broadcast.join=true");
+			Assert.fail("broadcast join without inter set matching should be rejected");
+		} catch (IllegalArgumentException ex) {
+			Assert.assertTrue(ex.getMessage().startsWith("broadcast join"));
+		}
+	}
+
+	@Test
+	public void testBinaryEdgeDeltaFromPropertiesFile() throws Exception {
+		try {
+			runSimilarity("delta_edge.properties", "sts.binary.edge.output=true", "sts.delta.mode=true");
+			Assert.fail("binary edge output in delta mode should be rejected");
+		} catch (IllegalArgumentException ex) {
+			Assert.assertTrue(ex.getMessage().startsWith("binary edge output"));
+		}
+	}
+
+	@Test
+	public void testBinaryEdgeProjectionFromPropertiesFile() throws Exception {
+		try {
+			runSimilarity("projection_edge.properties", "sts.binary.edge.output=true", "sts.record.projection=true", 
+				"sts.output.record=true");
+			Assert.fail("binary edge output with record join should be rejected");
+		} catch (IllegalArgumentException ex) {
+			Assert.assertTrue(ex.getMessage().startsWith("record projection"));
+		}
+	}
+
+	@Test
+	public void testSkewPlanningFromPropertiesFile() throws Exception {
+		String[][] records = ProductRecords.generate(100, 17);
+		File inputFile = new File(baseDir, "input/records.txt");
+		inputFile.getParentFile().mkdirs();
+		PrintWriter writer = new PrintWriter(new FileWriter(inputFile));
+		for (String[] items : records) {
+			writer.println(org.chombo.util.Utility.join(items, ","));
+		}
+		writer.close();
+
+		File planDir = new File(baseDir, "skew_plan");
+		int status = runSimilarity("skew.properties", "sts.skew.planning=true", "sts.skew.sampling.rate=1.0", 
+			"sts.skew.plan.dir=" + planDir.getAbsolutePath());
+		Assert.assertEquals(status, 0);
+		Assert.assertTrue(new File(planDir, "part-r-00000").exists());
+	}
+
+	/**
+	 * @param fileName
+	 * @param properties
+	 * @return
+	 * @throws Exception
+	 */
+	private int runSimilarity(String fileName, String... properties) throws Exception {
+		File propFile = new File(baseDir, fileName);
+		PrintWriter writer = new PrintWriter(new FileWriter(propFile));
+		for (String property : properties) {
+			writer.println(property);
+		}
+		writer.close();
+
+		Configuration conf = new Configuration();
+		conf.set("fs.default.name", "file:///");
+		conf.set("mapred.job.tracker", "local");
+		conf.set("field.delim.regex", ",");
+		conf.set("field.delim", ",");
+		conf.set("sts.same.schema.file.path", ProductRecords.class.getResource("/product_schema.json").getPath());
+		conf.setInt("sts.bucket.count", 3);
+		conf.set("conf.path", propFile.getAbsolutePath());
+		return ToolRunner.run(conf, new SameTypeSimilarity(), new String[]{
+			new File(baseDir, "input").getAbsolutePath(), new File(baseDir, fileName + "_output").getAbsolutePath()});
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmark of one ScoringEngine shared by threads, each scoring queries against all candidates. 
+ * Throughput with more threads shows contention, if any, in the shared engine. Run with main, after 
+ * test classes are compiled with the JMH annotation processor
+ * @author pranab
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScoringEngineBenchmark {
+	private static final int SCALE = 1000;
+	private static final int NUM_CANDIDATES = 1000;
+
+	/**
+	 * Engine and candidate records shared by all threads
+	 * @author pranab
+	 *
+	 */
+	@State(Scope.Benchmark)
+	public static class SharedEngine {
+		private ScoringEngine engine;
+		private List<TypedRecord> candidates = new ArrayList<TypedRecord>();
+
+		@Setup
+		public void setup() throws IOException {
+			engine = new ScoringEngine(ProductRecords.loadSchema(), "::", SCALE, SCALE / 4);
+			for (String[] items : ProductRecords.generate(NUM_CANDIDATES, 17)) {
+				candidates.add(engine.createRecord(items));
+			}
+		}
+	}
+
+	/**
+	 * Distance buffer and next query of a thread
+	 * @author pranab
+	 *
+	 */
+	@State(Scope.Thread)
+	public static class ThreadQueries {
+		private int[] distances = new int[NUM_CANDIDATES];
+		private int next;
+
+		public TypedRecord nextQuery(SharedEngine shared) {
+			next = (next + 1) % NUM_CANDIDATES;
+			return shared.candidates.get(next);
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public int scoreOneThread(SharedEngine shared, ThreadQueries queries) throws IOException {
+		return shared.engine.findDistances(queries.nextQuery(shared), shared.candidates, queries.distances);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public int scoreFourThreads(SharedEngine shared, ThreadQueries queries) throws IOException {
+		return shared.engine.findDistances(queries.nextQuery(shared), shared.candidates, queries.distances);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public int scoreAllCores(SharedEngine shared, ThreadQueries queries) throws IOException {
+		return shared.engine.findDistances(queries.nextQuery(shared), shared.candidates, queries.distances);
+	}
+
+	/**
+	 * @param args
+	 * @throws RunnerException
+	 */
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(ScoringEngineBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Distances found by a shared ScoringEngine from many threads against single threaded RecordDistanceFinder
+ * @author pranab
+ *
+ */
+public class ScoringEngineTest {
+	private static final int SCALE = 1000;
+	private static final int NUM_RECORDS = 300;
+	private static final int NUM_THREADS = 8;
+	private SingleTypeSchema schema;
+	private String[][] items;
+	private int[][] expected;
+
+	@BeforeClass
+	public void setup() throws Exception {
+		schema = ProductRecords.loadSchema();
+		items = ProductRecords.generate(NUM_RECORDS, 17);
+		RecordDistanceFinder distanceFinder = new RecordDistanceFinder(",", 0, SCALE, SCALE, 
+			ProductRecords.loadSchema(), "::");
+		expected = new int[NUM_RECORDS][NUM_RECORDS];
+		for (int i = 0; i < NUM_RECORDS; ++i) {
+			for (int j = 0; j < NUM_RECORDS; ++j) {
+				expected[i][j] = distanceFinder.findDistance(items[i], items[j]);
+			}
+		}
+	}
+
+	@Test
+	public void testConcurrentDistances() throws Exception {
+		final ScoringEngine engine = new ScoringEngine(schema, "::", SCALE, SCALE);
+		final List<TypedRecord> records = new ArrayList<TypedRecord>();
+		for (String[] recordItems : items) {
+			records.add(engine.createRecord(recordItems));
+		}
+
+		//every thread scores all queries, starting at a different query
+		ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		try {
+			for (int t = 0; t < NUM_THREADS; ++t) {
+				final int offset = t * NUM_RECORDS / NUM_THREADS;
+				results.add(executor.submit(new Callable<Integer>() {
+					public Integer call() throws Exception {
+						int[] distances = new int[NUM_RECORDS];
+						int mismatches = 0;
+						for (int q = 0; q < NUM_RECORDS; ++q) {
+							int query = (q + offset) % NUM_RECORDS;
+							engine.findDistances(records.get(query), records, distances);
+							for (int j = 0; j < NUM_RECORDS; ++j) {
+								if (distances[j] != expected[query][j]) {
+									++mismatches;
+								}
+							}
+						}
+						return mismatches;
+					}
+				}));
+			}
+			for (Future<Integer> result : results) {
+				Assert.assertEquals(result.get().intValue(), 0);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testMatchedCount() throws Exception {
+		int threshold = SCALE / 4;
+		ScoringEngine engine = new ScoringEngine(schema, "::", SCALE, threshold);
+		List<TypedRecord> records = new ArrayList<TypedRecord>();
+		for (String[] recordItems : items) {
+			records.add(engine.createRecord(recordItems));
+		}
+		int[] distances = new int[NUM_RECORDS];
+		int matched = engine.findDistances(records.get(0), records, distances);
+		int expectedMatched = 0;
+		for (int j = 0; j < NUM_RECORDS; ++j) {
+			if (expected[0][j] <= threshold) {
+				++expectedMatched;
+				Assert.assertEquals(distances[j], expected[0][j]);
+			}
+		}
+		Assert.assertEquals(matched, expectedMatched);
+	}
+}
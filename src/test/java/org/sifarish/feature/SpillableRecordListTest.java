@@ -0,0 +1,155 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.util.ToolRunner;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Spilled record list and block nested loop join of spilled groups
+ * @author pranab
+ *
+ */
+public class SpillableRecordListTest {
+	private File baseDir;
+
+	@BeforeClass
+	public void setup() throws IOException {
+		baseDir = File.createTempFile("spill", "");
+		baseDir.delete();
+		baseDir.mkdirs();
+	}
+
+	@AfterClass
+	public void cleanup() throws IOException {
+		FileUtil.fullyDelete(baseDir);
+	}
+
+	@Test
+	public void testBlocksReadBackAndFileDeleted() throws IOException {
+		SingleTypeSchema schema = ProductRecords.loadSchema();
+		int idOrdinal = schema.getEntity().getIdField().getOrdinal();
+		File spillDir = new File(baseDir, "list");
+		spillDir.mkdirs();
+		SpillableRecordList spillList = new SpillableRecordList(30000, spillDir);
+
+		for (int round = 0; round < 2; ++round) {
+			String[][] records = ProductRecords.generate(1000, round);
+			TypedRecord record = new TypedRecord();
+			for (String[] items : records) {
+				record.initialize(items, 0, idOrdinal, schema.getEntity().getFields(), "::");
+				spillList.add(record);
+			}
+			Assert.assertTrue(spillList.isSpilled());
+			Assert.assertEquals(spillList.size(), records.length);
+			Assert.assertTrue(spillList.getBlockCount() > 2);
+			Assert.assertEquals(spillDir.list().length, 1);
+
+			//blocks read more than once, as in block nested loop join
+			for (int pass = 0; pass < 2; ++pass) {
+				List<String> ids = new ArrayList<String>();
+				for (int b = 0; b < spillList.getBlockCount(); ++b) {
+					for (TypedRecord blockRecord : spillList.readBlock(b)) {
+						ids.add(blockRecord.getId());
+						if (ids.size() % 97 == 0) {
+							Assert.assertEquals(Arrays.asList(blockRecord.getItems()), 
+								Arrays.asList(records[ids.size() - 1]));
+						}
+					}
+				}
+				Assert.assertEquals(ids.size(), records.length);
+				for (int i = 0; i < records.length; ++i) {
+					Assert.assertEquals(ids.get(i), records[i][idOrdinal]);
+				}
+			}
+
+			spillList.clear();
+			Assert.assertEquals(spillDir.list().length, 0);
+			Assert.assertEquals(spillList.size(), 0);
+		}
+	}
+
+	@Test
+	public void testSpilledGroupSkipsSameId() throws Exception {
+		//padding outside schema makes records large enough to spill with the smallest budget
+		String[][] records = ProductRecords.generate(750, 21);
+		char[] padding = new char[2000];
+		Arrays.fill(padding, 'x');
+		File inputFile = new File(baseDir, "input/records.txt");
+		inputFile.getParentFile().mkdirs();
+		PrintWriter writer = new PrintWriter(new FileWriter(inputFile));
+		for (int copy = 0; copy < 2; ++copy) {
+			//second copy repeats all IDs, in later blocks of the group
+			for (String[] items : records) {
+				writer.println(org.chombo.util.Utility.join(items, ",") + "," + new String(padding));
+			}
+		}
+		writer.close();
+
+		Configuration conf = new Configuration();
+		conf.set("fs.default.name", "file:///");
+		conf.set("mapred.job.tracker", "local");
+		conf.set("field.delim.regex", ",");
+		conf.set("field.delim", ",");
+		conf.set("sts.same.schema.file.path", ProductRecords.class.getResource("/product_schema.json").getPath());
+		conf.setInt("sts.bucket.count", 1);
+		conf.setInt("sts.distance.scale", 1000);
+		conf.setInt("sts.dist.threshold", 100);
+		conf.setInt("sts.spill.memory.budget.mb", 1);
+		conf.set("sts.spill.dir", baseDir.getAbsolutePath());
+		File outputDir = new File(baseDir, "output");
+		int status = ToolRunner.run(conf, new SameTypeSimilarity(), new String[]{
+			inputFile.getParentFile().getAbsolutePath(), outputDir.getAbsolutePath()});
+		Assert.assertEquals(status, 0);
+
+		int pairs = 0;
+		for (File file : outputDir.listFiles()) {
+			if (file.getName().startsWith("part-")) {
+				BufferedReader reader = new BufferedReader(new FileReader(file));
+				String line = null;
+				while ((line = reader.readLine()) != null) {
+					String[] items = line.split(",");
+					Assert.assertFalse(items[0].equals(items[1]), line);
+					++pairs;
+				}
+				reader.close();
+			}
+		}
+		Assert.assertTrue(pairs > 0);
+
+		//spill files deleted by the reducer
+		for (String name : baseDir.list()) {
+			Assert.assertFalse(name.startsWith("sifarish-spill"), name);
+		}
+	}
+}
@@ -0,0 +1,323 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.util.ToolRunner;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Top k neighbor lists of TopMatchCollector and their flush
+ * @author pranab
+ *
+ */
+public class TopMatchCollectorTest {
+
+	@Test
+	public void testTopMatchesInBothDirections() throws Exception {
+		TopMatchCollector collector = new TopMatchCollector(2, 100, ",");
+		collector.collect("A", "B", 10);
+		collector.collect("A", "C", 5);
+		collector.collect("A", "D", 20);
+		collector.collect("B", "C", 7);
+
+		CollectingContext context = new CollectingContext();
+		collector.flush(context);
+		Map<String, List<String>> lists = context.getNeighborLists();
+		Assert.assertEquals(lists.size(), 4);
+		Assert.assertEquals(lists.get("A"), Arrays.asList("C,5", "B,10"));
+		Assert.assertEquals(lists.get("B"), Arrays.asList("C,7", "A,10"));
+		Assert.assertEquals(lists.get("C"), Arrays.asList("A,5", "B,7"));
+		Assert.assertEquals(lists.get("D"), Arrays.asList("A,20"));
+		Assert.assertEquals(context.getCounter("Top Match", "Partial lists flushed").getValue(), 4);
+		Assert.assertEquals(context.getCounter("Top Match", "Neighbors emitted").getValue(), 7);
+	}
+
+	@Test
+	public void testTieBrokenById() throws Exception {
+		TopMatchCollector collector = new TopMatchCollector(1, 100, ",");
+		collector.add("A", "C", 5);
+		collector.add("A", "B", 5);
+		collector.add("A", "D", 5);
+
+		CollectingContext context = new CollectingContext();
+		collector.flush(context);
+		Assert.assertEquals(context.getNeighborLists().get("A"), Arrays.asList("B,5"));
+	}
+
+	@Test
+	public void testFullAndFlushClears() throws Exception {
+		TopMatchCollector collector = new TopMatchCollector(2, 3, ",");
+		collector.collect("A", "B", 1);
+		Assert.assertFalse(collector.isFull());
+		collector.collect("C", "D", 1);
+		Assert.assertTrue(collector.isFull());
+
+		CollectingContext context = new CollectingContext();
+		collector.flush(context);
+		Assert.assertEquals(context.getLines().size(), 4);
+		Assert.assertFalse(collector.isFull());
+
+		//nothing held after flush
+		context = new CollectingContext();
+		collector.flush(context);
+		Assert.assertTrue(context.getLines().isEmpty());
+	}
+
+	@Test
+	public void testTopMatchesInReducer() throws Exception {
+		File baseDir = File.createTempFile("top_match", "");
+		baseDir.delete();
+		baseDir.mkdirs();
+		try {
+			File inputFile = new File(baseDir, "input/records.txt");
+			inputFile.getParentFile().mkdirs();
+			PrintWriter writer = new PrintWriter(new FileWriter(inputFile));
+			for (String[] items : ProductRecords.generate(300, 9)) {
+				writer.println(org.chombo.util.Utility.join(items, ","));
+			}
+			writer.close();
+
+			//all pairs, nearest 3 for each entity found from them
+			File allDir = new File(baseDir, "all");
+			Assert.assertEquals(runSimilarity(createConf(), inputFile.getParentFile(), allDir), 0);
+			Map<String, List<String>> expected = new HashMap<String, List<String>>();
+			for (String line : readLines(allDir)) {
+				String[] items = line.split(",");
+				addNeighbor(expected, items[0], items[1], items[items.length - 1]);
+				addNeighbor(expected, items[1], items[0], items[items.length - 1]);
+			}
+			Assert.assertFalse(expected.isEmpty());
+
+			//partial lists from collector, serial and by multiple threads
+			for (int numThreads = 1; numThreads <= 2; ++numThreads) {
+				Configuration conf = createConf();
+				conf.setBoolean("sts.top.match.in.reducer", true);
+				conf.setInt("sts.top.match.count", 3);
+				conf.setInt("sts.parallel.thread.count", numThreads);
+				conf.setInt("sts.parallel.min.pair.count", 0);
+				File topDir = new File(baseDir, "top" + numThreads);
+				Assert.assertEquals(runSimilarity(conf, inputFile.getParentFile(), topDir), 0);
+				Map<String, List<String>> merged = new HashMap<String, List<String>>();
+				for (String line : readLines(topDir)) {
+					String[] items = line.split(",");
+					Assert.assertEquals(items.length, 3);
+					addNeighbor(merged, items[0], items[1], items[2]);
+				}
+				Assert.assertEquals(topNeighbors(merged, 3), topNeighbors(expected, 3));
+			}
+		} finally {
+			FileUtil.fullyDelete(baseDir);
+		}
+	}
+
+	/**
+	 * @return
+	 */
+	private Configuration createConf() {
+		Configuration conf = new Configuration();
+		conf.set("fs.default.name", "file:///");
+		conf.set("mapred.job.tracker", "local");
+		conf.set("field.delim.regex", ",");
+		conf.set("field.delim", ",");
+		conf.set("sts.same.schema.file.path", ProductRecords.class.getResource("/product_schema.json").getPath());
+		conf.setInt("sts.bucket.count", 3);
+		conf.setInt("sts.distance.scale", 1000);
+		conf.setInt("sts.dist.threshold", 300);
+		return conf;
+	}
+
+	/**
+	 * @param conf
+	 * @param input
+	 * @param output
+	 * @return
+	 * @throws Exception
+	 */
+	private int runSimilarity(Configuration conf, File input, File output) throws Exception {
+		return ToolRunner.run(conf, new SameTypeSimilarity(), new String[]{input.getAbsolutePath(), 
+			output.getAbsolutePath()});
+	}
+
+	/**
+	 * @param dir
+	 * @return
+	 * @throws IOException
+	 */
+	private List<String> readLines(File dir) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		for (File file : dir.listFiles()) {
+			if (file.getName().startsWith("part-")) {
+				BufferedReader reader = new BufferedReader(new FileReader(file));
+				String line = null;
+				while ((line = reader.readLine()) != null) {
+					lines.add(line);
+				}
+				reader.close();
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * @param neighbors
+	 * @param entityId
+	 * @param neighborId
+	 * @param distance
+	 */
+	private void addNeighbor(Map<String, List<String>> neighbors, String entityId, String neighborId, String distance) {
+		List<String> entityNeighbors = neighbors.get(entityId);
+		if (null == entityNeighbors) {
+			entityNeighbors = new ArrayList<String>();
+			neighbors.put(entityId, entityNeighbors);
+		}
+		entityNeighbors.add(neighborId + "," + distance);
+	}
+
+	/**
+	 * @param neighbors
+	 * @param k
+	 * @return nearest k of each entity, ties by ID
+	 */
+	private Map<String, List<String>> topNeighbors(Map<String, List<String>> neighbors, int k) {
+		Map<String, List<String>> top = new HashMap<String, List<String>>();
+		for (String entityId : neighbors.keySet()) {
+			List<String> entityNeighbors = new ArrayList<String>(neighbors.get(entityId));
+			Collections.sort(entityNeighbors, new Comparator<String>() {
+				@Override
+				public int compare(String thisNeighbor, String thatNeighbor) {
+					String[] thisItems = thisNeighbor.split(",");
+					String[] thatItems = thatNeighbor.split(",");
+					int cmp = Integer.parseInt(thisItems[1]) - Integer.parseInt(thatItems[1]);
+					return 0 == cmp ? thisItems[0].compareTo(thatItems[0]) : cmp;
+				}
+			});
+			top.put(entityId, entityNeighbors.subList(0, Math.min(k, entityNeighbors.size())));
+		}
+		return top;
+	}
+
+	/**
+	 * Task context collecting output lines and counters in memory
+	 * @author pranab
+	 *
+	 */
+	private static class CollectingContext extends TaskInputOutputContext<Object, Object, NullWritable, Text> {
+		private List<String> lines;
+
+		public CollectingContext() {
+			this(new ArrayList<String>(), new Counters());
+		}
+
+		private CollectingContext(final List<String> lines, final Counters counters) {
+			super(new Configuration(), new TaskAttemptID(), new RecordWriter<NullWritable, Text>() {
+				@Override
+				public void write(NullWritable key, Text value) {
+					lines.add(value.toString());
+				}
+
+				@Override
+				public void close(TaskAttemptContext context) {
+				}
+			}, null, new StatusReporter() {
+				@Override
+				public Counter getCounter(Enum<?> name) {
+					return counters.findCounter(name);
+				}
+
+				@Override
+				public Counter getCounter(String group, String name) {
+					return counters.findCounter(group, name);
+				}
+
+				@Override
+				public void progress() {
+				}
+
+				@Override
+				public void setStatus(String status) {
+				}
+			});
+			this.lines = lines;
+		}
+
+		/**
+		 * @return output lines in order
+		 */
+		public List<String> getLines() {
+			return lines;
+		}
+
+		/**
+		 * @return neighbor ID and distance in output order, by entity ID
+		 */
+		public Map<String, List<String>> getNeighborLists() {
+			Map<String, List<String>> lists = new HashMap<String, List<String>>();
+			for (String line : lines) {
+				String[] items = line.split(",", 2);
+				List<String> neighbors = lists.get(items[0]);
+				if (null == neighbors) {
+					neighbors = new ArrayList<String>();
+					lists.put(items[0], neighbors);
+				}
+				neighbors.add(items[1]);
+			}
+			return lists;
+		}
+
+		@Override
+		public boolean nextKeyValue() throws IOException, InterruptedException {
+			return false;
+		}
+
+		@Override
+		public Object getCurrentKey() throws IOException, InterruptedException {
+			return null;
+		}
+
+		@Override
+		public Object getCurrentValue() throws IOException, InterruptedException {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Sifarish: Recommendation Engine
+ * Author: Pranab Ghosh
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sifarish.feature;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.sifarish.util.Field;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Serialization round trip of TypedRecord
+ * @author pranab
+ *
+ */
+public class TypedRecordTest {
+	private DataOutputBuffer out = new DataOutputBuffer();
+	private DataInputBuffer in = new DataInputBuffer();
+
+	@Test
+	public void testProductRecords() throws IOException {
+		SingleTypeSchema schema = ProductRecords.loadSchema();
+		TypedRecord copy = new TypedRecord();
+		for (String[] items : ProductRecords.generate(500, 7)) {
+			TypedRecord record = new TypedRecord();
+			record.initialize(items, 1, 0, schema.getEntity().getFields(), "::");
+			assertRoundTrip(record, copy);
+		}
+	}
+
+	@Test
+	public void testFieldTypes() throws IOException {
+		List<Field> fields = new ArrayList<Field>();
+		fields.add(createField(1, Field.DATA_TYPE_INT, "kg"));
+		fields.add(createField(2, Field.DATA_TYPE_INT, "kg"));
+		fields.add(createField(3, Field.DATA_TYPE_INT, "kg"));
+		fields.add(createField(4, Field.DATA_TYPE_INT, null));
+		fields.add(createField(5, Field.DATA_TYPE_INT, null));
+		fields.add(createField(6, Field.DATA_TYPE_DOUBLE, null));
+		fields.add(createField(7, Field.DATA_TYPE_DOUBLE, null));
+		fields.add(createField(8, Field.DATA_TYPE_DOUBLE, null));
+		fields.add(createField(9, Field.DATA_TYPE_GEO_LOCATION, null));
+		fields.add(createField(10, Field.DATA_TYPE_GEO_LOCATION, null));
+		fields.add(createField(11, Field.DATA_TYPE_TIME_WINDOW, null));
+		fields.add(createField(12, Field.DATA_TYPE_HOUR_WINDOW, null));
+		fields.add(createField(13, Field.DATA_TYPE_DOUBLE, null));
+		fields.add(createField(16, Field.DATA_TYPE_DOUBLE, null));
+		fields.add(createField(17, Field.DATA_TYPE_CATEGORICAL, null));
+
+		String[] items = {"E1", "42", "5 kg", "5 lb", "4x", "007", "12.5", "100.0", "-3.25E7", "37.4:-122.1", 
+			"37.40:-122.1", "2014-01-02 10:00:00::2014-01-03 11:00:00", "1030::1200", "", "", "", "1e3", "red"};
+		TypedRecord record = new TypedRecord();
+		record.initialize(items, 0, 0, fields, "::");
+		Assert.assertEquals(record.getStatus(1), TypedRecord.STATUS_VALID);
+		Assert.assertEquals(record.getStatus(2), TypedRecord.STATUS_VALID_WITH_UNIT);
+		Assert.assertEquals(record.getStatus(3), TypedRecord.STATUS_UNIT_MISMATCH);
+		Assert.assertEquals(record.getStatus(4), TypedRecord.STATUS_INVALID);
+		Assert.assertEquals(record.getStatus(9), TypedRecord.STATUS_VALID_COMPOSITE);
+		Assert.assertEquals(record.getStatus(11), TypedRecord.STATUS_VALID_COMPOSITE);
+		Assert.assertEquals(record.getStatus(12), TypedRecord.STATUS_VALID_COMPOSITE);
+		Assert.assertTrue(record.isMissing(14));
+		TypedRecord copy = new TypedRecord();
+		assertRoundTrip(record, copy);
+
+		//hour window
+		Assert.assertEquals(copy.getHourWindow(12).getStart(), 630);
+		Assert.assertEquals(copy.getHourWindow(12).getEnd(), 720);
+
+		//raw value formatted again in a clone made before it's accessed
+		out.reset();
+		record.write(out);
+		in.reset(out.getData(), out.getLength());
+		copy.readFields(in);
+		TypedRecord clone = copy.createClone();
+		Assert.assertEquals(clone.getItem(6), "12.5");
+		Assert.assertEquals(clone.getItem(9), "37.4:-122.1");
+		Assert.assertEquals(clone.toString(","), record.toString(","));
+	}
+
+	@Test
+	public void testParsedValueNotShippedAsString() throws IOException {
+		List<Field> fields = new ArrayList<Field>();
+		fields.add(createField(1, Field.DATA_TYPE_DOUBLE, null));
+		TypedRecord record = new TypedRecord();
+		record.initialize(new String[]{"E1", "1234.5"}, 0, 0, fields, "::");
+		out.reset();
+		record.write(out);
+		int plainLength = out.getLength();
+		
+		//raw value that does not format back from the parsed value is shipped
+		record.initialize(new String[]{"E1", "1234.50"}, 0, 0, fields, "::");
+		out.reset();
+		record.write(out);
+		Assert.assertEquals(out.getLength(), plainLength + 1 + "1234.50".length());
+	}
+
+	@Test
+	public void testMissingRuns() throws IOException {
+		String[][] cases = {{"a", "", "", "b", "", ""}, {"", "", ""}, {"x"}, {"", "y", ""}, {"1", "2", "3"}};
+		TypedRecord copy = new TypedRecord();
+		for (String[] items : cases) {
+			TypedRecord record = new TypedRecord();
+			record.initialize(items, 1, 0, new ArrayList<Field>(), "::");
+			assertRoundTrip(record, copy);
+		}
+	}
+
+	@Test
+	public void testRawLine() throws IOException {
+		//trailing empty fields are dropped by split, raw line keeps them
+		String line = "E1,12.50,red,,";
+		List<Field> fields = new ArrayList<Field>();
+		fields.add(createField(1, Field.DATA_TYPE_DOUBLE, null));
+		TypedRecord record = new TypedRecord();
+		record.initialize(line.split(","), 1, 0, fields, "::");
+		record.setLine(line);
+		TypedRecord copy = new TypedRecord();
+		assertRoundTrip(record, copy);
+		Assert.assertEquals(copy.getLine(), line);
+		Assert.assertEquals(copy.getSetIndicator(), 1);
+		Assert.assertEquals(copy.createClone().getLine(), line);
+		
+		//not carried over when reused
+		record.initialize(line.split(","), 1, 0, fields, "::");
+		Assert.assertNull(record.getLine());
+		assertRoundTrip(record, copy);
+		Assert.assertNull(copy.getLine());
+	}
+
+	/**
+	 * Writes record, reads it into a reused object and writes it again
+	 * @param record
+	 * @param copy
+	 * @throws IOException
+	 */
+	private void assertRoundTrip(TypedRecord record, TypedRecord copy) throws IOException {
+		out.reset();
+		record.write(out);
+		byte[] bytes = Arrays.copyOf(out.getData(), out.getLength());
+		in.reset(bytes, bytes.length);
+		copy.readFields(in);
+		Assert.assertEquals(in.getPosition(), bytes.length);
+		Assert.assertEquals(copy.getSetIndicator(), record.getSetIndicator());
+		Assert.assertEquals(copy.getId(), record.getId());
+		Assert.assertEquals(copy.size(), record.size());
+		for (int i = 0; i < record.size(); ++i) {
+			Assert.assertEquals(copy.getStatus(i), record.getStatus(i));
+			Assert.assertEquals(copy.getItem(i), record.getItem(i));
+			if (record.isValid(i)) {
+				Assert.assertEquals(copy.getValue(i), record.getValue(i));
+				Assert.assertEquals(copy.getSecondValue(i), record.getSecondValue(i));
+			}
+		}
+		Assert.assertEquals(copy.getItems(), record.getItems());
+
+		//serialized again without any change
+		out.reset();
+		copy.write(out);
+		Assert.assertEquals(Arrays.copyOf(out.getData(), out.getLength()), bytes);
+	}
+
+	/**
+	 * @param ordinal
+	 * @param dataType
+	 * @param unit
+	 * @return
+	 */
+	private Field createField(int ordinal, String dataType, String unit) {
+		Field field = new Field();
+		field.setOrdinal(ordinal);
+		field.setDataType(dataType);
+		field.setUnit(unit);
+		return field;
+	}
+}